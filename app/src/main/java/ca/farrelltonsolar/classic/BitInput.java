@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.classic;
+
+import java.io.EOFException;
+
+/**
+ * Reads back what a BitOutput wrote.
+ */
+final class BitInput {
+
+    private final byte[] bytes;
+    private final long length; // in bits
+    private long position;
+
+    BitInput(byte[] bytes, int byteLength) {
+        this.bytes = bytes;
+        this.length = (long) byteLength << 3;
+    }
+
+    /**
+     * Reads count bits, at most 64, as the low bits of the result.
+     */
+    long read(int count) throws EOFException {
+        if (position + count > length) {
+            throw new EOFException("Read past the end of the block");
+        }
+        long value = 0;
+        while (count > 0) {
+            int index = (int) (position >>> 3);
+            int available = 8 - (int) (position & 7);
+            int n = Math.min(available, count);
+            int chunk = (bytes[index] >>> (available - n)) & ((1 << n) - 1);
+            value = (value << n) | chunk;
+            position += n;
+            count -= n;
+        }
+        return value;
+    }
+
+    boolean readBit() throws EOFException {
+        return read(1) != 0;
+    }
+}
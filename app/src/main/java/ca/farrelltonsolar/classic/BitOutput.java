@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.classic;
+
+import java.util.Arrays;
+
+/**
+ * Bits written most significant first into a growing byte array.
+ */
+final class BitOutput {
+
+    private byte[] bytes = new byte[1024];
+    private long length; // in bits
+
+    /**
+     * Writes the low count bits of value, count at most 64.
+     */
+    void write(long value, int count) {
+        while (count > 0) {
+            int index = (int) (length >>> 3);
+            if (index == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            int free = 8 - (int) (length & 7);
+            int n = Math.min(free, count);
+            int chunk = (int) (value >>> (count - n)) & ((1 << n) - 1);
+            bytes[index] |= chunk << (free - n);
+            length += n;
+            count -= n;
+        }
+    }
+
+    void writeBit(boolean bit) {
+        write(bit ? 1 : 0, 1);
+    }
+
+    long bitLength() {
+        return length;
+    }
+
+    int byteLength() {
+        return (int) ((length + 7) >>> 3);
+    }
+
+    byte[] bytes() {
+        return bytes;
+    }
+
+    void reset() {
+        Arrays.fill(bytes, 0, byteLength(), (byte) 0);
+        length = 0;
+    }
+}
@@ -27,9 +27,16 @@ import android.util.Log;
 
 import com.google.gson.Gson;
 
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+/**
+ * Keeps the log bundles of the charge controllers in files, in the LogCacheFile format. Files of the
+ * earlier Parcel format are still read once and rewritten in the new one.
+ */
 public class BundleCache {
 
     private static BundleCache mInstance;
@@ -62,42 +69,44 @@ public class BundleCache {
         }
     }
 
+    /**
+     * Stores the bundle's Long, Integer, short[] and float[] values, replacing what was cached under key
+     * in one rename. The previous file is kept if the write fails.
+     */
     public synchronized void putBundle(String key, Bundle bundle) {
         if (bundle == null) {
             throw new IllegalArgumentException("bundle is null");
         }
-        if (key.equals("") || key == null) {
+        if (key == null || key.equals("")) {
             throw new IllegalArgumentException("key is empty or null");
         }
         String fileName = namePrefix + key;
         try {
-            FileOutputStream fos = context.openFileOutput(fileName, Context.MODE_PRIVATE);
-            Parcel p = Parcel.obtain();
-            bundle.writeToParcel(p, 0);
-            byte[] buffer = p.marshall();
-            fos.write(buffer);
-            fos.flush();
-            fos.close();
+            Map<String, Object> values = new LinkedHashMap<>();
+            for (String name : bundle.keySet()) {
+                values.put(name, bundle.get(name));
+            }
+            LogCacheFile.write(context.getFileStreamPath(fileName), values);
             Log.d(getClass().getName(), String.format("putBundle completed for, ex: %s", fileName));
         } catch (Exception ex) {
-            clearCacheSub(key);
             Log.w(getClass().getName(), String.format("putBundle failed, on: %s ex: %s", fileName, ex));
         }
     }
 
+    /**
+     * The bundle cached under key, null if there is none or it could not be read.
+     */
     public synchronized Bundle getBundle(String key) {
-        if (key.equals("") || key == null) {
+        if (key == null || key.equals("")) {
             throw new IllegalArgumentException("key is empty or null");
         }
         String fileName = namePrefix + key;
+        File file = context.getFileStreamPath(fileName);
+        if (!file.exists()) {
+            return null;
+        }
         try {
-            FileInputStream fis = context.openFileInput(fileName);
-            byte[] buffer = new byte[16384];
-            fis.read(buffer);
-            Parcel p = Parcel.obtain();
-            p.unmarshall(buffer, 0, buffer.length);
-            p.setDataPosition(0);
-            Bundle b = p.readBundle();
+            Bundle b = toBundle(LogCacheFile.readOrMigrate(file, PARCEL));
             Log.d(getClass().getName(), String.format("getBundle completed for, ex: %s", fileName));
             return b;
         } catch (Exception ex) {
@@ -107,4 +116,65 @@ public class BundleCache {
         }
     }
 
+    // the earlier format, a marshalled Parcel of the bundle
+    private static final LogCacheFile.OlderFormat PARCEL = new LogCacheFile.OlderFormat() {
+        @Override
+        public Map<String, Object> read(File file) throws IOException {
+            Bundle bundle = readParcel(file);
+            Map<String, Object> values = new LinkedHashMap<>();
+            for (String name : bundle.keySet()) {
+                Object value = bundle.get(name);
+                if (value instanceof Long || value instanceof Integer || value instanceof short[] || value instanceof float[]) {
+                    values.put(name, value);
+                }
+            }
+            return values;
+        }
+    };
+
+    private static Bundle toBundle(Map<String, Object> values) {
+        Bundle bundle = new Bundle();
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof Long) {
+                bundle.putLong(entry.getKey(), (Long) value);
+            } else if (value instanceof Integer) {
+                bundle.putInt(entry.getKey(), (Integer) value);
+            } else if (value instanceof short[]) {
+                bundle.putShortArray(entry.getKey(), (short[]) value);
+            } else {
+                bundle.putFloatArray(entry.getKey(), (float[]) value);
+            }
+        }
+        return bundle;
+    }
+
+    /**
+     * Reads a whole file of the earlier format, a marshalled Parcel.
+     */
+    private static Bundle readParcel(File file) throws IOException {
+        byte[] buffer = new byte[(int) file.length()];
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < buffer.length) {
+                int n = fis.read(buffer, read, buffer.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+        } finally {
+            fis.close();
+        }
+        Parcel p = Parcel.obtain();
+        try {
+            p.unmarshall(buffer, 0, buffer.length);
+            p.setDataPosition(0);
+            return p.readBundle();
+        } finally {
+            p.recycle();
+        }
+    }
+
 }
\ No newline at end of file
@@ -22,7 +22,26 @@ public class Constants {
 
     // UDP listening port for available classics on the subnet
     public static final int CLASSIC_UDP_PORT = 4626;
-    public static final int MODBUS_POLL_TIME = 2000;
+    public static final int MODBUS_POLL_TIME = 2000; // while a live reading is on screen
+    public static final int MODBUS_POLL_TIME_FOREGROUND = 5000; // app visible, no live reading
+    public static final int MODBUS_POLL_TIME_BACKGROUND = 30000; // keep below MODBUS_IDLE_TIMEOUT
+    public static final int MODBUS_POLL_TIME_RESTING = 20000; // controller resting, i.e. at night
+    public static final int MODBUS_SLOW_REGISTER_INTERVAL = 30000; // temperatures and set points
+    public static final int READINGS_HEARTBEAT = 30000; // readings are broadcast at least this often, changed or not
+    public static final int MODBUS_POLL_START_DELAY = 100; // plus up to one poll period of jitter
+    public static final int MODBUS_POLL_THREADS = 3; // shared by all monitored controllers
+    public static final int MODBUS_CONNECT_TIMEOUT = 3000; // bound on opening a socket to a charge controller
+    public static final int MODBUS_RECONNECT_MIN_DELAY = 2000; // first back off after a failed connection
+    public static final int MODBUS_RECONNECT_MAX_DELAY = 60000; // back off cap for an unreachable controller
+    public static final int MODBUS_IDLE_TIMEOUT = 60000; // connection silent this long is treated as half-open
+    public static final int MODBUS_MIN_TIMEOUT = 250; // response timeouts adapt to the measured round trip time within these bounds
+    public static final int MODBUS_MAX_TIMEOUT = 10000;
+    public static final int MODBUS_SHUTDOWN_WAIT = 1000; // longest the service waits on polls in progress when it stops
+    public static final int MODBUS_READ_GAP_TOLERANCE = 32; // unused registers a poll read may span to save a request
+    public static final int MODBUS_LOG_BLOCKS_PER_STEP = 8; // log blocks a download reads per exchange, a live poll waits behind at most one
+    public static final int MODBUS_METRICS_LOG_INTERVAL = 300000; // developer mode only
+    public static final int HISTORY_RETENTION_DAYS = 28; // days of polled readings kept on the device for each controller
+    public static final int LIVE_RECORD_CAPACITY = 21600; // samples of the current controller kept for the live chart
     public static final int UDPListener_Maximum_Sleep_Time = 12000;
     public static final int UDPListener_Minimum_Sleep_Time = 100;
 
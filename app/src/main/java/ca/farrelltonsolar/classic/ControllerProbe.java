@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.classic;
+
+import ca.farrelltonsolar.j2modlite.ModbusException;
+import ca.farrelltonsolar.j2modlite.facade.ModbusTCPMaster;
+
+/**
+ * The reads made once per connection to find out what answers: the TriStar scaling registers at
+ * address 0, then the identity registers and, for a Classic, its firmware versions.
+ */
+public class ControllerProbe {
+
+    // identity and setup registers read once per connection, as {address, count, required}; read as separate
+    // requests, a slave exception over the gaps between them must not lose the model at 4100
+    private static final int[][] INFO_RANGES = {{4100, 22, 0}, {4163, 2, 0}, {4209, 4, 0}, {4244, 2, 0}};
+    private static final int[][] VERSION_RANGES = {{16386, 4, 0}};
+    private static final int[][] TRISTAR_RANGES = {{0, 4, 1}};
+
+    private final ReadPlan triStarPlan = ReadPlan.forRanges(TRISTAR_RANGES, 0);
+    private final ReadPlan infoPlan = ReadPlan.forRanges(INFO_RANGES, 0);
+    private final ReadPlan versionPlan = ReadPlan.forRanges(VERSION_RANGES, 0);
+
+    /**
+     * True if a TriStar answered, a Classic refuses address 0 or reads 0 there.
+     */
+    public boolean lookForTriStar(ModbusTCPMaster master) {
+        try {
+            triStarPlan.read(master);
+            return triStarPlan.get(0) != 0;
+        } catch (ModbusException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The TriStar's voltage (address 0) or current (address 2) scaling, a whole and a fractional register.
+     */
+    float triStarScaling(int address) {
+        float hi = triStarPlan.get(address);
+        float lo = triStarPlan.get(address + 1);
+        return hi + lo / 65536;
+    }
+
+    /**
+     * Reads the identity registers and, for a Classic, the version registers.
+     *
+     * @return true for a Classic, a Kid reads 0 as its model
+     */
+    public boolean loadBoilerPlateInfo(ModbusTCPMaster master) throws ModbusException {
+        infoPlan.read(master);
+        boolean isClassic = infoPlan.contains(4100, 22) && infoPlan.get(4100) != 0;
+        if (isClassic) {
+            versionPlan.read(master);
+        }
+        return isClassic;
+    }
+
+    public boolean hasWhizbang() {
+        return infoPlan.contains(4163, 2) && RegisterPoller.isWhizbang(infoPlan.u16(4164));
+    }
+
+    ReadPlan info() {
+        return infoPlan;
+    }
+
+    ReadPlan versions() {
+        return versionPlan;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.classic;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * The readings history block being filled, compressed the way Gorilla (Facebook's in-memory time
+ * series database) does it. Each timestamp is written as the change of its delta from the one before:
+ * polled on time that is a single bit. Each reading is XOR'ed with its previous value: an unchanged
+ * value is a single bit, a changed one only the bits between the leading and trailing zeros of the
+ * XOR, usually within the window of the previous change. The kind of every reading, FLOAT, INT,
+ * BOOLEAN or ABSENT, is written only when one of them changes.
+ * <pre>
+ * header  payload length, samples, first timestamp, last timestamp (all ms), register count (short),
+ *         CRC32 of the rest of the header and the payload
+ * payload the samples' bits, see append()
+ * </pre>
+ * HistoryCursor decodes it.
+ */
+final class HistoryBlock {
+
+    static final int HEADER_SIZE = 30;
+
+    private final int registers = RegisterName.values().length;
+    private final BitOutput out = new BitOutput();
+    private final byte[] kinds = new byte[registers];
+    private final int[] values = new int[registers];
+    private final int[] leading = new int[registers];
+    private final int[] trailing = new int[registers];
+    private int samples;
+    private long firstTimestamp;
+    private long lastTimestamp;
+    private long lastDelta;
+
+    HistoryBlock() {
+        reset();
+    }
+
+    boolean isEmpty() {
+        return samples == 0;
+    }
+
+    int samples() {
+        return samples;
+    }
+
+    long firstTimestamp() {
+        return firstTimestamp;
+    }
+
+    void reset() {
+        out.reset();
+        for (int i = 0; i < registers; i++) {
+            kinds[i] = ReadingsSnapshot.ABSENT;
+            values[i] = 0;
+            leading[i] = -1;
+            trailing[i] = 0;
+        }
+        samples = 0;
+        firstTimestamp = 0;
+        lastTimestamp = 0;
+        lastDelta = 0;
+    }
+
+    /**
+     * Appends the snapshot: its timestamp's delta of delta (none for the first), one bit telling whether
+     * the kinds changed followed by 2 bits of kind per register if they did, then the value of each
+     * register that is not ABSENT.
+     */
+    void append(ReadingsSnapshot snapshot) {
+        long timestamp = snapshot.timestamp();
+        if (samples == 0) {
+            firstTimestamp = timestamp;
+        } else {
+            long delta = timestamp - lastTimestamp;
+            writeDeltaOfDelta(delta - lastDelta);
+            lastDelta = delta;
+        }
+        lastTimestamp = timestamp;
+        boolean kindsChanged = false;
+        for (int i = 0; i < registers && !kindsChanged; i++) {
+            kindsChanged = snapshot.kind(i) != kinds[i];
+        }
+        out.writeBit(kindsChanged);
+        if (kindsChanged) {
+            for (int i = 0; i < registers; i++) {
+                kinds[i] = snapshot.kind(i);
+                out.write(kinds[i], 2);
+            }
+        }
+        for (int i = 0; i < registers; i++) {
+            switch (kinds[i]) {
+                case ReadingsSnapshot.ABSENT:
+                    break;
+                case ReadingsSnapshot.FLOAT:
+                    writeValue(i, Float.floatToRawIntBits(snapshot.floatAt(i)));
+                    break;
+                default:
+                    writeValue(i, snapshot.intAt(i));
+            }
+        }
+        samples++;
+    }
+
+    /**
+     * '0' for no change, '10', '110' or '1110' followed by a 7, 9 or 12 bit signed value, '1111' followed by 64 bits.
+     */
+    private void writeDeltaOfDelta(long deltaOfDelta) {
+        if (deltaOfDelta == 0) {
+            out.write(0, 1);
+        } else if (deltaOfDelta >= -64 && deltaOfDelta < 64) {
+            out.write(0x2, 2);
+            out.write(deltaOfDelta, 7);
+        } else if (deltaOfDelta >= -256 && deltaOfDelta < 256) {
+            out.write(0x6, 3);
+            out.write(deltaOfDelta, 9);
+        } else if (deltaOfDelta >= -2048 && deltaOfDelta < 2048) {
+            out.write(0xe, 4);
+            out.write(deltaOfDelta, 12);
+        } else {
+            out.write(0xf, 4);
+            out.write(deltaOfDelta, 64);
+        }
+    }
+
+    /**
+     * '0' for an unchanged value, '10' followed by the XOR's bits within the previous window, or '11'
+     * followed by the number of leading zeros (5 bits), the number of meaningful bits less one (5 bits)
+     * and the meaningful bits.
+     */
+    private void writeValue(int register, int value) {
+        int xor = value ^ values[register];
+        values[register] = value;
+        if (xor == 0) {
+            out.write(0, 1);
+            return;
+        }
+        int lead = Integer.numberOfLeadingZeros(xor);
+        int trail = Integer.numberOfTrailingZeros(xor);
+        if (leading[register] >= 0 && lead >= leading[register] && trail >= trailing[register]) {
+            out.write(0x2, 2);
+            out.write(xor >>> trailing[register], 32 - leading[register] - trailing[register]);
+        } else {
+            int meaningful = 32 - lead - trail;
+            out.write(0x3, 2);
+            out.write(lead, 5);
+            out.write(meaningful - 1, 5);
+            out.write(xor >>> trail, meaningful);
+            leading[register] = lead;
+            trailing[register] = trail;
+        }
+    }
+
+    /**
+     * Writes the header and payload.
+     */
+    void writeTo(DataOutput output) throws IOException {
+        int length = out.byteLength();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(length).putInt(samples).putLong(firstTimestamp).putLong(lastTimestamp).putShort((short) registers);
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, header.position());
+        crc.update(out.bytes(), 0, length);
+        header.putInt((int) crc.getValue());
+        output.write(header.array());
+        output.write(out.bytes(), 0, length);
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.classic;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Walks the readings history samples of a time range, segment file by segment file, then the block
+ * still being filled. Only one sample is decoded at a time, read its values before calling next().
+ * A block cut short or failing its CRC ends its segment.
+ */
+public class HistoryCursor implements Closeable {
+
+    private final List<File> segments;
+    private final byte[] openBlock;
+    private final long from;
+    private final long to;
+    private int nextSegment;
+    private boolean openBlockRead;
+    private DataInputStream in;
+    private byte[] payload = new byte[4096];
+
+    // the block being decoded
+    private BitInput bits;
+    private int remaining;
+    private int registers;
+    private byte[] kinds = new byte[0];
+    private int[] values = new int[0];
+    private int[] leading = new int[0];
+    private int[] trailing = new int[0];
+    private boolean first;
+    private long timestamp;
+    private long delta;
+
+    HistoryCursor(List<File> segments, byte[] openBlock, long from, long to) {
+        this.segments = segments;
+        this.openBlock = openBlock;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Moves to the next sample within the range, false when there are no more.
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            if (remaining > 0) {
+                remaining--;
+                decodeSample();
+                if (timestamp >= from && timestamp < to) {
+                    return true;
+                }
+            } else if (!nextBlock()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Wall clock time in ms of the sample.
+     */
+    public long timestamp() {
+        return timestamp;
+    }
+
+    public boolean contains(RegisterName name) {
+        return kind(name) != ReadingsSnapshot.ABSENT;
+    }
+
+    /**
+     * ABSENT if the reading was not set in the sample, otherwise whether it is a FLOAT, INT or BOOLEAN.
+     */
+    public byte kind(RegisterName name) {
+        int i = name.ordinal();
+        return i < registers ? kinds[i] : ReadingsSnapshot.ABSENT;
+    }
+
+    public float getFloat(RegisterName name) {
+        int i = name.ordinal();
+        switch (kind(name)) {
+            case ReadingsSnapshot.FLOAT:
+                return Float.intBitsToFloat(values[i]);
+            case ReadingsSnapshot.INT:
+                return values[i];
+            default:
+                return 0;
+        }
+    }
+
+    public int getInt(RegisterName name) {
+        int i = name.ordinal();
+        switch (kind(name)) {
+            case ReadingsSnapshot.FLOAT:
+                return (int) Float.intBitsToFloat(values[i]);
+            case ReadingsSnapshot.INT:
+                return values[i];
+            default:
+                return 0;
+        }
+    }
+
+    public boolean getBoolean(RegisterName name) {
+        return kind(name) == ReadingsSnapshot.BOOLEAN && values[name.ordinal()] != 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        remaining = 0;
+        nextSegment = segments.size();
+        openBlockRead = true;
+        closeSource();
+    }
+
+    private boolean nextBlock() throws IOException {
+        while (true) {
+            if (in == null && !nextSource()) {
+                return false;
+            }
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HistoryBlock.HEADER_SIZE);
+                in.readFully(header.array());
+                int length = header.getInt();
+                int samples = header.getInt();
+                long firstTimestamp = header.getLong();
+                long lastTimestamp = header.getLong();
+                int registerCount = header.getShort();
+                int crc = header.getInt();
+                if (length < 0 || samples < 0 || registerCount < 0) {
+                    throw new IOException("Corrupt history block");
+                }
+                if (payload.length < length) {
+                    payload = new byte[length];
+                }
+                in.readFully(payload, 0, length);
+                if (Math.max(firstTimestamp, lastTimestamp) < from || Math.min(firstTimestamp, lastTimestamp) >= to) {
+                    continue; // the clock may have been set back within the block
+                }
+                CRC32 check = new CRC32();
+                check.update(header.array(), 0, HistoryBlock.HEADER_SIZE - 4);
+                check.update(payload, 0, length);
+                if ((int) check.getValue() != crc) {
+                    throw new IOException("History block failed its CRC");
+                }
+                startBlock(length, samples, firstTimestamp, registerCount);
+                return true;
+            } catch (IOException ex) {
+                closeSource(); // end of the segment, or a torn or corrupt block ends it
+            }
+        }
+    }
+
+    private boolean nextSource() throws IOException {
+        while (nextSegment < segments.size()) {
+            File file = segments.get(nextSegment++);
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                if (ReadingsHistory.readFileHeader(in)) {
+                    return true;
+                }
+            } catch (IOException ex) {
+                // a segment removed by the retention meanwhile, or not readable
+            }
+            closeSource();
+        }
+        if (!openBlockRead && openBlock != null) {
+            openBlockRead = true;
+            in = new DataInputStream(new ByteArrayInputStream(openBlock));
+            return true;
+        }
+        return false;
+    }
+
+    private void closeSource() throws IOException {
+        if (in != null) {
+            in.close();
+            in = null;
+        }
+    }
+
+    private void startBlock(int length, int samples, long firstTimestamp, int registerCount) {
+        bits = new BitInput(payload, length);
+        remaining = samples;
+        registers = registerCount;
+        if (kinds.length < registerCount) {
+            kinds = new byte[registerCount];
+            values = new int[registerCount];
+            leading = new int[registerCount];
+            trailing = new int[registerCount];
+        }
+        for (int i = 0; i < registerCount; i++) {
+            kinds[i] = ReadingsSnapshot.ABSENT;
+            values[i] = 0;
+            leading[i] = -1;
+            trailing[i] = 0;
+        }
+        first = true;
+        timestamp = firstTimestamp;
+        delta = 0;
+    }
+
+    /**
+     * The reverse of HistoryBlock.append().
+     */
+    private void decodeSample() throws IOException {
+        try {
+            if (first) {
+                first = false;
+            } else {
+                delta += readDeltaOfDelta();
+                timestamp += delta;
+            }
+            if (bits.readBit()) {
+                for (int i = 0; i < registers; i++) {
+                    kinds[i] = (byte) bits.read(2);
+                }
+            }
+            for (int i = 0; i < registers; i++) {
+                if (kinds[i] != ReadingsSnapshot.ABSENT) {
+                    readValue(i);
+                }
+            }
+        } catch (EOFException ex) {
+            remaining = 0;
+            throw new IOException("History block ends part way through a sample", ex);
+        }
+    }
+
+    private long readDeltaOfDelta() throws EOFException {
+        if (!bits.readBit()) {
+            return 0;
+        }
+        if (!bits.readBit()) {
+            return signed(bits.read(7), 7);
+        }
+        if (!bits.readBit()) {
+            return signed(bits.read(9), 9);
+        }
+        if (!bits.readBit()) {
+            return signed(bits.read(12), 12);
+        }
+        return bits.read(64);
+    }
+
+    private void readValue(int register) throws EOFException {
+        if (!bits.readBit()) {
+            return;
+        }
+        if (bits.readBit()) {
+            leading[register] = (int) bits.read(5);
+            trailing[register] = 32 - leading[register] - ((int) bits.read(5) + 1);
+        }
+        int meaningful = 32 - leading[register] - trailing[register];
+        values[register] ^= (int) bits.read(meaningful) << trailing[register];
+    }
+
+    private static long signed(long value, int bits) {
+        return (value << (64 - bits)) >> (64 - bits);
+    }
+}
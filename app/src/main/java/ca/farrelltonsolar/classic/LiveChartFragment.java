@@ -42,6 +42,15 @@ public class LiveChartFragment extends ReadingFramentBase {
     public static int TabTitle = R.string.RealTimeChartTabTitle;
     private CustomLineChart mChart;
     private boolean showWhizbangCurrent;
+    private long charted; // sequence number of the next live record sample to chart
+    // samples copied out of the live record per hold of its lock, the poll thread waits on it to add one
+    private static final int CHART_CHUNK = 512;
+    private final long[] chunkTime = new long[CHART_CHUNK];
+    private final float[] chunkVolt = new float[CHART_CHUNK];
+    private final float[] chunkSupplyCurrent = new float[CHART_CHUNK];
+    private final float[] chunkBatteryCurrent = new float[CHART_CHUNK];
+    private final int[] chunkState = new int[CHART_CHUNK];
+    private final int[] chunkSoc = new int[CHART_CHUNK];
 
     public LiveChartFragment() {
         super(R.layout.live_chart);
@@ -98,15 +107,48 @@ public class LiveChartFragment extends ReadingFramentBase {
             setupDataSet(data);
         }
         // load any recorded data while off this tab
-        MonitorActivity ma = (MonitorActivity)getActivity();
-        for (RecordEntry r : ma.record) {
-            DateTime dt = new DateTime(r.time);
-            addEntry(r.volt, r.supplyCurrent, r.batteryCurrent, r.state, r.dod, dt);
+        charted = Long.MIN_VALUE;
+        LiveRecord record = MonitorApplication.liveRecord();
+        if (record != null) {
+            chartRecorded(record);
         }
     }
 
     public void setReadings(Readings readings) {
-        addEntry(readings.getFloat(RegisterName.BatVoltage), readings.getFloat(RegisterName.BatCurrent), readings.getFloat(RegisterName.WhizbangBatCurrent), readings.getInt(RegisterName.ChargeState), readings.getInt(RegisterName.SOC), DateTime.now());
+        LiveRecord record = MonitorApplication.liveRecord();
+        if (record != null) {
+            chartRecorded(record);
+        } else {
+            addEntry(readings.getFloat(RegisterName.BatVoltage), readings.getFloat(RegisterName.BatCurrent), readings.getFloat(RegisterName.WhizbangBatCurrent), readings.getInt(RegisterName.ChargeState), readings.getInt(RegisterName.SOC), DateTime.now());
+            showLatest();
+        }
+    }
+
+    /**
+     * Charts the samples recorded since the last ones charted. They are copied from the service's record
+     * CHART_CHUNK at a time and charted outside its lock, so a full window does not hold up the poll.
+     */
+    private void chartRecorded(LiveRecord record) {
+        int count;
+        do {
+            synchronized (record) {
+                long sequence = Math.max(charted, record.first());
+                count = (int) Math.min(CHART_CHUNK, record.end() - sequence);
+                for (int i = 0; i < count; i++) {
+                    chunkTime[i] = record.time(sequence + i);
+                    chunkVolt[i] = record.volt(sequence + i);
+                    chunkSupplyCurrent[i] = record.supplyCurrent(sequence + i);
+                    chunkBatteryCurrent[i] = record.batteryCurrent(sequence + i);
+                    chunkState[i] = record.state(sequence + i);
+                    chunkSoc[i] = record.soc(sequence + i);
+                }
+                charted = sequence + Math.max(count, 0);
+            }
+            for (int i = 0; i < count; i++) {
+                addEntry(chunkVolt[i], chunkSupplyCurrent[i], chunkBatteryCurrent[i], chunkState[i], chunkSoc[i], new DateTime(chunkTime[i]));
+            }
+        } while (count == CHART_CHUNK);
+        showLatest();
     }
 
     private boolean validState(int state) {
@@ -147,10 +189,6 @@ public class LiveChartFragment extends ReadingFramentBase {
                         data.addEntry(new Entry(batteryCurrent, set.getEntryCount(), RegisterName.WhizbangBatCurrent), 3);
                         data.addEntry(new Entry(soc, set.getEntryCount(), RegisterName.SOC), 4);
                     }
-                    // let the chart know it's data has changed
-                    mChart.notifyDataSetChanged();
-                    // move to the latest entry
-                    mChart.moveViewToX(data.getXValCount());
                 }
             }
         } catch (Exception all) {
@@ -158,6 +196,16 @@ public class LiveChartFragment extends ReadingFramentBase {
         }
     }
 
+    private void showLatest() {
+        LineData data = mChart.getData();
+        if (data != null) {
+            // let the chart know it's data has changed
+            mChart.notifyDataSetChanged();
+            // move to the latest entry
+            mChart.moveViewToX(data.getXValCount());
+        }
+    }
+
     private LineDataSet createBatVoltsSet() {
         LineDataSet set = new LineDataSet(null, getString(R.string.BatVoltsTitle));
         set.setAxisDependency(YAxis.AxisDependency.LEFT);
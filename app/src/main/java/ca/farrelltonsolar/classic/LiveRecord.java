@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.classic;
+
+/**
+ * The readings charted live for the current charge controller, kept by the service so they outlive
+ * the activity. A ring of primitive columns, the oldest sample is overwritten once it is full. Readers
+ * walk it by sequence number from first() to end() while holding its lock.
+ */
+public final class LiveRecord {
+
+    private final int capacity;
+    private final long[] times;
+    private final float[] volts;
+    private final float[] supplyCurrents;
+    private final float[] batteryCurrents;
+    private final int[] states;
+    private final int[] socs;
+    private long end;
+    private long first;
+
+    public LiveRecord(int capacity) {
+        this.capacity = capacity;
+        times = new long[capacity];
+        volts = new float[capacity];
+        supplyCurrents = new float[capacity];
+        batteryCurrents = new float[capacity];
+        states = new int[capacity];
+        socs = new int[capacity];
+    }
+
+    public synchronized void add(ReadingsSnapshot readings) {
+        int i = (int) (end % capacity);
+        times[i] = readings.timestamp();
+        volts[i] = readings.getFloat(RegisterName.BatVoltage);
+        supplyCurrents[i] = readings.getFloat(RegisterName.BatCurrent);
+        batteryCurrents[i] = readings.getFloat(RegisterName.WhizbangBatCurrent);
+        states[i] = readings.getInt(RegisterName.ChargeState);
+        socs[i] = readings.getInt(RegisterName.SOC);
+        end++;
+        if (end - first > capacity) {
+            first = end - capacity;
+        }
+    }
+
+    /**
+     * Drops the samples, e.g. when another charge controller becomes current. Sequence numbers carry on.
+     */
+    public synchronized void clear() {
+        first = end;
+    }
+
+    /**
+     * Sequence number of the oldest sample kept.
+     */
+    public synchronized long first() {
+        return first;
+    }
+
+    /**
+     * Sequence number the next sample will get.
+     */
+    public synchronized long end() {
+        return end;
+    }
+
+    /**
+     * Wall clock time in ms of the sample, which must be between first() and end().
+     */
+    public synchronized long time(long sequence) {
+        return times[index(sequence)];
+    }
+
+    public synchronized float volt(long sequence) {
+        return volts[index(sequence)];
+    }
+
+    public synchronized float supplyCurrent(long sequence) {
+        return supplyCurrents[index(sequence)];
+    }
+
+    public synchronized float batteryCurrent(long sequence) {
+        return batteryCurrents[index(sequence)];
+    }
+
+    public synchronized int state(long sequence) {
+        return states[index(sequence)];
+    }
+
+    public synchronized int soc(long sequence) {
+        return socs[index(sequence)];
+    }
+
+    private int index(long sequence) {
+        if (sequence < first || sequence >= end) {
+            throw new IndexOutOfBoundsException(String.format("Sample %d is not between %d and %d", sequence, first, end));
+        }
+        return (int) (sequence % capacity);
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.classic;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The on disk format of the cached logs, read memory mapped.
+ * <pre>
+ * header    magic "CLOG", version (short), reserved (short), value count, file length, CRC32 of the rest
+ * directory per value: key length (short), key (UTF-8), type (byte), element count, offset of its column
+ * columns   big endian, each starting on an 8 byte boundary
+ * </pre>
+ * A file is replaced in one rename; one of another version, cut short or failing its CRC is rejected.
+ */
+final class LogCacheFile {
+
+    static final int VERSION = 1;
+
+    private static final int MAGIC = 0x434c4f47; // CLOG
+    private static final int HEADER_SIZE = 20;
+    private static final int CRC_POSITION = 16;
+    private static final byte TYPE_LONG = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_SHORTS = 3;
+    private static final byte TYPE_FLOATS = 4;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private LogCacheFile() {
+    }
+
+    /**
+     * Reads a file of a format that came before this one.
+     */
+    interface OlderFormat {
+        Map<String, Object> read(File file) throws IOException;
+    }
+
+    /**
+     * Reads the values of the file. One in an older format is read with older and rewritten in this
+     * format, if that fails it is read with older again next time.
+     */
+    static Map<String, Object> readOrMigrate(File file, OlderFormat older) throws IOException {
+        if (isLogCacheFile(file)) {
+            return read(file);
+        }
+        Map<String, Object> values = older.read(file);
+        try {
+            write(file, values);
+        } catch (IOException ex) {
+            // keep the values read, the file is left in the older format
+        }
+        return values;
+    }
+
+    /**
+     * True if the file starts as a log cache file of any version, a file that does not is in an older format.
+     */
+    static boolean isLogCacheFile(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            return in.length() >= 4 && in.readInt() == MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes values, each a Long, Integer, short[] or float[], replacing the file in one rename.
+     */
+    static void write(File file, Map<String, Object> values) throws IOException {
+        byte[][] keys = new byte[values.size()][];
+        int directorySize = 0;
+        int k = 0;
+        for (String key : values.keySet()) {
+            keys[k] = key.getBytes(UTF8);
+            if (keys[k].length > Short.MAX_VALUE) {
+                throw new IllegalArgumentException("key too long: " + key);
+            }
+            directorySize += 2 + keys[k].length + 1 + 4 + 4;
+            k++;
+        }
+        int length = align(HEADER_SIZE + directorySize);
+        for (Object value : values.values()) {
+            length = align(length + columnSize(value));
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putInt(MAGIC).putShort((short) VERSION).putShort((short) 0).putInt(values.size()).putInt(length).putInt(0);
+        int offset = align(HEADER_SIZE + directorySize);
+        k = 0;
+        for (Object value : values.values()) {
+            buffer.putShort((short) keys[k].length).put(keys[k]);
+            buffer.put(type(value)).putInt(elements(value)).putInt(offset);
+            offset = align(offset + columnSize(value));
+            k++;
+        }
+        for (Object value : values.values()) {
+            buffer.position(align(buffer.position()));
+            if (value instanceof Long) {
+                buffer.putLong((Long) value);
+            } else if (value instanceof Integer) {
+                buffer.putInt((Integer) value);
+            } else if (value instanceof short[]) {
+                buffer.asShortBuffer().put((short[]) value);
+                buffer.position(buffer.position() + columnSize(value));
+            } else {
+                buffer.asFloatBuffer().put((float[]) value);
+                buffer.position(buffer.position() + columnSize(value));
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER_SIZE, length - HEADER_SIZE);
+        buffer.putInt(CRC_POSITION, (int) crc.getValue());
+
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(buffer.array());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not rename " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * Reads the values of a file written by write().
+     *
+     * @throws IOException if the file is of another version, cut short or corrupt
+     */
+    static Map<String, Object> read(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        MappedByteBuffer buffer;
+        try {
+            long size = in.length();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Not a log cache file: " + file);
+            }
+            buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            in.close(); // the mapping stays valid
+        }
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a log cache file: " + file);
+        }
+        int version = buffer.getShort();
+        if (version != VERSION) {
+            throw new IOException(String.format("Log cache file %s is version %d, expected %d", file, version, VERSION));
+        }
+        buffer.getShort();
+        int count = buffer.getInt();
+        int length = buffer.getInt();
+        int expectedCrc = buffer.getInt();
+        if (length != buffer.capacity() || count < 0) {
+            throw new IOException("Log cache file cut short: " + file);
+        }
+        if (expectedCrc != (int) crc(buffer, HEADER_SIZE, length)) {
+            throw new IOException("Log cache file failed its CRC: " + file);
+        }
+        try {
+            Map<String, Object> values = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                byte[] key = new byte[buffer.getShort()];
+                buffer.get(key);
+                byte type = buffer.get();
+                int elements = buffer.getInt();
+                int offset = buffer.getInt();
+                values.put(new String(key, UTF8), column(buffer, type, elements, offset));
+            }
+            return values;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException | NegativeArraySizeException ex) {
+            throw new IOException("Log cache file corrupt: " + file, ex);
+        }
+    }
+
+    private static Object column(ByteBuffer buffer, byte type, int elements, int offset) throws IOException {
+        ByteBuffer column = buffer.duplicate();
+        column.position(offset);
+        switch (type) {
+            case TYPE_LONG:
+                return column.getLong();
+            case TYPE_INT:
+                return column.getInt();
+            case TYPE_SHORTS:
+                short[] shorts = new short[elements];
+                column.asShortBuffer().get(shorts);
+                return shorts;
+            case TYPE_FLOATS:
+                float[] floats = new float[elements];
+                column.asFloatBuffer().get(floats);
+                return floats;
+            default:
+                throw new IOException("Unknown column type " + type);
+        }
+    }
+
+    private static long crc(ByteBuffer buffer, int from, int to) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[4096];
+        ByteBuffer source = buffer.duplicate();
+        source.position(from);
+        while (source.position() < to) {
+            int n = Math.min(chunk.length, to - source.position());
+            source.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+        return crc.getValue();
+    }
+
+    private static byte type(Object value) {
+        if (value instanceof Long) {
+            return TYPE_LONG;
+        } else if (value instanceof Integer) {
+            return TYPE_INT;
+        } else if (value instanceof short[]) {
+            return TYPE_SHORTS;
+        } else if (value instanceof float[]) {
+            return TYPE_FLOATS;
+        }
+        throw new IllegalArgumentException("Cannot cache a " + (value == null ? "null" : value.getClass().getName()));
+    }
+
+    private static int elements(Object value) {
+        if (value instanceof short[]) {
+            return ((short[]) value).length;
+        } else if (value instanceof float[]) {
+            return ((float[]) value).length;
+        }
+        return 1;
+    }
+
+    private static int columnSize(Object value) {
+        switch (type(value)) {
+            case TYPE_LONG:
+                return 8;
+            case TYPE_INT:
+                return 4;
+            case TYPE_SHORTS:
+                return 2 * elements(value);
+            default:
+                return 4 * elements(value);
+        }
+    }
+
+    private static int align(int position) {
+        return (position + 7) & ~7;
+    }
+}
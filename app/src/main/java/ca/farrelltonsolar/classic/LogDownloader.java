@@ -0,0 +1,445 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.classic;
+
+import java.util.Arrays;
+
+import ca.farrelltonsolar.j2modlite.Modbus;
+import ca.farrelltonsolar.j2modlite.ModbusException;
+import ca.farrelltonsolar.j2modlite.ModbusIOException;
+import ca.farrelltonsolar.j2modlite.facade.ModbusTCPMaster;
+
+/**
+ * Downloads the day and minute logs of a Classic with READ_LOG_FILE, a few blocks per step so the live
+ * registers can be read in between. Entries are scaled by their category's factor, most recent first.
+ * A cached log is brought up to date by reading only the entries logged since.
+ */
+public class LogDownloader {
+
+    // log categories downloaded together, with the divisor scaling each one
+    static final int[] DAY_LOG_CATEGORIES = {Constants.CLASSIC_KWHOUR_DAILY_CATEGORY, Constants.CLASSIC_FLOAT_TIME_DAILY_CATEGORY,
+            Constants.CLASSIC_HIGH_POWER_DAILY_CATEGORY, Constants.CLASSIC_HIGH_TEMP_DAILY_CATEGORY,
+            Constants.CLASSIC_HIGH_PV_VOLT_DAILY_CATEGORY, Constants.CLASSIC_HIGH_BATTERY_VOLT_DAILY_CATEGORY};
+    private static final int[] DAY_LOG_FACTORS = {1, 1, 1, 1, 1, 1};
+    static final int[] MINUTE_LOG_CATEGORIES = {Constants.CLASSIC_POWER_HOURLY_CATEGORY, Constants.CLASSIC_INPUT_VOLTAGE_HOURLY_CATEGORY,
+            Constants.CLASSIC_BATTERY_VOLTAGE_HOURLY_CATEGORY, Constants.CLASSIC_OUTPUT_CURRENT_HOURLY_CATEGORY,
+            Constants.CLASSIC_ENERGY_HOURLY_CATEGORY, Constants.CLASSIC_CHARGE_STATE_HOURLY_CATEGORY};
+    private static final int[] MINUTE_LOG_FACTORS = {1, 10, 10, 10, 10, 256};
+    private static final int[] MINUTE_LOG_TIMESTAMP_CATEGORY = {Constants.CLASSIC_TIMESTAMP_HIGH_HOURLY_CATEGORY};
+    private static final int DAY_LOG_ENTRIES = 100;
+    private static final int MINUTE_LOG_TIMESTAMPS = 1440; // assume max of one entry per minute for 24 hrs
+
+    private final float[][] dayLogs = new float[DAY_LOG_CATEGORIES.length][];
+    private final float[][] minuteLogs = new float[MINUTE_LOG_CATEGORIES.length][];
+    private short[] minuteLogTimestamps;
+
+    // the download in progress, device is 0 when there is none
+    private int device;
+    private int[] categories;
+    private int[] factors;
+    private float[][] logs;
+    private float[][] cached; // the cached logs a download brings up to date, null for a whole download
+    private short[] cachedTimestamps;
+    private int cachedNewestTimestamp;
+    private int cachedOffset; // minutes from the newest entry to the newest cached one
+    private int requiredEntries; // -1 while the minute log timestamps are still being read
+    private short[][] raw;
+    private final int[] read = new int[MINUTE_LOG_CATEGORIES.length];
+    private final boolean[] done = new boolean[MINUTE_LOG_CATEGORIES.length];
+
+    // the minute log timestamps read so far and the minutes they cover
+    private final short[] timestamps = new short[MINUTE_LOG_TIMESTAMPS];
+    private final short[] minutes = new short[MINUTE_LOG_TIMESTAMPS];
+    private int timestampsRead;
+    private short currentMinute;
+    private short minuteSum;
+
+    // the entries of each range of a step, reused from step to step
+    private final short[][] stepEntries = new short[MINUTE_LOG_CATEGORIES.length][0];
+
+    /**
+     * The day log of each of DAY_LOG_CATEGORIES from the last download, null where it did not arrive.
+     */
+    float[][] dayLogs() {
+        return dayLogs;
+    }
+
+    /**
+     * The minute log of each of MINUTE_LOG_CATEGORIES from the last download, null where it did not arrive.
+     */
+    float[][] minuteLogs() {
+        return minuteLogs;
+    }
+
+    /**
+     * The minutes before the most recent entry of each minute log entry, null if the timestamps did not arrive.
+     */
+    short[] minuteLogTimestamps() {
+        return minuteLogTimestamps;
+    }
+
+    /**
+     * The log file being downloaded, Constants.MODBUS_FILE_DAILIES_LOG or MODBUS_FILE_MINUTES_LOG, 0 if none.
+     */
+    public int downloading() {
+        return device;
+    }
+
+    /**
+     * Starts downloading the day logs, dropping a download still in progress.
+     */
+    public void startDayLogs() {
+        startDayLogs(null, 0);
+    }
+
+    /**
+     * Starts bringing the cached day logs of DAY_LOG_CATEGORIES, downloaded daysElapsed days ago, up to
+     * date. The entries of those days and the one before are read, the last one has to match the cache
+     * for the cache to be shifted in behind them; when it does not (controller clock, another
+     * controller) or the cache is unusable the whole log is downloaded.
+     */
+    public void startDayLogs(float[][] cachedLogs, int daysElapsed) {
+        start(Constants.MODBUS_FILE_DAILIES_LOG, DAY_LOG_CATEGORIES, DAY_LOG_FACTORS, dayLogs);
+        if (daysElapsed > 0 && daysElapsed + 2 <= DAY_LOG_ENTRIES && isComplete(cachedLogs, DAY_LOG_ENTRIES)) {
+            cached = cachedLogs;
+            startCategories(daysElapsed + 2);
+        } else {
+            startCategories(DAY_LOG_ENTRIES);
+        }
+    }
+
+    /**
+     * The raw timestamp, hour and minute, of the newest minute log entry, -1 if the timestamps did not arrive.
+     */
+    int newestMinuteLogTimestamp() {
+        return minuteLogTimestamps != null ? timestamps[0] : -1;
+    }
+
+    /**
+     * Starts downloading the minute logs, dropping a download still in progress. The timestamps are read
+     * first to find how many entries cover the last 24 hours, then that many entries of each category.
+     */
+    public void startMinuteLogs() {
+        startMinuteLogs(null, null, -1);
+    }
+
+    /**
+     * Starts bringing the cached minute logs of MINUTE_LOG_CATEGORIES up to date. The timestamps are
+     * read until the one of the newest cached entry, newestTimestamp, then only the entries in front of
+     * it; the cached ones follow them for what is left of the 24 hours. The timestamp only holds the
+     * hour and minute, so the cache has to be less than a day old. When the timestamp is not found
+     * within 24 hours or the cache is unusable the whole log is downloaded.
+     */
+    public void startMinuteLogs(float[][] cachedLogs, short[] cachedTimestamps, int newestTimestamp) {
+        start(Constants.MODBUS_FILE_MINUTES_LOG, MINUTE_LOG_CATEGORIES, MINUTE_LOG_FACTORS, minuteLogs);
+        if (newestTimestamp >= 0 && cachedTimestamps != null && isComplete(cachedLogs, cachedTimestamps.length)) {
+            cached = cachedLogs;
+            this.cachedTimestamps = cachedTimestamps;
+            cachedNewestTimestamp = newestTimestamp;
+        }
+        startTimestamps();
+    }
+
+    /**
+     * Reads up to maxBlocks blocks of the download in progress in one pipelined exchange.
+     *
+     * @return true once the download is complete or if there is none, its logs are then in dayLogs() or minuteLogs()
+     * @throws ModbusException if the exchange failed, the download ends there with the categories that arrived;
+     *                         an update of cached logs keeps nothing and never ends in an EOF, its entries
+     *                         cannot be shifted in behind the cache until they have all arrived
+     */
+    public boolean step(ModbusTCPMaster master, int maxBlocks) throws ModbusException {
+        if (device == 0) {
+            return true;
+        }
+        boolean ended = true; // unless the step completes normally with more to read
+        try {
+            if (requiredEntries < 0) {
+                if (stepTimestamps(master, maxBlocks)) {
+                    startCategories(requiredEntries);
+                }
+            } else {
+                stepCategories(master, maxBlocks);
+            }
+            ended = allDone();
+            if (ended && cached != null && !merge()) {
+                // the cache did not line up, download the whole log instead
+                cached = null;
+                if (device == Constants.MODBUS_FILE_DAILIES_LOG) {
+                    startCategories(DAY_LOG_ENTRIES);
+                } else {
+                    startTimestamps();
+                }
+                ended = false;
+            }
+        } catch (ModbusIOException ex) {
+            if (ex.isEOF() && cached != null) {
+                throw new ModbusException("Update of the cached logs interrupted: " + ex.getMessage());
+            }
+            throw ex;
+        } finally {
+            if (ended) {
+                finish();
+            }
+        }
+        return ended;
+    }
+
+    private void start(int device, int[] categories, int[] factors, float[][] logs) {
+        this.device = device;
+        this.categories = categories;
+        this.factors = factors;
+        this.logs = logs;
+        cached = null;
+        cachedTimestamps = null;
+        Arrays.fill(logs, null);
+    }
+
+    private void startTimestamps() {
+        minuteLogTimestamps = null;
+        requiredEntries = -1;
+        timestampsRead = 0;
+        currentMinute = -1;
+        minuteSum = 0;
+    }
+
+    private boolean isComplete(float[][] cachedLogs, int entries) {
+        if (cachedLogs == null || cachedLogs.length != categories.length) {
+            return false;
+        }
+        for (float[] log : cachedLogs) {
+            if (log == null || log.length != entries) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean merge() {
+        return device == Constants.MODBUS_FILE_DAILIES_LOG ? mergeDayLogs() : mergeMinuteLogs();
+    }
+
+    /**
+     * Shifts the cached day logs in behind the days read, if the last day read matches the cache.
+     */
+    private boolean mergeDayLogs() {
+        int fresh = requiredEntries - 1;
+        for (int c = 0; c < categories.length; c++) {
+            if (read[c] < requiredEntries || (float) raw[c][fresh] / factors[c] != cached[c][1]) {
+                return false;
+            }
+        }
+        for (int c = 0; c < categories.length; c++) {
+            float[] buffer = new float[DAY_LOG_ENTRIES];
+            for (int i = 0; i < fresh; i++) {
+                buffer[i] = (float) raw[c][i] / factors[c];
+            }
+            System.arraycopy(cached[c], 1, buffer, fresh, DAY_LOG_ENTRIES - fresh);
+            logs[c] = buffer;
+        }
+        return true;
+    }
+
+    private void startCategories(int entries) {
+        requiredEntries = entries;
+        if (raw == null || raw.length != categories.length || raw[0].length < entries) {
+            raw = new short[categories.length][Math.max(entries, DAY_LOG_ENTRIES)];
+        }
+        Arrays.fill(read, 0);
+        Arrays.fill(done, 0, categories.length, entries == 0);
+    }
+
+    private boolean allDone() {
+        if (requiredEntries < 0) {
+            return false;
+        }
+        for (int c = 0; c < categories.length; c++) {
+            if (!done[c]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void stepCategories(ModbusTCPMaster master, int maxBlocks) throws ModbusException {
+        int ranges = 0;
+        long entriesLeft = (long) maxBlocks * Modbus.LOG_FILE_BLOCK_ENTRIES;
+        for (int c = 0; c < categories.length && entriesLeft > 0; c++) {
+            if (!done[c]) {
+                entriesLeft -= requiredEntries - read[c];
+                ranges++;
+            }
+        }
+        int[] rangeCategories = new int[ranges];
+        int[] starts = new int[ranges];
+        int[] counts = new int[ranges];
+        short[][] entries = new short[ranges][];
+        int[] got = new int[ranges];
+        entriesLeft = (long) maxBlocks * Modbus.LOG_FILE_BLOCK_ENTRIES;
+        for (int c = 0, r = 0; r < ranges; c++) {
+            if (!done[c]) {
+                int count = (int) Math.min(requiredEntries - read[c], entriesLeft);
+                rangeCategories[r] = categories[c];
+                starts[r] = read[c];
+                counts[r] = count;
+                if (stepEntries[r].length < count) {
+                    stepEntries[r] = new short[count];
+                }
+                entries[r] = stepEntries[r];
+                entriesLeft -= count;
+                r++;
+            }
+        }
+        try {
+            master.readFileTransfer(device, rangeCategories, starts, counts, entries, got);
+        } finally {
+            for (int c = 0, r = 0; r < ranges; c++) {
+                if (!done[c]) {
+                    System.arraycopy(entries[r], 0, raw[c], read[c], got[r]);
+                    read[c] += got[r];
+                    // a short range means the slave has no more entries for the category
+                    done[c] = read[c] >= requiredEntries || got[r] < counts[r];
+                    r++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Puts the entries read in front of the cached minute logs, of which the ones still within 24 hours
+     * of the newest entry are kept.
+     */
+    private boolean mergeMinuteLogs() {
+        int fresh = requiredEntries;
+        for (int c = 0; c < categories.length; c++) {
+            if (read[c] < fresh) {
+                return false;
+            }
+        }
+        int kept = 0;
+        while (kept < cachedTimestamps.length && cachedTimestamps[kept] + cachedOffset <= 1440) { //minutes in 24 hours
+            kept++;
+        }
+        short[] merged = new short[fresh + kept];
+        System.arraycopy(minutes, 0, merged, 0, fresh);
+        for (int i = 0; i < kept; i++) {
+            merged[fresh + i] = (short) (cachedTimestamps[i] + cachedOffset);
+        }
+        for (int c = 0; c < categories.length; c++) {
+            float[] buffer = new float[fresh + kept];
+            for (int i = 0; i < fresh; i++) {
+                buffer[i] = (float) raw[c][i] / factors[c];
+            }
+            System.arraycopy(cached[c], 0, buffer, fresh, kept);
+            logs[c] = buffer;
+        }
+        minuteLogTimestamps = merged;
+        return true;
+    }
+
+    /**
+     * Reads the next timestamps and sums the minutes between them until they span 24 hours, or until
+     * the newest cached entry when there is a cache to bring up to date.
+     *
+     * @return true once requiredEntries is known, the number of entries in front of the cached ones
+     * when the newest cached entry was found
+     */
+    private boolean stepTimestamps(ModbusTCPMaster master, int maxBlocks) throws ModbusException {
+        int count = (int) Math.min(MINUTE_LOG_TIMESTAMPS - timestampsRead, (long) maxBlocks * Modbus.LOG_FILE_BLOCK_ENTRIES);
+        if (stepEntries[0].length < count) {
+            stepEntries[0] = new short[count];
+        }
+        short[][] entries = {stepEntries[0]};
+        int[] got = new int[1];
+        boolean reachedEOF = false;
+        try {
+            master.readFileTransfer(device, MINUTE_LOG_TIMESTAMP_CATEGORY, new int[]{timestampsRead}, new int[]{count}, entries, got);
+        } catch (ModbusIOException ex) {
+            if (!ex.isEOF()) {
+                throw ex;
+            }
+            reachedEOF = true;
+        }
+        System.arraycopy(entries[0], 0, timestamps, timestampsRead, got[0]);
+        int end = timestampsRead + got[0];
+        int required = -1;
+        for (int i = timestampsRead; i < end; i++) {
+            short lasMinute = currentMinute;
+            short val = timestamps[i];
+            short min = (short) (val & 0x003f);
+            short hour = (short) ((val >> 6) & 0x001f);
+            currentMinute = (short) (min + hour * 60);
+
+            if (lasMinute != -1) {
+                if (currentMinute > lasMinute) {
+                    lasMinute += 1440; // roll over midnight
+                }
+                minuteSum += lasMinute - currentMinute;
+                minutes[i] = minuteSum;
+                if (minuteSum > 1440) { //minutes in 24 hours
+                    required = i; // output buffer size required
+                    break;
+                }
+            }
+            if (cached != null && val == cachedNewestTimestamp) {
+                timestampsRead = end;
+                requiredEntries = i;
+                cachedOffset = minutes[i];
+                return true;
+            }
+        }
+        timestampsRead = end;
+        if (required < 0 && !reachedEOF && got[0] == count && timestampsRead < MINUTE_LOG_TIMESTAMPS) {
+            return false; // more to read
+        }
+        cached = null; // the newest cached entry is not within 24 hours, this is a whole download
+        if (timestampsRead == 0 && !reachedEOF) {
+            throw new ModbusException("Failed to read File Transfer data from modbus");
+        }
+        if (required < 0) {
+            required = 0;
+        }
+        if (reachedEOF && required == 0) {
+            throw new ModbusException("Could not load Minute Log Timestamps");
+        }
+        minuteLogTimestamps = new short[required];
+        System.arraycopy(minutes, 0, minuteLogTimestamps, 0, required);
+        requiredEntries = required;
+        return true;
+    }
+
+    /**
+     * Ends the download, keeping the categories that arrived. An update of cached logs keeps nothing
+     * unless it was merged.
+     */
+    private void finish() {
+        if (requiredEntries >= 0 && cached == null) {
+            for (int c = 0; c < categories.length; c++) {
+                if (read[c] > 0 || requiredEntries == 0) {
+                    float[] buffer = new float[requiredEntries];
+                    for (int i = 0; i < read[c]; i++) {
+                        buffer[i] = (float) raw[c][i] / factors[c];
+                    }
+                    logs[c] = buffer;
+                }
+            }
+        }
+        cached = null;
+        cachedTimestamps = null;
+        device = 0;
+    }
+}
@@ -45,6 +45,17 @@ public class LogEntry implements Serializable {
         return new DateTime(dateMillis);
     }
 
+    /**
+     * The raw timestamp of the newest minute log entry, kept to bring the minute logs up to date.
+     */
+    public void setNewestTimestamp(int timestamp) {
+        logs.putInt("NewestTimestamp", timestamp);
+    }
+
+    public int getNewestTimestamp() {
+        return logs.getInt("NewestTimestamp", -1);
+    }
+
     public boolean isEmpty() {
         return logs.isEmpty();
     }
@@ -52,6 +52,7 @@ public class MQTTService extends Service {
     private Timer mqttWakeTimer;
     private GsonBuilder gsonBuilder;
     private List<ModbusTask> tasks = new ArrayList<>();
+    private final LiveRecord liveRecord = new LiveRecord(Constants.LIVE_RECORD_CAPACITY);
     public MQTTService() {
 
     }
@@ -86,6 +87,13 @@ public class MQTTService extends Service {
         gsonBuilder.registerTypeAdapterFactory(new BundleTypeAdapterFactory());
     }
 
+    /**
+     * Returns the live chart samples of the current charge controller.
+     */
+    public LiveRecord getLiveRecord() {
+        return liveRecord;
+    }
+
     private synchronized String mqttRootTopic() {
         ChargeControllers chargeControllers = MonitorApplication.chargeControllers();
         String mqttRootTopic;
@@ -297,6 +305,7 @@ public class MQTTService extends Service {
                         if (topic.endsWith("readings")) {
                             Bundle b = gson.fromJson(str, Bundle.class);
                             Readings readings = new Readings(b);
+                            liveRecord.add(readings.snapshot());
                             readings.broadcastReadings(MonitorApplication.getAppContext(), "MQTT", Constants.CA_FARRELLTONSOLAR_CLASSIC_READINGS);
                         } else if (topic.endsWith("info")) {
                             ChargeControllerTransfer t = gson.fromJson(str, ChargeControllerTransfer.class);
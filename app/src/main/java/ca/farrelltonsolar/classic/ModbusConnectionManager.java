@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.classic;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.net.InetAddress;
+
+import ca.farrelltonsolar.j2modlite.facade.ModbusTCPMaster;
+import ca.farrelltonsolar.j2modlite.io.ModbusMetrics;
+import ca.farrelltonsolar.j2modlite.io.RingBufferFrameTracer;
+import ca.farrelltonsolar.j2modlite.io.TimeoutEstimator;
+
+/**
+ * Owns the modbus connection to one charge controller.
+ * The resolved address and the ModbusTCPMaster are kept across reconnects, connecting is bounded
+ * by MODBUS_CONNECT_TIMEOUT and failed attempts back off exponentially (with jitter) so an
+ * unreachable controller costs its polling thread almost nothing.
+ */
+class ModbusConnectionManager {
+
+    // after this many failures in a row the address is looked up again, the controller may have a new DHCP lease
+    private static final int ADDRESS_REFRESH_FAILURES = 3;
+
+    private final ChargeControllerInfo chargeControllerInfo;
+    private final ModbusMetrics metrics = new ModbusMetrics(); // survives re-creating the master
+    private final TimeoutEstimator timeoutEstimator = new TimeoutEstimator(); // round trip times learned for this controller
+    private RingBufferFrameTracer tracer; // null unless tracing is on, then the last frames are kept for diagnostics
+    private final ReconnectBackoff backoff = new ReconnectBackoff();
+    private ModbusTCPMaster modbusMaster;
+    private long nextAttempt;
+    private long lastSuccess;
+
+    ModbusConnectionManager(ChargeControllerInfo cc) {
+        chargeControllerInfo = cc;
+        timeoutEstimator.setMinTimeout(Constants.MODBUS_MIN_TIMEOUT);
+        timeoutEstimator.setMaxTimeout(Constants.MODBUS_MAX_TIMEOUT);
+        if (Constants.DEVELOPER_MODE) {
+            tracer = new RingBufferFrameTracer();
+        }
+    }
+
+    /**
+     * Returns a connected master, or null if the controller could not be reached or we are still
+     * backing off from an earlier failure.
+     */
+    synchronized ModbusTCPMaster acquire() {
+        long now = SystemClock.elapsedRealtime();
+        if (modbusMaster != null && modbusMaster.isConnected()) {
+            if (now - lastSuccess < Constants.MODBUS_IDLE_TIMEOUT) {
+                return modbusMaster;
+            }
+            // nothing heard for a while, the controller may have rebooted or the access point dropped us
+            // while our end of the socket still looks open, so don't trust it
+            Log.d(getClass().getName(), String.format("Connection to %s idle, reconnecting", chargeControllerInfo.toString()));
+            modbusMaster.disconnect();
+        }
+        if (now < nextAttempt) {
+            return null;
+        }
+        Log.d(getClass().getName(), String.format("Connecting to %s", chargeControllerInfo.toString()));
+        try {
+            if (modbusMaster == null) {
+                InetAddress address = InetAddress.getByName(chargeControllerInfo.getDeviceIp());
+                modbusMaster = new ModbusTCPMaster(address, chargeControllerInfo.port());
+                modbusMaster.setConnectTimeout(Constants.MODBUS_CONNECT_TIMEOUT);
+                modbusMaster.setMetrics(metrics);
+                modbusMaster.setTimeoutEstimator(timeoutEstimator);
+                modbusMaster.setTracer(tracer);
+            }
+            modbusMaster.connect();
+            if (modbusMaster.isConnected()) {
+                markSuccess();
+                return modbusMaster;
+            }
+        } catch (Exception e1) {
+            Log.w(getClass().getName(), String.format("Could not connect to %s, ex: %s", chargeControllerInfo.toString(), e1));
+        }
+        markFailure();
+        return null;
+    }
+
+    /**
+     * Records a completed exchange, clearing any back off.
+     */
+    synchronized void markSuccess() {
+        backoff.reset();
+        nextAttempt = 0;
+        lastSuccess = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Records a failed exchange or connection attempt, closes the socket and schedules the next attempt.
+     */
+    synchronized void markFailure() {
+        if (modbusMaster != null) {
+            modbusMaster.disconnect();
+            if (backoff.failures() + 1 >= ADDRESS_REFRESH_FAILURES) {
+                modbusMaster = null;
+                timeoutEstimator.reset(); // the new address may well be a different route
+            }
+        }
+        nextAttempt = SystemClock.elapsedRealtime() + backoff.fail();
+        Log.d(getClass().getName(), String.format("Next connection attempt to %s in %d ms", chargeControllerInfo.toString(), nextAttempt - SystemClock.elapsedRealtime()));
+    }
+
+    /**
+     * Latency histograms and retry/timeout/reconnect/byte counters for this controller.
+     */
+    ModbusMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Turns recording of raw modbus frames on or off.
+     */
+    synchronized void setTracing(boolean on) {
+        if (on && tracer == null) {
+            tracer = new RingBufferFrameTracer();
+        } else if (!on) {
+            tracer = null;
+        }
+        if (modbusMaster != null) {
+            modbusMaster.setTracer(tracer);
+        }
+    }
+
+    /**
+     * Returns the most recent frames as hex, one per line, or an empty string if tracing is off.
+     */
+    synchronized String dumpTrace() {
+        return tracer != null ? tracer.dump() : "";
+    }
+
+    synchronized boolean isConnected() {
+        return modbusMaster != null && modbusMaster.isConnected();
+    }
+
+    /**
+     * Closes the connection, the next acquire connects straight away.
+     */
+    synchronized boolean close() {
+        boolean didDisconnect = false;
+        if (modbusMaster != null && modbusMaster.isConnected()) {
+            modbusMaster.disconnect();
+            didDisconnect = true;
+        }
+        backoff.reset();
+        nextAttempt = 0;
+        return didDisconnect;
+    }
+}
@@ -29,8 +29,11 @@ import android.util.Log;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Timer;
+import java.util.Map;
+
+import ca.farrelltonsolar.j2modlite.io.ModbusMetrics;
 
 public class ModbusService extends Service {
 
@@ -38,6 +41,9 @@ public class ModbusService extends Service {
     private final IBinder mBinder = new ModbusServiceBinder();
 
     private List<ModbusTask> tasks = new ArrayList<>();
+    private final Map<ModbusTask, PollScheduler.Schedule> schedules = new HashMap<>();
+    private PollScheduler pollScheduler;
+    private final LiveRecord liveRecord = new LiveRecord(Constants.LIVE_RECORD_CAPACITY);
     public ModbusService() {
 
     }
@@ -69,6 +75,8 @@ public class ModbusService extends Service {
     public void onCreate() {
         Log.d(getClass().getName(), "onCreate");
         super.onCreate();
+        pollScheduler = new PollScheduler(Constants.MODBUS_POLL_THREADS);
+        PollCadence.addListener(cadenceListener);
         LocalBroadcastManager.getInstance(this).registerReceiver(removeChargeControllerReceiver, new IntentFilter(Constants.CA_FARRELLTONSOLAR_CLASSIC_REMOVE_CHARGE_CONTROLLER));
     }
 
@@ -78,6 +86,7 @@ public class ModbusService extends Service {
             String uniqueId = intent.getStringExtra("uniqueId");
             for (ModbusTask task : tasks) {
                 if (task.chargeController().uniqueId().compareTo(uniqueId) == 0) {
+                    unschedule(task);
                     Disconnector d = new Disconnector(task);
                     d.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
                     break;
@@ -86,11 +95,25 @@ public class ModbusService extends Service {
         }
     };
 
+    // a live view appeared or the app went to the background, re-time the polls now rather than at the next run,
+    // and make sure a view that just started gets a full set of readings even if nothing changes
+    private final PollCadence.Listener cadenceListener = new PollCadence.Listener() {
+        @Override
+        public void onCadenceChanged() {
+            for (ModbusTask task : tasks) {
+                task.requestBroadcast();
+                task.updateCadence();
+            }
+        }
+    };
+
     @Override
     public void onDestroy() {
         Log.d(getClass().getName(), "onDestroy");
         LocalBroadcastManager.getInstance(this).unregisterReceiver(removeChargeControllerReceiver);
+        PollCadence.removeListener(cadenceListener);
         stopMonitoringChargeControllers();
+        pollScheduler.shutdown();
         super.onDestroy();
     }
 
@@ -103,10 +126,9 @@ public class ModbusService extends Service {
             for (int i = 0; i < count; i++) {
                 ChargeController controller = controllers.get(i);
                 if (isBeingMonitored(controller) == false) {
-                    ModbusTask task = new ModbusTask(controller, this.getBaseContext());
+                    ModbusTask task = new ModbusTask(controller, this.getBaseContext(), liveRecord);
                     tasks.add(task);
-                    Timer pollTimer = new Timer();
-                    pollTimer.schedule(task, 100, Constants.MODBUS_POLL_TIME);
+                    schedule(task);
                     Log.d(getClass().getName(), String.format("Monitor running on: %s this thread is %s", controller.toString(), Thread.currentThread().getName()));
                 }
             }
@@ -116,16 +138,28 @@ public class ModbusService extends Service {
             if (controller != null) {
                 if (isBeingMonitored(controller) == false) {
                     stopMonitoringChargeControllers();
-                    ModbusTask task = new ModbusTask(controller, this.getBaseContext());
+                    ModbusTask task = new ModbusTask(controller, this.getBaseContext(), liveRecord);
                     tasks.add(task);
-                    Timer pollTimer = new Timer();
-                    pollTimer.schedule(task, 100, Constants.MODBUS_POLL_TIME);
+                    schedule(task);
                     Log.d(getClass().getName(), String.format("Monitor running on: %s this thread is %s", controller.toString(), Thread.currentThread().getName()));
                 }
             }
         }
     }
 
+    private void schedule(ModbusTask task) {
+        PollScheduler.Schedule schedule = pollScheduler.schedule(task, Constants.MODBUS_POLL_START_DELAY, PollCadence.period(false));
+        task.setSchedule(schedule);
+        schedules.put(task, schedule);
+    }
+
+    private void unschedule(ModbusTask task) {
+        PollScheduler.Schedule schedule = schedules.remove(task);
+        if (schedule != null) {
+            schedule.cancel();
+        }
+    }
+
     private boolean isBeingMonitored(ChargeController controller) {
         boolean rVal = false;
         for (ModbusTask task : tasks) {
@@ -143,6 +177,7 @@ public class ModbusService extends Service {
             if (!tasks.isEmpty()) {
                 for (ModbusTask task : tasks) {
                     Log.d(getClass().getName(), String.format("stopMonitoringChargeController: %s this thread is %s", task.chargeController().toString(), Thread.currentThread().getName()));
+                    unschedule(task);
                     Disconnector d = new Disconnector(task);
                     d.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
                 }
@@ -154,6 +189,64 @@ public class ModbusService extends Service {
         }
     }
 
+    /**
+     * Returns the modbus latency histograms and counters for a monitored charge controller,
+     * or null if it is not being monitored.
+     */
+    public ModbusMetrics getMetrics(String uniqueId) {
+        for (ModbusTask task : tasks) {
+            if (task.chargeController().uniqueId().compareTo(uniqueId) == 0) {
+                return task.metrics();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the live chart samples of the current charge controller.
+     */
+    public LiveRecord getLiveRecord() {
+        return liveRecord;
+    }
+
+    /**
+     * Returns the minute, hour and day aggregates of a monitored charge controller's readings,
+     * or null if it is not being monitored or has not been polled yet.
+     */
+    public ReadingsRollup getRollup(String uniqueId) {
+        for (ModbusTask task : tasks) {
+            if (task.chargeController().uniqueId().compareTo(uniqueId) == 0) {
+                return task.rollup();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Turns raw modbus frame tracing on or off for a monitored charge controller.
+     */
+    public void setTracing(String uniqueId, boolean on) {
+        for (ModbusTask task : tasks) {
+            if (task.chargeController().uniqueId().compareTo(uniqueId) == 0) {
+                task.setTracing(on);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the most recent modbus frames exchanged with a monitored charge controller as hex,
+     * empty if tracing is off or the controller is not being monitored.
+     */
+    public String dumpTrace(String uniqueId) {
+        for (ModbusTask task : tasks) {
+            if (task.chargeController().uniqueId().compareTo(uniqueId) == 0) {
+                return task.dumpTrace();
+            }
+        }
+        return "";
+    }
+
     public Boolean isInService() {
         return !tasks.isEmpty();
     }
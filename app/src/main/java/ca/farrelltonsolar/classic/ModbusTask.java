@@ -19,20 +19,22 @@ package ca.farrelltonsolar.classic;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 import org.joda.time.DateTime;
+import org.joda.time.Days;
 import org.joda.time.format.DateTimeFormat;
 
-import java.net.UnknownHostException;
+import java.io.File;
+import java.io.IOException;
 import java.util.Locale;
-import java.util.TimerTask;
 
 import ca.farrelltonsolar.j2modlite.ModbusException;
 import ca.farrelltonsolar.j2modlite.ModbusIOException;
 import ca.farrelltonsolar.j2modlite.facade.ModbusTCPMaster;
-import ca.farrelltonsolar.j2modlite.msg.ReadFileTransferResponse;
+import ca.farrelltonsolar.j2modlite.io.ModbusMetrics;
 import ca.farrelltonsolar.j2modlite.procimg.Register;
 
 // Classic modbus table
@@ -89,10 +91,11 @@ import ca.farrelltonsolar.j2modlite.procimg.Register;
 /**
  * Created by Graham on 12/12/2014.
  */
-class ModbusTask extends TimerTask {
+class ModbusTask implements Runnable {
 
     private final Object lock = new Object();
     private Context context;
+    private final ModbusConnectionManager connection;
     private ModbusTCPMaster modbusMaster;
     private ChargeControllerInfo chargeControllerInfo;
     private Readings readings;
@@ -100,12 +103,29 @@ class ModbusTask extends TimerTask {
     private LogEntry minuteLogEntry;
     private float v_pu;
     private float i_pu;
-    private boolean foundWhizBangJr = false;
     private boolean foundTriStar = false;
     private boolean initialReadingLoaded = false;
-
-    ModbusTask(ChargeControllerInfo cc, Context ctx) {
+    private long lastMetricsLog;
+
+    // identity registers read once per connection, and the day and minute logs
+    private final ControllerProbe probe = new ControllerProbe();
+    private final LogDownloader logDownloader = new LogDownloader();
+    // live registers polled every cycle
+    private final RegisterPoller registerPoller = new RegisterPoller();
+    private volatile boolean resting;
+    private volatile PollScheduler.Schedule schedule;
+    private final ReadingsChangeDetector changeDetector = new ReadingsChangeDetector();
+    // every polled snapshot, created once the controller's unique id is known
+    private ReadingsHistory history;
+    // minute, hour and day aggregates of the polled snapshots, created with the history
+    private volatile ReadingsRollup rollup;
+    // the live chart samples, kept while this is the current controller
+    private final LiveRecord liveRecord;
+
+    ModbusTask(ChargeControllerInfo cc, Context ctx, LiveRecord liveRecord) {
         chargeControllerInfo = cc;
+        this.liveRecord = liveRecord;
+        connection = new ModbusConnectionManager(cc);
         init(ctx);
     }
 
@@ -117,51 +137,79 @@ class ModbusTask extends TimerTask {
         Log.d(getClass().getName(), String.format("ModbusTask created thread is %s", Thread.currentThread().getName()));
     }
 
+    void setSchedule(PollScheduler.Schedule schedule) {
+        this.schedule = schedule;
+    }
+
+    /**
+     * Sets the poll period for what is on screen and whether the controller is resting.
+     */
+    void updateCadence() {
+        PollScheduler.Schedule current = schedule;
+        if (current != null) {
+            current.setPeriod(PollCadence.period(resting));
+        }
+    }
+
+    /**
+     * Broadcasts the readings after the next poll even if they did not change, for a view that just started.
+     */
+    void requestBroadcast() {
+        changeDetector.force();
+    }
+
     ChargeControllerInfo chargeController() {
         return chargeControllerInfo;
     }
 
-    private boolean connect() throws UnknownHostException {
-        boolean rVal = false;
-        Log.d(getClass().getName(), String.format("Connecting to %s", chargeControllerInfo.toString()));
-        try {
-            disconnect();
-            modbusMaster = new ModbusTCPMaster(chargeControllerInfo.getDeviceIp(), chargeControllerInfo.port());
+    ModbusMetrics metrics() {
+        return connection.metrics();
+    }
 
-            modbusMaster.connect();
-            if (modbusMaster.isConnected()) {
-                rVal = true;
-            }
-        } catch (Exception e1) {
-            Log.w(getClass().getName(), String.format("Could not connect to %s, ex: %s", chargeControllerInfo.toString(), e1));
-            e1.printStackTrace();
-            modbusMaster = null;
-            MonitorApplication.chargeControllers().setReachable(chargeControllerInfo.getDeviceIp(), chargeControllerInfo.port(), false);
+    /**
+     * The aggregated readings, null until the first snapshot is polled.
+     */
+    ReadingsRollup rollup() {
+        return rollup;
+    }
+
+    void setTracing(boolean on) {
+        connection.setTracing(on);
+    }
+
+    String dumpTrace() {
+        return connection.dumpTrace();
+    }
+
+    private boolean connect() {
+        modbusMaster = connection.acquire();
+        if (modbusMaster == null) {
+            MonitorApplication.chargeControllers().setReachable(chargeControllerInfo.deviceIpAddress(), chargeControllerInfo.port(), false);
+            return false;
         }
-        return rVal;
+        return true;
     }
 
     private void disconnect() {
-        boolean didDisconnect = false;
-        if (isConnected()) {
-            synchronized (lock) {
-                if (modbusMaster != null) {
-                    modbusMaster.disconnect();
-                    didDisconnect = true;
-                }
-                modbusMaster = null;
-            }
-            Log.d(getClass().getName(), didDisconnect ? String.format("Disconnected from %s", chargeControllerInfo.toString()) : String.format("Tried to Disconnect from %s but did not complete", chargeControllerInfo.toString()));
+        boolean didDisconnect;
+        synchronized (lock) {
+            didDisconnect = connection.close();
+            modbusMaster = null;
+        }
+        if (didDisconnect) {
+            Log.d(getClass().getName(), String.format("Disconnected from %s", chargeControllerInfo.toString()));
         }
         clearReadings();
     }
 
-    private boolean isConnected() {
-        boolean rVal = false;
-        if (modbusMaster != null) {
-            rVal = modbusMaster.isConnected();
+    private void connectionFailed() {
+        String trace = connection.dumpTrace();
+        if (!trace.isEmpty()) {
+            Log.d(getClass().getName(), String.format("Last modbus frames for %s:\n%s", chargeControllerInfo.toString(), trace));
         }
-        return rVal;
+        connection.markFailure();
+        modbusMaster = null;
+        clearReadings();
     }
 
     @Override
@@ -170,23 +218,38 @@ class ModbusTask extends TimerTask {
         super.finalize();
     }
 
-    @Override
-    public boolean cancel() {
+    /**
+     * Disconnects from the charge controller, the caller has already cancelled the task's schedule.
+     */
+    public void cancel() {
         disconnect();
+        synchronized (lock) {
+            if (history != null) {
+                try {
+                    history.flush();
+                } catch (IOException ex) {
+                    Log.w(getClass().getName(), String.format("Failed to save the readings history ex: %s", ex));
+                }
+            }
+            if (rollup != null) {
+                try {
+                    rollup.flush();
+                } catch (IOException ex) {
+                    Log.w(getClass().getName(), String.format("Failed to save the readings rollup ex: %s", ex));
+                }
+            }
+        }
         Log.d(getClass().getName(), String.format("ModbusTask cancel thread is %s", Thread.currentThread().getName()));
-        return super.cancel();
     }
 
     @Override
     public void run() {
         Log.d(getClass().getName(), String.format("ModbusTask begin run for %s on thread is %s", chargeControllerInfo.toString(), Thread.currentThread().getName()));
+        long start = SystemClock.elapsedRealtime();
         try {
+            boolean downloading = false;
             synchronized (lock) {
-                boolean connected = isConnected();
-                if (!connected) {
-                    connected = connect();
-                }
-                if (connected) {
+                if (connect()) {
                     if (!initialReadingLoaded) {
                         initialReadingLoaded = true;
                         if (!lookForTriStar()) {
@@ -195,26 +258,41 @@ class ModbusTask extends TimerTask {
                         MonitorApplication.chargeControllers().setReachable(chargeControllerInfo.getDeviceIp(), chargeControllerInfo.port(), true);
                     }
                     GetModbusReadings();
-                    if (chargeControllerInfo.deviceType() == DeviceType.Classic) { // no tristar or kid log support
+                    resting = readings.getInt(RegisterName.ChargeState) == 0;
+                    if (chargeControllerInfo.deviceType() == DeviceType.Classic && logDownloader.downloading() == 0) { // no tristar or kid log support
                         if (getDayLogReacings()) {
                             if (chargeControllerInfo.isCurrent()) { // don't need minute logs for summaries
                                 getHourLogReacings();
                             }
                         }
                     }
+                    connection.markSuccess();
+                    downloading = logDownloader.downloading() != 0;
                 }
             }
+            if (downloading) {
+                PollScheduler.Schedule current = schedule;
+                long period = current != null ? current.period() : PollCadence.period(resting);
+                downloadLogs(start + period / 2);
+            }
+            updateCadence();
+            if (Constants.DEVELOPER_MODE && System.currentTimeMillis() - lastMetricsLog > Constants.MODBUS_METRICS_LOG_INTERVAL) {
+                lastMetricsLog = System.currentTimeMillis();
+                Log.d(getClass().getName(), String.format("Modbus metrics for %s: %s", chargeControllerInfo.toString(), metrics()));
+            }
 
         } catch (Exception e1) {
             Log.w(getClass().getName(), String.format("Failed to run due to exception ex: %s", e1));
             e1.printStackTrace();
-            disconnect();
+            synchronized (lock) {
+                connectionFailed();
+            }
         }
 //        Log.d(getClass().getName(), "end run");
 
     }
 
-    private boolean getDayLogReacings() throws ModbusException {
+    private boolean getDayLogReacings() {
         boolean usingCache = false;
         if (dayLogEntry.isEmpty()) {
             loadDayLogs();
@@ -233,7 +311,7 @@ class ModbusTask extends TimerTask {
         return usingCache;
     }
 
-    private boolean getHourLogReacings() throws ModbusException {
+    private boolean getHourLogReacings() {
         boolean usingCache = false;
         if (minuteLogEntry.isEmpty()) {
             loadMinuteLogs();
@@ -253,6 +331,8 @@ class ModbusTask extends TimerTask {
     }
 
     private void clearReadings() {
+        registerPoller.reset();
+        resting = false;
         readings.set(RegisterName.Power, 0.0f);
         readings.set(RegisterName.BatVoltage, 0.0f);
         readings.set(RegisterName.BatCurrent, 0.0f);
@@ -265,7 +345,10 @@ class ModbusTask extends TimerTask {
         readings.set(RegisterName.SOC, 0);
         readings.set(RegisterName.Aux1, false);
         readings.set(RegisterName.Aux2, false);
-        readings.broadcastReadings(context, chargeControllerInfo.uniqueId(), getAction());
+        changeDetector.force(); // always let the views know the connection is gone
+        if (changeDetector.shouldBroadcast(readings.publish())) {
+            readings.broadcastReadings(context, chargeControllerInfo.uniqueId(), getAction());
+        }
     }
 
     private void GetModbusReadings() throws ModbusException {
@@ -289,63 +372,14 @@ class ModbusTask extends TimerTask {
                     throw new ModbusException("Failed to read data from modbus 0000");
                 }
             } else {
-                if (foundWhizBangJr) {
-                    Register[] registers2 = modbusMaster.readMultipleRegisters(4360, 22);
-                    if (registers2 != null && registers2.length == 22) {
-                        Integer val = ((registers2[5].getValue() << 16) + registers2[4].getValue());
-                        readings.set(RegisterName.PositiveAmpHours, val);
-                        val = (registers2[7].getValue() << 16) + registers2[6].getValue();
-                        readings.set(RegisterName.NegativeAmpHours, Math.abs(val));
-                        val = (registers2[9].getValue() << 16) + registers2[8].getValue();
-                        readings.set(RegisterName.NetAmpHours, val);
-                        readings.set(RegisterName.ShuntTemperature, ((short)registers2[11].getValue() & 0x00ff) -50.0f);
-                        Register a = registers2[10];
-                        readings.set(RegisterName.WhizbangBatCurrent, a.toShort() / 10.0f);
-                        Register soc = registers2[12];
-                        short socVal = soc.toShort();
-                        readings.set(RegisterName.SOC, socVal);
-                        readings.set(RegisterName.RemainingAmpHours, registers2[16].toShort());
-                        readings.set(RegisterName.TotalAmpHours, registers2[20].toShort());
-                    } else {
-                        Log.w(getClass().getName(), "Modbus failed to read 4360 readMultipleRegisters returned null");
-                        throw new ModbusException("Failed to read data from modbus 4360");
-                    }
-                }
-                Register[] registers = modbusMaster.readMultipleRegisters(4100, 44);
-                if (registers != null && registers.length == 44) {
-                    readings.set(RegisterName.BatCurrent, registers[16].getValue() / 10.0f);
-                    readings.set(RegisterName.Power, (float) registers[18].getValue());
-                    readings.set(RegisterName.BatVoltage, registers[14].getValue() / 10.0f);
-                    readings.set(RegisterName.PVVoltage, registers[15].getValue() / 10.0f);
-                    readings.set(RegisterName.PVCurrent, registers[20].getValue() / 10.0f);
-                    readings.set(RegisterName.EnergyToday, registers[17].getValue() / 10.0f);
-                    readings.set(RegisterName.TotalEnergy, ((registers[26].getValue() << 16) + registers[25].getValue()) / 10.0f);
-                    readings.set(RegisterName.ChargeState, MSBFor(registers[19].getValue()));
-                    readings.set(RegisterName.InfoFlagsBits, ((registers[30].getValue() << 16) + registers[29].getValue()));
-
-                    readings.set(RegisterName.BatTemperature, (short)registers[31].getValue() / 10.0f);
-                    readings.set(RegisterName.FETTemperature, (short)registers[32].getValue() / 10.0f);
-                    readings.set(RegisterName.PCBTemperature, (short)registers[33].getValue() / 10.0f);
-                    readings.set(RegisterName.FloatTimeTodaySeconds, (short)registers[37].getValue());
-                    readings.set(RegisterName.AbsorbTime, (short)registers[38].getValue());
-                    readings.set(RegisterName.EqualizeTime, (short)registers[42].getValue());
-                    int infoFlag = registers[29].getValue();
-                    readings.set(RegisterName.Aux1, (infoFlag & 0x4000) != 0);
-                    readings.set(RegisterName.Aux2, (infoFlag & 0x8000) != 0);
-                } else {
-                    Log.w(getClass().getName(), "Modbus failed to read 4100, readMultipleRegisters returned null");
-                    throw new ModbusException("Failed to read data from modbus 4100");
-                }
-                registers = modbusMaster.readMultipleRegisters(4243, 1);
-                if (registers != null && registers.length == 1) {
-                    readings.set(RegisterName.VbattRegSetPTmpComp, (short)registers[0].getValue() / 10.0f);
-                }
-                registers = modbusMaster.readMultipleRegisters(4274, 1);
-                if (registers != null && registers.length == 1) {
-                    readings.set(RegisterName.ReasonForResting, (short)registers[0].getValue());
-                }
+                registerPoller.poll(modbusMaster, readings, SystemClock.elapsedRealtime());
+            }
+            // one snapshot per poll cycle, views read it without waiting on the next poll
+            ReadingsSnapshot snapshot = readings.publish();
+            record(snapshot);
+            if (changeDetector.shouldBroadcast(snapshot)) {
+                readings.broadcastReadings(context, chargeControllerInfo.uniqueId(), getAction());
             }
-            readings.broadcastReadings(context, chargeControllerInfo.uniqueId(), getAction());
         } catch (Exception all) {
             Log.w(getClass().getName(), String.format("GetModbusReadings Exception ex: %s", all));
             all.printStackTrace();
@@ -353,6 +387,27 @@ class ModbusTask extends TimerTask {
         }
     }
 
+    private void record(ReadingsSnapshot snapshot) {
+        if (chargeControllerInfo.isCurrent()) {
+            liveRecord.add(snapshot);
+        }
+        if (history == null) {
+            String name = chargeControllerInfo.uniqueId().replaceAll("[^A-Za-z0-9._-]", "_");
+            history = new ReadingsHistory(new File(new File(context.getFilesDir(), "history"), name), Constants.HISTORY_RETENTION_DAYS);
+            rollup = new ReadingsRollup(new File(new File(context.getFilesDir(), "rollups"), name));
+        }
+        try {
+            history.append(snapshot);
+        } catch (IOException ex) {
+            Log.w(getClass().getName(), String.format("Failed to save the readings history ex: %s", ex));
+        }
+        try {
+            rollup.add(snapshot);
+        } catch (IOException ex) {
+            Log.w(getClass().getName(), String.format("Failed to save the readings rollup ex: %s", ex));
+        }
+    }
+
     private String getAction() {
         return chargeControllerInfo.isCurrent() ? Constants.CA_FARRELLTONSOLAR_CLASSIC_READINGS : Constants.CA_FARRELLTONSOLAR_CLASSIC_READINGS_SLAVE;
     }
@@ -365,11 +420,11 @@ class ModbusTask extends TimerTask {
 
     private void loadBoilerPlateInfo() {
         try {
-            Register[] registers = modbusMaster.readMultipleRegisters(4100, 32);
-            boolean isClassic = false;
-            if (registers != null && registers.length == 32) {
+            boolean isClassic = probe.loadBoilerPlateInfo(modbusMaster);
+            ReadPlan plan = probe.info();
+            if (plan.contains(4100, 22)) {
                 int unitId;
-                short reg1 = (short) registers[0].getValue();
+                short reg1 = plan.get(4100);
                 if (reg1 == 0) { // the kid?
                     chargeControllerInfo.setModel("The Kid");
                     chargeControllerInfo.setDeviceType(DeviceType.Kid);
@@ -378,61 +433,49 @@ class ModbusTask extends TimerTask {
                     String model = String.format(Locale.getDefault(), "Classic %d (rev %d)", reg1 & 0x00ff, reg1 >> 8);
                     chargeControllerInfo.setModel(model);
                     chargeControllerInfo.setDeviceType(DeviceType.Classic);
-                    isClassic = true;
                 }
-                int buildYear = registers[1].getValue();
-                int buildMonthDay = registers[2].getValue();
+                int buildYear = plan.u16(4101);
+                int buildMonthDay = plan.u16(4102);
                 DateTime buildDate = new DateTime(buildYear, (buildMonthDay >> 8), (buildMonthDay & 0x00ff), 0, 0);
                 chargeControllerInfo.setBuildDate(DateTimeFormat.fullDate().print(buildDate));
-                short reg6 = registers[5].toShort();
-                short reg7 = registers[6].toShort();
-                short reg8 =  registers[7].toShort();
+                short reg6 = plan.get(4105);
+                short reg7 = plan.get(4106);
+                short reg8 = plan.get(4107);
                 String macAddress = String.format("%02x:%02x:%02x:%02x:%02x:%02x", (reg8 >> 8) & 0x00ff, reg8 & 0x00ff, (reg7 >> 8) & 0x00ff, reg7 & 0x00ff, (reg6 >> 8) & 0x00ff, reg6 & 0x00ff);
                 chargeControllerInfo.setMacAddress(macAddress);
-                float reg22 = (float) registers[21].getValue();
+                float reg22 = (float) plan.u16(4121);
                 chargeControllerInfo.setLastVOC(reg22 / 10.0f);
-                unitId = (registers[11].getValue() << 16) + registers[10].getValue();
+                unitId = plan.u32(4110);
                 chargeControllerInfo.setUnitID(unitId);
             }
-            registers = modbusMaster.readMultipleRegisters(4163, 2);
-            if (registers != null && registers.length == 2) {
-                chargeControllerInfo.setMpptMode(registers[0].getValue());
-                int Aux12FunctionS = (registers[1].getValue() & 0x3f00) >> 8;
-                foundWhizBangJr = Aux12FunctionS == 18;
-                chargeControllerInfo.setHasWhizbang(foundWhizBangJr);
+            if (plan.contains(4163, 2)) {
+                chargeControllerInfo.setMpptMode(plan.u16(4163));
+                registerPoller.setWhizbang(probe.hasWhizbang());
+                chargeControllerInfo.setHasWhizbang(registerPoller.hasWhizbang());
             }
-            registers = modbusMaster.readMultipleRegisters(4209, 4);
-            if (registers != null && registers.length == 4) {
-                byte[] v0 = registers[0].toBytes();
-                byte[] v1 = registers[1].toBytes();
-                byte[] v2 = registers[2].toBytes();
-                byte[] v3 = registers[3].toBytes();
-
+            if (plan.contains(4209, 4)) {
+                // 8 characters, two per register low byte first
                 byte[] temp = new byte[8];
-                temp[0] = v0[1];
-                temp[1] = v0[0];
-                temp[2] = v1[1];
-                temp[3] = v1[0];
-                temp[4] = v2[1];
-                temp[5] = v2[0];
-                temp[6] = v3[1];
-                temp[7] = v3[0];
+                for (int i = 0; i < 4; i++) {
+                    int reg = plan.u16(4209 + i);
+                    temp[i * 2] = (byte) reg;
+                    temp[i * 2 + 1] = (byte) (reg >> 8);
+                }
                 String unitName = new String(temp);
                 chargeControllerInfo.setDeviceName(unitName);
                 Log.i(getClass().getName(), String.format("Modbus device unitName is %s ", unitName));
             }
-            registers = modbusMaster.readMultipleRegisters(4244, 2);
-            if (registers != null && registers.length == 2) {
-                chargeControllerInfo.setNominalBatteryVoltage(registers[0].getValue());
-                chargeControllerInfo.setEndingAmps(registers[1].getValue() / 10.0f);
+            if (plan.contains(4244, 2)) {
+                chargeControllerInfo.setNominalBatteryVoltage(plan.u16(4244));
+                chargeControllerInfo.setEndingAmps(plan.u16(4245) / 10.0f);
             }
             if (isClassic){
-                registers = modbusMaster.readMultipleRegisters(16386, 4);
-                if (registers != null && registers.length == 4) {
-                    short reg16387 = registers[0].toShort();
-                    short reg16388 = registers[1].toShort();
-                    short reg16389 = registers[2].toShort();
-                    short reg16390 = registers[3].toShort();
+                ReadPlan versions = probe.versions();
+                if (versions.contains(16386, 4)) {
+                    short reg16387 = versions.get(16386);
+                    short reg16388 = versions.get(16387);
+                    short reg16389 = versions.get(16388);
+                    short reg16390 = versions.get(16389);
                     chargeControllerInfo.setAppVersion(String.format(Locale.getDefault(), "%d", (reg16388 << 16) + reg16387));
                     chargeControllerInfo.setNetVersion(String.format(Locale.getDefault(), "%d", (reg16390 << 16) + reg16389));
                 }
@@ -443,32 +486,23 @@ class ModbusTask extends TimerTask {
     }
 
     private boolean lookForTriStar() {
-        foundTriStar = false;
-        try {
-            Register[]registers = modbusMaster.readMultipleRegisters(0, 4); // see if its a tristar
-            if (registers != null && registers.length == 4) {
-                foundTriStar = registers[0].toShort() != 0;
-                if (foundTriStar) {
-                    chargeControllerInfo.setDeviceName("TriStar");
-                    chargeControllerInfo.setDeviceType(DeviceType.TriStar);
-                    float hi = registers[0].toShort();
-                    float lo = registers[1].toShort();
-                    lo = lo / 65536;
-                    v_pu = hi + lo;
-
-                    hi = (float) registers[2].toShort();
-                    lo = (float) registers[3].toShort();
-                    lo = lo / 65536;
-                    i_pu = hi + lo;
-                }
-            }
-        } catch (ModbusException e) {
+        foundTriStar = probe.lookForTriStar(modbusMaster); // see if its a tristar
+        if (foundTriStar) {
+            chargeControllerInfo.setDeviceName("TriStar");
+            chargeControllerInfo.setDeviceType(DeviceType.TriStar);
+            v_pu = probe.triStarScaling(0);
+            i_pu = probe.triStarScaling(2);
+        } else {
             Log.d(getClass().getName(), "This is probably not a Tristar!");
         }
         return foundTriStar;
     }
 
-    private void loadDayLogs() throws ModbusException {
+    /**
+     * Loads the day logs from the cache while they are still good, otherwise starts downloading them,
+     * only the days logged since if there are stale ones to update.
+     */
+    private void loadDayLogs() {
         String dayLogCacheName = chargeControllerInfo.dayLogCacheName();
         try {
             Bundle dayLogs = BundleCache.getInstance(context).getBundle(dayLogCacheName);
@@ -481,37 +515,21 @@ class ModbusTask extends TimerTask {
                 }
                 Log.d(getClass().getName(), "DayLog cache stale, reload data from modbus");
             }
-            dayLogEntry.set(Constants.CLASSIC_KWHOUR_DAILY_CATEGORY, ReadLogs(100, Constants.CLASSIC_KWHOUR_DAILY_CATEGORY, Constants.MODBUS_FILE_DAILIES_LOG, 1));
-            dayLogEntry.set(Constants.CLASSIC_FLOAT_TIME_DAILY_CATEGORY, ReadLogs(100, Constants.CLASSIC_FLOAT_TIME_DAILY_CATEGORY, Constants.MODBUS_FILE_DAILIES_LOG, 1));
-            dayLogEntry.set(Constants.CLASSIC_HIGH_POWER_DAILY_CATEGORY, ReadLogs(100, Constants.CLASSIC_HIGH_POWER_DAILY_CATEGORY, Constants.MODBUS_FILE_DAILIES_LOG, 1));
-            dayLogEntry.set(Constants.CLASSIC_HIGH_TEMP_DAILY_CATEGORY, ReadLogs(100, Constants.CLASSIC_HIGH_TEMP_DAILY_CATEGORY, Constants.MODBUS_FILE_DAILIES_LOG, 1));
-            dayLogEntry.set(Constants.CLASSIC_HIGH_PV_VOLT_DAILY_CATEGORY, ReadLogs(100, Constants.CLASSIC_HIGH_PV_VOLT_DAILY_CATEGORY, Constants.MODBUS_FILE_DAILIES_LOG, 1));
-            dayLogEntry.set(Constants.CLASSIC_HIGH_BATTERY_VOLT_DAILY_CATEGORY, ReadLogs(100, Constants.CLASSIC_HIGH_BATTERY_VOLT_DAILY_CATEGORY, Constants.MODBUS_FILE_DAILIES_LOG, 1));
-            Log.d(getClass().getName(), "Completed reading Day logs");
-            dayLogEntry.setLogDate(DateTime.now());
-            BundleCache.getInstance(context).putBundle(dayLogCacheName, dayLogEntry.getLogs());
-            BroadcastToast(context.getString(R.string.toast_day_logs));
-        } catch (ModbusIOException ex) {
-            if (ex.isEOF()) {
-                Log.w(getClass().getName(), String.format("loadDayLogs reached EOF ex: %s", ex));
-                dayLogEntry.setLogDate(DateTime.now());
-                BundleCache.getInstance(context).putBundle(dayLogCacheName, dayLogEntry.getLogs());
-                BroadcastToast(context.getString(R.string.toast_day_logs));
-                return;
+            int daysElapsed = 0;
+            if (dayLogEntry.isAvailable()) {
+                daysElapsed = Days.daysBetween(dayLogEntry.getLogDate().withTimeAtStartOfDay(), DateTime.now().withTimeAtStartOfDay()).getDays();
             }
-            BundleCache.getInstance(context).clearCache(dayLogCacheName);
-            dayLogEntry = new LogEntry();
-            dayLogEntry.setLogDate(DateTime.now().plusMinutes(5)); // try it again later
-            Log.w(getClass().getName(), String.format("loadDayLogs failed ex: %s", ex));
+            logDownloader.startDayLogs(cachedLogs(dayLogEntry, LogDownloader.DAY_LOG_CATEGORIES), daysElapsed);
         } catch (Exception ex) {
-            BundleCache.getInstance(context).clearCache(dayLogCacheName);
-            dayLogEntry = new LogEntry();
-            dayLogEntry.setLogDate(DateTime.now().plusMinutes(5)); // try it again later
-            Log.w(getClass().getName(), String.format("loadDayLogs failed ex: %s", ex));
+            dayLogsFailed(ex);
         }
     }
 
-    private void loadMinuteLogs() throws ModbusException {
+    /**
+     * Loads the minute logs from the cache while they are still good, otherwise starts downloading them,
+     * only the entries logged since if there are stale ones less than a day old to update.
+     */
+    private void loadMinuteLogs() {
         String minuteLogCacheName = chargeControllerInfo.minuteLogCacheName();
         try {
             Bundle minuteLog = BundleCache.getInstance(context).getBundle(minuteLogCacheName);
@@ -524,132 +542,126 @@ class ModbusTask extends TimerTask {
                 }
                 Log.d(getClass().getName(), "MinuteLog cache stale, reload data from modbus");
             }
-            int requiredEntries = ReadMinuteLogTimestamps(); // sum of minutes log up to 24 hours
-            minuteLogEntry.set(Constants.CLASSIC_POWER_HOURLY_CATEGORY, ReadLogs(requiredEntries, Constants.CLASSIC_POWER_HOURLY_CATEGORY, Constants.MODBUS_FILE_MINUTES_LOG, 1));
-            minuteLogEntry.set(Constants.CLASSIC_INPUT_VOLTAGE_HOURLY_CATEGORY, ReadLogs(requiredEntries, Constants.CLASSIC_INPUT_VOLTAGE_HOURLY_CATEGORY, Constants.MODBUS_FILE_MINUTES_LOG, 10));
-            minuteLogEntry.set(Constants.CLASSIC_BATTERY_VOLTAGE_HOURLY_CATEGORY, ReadLogs(requiredEntries, Constants.CLASSIC_BATTERY_VOLTAGE_HOURLY_CATEGORY, Constants.MODBUS_FILE_MINUTES_LOG, 10));
-            minuteLogEntry.set(Constants.CLASSIC_OUTPUT_CURRENT_HOURLY_CATEGORY, ReadLogs(requiredEntries, Constants.CLASSIC_OUTPUT_CURRENT_HOURLY_CATEGORY, Constants.MODBUS_FILE_MINUTES_LOG, 10));
-            minuteLogEntry.set(Constants.CLASSIC_ENERGY_HOURLY_CATEGORY, ReadLogs(requiredEntries, Constants.CLASSIC_ENERGY_HOURLY_CATEGORY, Constants.MODBUS_FILE_MINUTES_LOG, 10));
-            minuteLogEntry.set(Constants.CLASSIC_CHARGE_STATE_HOURLY_CATEGORY, ReadLogs(requiredEntries, Constants.CLASSIC_CHARGE_STATE_HOURLY_CATEGORY, Constants.MODBUS_FILE_MINUTES_LOG, 256));
-            Log.d(getClass().getName(), "Completed reading minute logs");
-            minuteLogEntry.setLogDate(DateTime.now());
-            BundleCache.getInstance(context).putBundle(minuteLogCacheName, minuteLogEntry.getLogs());
-            BroadcastToast(context.getString(R.string.toast_minute_logs));
-        } catch (ModbusIOException ex) {
-            if (ex.isEOF()) {
-                Log.w(getClass().getName(), String.format("loadMinuteLogs reached EOF ex: %s", ex));
-                minuteLogEntry.setLogDate(DateTime.now());
-                BundleCache.getInstance(context).putBundle(minuteLogCacheName, minuteLogEntry.getLogs());
-                BroadcastToast(context.getString(R.string.toast_minute_logs));
-                return;
+            if (minuteLogEntry.isAvailable() && minuteLogEntry.getLogDate().isAfter(DateTime.now().minusHours(23))) { // the timestamp is unique within a day
+                logDownloader.startMinuteLogs(cachedLogs(minuteLogEntry, LogDownloader.MINUTE_LOG_CATEGORIES),
+                        minuteLogEntry.getShortArray(Constants.CLASSIC_TIMESTAMP_HIGH_HOURLY_CATEGORY), minuteLogEntry.getNewestTimestamp());
+            } else {
+                logDownloader.startMinuteLogs(); // sum of minutes log up to 24 hours
             }
-            BundleCache.getInstance(context).clearCache(minuteLogCacheName);
-            minuteLogEntry = new LogEntry();
-            minuteLogEntry.setLogDate(DateTime.now().plusMinutes(5)); // try it again later
-            Log.w(getClass().getName(), String.format("loadDayLogs failed ex: %s", ex));
-
         } catch (Exception ex) {
-            BundleCache.getInstance(context).clearCache(minuteLogCacheName);
-            minuteLogEntry = new LogEntry();
-            minuteLogEntry.setLogDate(DateTime.now().plusMinutes(5)); // try it again later
-            Log.w(getClass().getName(), String.format("LoadMinuteLogs failed ex: %s", ex));
+            minuteLogsFailed(ex);
         }
     }
 
-    private float[] ReadLogs(int requiredEntries, int category, int device, int factor) throws ModbusException {
-        int index = 0;
-        float[] buffer = new float[requiredEntries];
-        while (index < requiredEntries) {
-            ReadFileTransferResponse regRes = modbusMaster.readFileTransfer(index, category, device);
-            if (regRes != null) {
-                int count = regRes.getWordCount();
-                if (count > 0) {
-                    int j = count - 1;
-                    for (int i = 0; i < count; i++, j--) {
-                        if (i + index > requiredEntries - 1) {
-                            break;
-                        }
-                        float value = (float)registerToShort(regRes.getRegister(j).toBytes());
-                        buffer[i + index] = value / factor;
+    /**
+     * Advances the log download one step at a time until it completes or the deadline passes, always by
+     * at least one step. The live reads come first in every run, and a run that returns before its next
+     * slot is never delayed, so they wait behind one step at most.
+     */
+    private void downloadLogs(long deadline) {
+        do {
+            synchronized (lock) {
+                if (modbusMaster == null) { // cancelled
+                    return;
+                }
+                int log = logDownloader.downloading();
+                Exception failure = null;
+                try {
+                    if (!logDownloader.step(modbusMaster, Constants.MODBUS_LOG_BLOCKS_PER_STEP)) {
+                        continue;
                     }
-                    index += count;
+                } catch (Exception ex) {
+                    failure = ex;
+                }
+                if (log == Constants.MODBUS_FILE_DAILIES_LOG) {
+                    dayLogsDownloaded(failure);
+                } else {
+                    minuteLogsDownloaded(failure);
                 }
+                return;
+            }
+        } while (SystemClock.elapsedRealtime() < deadline);
+    }
+
+    private void dayLogsDownloaded(Exception failure) {
+        String dayLogCacheName = chargeControllerInfo.dayLogCacheName();
+        try {
+            storeLogs(dayLogEntry, LogDownloader.DAY_LOG_CATEGORIES, logDownloader.dayLogs());
+            if (failure == null) {
+                Log.d(getClass().getName(), "Completed reading Day logs");
+            } else if (failure instanceof ModbusIOException && ((ModbusIOException) failure).isEOF()) { // a whole download, keep what arrived
+                Log.w(getClass().getName(), String.format("loadDayLogs reached EOF ex: %s", failure));
             } else {
-                Log.w(getClass().getName(), String.format("Modbus ReadLogs failed to get category: %d", category));
-                throw new ModbusException("Failed to read File Transfer data from modbus");
+                dayLogsFailed(failure);
+                return;
             }
+            dayLogEntry.setLogDate(DateTime.now());
+            BundleCache.getInstance(context).putBundle(dayLogCacheName, dayLogEntry.getLogs());
+            BroadcastToast(context.getString(R.string.toast_day_logs));
+        } catch (Exception ex) {
+            dayLogsFailed(ex);
         }
+    }
 
-        return buffer;
+    private void dayLogsFailed(Exception ex) {
+        BundleCache.getInstance(context).clearCache(chargeControllerInfo.dayLogCacheName());
+        dayLogEntry = new LogEntry();
+        dayLogEntry.setLogDate(DateTime.now().plusMinutes(5)); // try it again later
+        Log.w(getClass().getName(), String.format("loadDayLogs failed ex: %s", ex));
     }
 
-    private int ReadMinuteLogTimestamps() throws ModbusException {
-        final int bufferSize = 1440; // assume max of one entry per minute for 20 hrs
-        int requiredEntries = 0;
-        int index = 0;
-        short lasMinute;
-        short currentMinute = -1;
-        short minuteSum = 0;
-        short[] buffer = new short[bufferSize];
+    private void minuteLogsDownloaded(Exception failure) {
+        String minuteLogCacheName = chargeControllerInfo.minuteLogCacheName();
         try {
-
-            while (index < bufferSize) {
-                ReadFileTransferResponse regRes = modbusMaster.readFileTransfer(index, Constants.CLASSIC_TIMESTAMP_HIGH_HOURLY_CATEGORY, Constants.MODBUS_FILE_MINUTES_LOG);
-                if (regRes != null) {
-                    int count = regRes.getWordCount();
-                    if (count > 0) {
-                        int j = count - 1;
-                        for (int i = 0; i < count; i++, j--) {
-                            lasMinute = currentMinute;
-                            if (i + index > bufferSize - 1) {
-                                break;
-                            }
-                            short val = registerToShort(regRes.getRegister(j).toBytes());
-                            short min = (short) (val & 0x003f);
-                            short hour = (short) ((val >> 6) & 0x001f);
-                            currentMinute = (short) (min + hour * 60);
-
-                            if (lasMinute != -1) {
-                                if (currentMinute > lasMinute) {
-                                    lasMinute += 1440; // roll over midnight
-                                }
-                                minuteSum += lasMinute - currentMinute;
-                                buffer[i + index] = minuteSum;
-                                if (minuteSum > 1440) { //minutes in 24 hours
-                                    requiredEntries = i + index; // output buffer size required
-                                    index = bufferSize; //exit while
-                                    break; //exit for
-                                }
-                            }
-                        }
-                        index += count;
-                    }
-                } else {
-                    Log.w(getClass().getName(), "Modbus ReadLogs failed to get timestamps");
-                    throw new ModbusException("Failed to read File Transfer data from modbus");
-                }
+            short[] timestamps = logDownloader.minuteLogTimestamps();
+            if (timestamps != null) {
+                minuteLogEntry.set(Constants.CLASSIC_TIMESTAMP_HIGH_HOURLY_CATEGORY, timestamps);
+                minuteLogEntry.setNewestTimestamp(logDownloader.newestMinuteLogTimestamp());
             }
-        }catch (ModbusIOException ex) {
-            if (ex.isEOF()) {
-                if (requiredEntries == 0) {
-                    throw new ModbusException("Could not load Minute Log Timestamps");
-                }
+            storeLogs(minuteLogEntry, LogDownloader.MINUTE_LOG_CATEGORIES, logDownloader.minuteLogs());
+            if (failure == null) {
+                Log.d(getClass().getName(), "Completed reading minute logs");
+            } else if (failure instanceof ModbusIOException && ((ModbusIOException) failure).isEOF()) { // a whole download, keep what arrived
+                Log.w(getClass().getName(), String.format("loadMinuteLogs reached EOF ex: %s", failure));
+            } else {
+                minuteLogsFailed(failure);
+                return;
             }
+            minuteLogEntry.setLogDate(DateTime.now());
+            BundleCache.getInstance(context).putBundle(minuteLogCacheName, minuteLogEntry.getLogs());
+            BroadcastToast(context.getString(R.string.toast_minute_logs));
+        } catch (Exception ex) {
+            minuteLogsFailed(ex);
         }
-        short[] output = new short[requiredEntries];
-        System.arraycopy(buffer, 0, output, 0, requiredEntries);
-        minuteLogEntry.set(Constants.CLASSIC_TIMESTAMP_HIGH_HOURLY_CATEGORY, output);
-        return requiredEntries;
     }
 
-    private static short registerToShort(byte[] bytes) {
-        return (short) ((bytes[1] << 8) | (bytes[0] & 0xff));
+    private void minuteLogsFailed(Exception ex) {
+        BundleCache.getInstance(context).clearCache(chargeControllerInfo.minuteLogCacheName());
+        minuteLogEntry = new LogEntry();
+        minuteLogEntry.setLogDate(DateTime.now().plusMinutes(5)); // try it again later
+        Log.w(getClass().getName(), String.format("LoadMinuteLogs failed ex: %s", ex));
     }
 
-    private int MSBFor(int val) {
-        return val >> 8;
+    private static float[][] cachedLogs(LogEntry logEntry, int[] categories) {
+        float[][] logs = new float[categories.length][];
+        for (int c = 0; c < categories.length; c++) {
+            logs[c] = logEntry.getFloatArray(categories[c]);
+        }
+        return logs;
     }
 
+    /**
+     * Stores the categories that were downloaded, the ones that did not arrive keep what the entry had.
+     */
+    private void storeLogs(LogEntry logEntry, int[] categories, float[][] logs) {
+        for (int c = 0; c < categories.length; c++) {
+            if (logs[c] != null) {
+                logEntry.set(categories[c], logs[c]);
+            } else {
+                Log.w(getClass().getName(), String.format("Modbus ReadLogs failed to get category: %d", categories[c]));
+            }
+        }
+    }
 
     private float WHr(float val) {
         val /= 1000;
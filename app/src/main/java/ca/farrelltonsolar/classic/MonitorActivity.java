@@ -42,11 +42,8 @@ import android.view.View;
 import android.widget.ProgressBar;
 import android.widget.Toast;
 
-import org.joda.time.DateTime;
-
 import java.io.File;
 import java.io.FileOutputStream;
-import java.util.ArrayList;
 
 import ca.farrelltonsolar.uicomponents.SlidingTabLayout;
 import ca.farrelltonsolar.uicomponents.TabStripAdapter;
@@ -59,7 +56,6 @@ public class MonitorActivity extends AppCompatActivity {
     private boolean isReceiverRegistered;
     private SlidingTabLayout stl;
     private ViewPager viewPager;
-    public ArrayList<RecordEntry> record;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -81,21 +77,9 @@ public class MonitorActivity extends AppCompatActivity {
         stl.setSelectedIndicatorColors(Color.BLUE, Color.CYAN, Color.GREEN, Color.MAGENTA, Color.YELLOW);
         viewPager = (ViewPager) findViewById(R.id.pager);
         setupActionBar();
-        if(savedInstanceState != null && savedInstanceState.containsKey("record")) {
-            record = savedInstanceState.getParcelableArrayList("record");
-        }
-        else {
-            record = new ArrayList<>();
-        }
         Log.d(getClass().getName(), "onCreate");
     }
 
-    @Override
-    protected void onSaveInstanceState(Bundle outState) {
-        super.onSaveInstanceState(outState);
-        outState.putParcelableArrayList("record", record);
-    }
-
     private void setupActionBar() {
 
         tabStripAdapter = new TabStripAdapter(getFragmentManager(), this, viewPager, stl, null);
@@ -227,12 +211,6 @@ public class MonitorActivity extends AppCompatActivity {
                         }
                     }
                 }
-                DateTime now = DateTime.now();
-                if (record.size() > 21600) {
-                    record.remove(0);
-                }
-                record.add(new RecordEntry(readings.getFloat(RegisterName.BatVoltage.name()), readings.getFloat(RegisterName.BatCurrent.name()),
-                        readings.getFloat(RegisterName.WhizbangBatCurrent.name()), readings.getInt(RegisterName.ChargeState.name()), readings.getInt(RegisterName.SOC.name()), now.getMillis()));
             }
             catch (Throwable ex) {
                 Log.e(getClass().getName(), "mReadingsReceiver failed ");
@@ -180,6 +180,10 @@ public class MonitorApplication extends Application implements LifecycleObserver
             return;
         }
         if (chargeControllers.setCurrent(device)) {
+            LiveRecord record = liveRecord();
+            if (record != null) {
+                record.clear();
+            }
             LocalBroadcastManager broadcaster = LocalBroadcastManager.getInstance(getAppContext());
             Intent pkg = new Intent(Constants.CA_FARRELLTONSOLAR_CLASSIC_MONITOR_CHARGE_CONTROLLER);
             pkg.putExtra("DifferentController", true);
@@ -305,6 +309,7 @@ public class MonitorApplication extends Application implements LifecycleObserver
     @Override
     public void onActivityResumed(Activity activity) {
         if (activity.getLocalClassName().compareTo("MonitorActivity") == 0) {
+            PollCadence.setForeground(true);
             LocalBroadcastManager.getInstance(this).registerReceiver(addChargeControllerReceiver, new IntentFilter(Constants.CA_FARRELLTONSOLAR_CLASSIC_ADD_CHARGE_CONTROLLER));
             LocalBroadcastManager.getInstance(this).registerReceiver(removeChargeControllerReceiver, new IntentFilter(Constants.CA_FARRELLTONSOLAR_CLASSIC_REMOVE_CHARGE_CONTROLLER));
             if (disconnectTimer != null) {
@@ -332,6 +337,7 @@ public class MonitorApplication extends Application implements LifecycleObserver
     @Override
     public void onActivityPaused(Activity activity) {
         if (activity.getLocalClassName().compareTo("MonitorActivity") == 0) {
+            PollCadence.setForeground(false);
             LocalBroadcastManager.getInstance(this).unregisterReceiver(addChargeControllerReceiver);
             LocalBroadcastManager.getInstance(this).unregisterReceiver(removeChargeControllerReceiver);
             disconnectTimer = new Timer();
@@ -379,6 +385,16 @@ public class MonitorApplication extends Application implements LifecycleObserver
         return null;
     }
 
+    /**
+     * The live chart samples kept by the service of the current connection type, null while it is not bound.
+     */
+    public static LiveRecord liveRecord() {
+        if (chargeControllers.getConnectionType() == CONNECTION_TYPE.MQTT) {
+            return isMQTTServiceBound && instance.mqttService != null ? instance.mqttService.getLiveRecord() : null;
+        }
+        return isModbusServiceBound && instance.modbusService != null ? instance.modbusService.getLiveRecord() : null;
+    }
+
     public static Context getAppContext() {
         return instance.getApplicationContext();
     }
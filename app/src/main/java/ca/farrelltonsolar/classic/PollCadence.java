@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.classic;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * How often the charge controllers are polled.
+ * Polling is fast while a live reading fragment is on screen, slower while the app is only in the
+ * foreground (log charts, settings) and slowest in the background. A resting controller (at night)
+ * is polled no faster than MODBUS_POLL_TIME_RESTING unless its live readings are on screen.
+ * Fragments and activities report what is visible, the ModbusService listens for changes so a live
+ * view speeds polling up straight away instead of after the next slow period.
+ */
+class PollCadence {
+
+    enum Visibility {
+        LIVE,
+        FOREGROUND,
+        BACKGROUND
+    }
+
+    interface Listener {
+        void onCadenceChanged();
+    }
+
+    private static final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private static int liveViews;
+    private static boolean foreground;
+
+    static synchronized Visibility visibility() {
+        if (liveViews > 0) {
+            return Visibility.LIVE;
+        }
+        return foreground ? Visibility.FOREGROUND : Visibility.BACKGROUND;
+    }
+
+    /**
+     * The poll period in ms for what is on screen and the controller's charge state.
+     */
+    static long period(boolean resting) {
+        long period;
+        switch (visibility()) {
+            case LIVE:
+                return Constants.MODBUS_POLL_TIME; // someone is watching, even at night
+            case FOREGROUND:
+                period = Constants.MODBUS_POLL_TIME_FOREGROUND;
+                break;
+            default:
+                period = Constants.MODBUS_POLL_TIME_BACKGROUND;
+                break;
+        }
+        return resting ? Math.max(period, Constants.MODBUS_POLL_TIME_RESTING) : period;
+    }
+
+    static void liveViewStarted() {
+        synchronized (PollCadence.class) {
+            liveViews++;
+        }
+        notifyListeners();
+    }
+
+    static void liveViewStopped() {
+        synchronized (PollCadence.class) {
+            if (liveViews > 0) {
+                liveViews--;
+            }
+        }
+        notifyListeners();
+    }
+
+    static void setForeground(boolean inForeground) {
+        synchronized (PollCadence.class) {
+            foreground = inForeground;
+        }
+        notifyListeners();
+    }
+
+    static void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    static void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private static void notifyListeners() {
+        for (Listener listener : listeners) {
+            listener.onCadenceChanged();
+        }
+    }
+}
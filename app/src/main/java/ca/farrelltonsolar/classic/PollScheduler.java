@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.classic;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the polling of every monitored charge controller on one small, fixed pool of threads.
+ * Each controller gets its own Schedule. The first run is jittered across one period so controllers
+ * added together are not polled in lock step. A run never overlaps the previous run of the same
+ * schedule: when a poll overruns its slot, the missed slots are skipped instead of queued up.
+ */
+class PollScheduler {
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final Random random = new Random();
+
+    PollScheduler(int threads) {
+        executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ModbusPoll-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // a schedule waiting for its next run is dropped by shutdown, only runs in progress complete
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Starts running task every period ms, the first run after initialDelay plus a random part of one period.
+     */
+    Schedule schedule(Runnable task, long initialDelay, long period) {
+        long jitter;
+        synchronized (random) {
+            jitter = (long) (random.nextDouble() * period);
+        }
+        Schedule schedule = new Schedule(task, period);
+        schedule.start(initialDelay + jitter);
+        return schedule;
+    }
+
+    /**
+     * Cancels every schedule and stops the worker threads once the runs in progress complete, waiting
+     * at most MODBUS_SHUTDOWN_WAIT ms for them. The caller is the main thread, a run still going after
+     * that finishes on its own daemon thread.
+     */
+    void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(Constants.MODBUS_SHUTDOWN_WAIT, TimeUnit.MILLISECONDS)) {
+                Log.w(getClass().getName(), "Polls still running at shutdown");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    class Schedule implements Runnable {
+        private final Runnable task;
+        private volatile long period;
+        private volatile boolean cancelled;
+        private long nextRun;
+        private boolean running;
+        private int overruns;
+        private ScheduledFuture<?> future;
+
+        private Schedule(Runnable task, long period) {
+            this.task = task;
+            this.period = period;
+        }
+
+        private synchronized void start(long delay) {
+            nextRun = SystemClock.elapsedRealtime() + delay;
+            future = executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                running = true;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                // keep polling, one bad cycle must not end the schedule
+                Log.w(getClass().getName(), String.format("Poll failed ex: %s", ex));
+            } finally {
+                reschedule();
+            }
+        }
+
+        private synchronized void reschedule() {
+            running = false;
+            if (cancelled || executor.isShutdown()) {
+                return;
+            }
+            long now = SystemClock.elapsedRealtime();
+            nextRun += period;
+            if (nextRun <= now) {
+                long missed = (now - nextRun) / period + 1;
+                overruns += missed;
+                nextRun += missed * period;
+            }
+            future = executor.schedule(this, nextRun - now, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Changes the period. A shorter period also brings forward a run that is waiting on the old one.
+         */
+        synchronized void setPeriod(long period) {
+            long previous = this.period;
+            this.period = period;
+            if (period < previous && !running && !cancelled && future != null) {
+                long now = SystemClock.elapsedRealtime();
+                long next = Math.max(now, nextRun - previous + period);
+                if (next < nextRun && future.cancel(false)) {
+                    nextRun = next;
+                    future = executor.schedule(this, next - now, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+
+        long period() {
+            return period;
+        }
+
+        /**
+         * Number of slots skipped because a run took longer than its period.
+         */
+        synchronized int overruns() {
+            return overruns;
+        }
+
+        /**
+         * Stops further runs, a run in progress completes.
+         */
+        synchronized void cancel() {
+            cancelled = true;
+            if (future != null) {
+                future.cancel(false);
+                future = null;
+            }
+            executor.purge();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.classic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import ca.farrelltonsolar.j2modlite.ModbusException;
+import ca.farrelltonsolar.j2modlite.facade.ModbusTCPMaster;
+
+/**
+ * The modbus reads needed to cover a set of register ranges.
+ * Ranges closer together than the gap tolerance are merged into one request, as long as the request
+ * stays within the 125 register limit of a read multiple registers request, so a poll cycle is as few
+ * round trips as possible. Optional ranges (registers older firmware may not have) are never merged
+ * with required ones, a slave exception on them must not cost us the required readings.
+ * The block buffers are allocated once when the plan is built and reused on every read.
+ */
+class ReadPlan {
+
+    static final int MAX_REGISTERS = 125;
+
+    private final int[] refs;
+    private final int[] counts;
+    private final boolean[] required;
+    private final short[][] blocks;
+    private int blocksRead;
+
+    private ReadPlan(List<int[]> merged) {
+        int n = merged.size();
+        refs = new int[n];
+        counts = new int[n];
+        required = new boolean[n];
+        blocks = new short[n][];
+        for (int i = 0; i < n; i++) {
+            int[] block = merged.get(i);
+            refs[i] = block[0];
+            counts[i] = block[1] - block[0] + 1;
+            required[i] = block[2] != 0;
+            blocks[i] = new short[counts[i]];
+        }
+    }
+
+    /**
+     * Plans the reads for a register map.
+     */
+    static ReadPlan forDefinitions(RegisterDefinition[] definitions, int gapTolerance) {
+        int[][] ranges = new int[definitions.length][];
+        for (int i = 0; i < definitions.length; i++) {
+            RegisterDefinition definition = definitions[i];
+            ranges[i] = new int[]{definition.address, definition.width(), definition.optional ? 0 : 1};
+        }
+        return forRanges(ranges, gapTolerance);
+    }
+
+    /**
+     * Plans the reads for raw ranges given as {address, count, required (1) or optional (0)}.
+     */
+    static ReadPlan forRanges(int[][] ranges, int gapTolerance) {
+        List<int[]> merged = new ArrayList<>();
+        merge(ranges, 1, gapTolerance, merged);
+        merge(ranges, 0, gapTolerance, merged);
+        return new ReadPlan(merged);
+    }
+
+    private static void merge(int[][] ranges, int required, int gapTolerance, List<int[]> merged) {
+        List<int[]> group = new ArrayList<>();
+        for (int[] range : ranges) {
+            if (range[2] == required) {
+                group.add(range);
+            }
+        }
+        int[][] sorted = group.toArray(new int[group.size()][]);
+        Arrays.sort(sorted, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] lhs, int[] rhs) {
+                return lhs[0] < rhs[0] ? -1 : (lhs[0] == rhs[0] ? 0 : 1);
+            }
+        });
+        int[] current = null; // {first address, last address, required}
+        for (int[] range : sorted) {
+            int first = range[0];
+            int last = range[0] + range[1] - 1;
+            if (current != null && first - current[1] - 1 <= gapTolerance && Math.max(last, current[1]) - current[0] + 1 <= MAX_REGISTERS) {
+                current[1] = Math.max(last, current[1]);
+            } else {
+                current = new int[]{first, last, required};
+                merged.add(current);
+            }
+        }
+    }
+
+    /**
+     * Reads every block of the plan in one pipelined exchange.
+     *
+     * @throws ModbusException on I/O errors, or if the slave refused a block holding required registers
+     */
+    void read(ModbusTCPMaster master) throws ModbusException {
+        blocksRead = master.readMultipleRegistersInto(refs, counts, blocks);
+        for (int i = 0; i < refs.length; i++) {
+            if (required[i] && (blocksRead & (1 << i)) == 0) {
+                throw new ModbusException(String.format("Failed to read data from modbus %d", refs[i]));
+            }
+        }
+    }
+
+    int requestCount() {
+        return refs.length;
+    }
+
+    /**
+     * True if the last read returned every register from address to address + width - 1.
+     */
+    boolean contains(int address, int width) {
+        for (int i = 0; i < refs.length; i++) {
+            if ((blocksRead & (1 << i)) != 0 && address >= refs[i] && address + width <= refs[i] + counts[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The signed value of a register from the last read, the caller checks contains first.
+     */
+    short get(int address) {
+        for (int i = 0; i < refs.length; i++) {
+            if (address >= refs[i] && address < refs[i] + counts[i]) {
+                return blocks[i][address - refs[i]];
+            }
+        }
+        throw new IllegalArgumentException(String.format("Register %d is not part of this read plan", address));
+    }
+
+    /**
+     * The unsigned value of a register from the last read.
+     */
+    int u16(int address) {
+        return get(address) & 0xffff;
+    }
+
+    /**
+     * A 32 bit value stored low word first, as the Classic does.
+     */
+    int u32(int address) {
+        return (u16(address + 1) << 16) + u16(address);
+    }
+}
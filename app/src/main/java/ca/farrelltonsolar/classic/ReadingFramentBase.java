@@ -59,6 +59,7 @@ public abstract class ReadingFramentBase extends Fragment implements ReadingFrag
             }
             isReceiverRegistered = false;
         }
+        PollCadence.liveViewStopped();
         Log.d(getClass().getName(), "onStop");
     }
 
@@ -69,6 +70,7 @@ public abstract class ReadingFramentBase extends Fragment implements ReadingFrag
             LocalBroadcastManager.getInstance(ReadingFramentBase.this.getActivity()).registerReceiver(mReadingsReceiver, new IntentFilter(Constants.CA_FARRELLTONSOLAR_CLASSIC_READINGS));
             isReceiverRegistered = true;
         }
+        PollCadence.liveViewStarted();
         Log.d(getClass().getName(), "onStart");
     }
 
@@ -21,78 +21,81 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.support.v4.content.LocalBroadcastManager;
 
-public class Readings {
-    final Object lock = new Object();
+/**
+ * The readings of a charge controller as broadcast to the views.
+ * Values are kept and published by ReadingsBuffer, the Bundle sent with the broadcast is only
+ * built when readings are broadcast.
+ */
+public class Readings extends ReadingsBuffer {
+    private final Bundle received;
 
     public Readings() {
-        readings = new Bundle();
+        received = null;
     }
 
     public Readings(Bundle init) {
-        readings = init;
+        super(fromBundle(init));
+        received = init;
     }
 
-    Bundle readings;
-
     public Bundle getReadings() {
-        return readings;
-    }
-
-    public Float getFloat(RegisterName name) {
-        synchronized (lock) {
-            return readings.getFloat(name.name(), 0);
-        }
-    }
-
-    public int getInt(RegisterName name) {
-        synchronized (lock) {
-            return readings.getInt(name.name(), 0);
-        }
-    }
-
-    public String GetString(RegisterName name) {
-        synchronized (lock) {
-            return readings.getString(name.name());
-        }
+        return bundleFor(snapshot());
     }
 
-
-    public Boolean getBoolean(RegisterName name) {
-        synchronized (lock) {
-            return readings.getBoolean(name.name(), false);
-        }
-    }
-
-    public void set(RegisterName name, Float value) {
-        synchronized (lock) {
-            readings.putFloat(name.name(), value);
-        }
-    }
-
-    public void set(RegisterName name, int value) {
-        synchronized (lock) {
-            readings.putInt(name.name(), value);
+    public void broadcastReadings(Context context, String uniqueId, String action) {
+        ReadingsSnapshot current = publishIfChanged();
+        if (!current.isEmpty()) {
+            Intent intent = new Intent(action);
+            intent.putExtra("readings", bundleFor(current));
+            intent.putExtra("uniqueId", uniqueId);
+            LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
         }
     }
 
-    public void set(RegisterName name, String value) {
-        synchronized (lock) {
-            readings.putString(name.name(), value);
-        }
+    private Bundle bundleFor(ReadingsSnapshot current) {
+        // readings received as a Bundle are passed on unchanged until something new is published
+        return received != null && current.version() == 1 ? received : toBundle(current);
     }
 
-    public void set(RegisterName name, Boolean value) {
-        synchronized (lock) {
-            readings.putBoolean(name.name(), value);
+    static Bundle toBundle(ReadingsSnapshot readings) {
+        Bundle rVal = new Bundle();
+        for (RegisterName name : RegisterName.values()) {
+            switch (readings.kind(name)) {
+                case ReadingsSnapshot.FLOAT:
+                    rVal.putFloat(name.name(), readings.getFloat(name));
+                    break;
+                case ReadingsSnapshot.INT:
+                    rVal.putInt(name.name(), readings.getInt(name));
+                    break;
+                case ReadingsSnapshot.BOOLEAN:
+                    rVal.putBoolean(name.name(), readings.getBoolean(name));
+                    break;
+            }
         }
+        return rVal;
     }
 
-    public void broadcastReadings(Context context, String uniqueId, String action) {
-        if (!readings.isEmpty()) {
-            Intent intent = new Intent(action);
-            intent.putExtra("readings", readings);
-            intent.putExtra("uniqueId", uniqueId);
-            LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
+    private static ReadingsSnapshot fromBundle(Bundle source) {
+        RegisterName[] names = RegisterName.values();
+        byte[] kinds = new byte[names.length];
+        float[] floats = new float[names.length];
+        int[] ints = new int[names.length];
+        if (source != null) {
+            for (RegisterName name : names) {
+                int i = name.ordinal();
+                Object value = source.get(name.name());
+                if (value instanceof Float || value instanceof Double) {
+                    kinds[i] = ReadingsSnapshot.FLOAT;
+                    floats[i] = ((Number) value).floatValue();
+                } else if (value instanceof Number) {
+                    kinds[i] = ReadingsSnapshot.INT;
+                    ints[i] = ((Number) value).intValue();
+                } else if (value instanceof Boolean) {
+                    kinds[i] = ReadingsSnapshot.BOOLEAN;
+                    ints[i] = (Boolean) value ? 1 : 0;
+                }
+            }
         }
+        return new ReadingsSnapshot(1, System.currentTimeMillis(), kinds, floats, ints);
     }
 }
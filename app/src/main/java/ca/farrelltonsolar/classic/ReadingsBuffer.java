@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.classic;
+
+/**
+ * The readings of a charge controller, without the Android broadcast side.
+ * The poll thread sets the values of a cycle into primitive arrays indexed by RegisterName.ordinal(),
+ * then publishes them as an immutable ReadingsSnapshot. Getters read the last published snapshot
+ * without locking, so a reader never blocks the poll and never sees half a cycle.
+ */
+public class ReadingsBuffer {
+    private final Object writeLock = new Object();
+    private final byte[] kinds = new byte[RegisterName.values().length];
+    private final float[] floats = new float[RegisterName.values().length];
+    private final int[] ints = new int[RegisterName.values().length];
+    private long version;
+    private boolean dirty;
+    private volatile ReadingsSnapshot snapshot = ReadingsSnapshot.EMPTY;
+
+    public ReadingsBuffer() {
+    }
+
+    /**
+     * Starts from readings published elsewhere, e.g. received over MQTT.
+     */
+    protected ReadingsBuffer(ReadingsSnapshot init) {
+        snapshot = init;
+        version = init.version();
+        for (int i = 0; i < kinds.length; i++) {
+            kinds[i] = init.kind(i);
+            floats[i] = init.floatAt(i);
+            ints[i] = init.intAt(i);
+        }
+    }
+
+    /**
+     * The last published readings.
+     */
+    public ReadingsSnapshot snapshot() {
+        return snapshot;
+    }
+
+    public float getFloat(RegisterName name) {
+        return snapshot.getFloat(name);
+    }
+
+    public int getInt(RegisterName name) {
+        return snapshot.getInt(name);
+    }
+
+    public boolean getBoolean(RegisterName name) {
+        return snapshot.getBoolean(name);
+    }
+
+    public void set(RegisterName name, float value) {
+        synchronized (writeLock) {
+            int i = name.ordinal();
+            kinds[i] = ReadingsSnapshot.FLOAT;
+            floats[i] = value;
+            dirty = true;
+        }
+    }
+
+    public void set(RegisterName name, int value) {
+        synchronized (writeLock) {
+            int i = name.ordinal();
+            kinds[i] = ReadingsSnapshot.INT;
+            ints[i] = value;
+            dirty = true;
+        }
+    }
+
+    public void set(RegisterName name, boolean value) {
+        synchronized (writeLock) {
+            int i = name.ordinal();
+            kinds[i] = ReadingsSnapshot.BOOLEAN;
+            ints[i] = value ? 1 : 0;
+            dirty = true;
+        }
+    }
+
+    /**
+     * Publishes the values set so far as the next snapshot, call once per poll cycle.
+     */
+    public ReadingsSnapshot publish() {
+        synchronized (writeLock) {
+            ReadingsSnapshot rVal = new ReadingsSnapshot(++version, System.currentTimeMillis(), kinds.clone(), floats.clone(), ints.clone());
+            dirty = false;
+            snapshot = rVal;
+            return rVal;
+        }
+    }
+
+    /**
+     * Publishes the values set since the last publish, if any, and returns the latest snapshot.
+     */
+    protected ReadingsSnapshot publishIfChanged() {
+        synchronized (writeLock) {
+            return dirty ? publish() : snapshot;
+        }
+    }
+}
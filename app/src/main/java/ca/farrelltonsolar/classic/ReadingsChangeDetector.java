@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.classic;
+
+import android.os.SystemClock;
+
+/**
+ * Decides whether a poll changed the readings enough to be worth broadcasting.
+ * Float readings count as changed once they move by at least their deadband from the value last
+ * broadcast, every other reading on any change. A heartbeat broadcast still goes out when nothing
+ * changed for READINGS_HEARTBEAT, so listeners can tell a quiet controller from a lost one.
+ */
+class ReadingsChangeDetector {
+
+    private static final float EPSILON = 0.0001f;
+
+    private final float[] deadbands = new float[RegisterName.values().length];
+    private ReadingsSnapshot lastSent = ReadingsSnapshot.EMPTY;
+    private long lastBroadcast;
+    private long heartbeat = Constants.READINGS_HEARTBEAT;
+    private boolean forced = true;
+
+    ReadingsChangeDetector() {
+        setDeadband(RegisterName.Power, 5.0f);
+        setDeadband(RegisterName.BatVoltage, 0.2f);
+        setDeadband(RegisterName.PVVoltage, 0.5f);
+        setDeadband(RegisterName.BatCurrent, 0.2f);
+        setDeadband(RegisterName.PVCurrent, 0.2f);
+        setDeadband(RegisterName.WhizbangBatCurrent, 0.2f);
+        setDeadband(RegisterName.BatTemperature, 0.5f);
+        setDeadband(RegisterName.FETTemperature, 0.5f);
+        setDeadband(RegisterName.PCBTemperature, 0.5f);
+        setDeadband(RegisterName.ShuntTemperature, 0.5f);
+    }
+
+    /**
+     * Smallest change of a float reading that is broadcast, 0 for any change.
+     */
+    synchronized void setDeadband(RegisterName name, float deadband) {
+        deadbands[name.ordinal()] = deadband;
+    }
+
+    synchronized void setHeartbeat(long ms) {
+        heartbeat = ms;
+    }
+
+    /**
+     * Makes the next check broadcast regardless of changes, e.g. when a new view needs a full set of readings.
+     */
+    synchronized void force() {
+        forced = true;
+    }
+
+    /**
+     * Returns true if readings should be broadcast, and if so remembers them as the last values sent.
+     */
+    synchronized boolean shouldBroadcast(ReadingsSnapshot readings) {
+        long now = SystemClock.elapsedRealtime();
+        boolean send = forced || now - lastBroadcast >= heartbeat;
+        for (int i = 0; i < deadbands.length && !send; i++) {
+            send = changed(i, readings);
+        }
+        if (send) {
+            lastSent = readings;
+            forced = false;
+            lastBroadcast = now;
+        }
+        return send;
+    }
+
+    private boolean changed(int index, ReadingsSnapshot readings) {
+        byte kind = readings.kind(index);
+        if (kind != lastSent.kind(index)) {
+            return true;
+        }
+        if (kind == ReadingsSnapshot.FLOAT) {
+            float delta = Math.abs(readings.floatAt(index) - lastSent.floatAt(index));
+            float deadband = deadbands[index];
+            return deadband == 0 ? delta != 0 : delta >= deadband - EPSILON;
+        }
+        return readings.intAt(index) != lastSent.intAt(index);
+    }
+}
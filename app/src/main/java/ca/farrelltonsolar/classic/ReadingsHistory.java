@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.classic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Every polled readings snapshot of one charge controller, kept on disk for retentionDays. Snapshots
+ * are compressed into HistoryBlocks appended to one segment file per UTC day; a block torn by a crash
+ * is cut off before the next one is written.
+ * <pre>
+ * segment  magic "CHST", version (short), reserved (short), then HistoryBlocks
+ * </pre>
+ */
+public class ReadingsHistory {
+
+    static final int VERSION = 1;
+
+    private static final int MAGIC = 0x43485354; // CHST
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final String SUFFIX = ".hist";
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    private static final int BLOCK_SAMPLES = 900; // 30 minutes of live polling
+    private static final long BLOCK_TIME = 15 * 60 * 1000L; // at most this much is lost if the process dies
+
+    private final File directory;
+    private final int retentionDays;
+    private final HistoryBlock block = new HistoryBlock();
+    private long checkedSegmentDay = Long.MIN_VALUE; // the segment whose end was checked for a torn block
+
+    public ReadingsHistory(File directory, int retentionDays) {
+        this.directory = directory;
+        this.retentionDays = retentionDays;
+    }
+
+    /**
+     * Adds the snapshot to the block being filled, appending the block to its segment first when it is full.
+     */
+    public synchronized void append(ReadingsSnapshot snapshot) throws IOException {
+        long timestamp = snapshot.timestamp();
+        if (!block.isEmpty() && (block.samples() >= BLOCK_SAMPLES || timestamp - block.firstTimestamp() >= BLOCK_TIME
+                || day(timestamp) != day(block.firstTimestamp()))) {
+            flush();
+        }
+        block.append(snapshot);
+    }
+
+    /**
+     * Appends the block being filled to its segment, e.g. before the process may be stopped.
+     */
+    public synchronized void flush() throws IOException {
+        if (block.isEmpty()) {
+            return;
+        }
+        long day = day(block.firstTimestamp());
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+            File file = segment(day);
+            if (!file.exists()) {
+                deleteExpired(day);
+            }
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            try {
+                long end = day == checkedSegmentDay ? out.length() : validEnd(out);
+                checkedSegmentDay = day;
+                if (end == 0) {
+                    out.writeInt(MAGIC);
+                    out.writeShort(VERSION);
+                    out.writeShort(0);
+                    end = FILE_HEADER_SIZE;
+                }
+                out.setLength(end);
+                out.seek(end);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(HistoryBlock.HEADER_SIZE + block.samples() * 16);
+                block.writeTo(new DataOutputStream(bytes));
+                out.write(bytes.toByteArray());
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } finally {
+            block.reset(); // a block that could not be written is dropped, not retried with every sample
+        }
+    }
+
+    /**
+     * The samples from (inclusive) to (exclusive) wall clock ms, in the order they were appended.
+     */
+    public synchronized HistoryCursor read(long from, long to) throws IOException {
+        List<File> segments = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                long day = dayOf(file);
+                if (day >= day(from) && day <= day(to)) {
+                    segments.add(file);
+                }
+            }
+        }
+        Collections.sort(segments, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = dayOf(lhs);
+                long r = dayOf(rhs);
+                return l < r ? -1 : l == r ? 0 : 1;
+            }
+        });
+        byte[] openBlock = null;
+        if (!block.isEmpty()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            block.writeTo(new DataOutputStream(bytes));
+            openBlock = bytes.toByteArray();
+        }
+        return new HistoryCursor(segments, openBlock, from, to);
+    }
+
+    /**
+     * Bytes of history on disk.
+     */
+    public synchronized long size() {
+        long size = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (dayOf(file) != Long.MIN_VALUE) {
+                    size += file.length();
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Reads a segment's file header, false if it is not a segment of this version.
+     */
+    static boolean readFileHeader(DataInput in) throws IOException {
+        boolean valid = in.readInt() == MAGIC && in.readShort() == VERSION;
+        in.readShort();
+        return valid;
+    }
+
+    /**
+     * The end of the last whole block of the segment, 0 if it does not even have a valid file header.
+     */
+    private static long validEnd(RandomAccessFile file) throws IOException {
+        long length = file.length();
+        if (length < FILE_HEADER_SIZE) {
+            return 0;
+        }
+        file.seek(0);
+        if (!readFileHeader(file)) {
+            return 0;
+        }
+        long end = FILE_HEADER_SIZE;
+        ByteBuffer header = ByteBuffer.allocate(HistoryBlock.HEADER_SIZE);
+        byte[] payload = new byte[0];
+        while (end + HistoryBlock.HEADER_SIZE <= length) {
+            file.readFully(header.array());
+            int payloadLength = header.getInt(0);
+            if (payloadLength < 0 || end + HistoryBlock.HEADER_SIZE + payloadLength > length) {
+                break;
+            }
+            if (payload.length < payloadLength) {
+                payload = new byte[payloadLength];
+            }
+            file.readFully(payload, 0, payloadLength);
+            CRC32 crc = new CRC32();
+            crc.update(header.array(), 0, HistoryBlock.HEADER_SIZE - 4);
+            crc.update(payload, 0, payloadLength);
+            if ((int) crc.getValue() != header.getInt(HistoryBlock.HEADER_SIZE - 4)) {
+                break;
+            }
+            end += HistoryBlock.HEADER_SIZE + payloadLength;
+        }
+        return end;
+    }
+
+    private void deleteExpired(long today) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                long day = dayOf(file);
+                if (day != Long.MIN_VALUE && day <= today - retentionDays) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private File segment(long day) {
+        return new File(directory, day + SUFFIX);
+    }
+
+    private static long day(long timestamp) {
+        return timestamp / DAY;
+    }
+
+    /**
+     * The day of a segment file, Long.MIN_VALUE if the file is not one.
+     */
+    private static long dayOf(File file) {
+        String name = file.getName();
+        if (!name.endsWith(SUFFIX)) {
+            return Long.MIN_VALUE;
+        }
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException ex) {
+            return Long.MIN_VALUE;
+        }
+    }
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.classic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Minute, hour and day aggregates of every reading of one charge controller, so a chart of a day or a
+ * year reads a few hundred RollupBuckets instead of every sample. Closed buckets are appended to their
+ * resolution's partition file every WRITE_TIME ms and by flush(), the parts of a bucket are merged when read.
+ * <pre>
+ * partition  magic "CRLP", version (short), reserved (short), then records
+ * record     payload length, RollupBucket, CRC32 of the length and payload
+ * </pre>
+ */
+public class ReadingsRollup {
+
+    public enum Resolution {
+        MINUTE(60 * 1000L, ReadingsRollup.DAY, 7),
+        HOUR(60 * 60 * 1000L, 30 * ReadingsRollup.DAY, 13),
+        DAY(ReadingsRollup.DAY, 365 * ReadingsRollup.DAY, 10);
+
+        private final long width;
+        private final long partition;
+        private final int retainedPartitions;
+
+        Resolution(long width, long partition, int retainedPartitions) {
+            this.width = width;
+            this.partition = partition;
+            this.retainedPartitions = retainedPartitions;
+        }
+
+        /**
+         * Length of a bucket in ms.
+         */
+        public long width() {
+            return width;
+        }
+
+        long bucketStart(long timestamp) {
+            return timestamp / width * width;
+        }
+
+        long partitionOf(long timestamp) {
+            return timestamp / partition;
+        }
+    }
+
+    static final int VERSION = 1;
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    private static final long MAX_GAP = 5 * 60 * 1000L; // a longer gap is a lost connection, not a reading to integrate
+    private static final long WRITE_TIME = 15 * 60 * 1000L; // at most this much is lost if the process dies
+    private static final int MAGIC = 0x43524c50; // CRLP
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final String SUFFIX = ".roll";
+    private static final int REGISTERS = RegisterName.values().length;
+    private static final Resolution[] RESOLUTIONS = Resolution.values();
+
+    private final File directory;
+    private final RollupBucket[] open = new RollupBucket[RESOLUTIONS.length];
+    private final List<List<RollupBucket>> closed = new ArrayList<>(); // per resolution, closed and not yet written
+    private long closedSince = Long.MIN_VALUE; // sample that closed the oldest bucket not yet written
+    private final long[] checkedPartitions = new long[RESOLUTIONS.length]; // the partition whose end was checked for a torn record
+    private final boolean[] present = new boolean[REGISTERS];
+    private final float[] values = new float[REGISTERS];
+    private final boolean[] previousPresent = new boolean[REGISTERS];
+    private final float[] previousValues = new float[REGISTERS];
+    private long previousTimestamp = Long.MIN_VALUE;
+
+    public ReadingsRollup(File directory) {
+        this.directory = directory;
+        for (int r = 0; r < RESOLUTIONS.length; r++) {
+            checkedPartitions[r] = Long.MIN_VALUE;
+            closed.add(new ArrayList<RollupBucket>());
+        }
+    }
+
+    /**
+     * Adds the snapshot to the open bucket of every resolution, closing those it is past the end of first,
+     * and writes the closed buckets once they are due. Buckets that could not be written are dropped and
+     * the exception thrown once the snapshot is added.
+     */
+    public synchronized void add(ReadingsSnapshot snapshot) throws IOException {
+        long timestamp = snapshot.timestamp();
+        if (timestamp <= previousTimestamp) {
+            return; // a clock set back, the buckets it lands in are already closed
+        }
+        for (int i = 0; i < REGISTERS; i++) {
+            switch (snapshot.kind(i)) {
+                case ReadingsSnapshot.FLOAT:
+                    values[i] = snapshot.floatAt(i);
+                    break;
+                case ReadingsSnapshot.INT:
+                    values[i] = snapshot.intAt(i);
+                    break;
+                case ReadingsSnapshot.BOOLEAN:
+                    values[i] = snapshot.intAt(i) != 0 ? 1 : 0;
+                    break;
+                default:
+                    present[i] = false;
+                    continue;
+            }
+            present[i] = true;
+        }
+        boolean integrate = previousTimestamp != Long.MIN_VALUE && timestamp - previousTimestamp <= MAX_GAP;
+        IOException failure = null;
+        for (int r = 0; r < RESOLUTIONS.length; r++) {
+            Resolution resolution = RESOLUTIONS[r];
+            RollupBucket bucket = open[r];
+            if (bucket == null) {
+                bucket = new RollupBucket(resolution.bucketStart(timestamp), resolution.width);
+            }
+            long from = previousTimestamp;
+            while (timestamp >= bucket.start() + resolution.width) {
+                long end = bucket.start() + resolution.width;
+                if (integrate) {
+                    integrate(bucket, from, end, timestamp);
+                    from = end;
+                }
+                if (!bucket.isEmpty()) {
+                    try {
+                        close(r, bucket, timestamp);
+                    } catch (IOException ex) {
+                        failure = failure == null ? ex : failure;
+                    }
+                }
+                // a gap short enough to integrate crosses at most a few buckets, each of which gets its share
+                bucket = new RollupBucket(integrate ? end : resolution.bucketStart(timestamp), resolution.width);
+            }
+            if (integrate) {
+                integrate(bucket, from, timestamp, timestamp);
+            }
+            for (int i = 0; i < REGISTERS; i++) {
+                if (present[i]) {
+                    bucket.add(i, values[i]);
+                }
+            }
+            open[r] = bucket;
+        }
+        System.arraycopy(present, 0, previousPresent, 0, REGISTERS);
+        System.arraycopy(values, 0, previousValues, 0, REGISTERS);
+        previousTimestamp = timestamp;
+        if (closedSince != Long.MIN_VALUE && timestamp - closedSince >= WRITE_TIME) {
+            try {
+                writeClosed();
+            } catch (IOException ex) {
+                failure = failure == null ? ex : failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Writes the closed buckets and the open ones as they are, starting those again empty, e.g. before
+     * the process may be stopped.
+     */
+    public synchronized void flush() throws IOException {
+        IOException failure = null;
+        for (int r = 0; r < RESOLUTIONS.length; r++) {
+            RollupBucket bucket = open[r];
+            if (bucket == null || bucket.isEmpty()) {
+                continue;
+            }
+            try {
+                close(r, bucket, previousTimestamp);
+            } catch (IOException ex) {
+                failure = failure == null ? ex : failure;
+            }
+            open[r] = new RollupBucket(bucket.start(), bucket.width());
+        }
+        try {
+            writeClosed();
+        } catch (IOException ex) {
+            failure = failure == null ? ex : failure;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * The buckets of the resolution starting from (inclusive) to (exclusive) wall clock ms, oldest first,
+     * including those not written yet and the one still open.
+     */
+    public synchronized List<RollupBucket> read(Resolution resolution, long from, long to) throws IOException {
+        TreeMap<Long, RollupBucket> buckets = new TreeMap<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                long partition = partitionOf(resolution, file);
+                if (partition != Long.MIN_VALUE && partition >= resolution.partitionOf(from) && partition <= resolution.partitionOf(to)) {
+                    readPartition(file, resolution, from, to, buckets);
+                }
+            }
+        }
+        for (RollupBucket bucket : closed.get(resolution.ordinal())) {
+            addBucket(buckets, bucket, from, to);
+        }
+        RollupBucket bucket = open[resolution.ordinal()];
+        if (bucket != null && !bucket.isEmpty()) {
+            addBucket(buckets, bucket, from, to);
+        }
+        return new ArrayList<>(buckets.values());
+    }
+
+    /**
+     * Adds the linearly interpolated integral of every reading present in both the previous sample and
+     * this one over the part from..to of the time between them.
+     */
+    private void integrate(RollupBucket bucket, long from, long to, long timestamp) {
+        if (to <= from) {
+            return;
+        }
+        double span = timestamp - previousTimestamp;
+        double fromFraction = (from - previousTimestamp) / span;
+        double toFraction = (to - previousTimestamp) / span;
+        double hours = (to - from) / 3600000.0;
+        for (int i = 0; i < REGISTERS; i++) {
+            if (present[i] && previousPresent[i]) {
+                double change = values[i] - previousValues[i];
+                double average = previousValues[i] + change * (fromFraction + toFraction) / 2;
+                bucket.addIntegral(i, average * hours);
+            }
+        }
+    }
+
+    /**
+     * Keeps a closed bucket to be written with the others, writing those first if it starts a new partition.
+     */
+    private void close(int r, RollupBucket bucket, long timestamp) throws IOException {
+        List<RollupBucket> buckets = closed.get(r);
+        try {
+            Resolution resolution = RESOLUTIONS[r];
+            if (!buckets.isEmpty() && resolution.partitionOf(buckets.get(0).start()) != resolution.partitionOf(bucket.start())) {
+                write(r);
+            }
+        } finally {
+            buckets.add(bucket);
+            if (closedSince == Long.MIN_VALUE) {
+                closedSince = timestamp;
+            }
+        }
+    }
+
+    private void writeClosed() throws IOException {
+        IOException failure = null;
+        for (int r = 0; r < RESOLUTIONS.length; r++) {
+            try {
+                write(r);
+            } catch (IOException ex) {
+                failure = failure == null ? ex : failure;
+            }
+        }
+        closedSince = Long.MIN_VALUE;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Appends the closed buckets of the resolution, all in one partition, to its file and drops them,
+     * written or not.
+     */
+    private void write(int r) throws IOException {
+        List<RollupBucket> buckets = closed.get(r);
+        if (buckets.isEmpty()) {
+            return;
+        }
+        try {
+            append(r, buckets);
+        } finally {
+            buckets.clear();
+        }
+    }
+
+    private void append(int r, List<RollupBucket> buckets) throws IOException {
+        Resolution resolution = RESOLUTIONS[r];
+        long partition = resolution.partitionOf(buckets.get(0).start());
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        File file = partitionFile(resolution, partition);
+        if (!file.exists()) {
+            deleteExpired(resolution, partition);
+        }
+        int size = 0;
+        for (RollupBucket bucket : buckets) {
+            size += 4 + bucket.size() + 4;
+        }
+        ByteBuffer records = ByteBuffer.allocate(size);
+        CRC32 crc = new CRC32();
+        for (RollupBucket bucket : buckets) {
+            int start = records.position();
+            records.putInt(bucket.size());
+            bucket.write(records);
+            crc.reset();
+            crc.update(records.array(), start, records.position() - start);
+            records.putInt((int) crc.getValue());
+        }
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            long end = partition == checkedPartitions[r] ? out.length() : validEnd(out);
+            checkedPartitions[r] = partition;
+            if (end == 0) {
+                out.writeInt(MAGIC);
+                out.writeShort(VERSION);
+                out.writeShort(0);
+                end = FILE_HEADER_SIZE;
+            }
+            out.setLength(end);
+            out.seek(end);
+            out.write(records.array());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void readPartition(File file, Resolution resolution, long from, long to, Map<Long, RollupBucket> buckets) throws IOException {
+        byte[] bytes;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            long end = validEnd(in);
+            if (end <= FILE_HEADER_SIZE) {
+                return;
+            }
+            bytes = new byte[(int) end];
+            in.seek(0);
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        ByteBuffer records = ByteBuffer.wrap(bytes);
+        records.position(FILE_HEADER_SIZE);
+        try {
+            while (records.hasRemaining()) {
+                int length = records.getInt();
+                int next = records.position() + length + 4;
+                addBucket(buckets, RollupBucket.read(records, resolution.width), from, to);
+                records.position(next);
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException ex) {
+            throw new IOException("Rollup partition corrupt: " + file, ex);
+        }
+    }
+
+    /**
+     * Adds a copy of the bucket, merged into any part of it already added.
+     */
+    private static void addBucket(Map<Long, RollupBucket> buckets, RollupBucket bucket, long from, long to) {
+        if (bucket.start() < from || bucket.start() >= to) {
+            return;
+        }
+        RollupBucket merged = buckets.get(bucket.start());
+        if (merged == null) {
+            merged = new RollupBucket(bucket.start(), bucket.width());
+            buckets.put(bucket.start(), merged);
+        }
+        merged.merge(bucket);
+    }
+
+    /**
+     * The end of the last whole record of the partition, 0 if it does not even have a valid file header.
+     */
+    private static long validEnd(RandomAccessFile file) throws IOException {
+        long length = file.length();
+        if (length < FILE_HEADER_SIZE) {
+            return 0;
+        }
+        file.seek(0);
+        boolean valid = file.readInt() == MAGIC && file.readShort() == VERSION;
+        file.readShort();
+        if (!valid) {
+            return 0;
+        }
+        long end = FILE_HEADER_SIZE;
+        byte[] record = new byte[0];
+        while (end + 4 <= length) {
+            int payloadLength = file.readInt();
+            if (payloadLength < 0 || end + 4 + payloadLength + 4 > length) {
+                break;
+            }
+            if (record.length < 4 + payloadLength) {
+                record = new byte[4 + payloadLength];
+            }
+            ByteBuffer.wrap(record).putInt(payloadLength);
+            file.readFully(record, 4, payloadLength);
+            CRC32 crc = new CRC32();
+            crc.update(record, 0, 4 + payloadLength);
+            if ((int) crc.getValue() != file.readInt()) {
+                break;
+            }
+            end += 4 + payloadLength + 4;
+        }
+        return end;
+    }
+
+    private void deleteExpired(Resolution resolution, long current) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                long partition = partitionOf(resolution, file);
+                if (partition != Long.MIN_VALUE && partition <= current - resolution.retainedPartitions) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private File partitionFile(Resolution resolution, long partition) {
+        return new File(directory, prefix(resolution) + partition + SUFFIX);
+    }
+
+    private static String prefix(Resolution resolution) {
+        return resolution.name().toLowerCase(Locale.US) + "-";
+    }
+
+    /**
+     * The partition of a file of the resolution, Long.MIN_VALUE if the file is not one.
+     */
+    private static long partitionOf(Resolution resolution, File file) {
+        String name = file.getName();
+        String prefix = prefix(resolution);
+        if (!name.startsWith(prefix) || !name.endsWith(SUFFIX)) {
+            return Long.MIN_VALUE;
+        }
+        try {
+            return Long.parseLong(name.substring(prefix.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException ex) {
+            return Long.MIN_VALUE;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.classic;
+
+/**
+ * The readings of one poll cycle, never changed once published.
+ * Values are kept unboxed in arrays indexed by RegisterName.ordinal(), floats in one array, ints and
+ * booleans in the other, with the kind of each reading alongside so a reading that was never set can be
+ * told from a zero. The version grows by one with every snapshot a Readings publishes, so a reader can
+ * tell whether anything was polled since it last looked without comparing values.
+ */
+public final class ReadingsSnapshot {
+
+    public static final byte ABSENT = 0;
+    public static final byte FLOAT = 1;
+    public static final byte INT = 2;
+    public static final byte BOOLEAN = 3;
+
+    static final ReadingsSnapshot EMPTY = new ReadingsSnapshot(0, 0, new byte[RegisterName.values().length],
+            new float[RegisterName.values().length], new int[RegisterName.values().length]);
+
+    private final long version;
+    private final long timestamp;
+    private final byte[] kinds;
+    private final float[] floats;
+    private final int[] ints;
+
+    ReadingsSnapshot(long version, long timestamp, byte[] kinds, float[] floats, int[] ints) {
+        this.version = version;
+        this.timestamp = timestamp;
+        this.kinds = kinds;
+        this.floats = floats;
+        this.ints = ints;
+    }
+
+    public long version() {
+        return version;
+    }
+
+    /**
+     * Wall clock time in ms the snapshot was published.
+     */
+    public long timestamp() {
+        return timestamp;
+    }
+
+    public boolean isEmpty() {
+        for (byte kind : kinds) {
+            if (kind != ABSENT) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean contains(RegisterName name) {
+        return kinds[name.ordinal()] != ABSENT;
+    }
+
+    public float getFloat(RegisterName name) {
+        int i = name.ordinal();
+        switch (kinds[i]) {
+            case FLOAT:
+                return floats[i];
+            case INT:
+                return ints[i];
+            default:
+                return 0;
+        }
+    }
+
+    public int getInt(RegisterName name) {
+        int i = name.ordinal();
+        switch (kinds[i]) {
+            case FLOAT:
+                return (int) floats[i];
+            case INT:
+                return ints[i];
+            default:
+                return 0;
+        }
+    }
+
+    public boolean getBoolean(RegisterName name) {
+        int i = name.ordinal();
+        return kinds[i] == BOOLEAN && ints[i] != 0;
+    }
+
+    /**
+     * ABSENT if the reading was never set, otherwise whether it is a FLOAT, INT or BOOLEAN.
+     */
+    public byte kind(RegisterName name) {
+        return kinds[name.ordinal()];
+    }
+
+    byte kind(int index) {
+        return kinds[index];
+    }
+
+    float floatAt(int index) {
+        return floats[index];
+    }
+
+    int intAt(int index) {
+        return ints[index];
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.classic;
+
+import java.util.Random;
+
+/**
+ * Exponential back off between attempts to reach a controller that stopped answering, shared by the
+ * app's connection manager and the collector.
+ */
+public class ReconnectBackoff {
+
+    private final Random random = new Random();
+    private int failures;
+
+    /**
+     * Records a failure and returns the delay in ms before the next attempt, doubling from
+     * MODBUS_RECONNECT_MIN_DELAY up to MODBUS_RECONNECT_MAX_DELAY.
+     */
+    public synchronized long fail() {
+        failures++;
+        long delay = Math.min((long) Constants.MODBUS_RECONNECT_MAX_DELAY, (long) Constants.MODBUS_RECONNECT_MIN_DELAY << Math.min(failures - 1, 16));
+        // spread the retries so controllers that went down together don't come back in lock step
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * half);
+    }
+
+    public synchronized void reset() {
+        failures = 0;
+    }
+
+    /**
+     * Failures in a row since the last reset.
+     */
+    public synchronized int failures() {
+        return failures;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.classic;
+
+/**
+ * Where a reading lives in the charge controller's register map and how to turn the raw words into
+ * the value published under its RegisterName.
+ * Addresses are the zero based offsets passed to readMultipleRegisters (the Classic documentation
+ * numbers registers from 1, so its register 4115 is address 4114 here).
+ */
+class RegisterDefinition {
+
+    enum Format {
+        U16,        // one word, unsigned
+        S16,        // one word, signed
+        S32,        // two words, low word first
+        S32_ABS,    // two words, low word first, magnitude only
+        HIGH_BYTE,  // most significant byte of one word
+        LOW_BYTE    // least significant byte of one word
+    }
+
+    enum Output {
+        FLOAT,
+        INT,
+        BOOLEAN
+    }
+
+    final RegisterName name;
+    final int address;
+    final Format format;
+    final Output output;
+    final float divisor;
+    final float offset;
+    final int mask;
+    final boolean optional;
+
+    private RegisterDefinition(RegisterName name, int address, Format format, Output output, float divisor, float offset, int mask, boolean optional) {
+        this.name = name;
+        this.address = address;
+        this.format = format;
+        this.output = output;
+        this.divisor = divisor;
+        this.offset = offset;
+        this.mask = mask;
+        this.optional = optional;
+    }
+
+    /**
+     * A reading published as raw / divisor + offset.
+     */
+    static RegisterDefinition scaled(RegisterName name, int address, Format format, float divisor, float offset) {
+        return new RegisterDefinition(name, address, format, Output.FLOAT, divisor, offset, 0, false);
+    }
+
+    static RegisterDefinition scaled(RegisterName name, int address, Format format, float divisor) {
+        return scaled(name, address, format, divisor, 0.0f);
+    }
+
+    static RegisterDefinition integer(RegisterName name, int address, Format format) {
+        return new RegisterDefinition(name, address, format, Output.INT, 1.0f, 0.0f, 0, false);
+    }
+
+    /**
+     * A reading that is true when any of the mask bits are set.
+     */
+    static RegisterDefinition flag(RegisterName name, int address, int mask) {
+        return new RegisterDefinition(name, address, Format.U16, Output.BOOLEAN, 1.0f, 0.0f, mask, false);
+    }
+
+    /**
+     * The same definition, for a register that older firmware does not have.
+     */
+    RegisterDefinition asOptional() {
+        return new RegisterDefinition(name, address, format, output, divisor, offset, mask, true);
+    }
+
+    int width() {
+        return format == Format.S32 || format == Format.S32_ABS ? 2 : 1;
+    }
+
+    /**
+     * Decodes the register from the last read of the plan into readings, if the plan read it.
+     */
+    void apply(ReadPlan plan, ReadingsBuffer readings) {
+        if (!plan.contains(address, width())) {
+            return;
+        }
+        int raw;
+        switch (format) {
+            case S16:
+                raw = plan.get(address);
+                break;
+            case S32:
+                raw = plan.u32(address);
+                break;
+            case S32_ABS:
+                raw = Math.abs(plan.u32(address));
+                break;
+            case HIGH_BYTE:
+                raw = plan.u16(address) >> 8;
+                break;
+            case LOW_BYTE:
+                raw = plan.u16(address) & 0x00ff;
+                break;
+            default:
+                raw = plan.u16(address);
+                break;
+        }
+        switch (output) {
+            case INT:
+                readings.set(name, raw);
+                break;
+            case BOOLEAN:
+                readings.set(name, (raw & mask) != 0);
+                break;
+            default:
+                readings.set(name, raw / divisor + offset);
+                break;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.classic;
+
+import static ca.farrelltonsolar.classic.RegisterDefinition.Format.HIGH_BYTE;
+import static ca.farrelltonsolar.classic.RegisterDefinition.Format.LOW_BYTE;
+import static ca.farrelltonsolar.classic.RegisterDefinition.Format.S16;
+import static ca.farrelltonsolar.classic.RegisterDefinition.Format.S32;
+import static ca.farrelltonsolar.classic.RegisterDefinition.Format.S32_ABS;
+import static ca.farrelltonsolar.classic.RegisterDefinition.Format.U16;
+import static ca.farrelltonsolar.classic.RegisterDefinition.flag;
+import static ca.farrelltonsolar.classic.RegisterDefinition.integer;
+import static ca.farrelltonsolar.classic.RegisterDefinition.scaled;
+
+/**
+ * Registers polled from a Classic (and from its WhizBang Jr. when one is fitted).
+ * The fast set is read every poll, the full set (fast and slow together, so the slow registers
+ * share the fast requests where they can) every MODBUS_SLOW_REGISTER_INTERVAL.
+ */
+class RegisterMap {
+
+    // power, voltage, current and state, read every poll
+    static final RegisterDefinition[] CLASSIC_FAST = {
+            scaled(RegisterName.BatVoltage, 4114, U16, 10.0f),
+            scaled(RegisterName.PVVoltage, 4115, U16, 10.0f),
+            scaled(RegisterName.BatCurrent, 4116, U16, 10.0f),
+            scaled(RegisterName.EnergyToday, 4117, U16, 10.0f),
+            scaled(RegisterName.Power, 4118, U16, 1.0f),
+            integer(RegisterName.ChargeState, 4119, HIGH_BYTE),
+            scaled(RegisterName.PVCurrent, 4120, U16, 10.0f),
+            scaled(RegisterName.TotalEnergy, 4125, S32, 10.0f),
+            integer(RegisterName.InfoFlagsBits, 4129, S32),
+            flag(RegisterName.Aux1, 4129, 0x4000),
+            flag(RegisterName.Aux2, 4129, 0x8000),
+            integer(RegisterName.FloatTimeTodaySeconds, 4137, S16),
+            integer(RegisterName.AbsorbTime, 4138, S16),
+            integer(RegisterName.EqualizeTime, 4142, S16)
+    };
+
+    // temperatures and set points change slowly, read every MODBUS_SLOW_REGISTER_INTERVAL
+    static final RegisterDefinition[] CLASSIC_SLOW = {
+            scaled(RegisterName.BatTemperature, 4131, S16, 10.0f),
+            scaled(RegisterName.FETTemperature, 4132, S16, 10.0f),
+            scaled(RegisterName.PCBTemperature, 4133, S16, 10.0f),
+            scaled(RegisterName.VbattRegSetPTmpComp, 4243, S16, 10.0f).asOptional(),
+            integer(RegisterName.ReasonForResting, 4274, S16).asOptional()
+    };
+
+    static final RegisterDefinition[] CLASSIC = concat(CLASSIC_FAST, CLASSIC_SLOW);
+
+    static final RegisterDefinition[] WHIZBANG_JR = {
+            integer(RegisterName.PositiveAmpHours, 4364, S32),
+            integer(RegisterName.NegativeAmpHours, 4366, S32_ABS),
+            integer(RegisterName.NetAmpHours, 4368, S32),
+            scaled(RegisterName.WhizbangBatCurrent, 4370, S16, 10.0f),
+            scaled(RegisterName.ShuntTemperature, 4371, LOW_BYTE, 1.0f, -50.0f),
+            integer(RegisterName.SOC, 4372, S16),
+            integer(RegisterName.RemainingAmpHours, 4376, S16),
+            integer(RegisterName.TotalAmpHours, 4380, S16)
+    };
+
+    static final RegisterDefinition[] CLASSIC_WITH_WHIZBANG_JR_FAST = concat(CLASSIC_FAST, WHIZBANG_JR);
+
+    static final RegisterDefinition[] CLASSIC_WITH_WHIZBANG_JR = concat(CLASSIC, WHIZBANG_JR);
+
+    private static RegisterDefinition[] concat(RegisterDefinition[] first, RegisterDefinition[] second) {
+        RegisterDefinition[] rVal = new RegisterDefinition[first.length + second.length];
+        System.arraycopy(first, 0, rVal, 0, first.length);
+        System.arraycopy(second, 0, rVal, first.length, second.length);
+        return rVal;
+    }
+
+    static void apply(RegisterDefinition[] definitions, ReadPlan plan, ReadingsBuffer readings) {
+        for (RegisterDefinition definition : definitions) {
+            definition.apply(plan, readings);
+        }
+    }
+}
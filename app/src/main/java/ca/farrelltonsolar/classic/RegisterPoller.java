@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.classic;
+
+import ca.farrelltonsolar.j2modlite.ModbusException;
+import ca.farrelltonsolar.j2modlite.facade.ModbusTCPMaster;
+
+/**
+ * Reads the live registers of a Classic into a ReadingsBuffer.
+ * The fast register set is read every poll and the full set every MODBUS_SLOW_REGISTER_INTERVAL.
+ */
+public class RegisterPoller {
+
+    private static final int[][] WHIZBANG_RANGES = {{4164, 1, 1}};
+
+    // the plans own the block buffers so polling does not allocate per register
+    private final ReadPlan classicFastPlan = ReadPlan.forDefinitions(RegisterMap.CLASSIC_FAST, Constants.MODBUS_READ_GAP_TOLERANCE);
+    private final ReadPlan classicPlan = ReadPlan.forDefinitions(RegisterMap.CLASSIC, Constants.MODBUS_READ_GAP_TOLERANCE);
+    private final ReadPlan whizbangFastPlan = ReadPlan.forDefinitions(RegisterMap.CLASSIC_WITH_WHIZBANG_JR_FAST, Constants.MODBUS_READ_GAP_TOLERANCE);
+    private final ReadPlan whizbangPlan = ReadPlan.forDefinitions(RegisterMap.CLASSIC_WITH_WHIZBANG_JR, Constants.MODBUS_READ_GAP_TOLERANCE);
+    private boolean whizbang;
+    private long lastSlowRead;
+
+    public boolean hasWhizbang() {
+        return whizbang;
+    }
+
+    public void setWhizbang(boolean hasWhizbang) {
+        whizbang = hasWhizbang;
+    }
+
+    /**
+     * Reads the aux function register to find out whether a WhizBang Jr. is fitted.
+     */
+    public boolean detectWhizbang(ModbusTCPMaster master) throws ModbusException {
+        ReadPlan plan = ReadPlan.forRanges(WHIZBANG_RANGES, 0);
+        plan.read(master);
+        whizbang = isWhizbang(plan.u16(4164));
+        return whizbang;
+    }
+
+    static boolean isWhizbang(int auxFunctions) {
+        return ((auxFunctions & 0x3f00) >> 8) == 18;
+    }
+
+    /**
+     * Reads one poll's registers into readings, the caller publishes them.
+     *
+     * @param now monotonic time in ms, decides when the slow registers are due.
+     */
+    public void poll(ModbusTCPMaster master, ReadingsBuffer readings, long now) throws ModbusException {
+        // the plan coalesces the register map into as few requests as the gap tolerance allows,
+        // they are issued back to back and decoded straight into the plan's buffers
+        boolean readSlow = lastSlowRead == 0 || now - lastSlowRead >= Constants.MODBUS_SLOW_REGISTER_INTERVAL;
+        RegisterDefinition[] registerMap;
+        ReadPlan plan;
+        if (whizbang) {
+            registerMap = readSlow ? RegisterMap.CLASSIC_WITH_WHIZBANG_JR : RegisterMap.CLASSIC_WITH_WHIZBANG_JR_FAST;
+            plan = readSlow ? whizbangPlan : whizbangFastPlan;
+        } else {
+            registerMap = readSlow ? RegisterMap.CLASSIC : RegisterMap.CLASSIC_FAST;
+            plan = readSlow ? classicPlan : classicFastPlan;
+        }
+        plan.read(master);
+        RegisterMap.apply(registerMap, plan, readings);
+        if (readSlow) {
+            lastSlowRead = now;
+        }
+    }
+
+    /**
+     * Reads the slow registers again on the next poll, e.g. after a reconnect.
+     */
+    public void reset() {
+        lastSlowRead = 0;
+    }
+}
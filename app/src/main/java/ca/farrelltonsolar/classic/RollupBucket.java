@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.classic;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The aggregates of every reading over one fixed time bucket: how many samples it had, their min, max,
+ * average and last value, and its time integral in value hours (Wh for Power, Ah for a current).
+ * Adding a sample costs the same whatever the bucket width. Booleans count as 0 or 1, so their
+ * average is the fraction of the samples they were on.
+ */
+public final class RollupBucket {
+
+    private static final int REGISTERS = RegisterName.values().length; // at most 64, the readings present are written as a mask
+
+    private final long start;
+    private final long width;
+    private final int[] counts = new int[REGISTERS];
+    private final float[] min = new float[REGISTERS];
+    private final float[] max = new float[REGISTERS];
+    private final double[] sum = new double[REGISTERS];
+    private final float[] last = new float[REGISTERS];
+    private final double[] integral = new double[REGISTERS];
+
+    RollupBucket(long start, long width) {
+        this.start = start;
+        this.width = width;
+    }
+
+    /**
+     * Wall clock time in ms the bucket starts.
+     */
+    public long start() {
+        return start;
+    }
+
+    public long width() {
+        return width;
+    }
+
+    public boolean isEmpty() {
+        for (int i = 0; i < REGISTERS; i++) {
+            if (has(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Number of samples the reading was present in, 0 for a bucket only crossed between two samples.
+     */
+    public int count(RegisterName name) {
+        return counts[name.ordinal()];
+    }
+
+    public float min(RegisterName name) {
+        return min[name.ordinal()];
+    }
+
+    public float max(RegisterName name) {
+        return max[name.ordinal()];
+    }
+
+    public float average(RegisterName name) {
+        return average(name.ordinal());
+    }
+
+    public float last(RegisterName name) {
+        return last[name.ordinal()];
+    }
+
+    /**
+     * The reading integrated over the time covered by the bucket's samples, in value hours.
+     */
+    public float integral(RegisterName name) {
+        return (float) integral[name.ordinal()];
+    }
+
+    void add(int register, float value) {
+        if (counts[register] == 0) {
+            min[register] = value;
+            max[register] = value;
+        } else {
+            min[register] = Math.min(min[register], value);
+            max[register] = Math.max(max[register], value);
+        }
+        counts[register]++;
+        sum[register] += value;
+        last[register] = value;
+    }
+
+    void addIntegral(int register, double valueHours) {
+        integral[register] += valueHours;
+    }
+
+    /**
+     * Adds the aggregates of a later part of the same bucket, e.g. saved before a restart.
+     */
+    void merge(RollupBucket later) {
+        for (int i = 0; i < REGISTERS; i++) {
+            integral[i] += later.integral[i];
+            if (later.counts[i] == 0) {
+                continue;
+            }
+            if (counts[i] == 0) {
+                min[i] = later.min[i];
+                max[i] = later.max[i];
+            } else {
+                min[i] = Math.min(min[i], later.min[i]);
+                max[i] = Math.max(max[i], later.max[i]);
+            }
+            counts[i] += later.counts[i];
+            sum[i] += later.sum[i];
+            last[i] = later.last[i];
+        }
+    }
+
+    private float average(int i) {
+        return counts[i] == 0 ? 0 : (float) (sum[i] / counts[i]);
+    }
+
+    private boolean has(int i) {
+        return counts[i] > 0 || integral[i] != 0;
+    }
+
+    /**
+     * Bytes written by write().
+     */
+    int size() {
+        int size = 8 + 8;
+        for (int i = 0; i < REGISTERS; i++) {
+            if (has(i)) {
+                size += 24;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Writes the start, a mask of the readings present and for each of them the count, min, max,
+     * average, last value and integral.
+     */
+    void write(ByteBuffer out) {
+        long mask = 0;
+        for (int i = 0; i < REGISTERS; i++) {
+            if (has(i)) {
+                mask |= 1L << i;
+            }
+        }
+        out.putLong(start).putLong(mask);
+        for (int i = 0; i < REGISTERS; i++) {
+            if (has(i)) {
+                out.putInt(counts[i]).putFloat(min[i]).putFloat(max[i]).putFloat(average(i));
+                out.putFloat(last[i]).putFloat((float) integral[i]);
+            }
+        }
+    }
+
+    static RollupBucket read(ByteBuffer in, long width) {
+        RollupBucket bucket = new RollupBucket(in.getLong(), width);
+        long mask = in.getLong();
+        for (int i = 0; i < 64; i++) {
+            if ((mask & (1L << i)) == 0) {
+                continue;
+            }
+            int count = in.getInt();
+            float min = in.getFloat();
+            float max = in.getFloat();
+            float average = in.getFloat();
+            float last = in.getFloat();
+            float integral = in.getFloat();
+            if (i < REGISTERS) { // a reading added by a later version is skipped
+                bucket.counts[i] = count;
+                bucket.min[i] = min;
+                bucket.max[i] = max;
+                bucket.sum[i] = (double) average * count;
+                bucket.last[i] = last;
+                bucket.integral[i] = integral;
+            }
+        }
+        return bucket;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package ca.farrelltonsolar.classic;
+
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BitOutputTest {
+
+    @Test
+    public void readsBackEveryWidth() throws Exception {
+        Random random = new Random(1);
+        long[] values = new long[65];
+        BitOutput out = new BitOutput();
+        long bits = 0;
+        for (int count = 1; count <= 64; count++) {
+            values[count] = count == 64 ? random.nextLong() : random.nextLong() & ((1L << count) - 1);
+            out.write(values[count], count);
+            bits += count;
+        }
+        assertEquals(bits, out.bitLength());
+        assertEquals((bits + 7) / 8, out.byteLength());
+
+        BitInput in = new BitInput(out.bytes(), out.byteLength());
+        for (int count = 1; count <= 64; count++) {
+            assertEquals("width " + count, values[count], in.read(count));
+        }
+    }
+
+    @Test
+    public void writesOnlyTheLowBits() throws Exception {
+        BitOutput out = new BitOutput();
+        out.write(-1L, 3);
+        out.write(0x1234, 4);
+        out.writeBit(true);
+        assertEquals(1, out.byteLength());
+        assertEquals((byte) 0xe9, out.bytes()[0]);
+
+        BitInput in = new BitInput(out.bytes(), out.byteLength());
+        assertEquals(7, in.read(3));
+        assertEquals(4, in.read(4));
+        assertTrue(in.readBit());
+    }
+
+    @Test
+    public void growsPastItsFirstBuffer() throws Exception {
+        BitOutput out = new BitOutput();
+        for (int i = 0; i < 3000; i++) {
+            out.write(i, 12);
+        }
+        BitInput in = new BitInput(out.bytes(), out.byteLength());
+        for (int i = 0; i < 3000; i++) {
+            assertEquals(i, in.read(12));
+        }
+    }
+
+    @Test
+    public void resetClearsTheWrittenBytes() throws Exception {
+        BitOutput out = new BitOutput();
+        out.write(-1L, 64);
+        out.reset();
+        assertEquals(0, out.bitLength());
+        out.writeBit(false);
+        out.write(1, 2);
+        BitInput in = new BitInput(out.bytes(), out.byteLength());
+        assertFalse(in.readBit());
+        assertEquals(1, in.read(2));
+        assertEquals(0, in.read(5));
+    }
+
+    @Test
+    public void readingPastTheEndFails() throws Exception {
+        BitOutput out = new BitOutput();
+        out.write(5, 3);
+        BitInput in = new BitInput(out.bytes(), out.byteLength());
+        in.read(8);
+        try {
+            in.readBit();
+            fail();
+        } catch (EOFException expected) {
+        }
+    }
+}
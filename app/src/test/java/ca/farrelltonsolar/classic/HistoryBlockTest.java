@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package ca.farrelltonsolar.classic;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HistoryBlockTest {
+
+    static final int REGISTERS = RegisterName.values().length;
+    private static final long T0 = 1600000000000L;
+
+    @Test
+    public void deltaOfDeltaUsesEveryPrefix() throws Exception {
+        assertDeltaOfDeltaBits(0, 1);
+        assertDeltaOfDeltaBits(1, 2 + 7);
+        assertDeltaOfDeltaBits(63, 2 + 7);
+        assertDeltaOfDeltaBits(65, 3 + 9);
+        assertDeltaOfDeltaBits(255, 3 + 9);
+        assertDeltaOfDeltaBits(257, 4 + 12);
+        assertDeltaOfDeltaBits(2047, 4 + 12);
+        assertDeltaOfDeltaBits(2049, 4 + 64);
+        assertDeltaOfDeltaBits(1L << 40, 4 + 64);
+    }
+
+    @Test
+    public void deltaOfDeltaRoundTripsAtEveryBoundary() throws Exception {
+        long[] deltasOfDeltas = {0, 1, -1, 63, -64, 64, -65, 255, -256, 256, -257, 2047, -2048, 2048, -2049,
+                1L << 40, -(1L << 40), 0, 0};
+        HistoryBlock block = new HistoryBlock();
+        List<Long> timestamps = new ArrayList<>();
+        long timestamp = T0;
+        long delta = 1000000L; // keeps the timestamps increasing for the negative ones
+        block.append(new TestFixtures.Snapshot().at(timestamp));
+        timestamps.add(timestamp);
+        timestamp += delta;
+        block.append(new TestFixtures.Snapshot().at(timestamp));
+        timestamps.add(timestamp);
+        for (long deltaOfDelta : deltasOfDeltas) {
+            delta += deltaOfDelta;
+            timestamp += delta;
+            block.append(new TestFixtures.Snapshot().at(timestamp));
+            timestamps.add(timestamp);
+        }
+        HistoryCursor cursor = cursor(block);
+        for (long expected : timestamps) {
+            assertTrue(cursor.next());
+            assertEquals(expected, cursor.timestamp());
+        }
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void xorWindowsOfZeroOneAndThirtyTwoBits() throws Exception {
+        int[] values = {
+                0,           // unchanged from the start, 1 bit
+                1,           // 1 meaningful bit, a new window
+                1,           // unchanged
+                0,           // within the window
+                0x80000001,  // 32 meaningful bits
+                0x00000001,  // within the 32 bit window
+                0x80000001,
+                -1,
+                Integer.MIN_VALUE,
+                Integer.MAX_VALUE,
+                0
+        };
+        HistoryBlock block = new HistoryBlock();
+        for (int i = 0; i < values.length; i++) {
+            TestFixtures.Snapshot readings = new TestFixtures.Snapshot();
+            readings.putInt(RegisterName.ChargeState, values[i]);
+            block.append(readings.at(T0 + i * 1000L));
+        }
+        HistoryCursor cursor = cursor(block);
+        for (int value : values) {
+            assertTrue(cursor.next());
+            assertEquals(ReadingsSnapshot.INT, cursor.kind(RegisterName.ChargeState));
+            assertEquals(value, cursor.getInt(RegisterName.ChargeState));
+        }
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void xorWindowSizes() throws Exception {
+        assertValueBits(0, 1);
+        assertValueBits(1, 2 + 10 + 1);
+        assertValueBits(0x00010000, 2 + 10 + 1);
+        assertValueBits(0x00018000, 2 + 10 + 2);
+        assertValueBits(0x80000001, 2 + 10 + 32);
+        assertValueBits(-1, 2 + 10 + 32);
+    }
+
+    @Test
+    public void floatsKeepTheirBits() throws Exception {
+        float[] values = {0f, 13.7f, 13.7f, 13.8f, -0f, Float.NaN, Float.MAX_VALUE, Float.MIN_VALUE, 26.55f};
+        HistoryBlock block = new HistoryBlock();
+        for (int i = 0; i < values.length; i++) {
+            TestFixtures.Snapshot readings = new TestFixtures.Snapshot();
+            readings.putFloat(RegisterName.BatVoltage, values[i]);
+            block.append(readings.at(T0 + i * 2000L));
+        }
+        HistoryCursor cursor = cursor(block);
+        for (float value : values) {
+            assertTrue(cursor.next());
+            assertEquals(Float.floatToRawIntBits(value), Float.floatToRawIntBits(cursor.getFloat(RegisterName.BatVoltage)));
+        }
+    }
+
+    @Test
+    public void kindsChangeMidBlock() throws Exception {
+        TestFixtures.Snapshot first = new TestFixtures.Snapshot();
+        first.putFloat(RegisterName.Power, 250.5f);
+        first.putInt(RegisterName.ChargeState, 3);
+        TestFixtures.Snapshot second = new TestFixtures.Snapshot();
+        second.putFloat(RegisterName.ChargeState, 4.5f);
+        second.putBoolean(RegisterName.Aux1, true);
+        TestFixtures.Snapshot third = new TestFixtures.Snapshot();
+        third.putFloat(RegisterName.Power, 251f);
+        third.putInt(RegisterName.ChargeState, 3);
+        TestFixtures.Snapshot fourth = new TestFixtures.Snapshot();
+        fourth.putFloat(RegisterName.Power, 252f);
+        fourth.putInt(RegisterName.ChargeState, 5);
+
+        HistoryBlock block = new HistoryBlock();
+        block.append(first.at(T0));
+        block.append(second.at(T0 + 1000));
+        block.append(third.at(T0 + 2000));
+        block.append(fourth.at(T0 + 3000));
+        HistoryCursor cursor = cursor(block);
+
+        assertTrue(cursor.next());
+        assertEquals(250.5f, cursor.getFloat(RegisterName.Power), 0);
+        assertEquals(3, cursor.getInt(RegisterName.ChargeState));
+        assertFalse(cursor.contains(RegisterName.Aux1));
+
+        assertTrue(cursor.next());
+        assertFalse(cursor.contains(RegisterName.Power));
+        assertEquals(ReadingsSnapshot.FLOAT, cursor.kind(RegisterName.ChargeState));
+        assertEquals(4.5f, cursor.getFloat(RegisterName.ChargeState), 0);
+        assertEquals(ReadingsSnapshot.BOOLEAN, cursor.kind(RegisterName.Aux1));
+        assertTrue(cursor.getBoolean(RegisterName.Aux1));
+
+        assertTrue(cursor.next());
+        assertEquals(251f, cursor.getFloat(RegisterName.Power), 0);
+        assertEquals(ReadingsSnapshot.INT, cursor.kind(RegisterName.ChargeState));
+        assertEquals(3, cursor.getInt(RegisterName.ChargeState));
+        assertFalse(cursor.contains(RegisterName.Aux1));
+
+        assertTrue(cursor.next());
+        assertEquals(252f, cursor.getFloat(RegisterName.Power), 0);
+        assertEquals(5, cursor.getInt(RegisterName.ChargeState));
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void randomSamplesRoundTrip() throws Exception {
+        Random random = new Random(7);
+        List<ReadingsSnapshot> snapshots = new ArrayList<>();
+        HistoryBlock block = new HistoryBlock();
+        long timestamp = T0;
+        for (int s = 0; s < 900; s++) {
+            timestamp += random.nextInt(10) == 0 ? random.nextInt(100000) : 2000 + random.nextInt(5) - 2;
+            byte[] kinds = new byte[REGISTERS];
+            float[] floats = new float[REGISTERS];
+            int[] ints = new int[REGISTERS];
+            for (int i = 0; i < REGISTERS; i++) {
+                kinds[i] = random.nextInt(20) == 0 ? (byte) random.nextInt(4) : (byte) (i % 4);
+                floats[i] = random.nextBoolean() ? random.nextFloat() * 100 : i;
+                ints[i] = random.nextInt(3) == 0 ? random.nextInt() : i;
+                if (kinds[i] == ReadingsSnapshot.BOOLEAN) {
+                    ints[i] = random.nextInt(2);
+                }
+            }
+            ReadingsSnapshot snapshot = new ReadingsSnapshot(s, timestamp, kinds, floats, ints);
+            snapshots.add(snapshot);
+            block.append(snapshot);
+        }
+        HistoryCursor cursor = cursor(block);
+        for (ReadingsSnapshot expected : snapshots) {
+            assertTrue(cursor.next());
+            assertSame(expected, cursor);
+        }
+        assertFalse(cursor.next());
+    }
+
+    static void assertSame(ReadingsSnapshot expected, HistoryCursor actual) {
+        assertEquals(expected.timestamp(), actual.timestamp());
+        for (RegisterName name : RegisterName.values()) {
+            assertEquals(name.name(), expected.kind(name), actual.kind(name));
+            switch (expected.kind(name)) {
+                case ReadingsSnapshot.FLOAT:
+                    assertEquals(name.name(), Float.floatToRawIntBits(expected.getFloat(name)), Float.floatToRawIntBits(actual.getFloat(name)));
+                    break;
+                case ReadingsSnapshot.INT:
+                    assertEquals(name.name(), expected.getInt(name), actual.getInt(name));
+                    break;
+                case ReadingsSnapshot.BOOLEAN:
+                    assertEquals(name.name(), expected.getBoolean(name), actual.getBoolean(name));
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Eight deltas of deltas of +/- deltaOfDelta after a first sample, with no readings: a bit of kinds per
+     * sample and the given bits for each delta of delta.
+     */
+    private static void assertDeltaOfDeltaBits(long deltaOfDelta, int bits) throws IOException {
+        HistoryBlock block = new HistoryBlock();
+        List<Long> timestamps = new ArrayList<>();
+        long timestamp = T0;
+        for (int i = 0; i <= 8; i++) {
+            timestamp += i % 2 == 1 ? deltaOfDelta : 0;
+            block.append(new TestFixtures.Snapshot().at(timestamp));
+            timestamps.add(timestamp);
+        }
+        assertEquals("delta of delta " + deltaOfDelta, (1 + 8 * (bits + 1) + 7) / 8, payloadLength(block));
+        HistoryCursor cursor = cursor(block);
+        for (long expected : timestamps) {
+            assertTrue(cursor.next());
+            assertEquals(expected, cursor.timestamp());
+        }
+    }
+
+    /**
+     * A sample holding ChargeState and eight more a second apart alternating between value and 0: the
+     * kinds once, then the given bits for the first change and a window's worth for each of the others.
+     */
+    private static void assertValueBits(int value, int bits) throws IOException {
+        HistoryBlock block = new HistoryBlock();
+        for (int i = 0; i <= 8; i++) {
+            TestFixtures.Snapshot readings = new TestFixtures.Snapshot();
+            readings.putInt(RegisterName.ChargeState, i % 2 == 1 ? value : 0);
+            block.append(readings.at(T0 + i * 1000L));
+        }
+        int window = value == 0 ? 1 : 2 + 32 - Integer.numberOfLeadingZeros(value) - Integer.numberOfTrailingZeros(value);
+        int timestamps = 4 + 12 + 7; // the first delta of delta is 1000, the others 0
+        int kinds = 1 + 2 * REGISTERS + 8;
+        int expected = timestamps + kinds + 1 + bits + 7 * window;
+        assertEquals("value " + value, (expected + 7) / 8, payloadLength(block));
+        HistoryCursor cursor = cursor(block);
+        for (int i = 0; i <= 8; i++) {
+            assertTrue(cursor.next());
+            assertEquals(i % 2 == 1 ? value : 0, cursor.getInt(RegisterName.ChargeState));
+        }
+    }
+
+    private static int payloadLength(HistoryBlock block) throws IOException {
+        return ByteBuffer.wrap(bytes(block)).getInt(0);
+    }
+
+    static byte[] bytes(HistoryBlock block) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        block.writeTo(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    static HistoryCursor cursor(HistoryBlock block) throws IOException {
+        return new HistoryCursor(Collections.<File>emptyList(), bytes(block), Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package ca.farrelltonsolar.classic;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LogCacheFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsBackEveryColumnType() throws Exception {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("timestamp", Long.MIN_VALUE + 1);
+        values.put("count", -42);
+        values.put("day_logs_Power", new short[]{0, 1, -1, Short.MAX_VALUE, Short.MIN_VALUE});
+        values.put("minute_logs_BatVoltage", new float[]{0f, 13.5f, -1.25f, Float.NaN, Float.MAX_VALUE});
+        values.put("odd", new short[]{7}); // a column whose end is not on an 8 byte boundary
+        values.put("empty_shorts", new short[0]);
+        values.put("empty_floats", new float[0]);
+        values.put("\u00e9t\u00e9", 1L);
+        File file = folder.newFile();
+        LogCacheFile.write(file, values);
+
+        assertTrue(LogCacheFile.isLogCacheFile(file));
+        Map<String, Object> read = LogCacheFile.read(file);
+        assertEquals(new ArrayList<>(values.keySet()), new ArrayList<>(read.keySet()));
+        assertEquals(Long.MIN_VALUE + 1, read.get("timestamp"));
+        assertEquals(-42, read.get("count"));
+        assertArrayEquals((short[]) values.get("day_logs_Power"), (short[]) read.get("day_logs_Power"));
+        assertArrayEquals((float[]) values.get("minute_logs_BatVoltage"), (float[]) read.get("minute_logs_BatVoltage"), 0);
+        assertArrayEquals(new short[]{7}, (short[]) read.get("odd"));
+        assertArrayEquals(new short[0], (short[]) read.get("empty_shorts"));
+        assertArrayEquals(new float[0], (float[]) read.get("empty_floats"), 0);
+        assertEquals(1L, read.get("\u00e9t\u00e9"));
+    }
+
+    @Test
+    public void readsBackNoValues() throws Exception {
+        File file = folder.newFile();
+        LogCacheFile.write(file, new LinkedHashMap<String, Object>());
+        assertTrue(LogCacheFile.read(file).isEmpty());
+    }
+
+    @Test
+    public void replacesTheFileInOneRename() throws Exception {
+        File file = folder.newFile();
+        LogCacheFile.write(file, values(new short[100]));
+        LogCacheFile.write(file, values(new short[]{1, 2}));
+        assertArrayEquals(new short[]{1, 2}, (short[]) LogCacheFile.read(file).get("shorts"));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void rejectsACorruptFile() throws Exception {
+        File file = folder.newFile();
+        LogCacheFile.write(file, values(new short[]{1, 2, 3, 4}));
+        TestFixtures.corrupt(file, -3, 0x55);
+        assertRejected(file, "CRC");
+    }
+
+    @Test
+    public void rejectsAFileCutShort() throws Exception {
+        File file = folder.newFile();
+        LogCacheFile.write(file, values(new short[]{1, 2, 3, 4}));
+        long length = file.length();
+        TestFixtures.truncate(file, length - 8);
+        assertRejected(file, "cut short");
+        TestFixtures.truncate(file, 10);
+        assertRejected(file, "Not a log cache file");
+    }
+
+    @Test
+    public void rejectsAnotherVersion() throws Exception {
+        File file = folder.newFile();
+        LogCacheFile.write(file, values(new short[]{1}));
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.seek(4);
+            out.writeShort(LogCacheFile.VERSION + 1);
+        } finally {
+            out.close();
+        }
+        assertTrue(LogCacheFile.isLogCacheFile(file));
+        assertRejected(file, "version");
+    }
+
+    @Test
+    public void tellsAnOlderFormatApart() throws Exception {
+        assertFalse(LogCacheFile.isLogCacheFile(olderFile()));
+        assertFalse(LogCacheFile.isLogCacheFile(folder.newFile()));
+    }
+
+    @Test
+    public void migratesAnOlderFormatOnce() throws Exception {
+        File file = olderFile();
+        Older older = new Older(values(new short[]{5, 6}));
+        assertArrayEquals(new short[]{5, 6}, (short[]) LogCacheFile.readOrMigrate(file, older).get("shorts"));
+        assertTrue(LogCacheFile.isLogCacheFile(file));
+        assertArrayEquals(new short[]{5, 6}, (short[]) LogCacheFile.readOrMigrate(file, older).get("shorts"));
+        assertEquals(1, older.reads);
+    }
+
+    @Test
+    public void leavesAnOlderFileItCannotRead() throws Exception {
+        File file = olderFile();
+        long length = file.length();
+        try {
+            LogCacheFile.readOrMigrate(file, new Older(null));
+            fail("migrated an unreadable file");
+        } catch (IOException expected) {
+            assertFalse(LogCacheFile.isLogCacheFile(file));
+            assertEquals(length, file.length());
+        }
+    }
+
+    @Test
+    public void doesNotMigrateACorruptFile() throws Exception {
+        File file = folder.newFile();
+        LogCacheFile.write(file, values(new short[]{1, 2, 3, 4}));
+        TestFixtures.corrupt(file, -3, 0x55);
+        Older older = new Older(values(new short[]{9}));
+        try {
+            LogCacheFile.readOrMigrate(file, older);
+            fail("read a corrupt file");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("CRC"));
+        }
+        assertEquals(0, older.reads);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesOtherTypes() throws Exception {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("name", "text");
+        LogCacheFile.write(folder.newFile(), values);
+    }
+
+    /**
+     * Stands in for the Parcel reader, it returns values or fails when there are none.
+     */
+    private static final class Older implements LogCacheFile.OlderFormat {
+        private final Map<String, Object> values;
+        int reads;
+
+        Older(Map<String, Object> values) {
+            this.values = values;
+        }
+
+        @Override
+        public Map<String, Object> read(File file) throws IOException {
+            reads++;
+            if (values == null) {
+                throw new IOException("unreadable");
+            }
+            return values;
+        }
+    }
+
+    private File olderFile() throws IOException {
+        File file = folder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[]{0x10, 0x00, 0x00, 0x00, 0x42, 0x4e, 0x44, 0x4c}); // a marshalled Parcel's start
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static Map<String, Object> values(short[] shorts) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("shorts", shorts);
+        return values;
+    }
+
+    private static void assertRejected(File file, String reason) {
+        try {
+            LogCacheFile.read(file);
+            fail("read a bad file");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains(reason));
+        }
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package ca.farrelltonsolar.classic;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import ca.farrelltonsolar.j2modlite.ModbusException;
+import ca.farrelltonsolar.j2modlite.ModbusIOException;
+import ca.farrelltonsolar.j2modlite.facade.ModbusTCPMaster;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LogDownloaderTest {
+
+    private static final int DAY_LOG_ENTRIES = 100;
+    private static final int NEWEST_ENTRY = 2000; // logged at 22:00
+
+    @Test
+    public void dayLogUpdateMatchesAWholeDownload() throws Exception {
+        LogMaster master = new LogMaster(1);
+        master.newestDay = 1000;
+        LogDownloader downloader = new LogDownloader();
+        downloader.startDayLogs();
+        download(downloader, master);
+        float[][] cached = downloader.dayLogs().clone();
+
+        for (int daysElapsed = 1; daysElapsed <= 98; daysElapsed++) {
+            master.newestDay = 1000 + daysElapsed;
+            master.entriesRead = 0;
+            downloader.startDayLogs(cached, daysElapsed);
+            download(downloader, master);
+            float[][] updated = downloader.dayLogs().clone();
+            assertEquals("days elapsed " + daysElapsed, (daysElapsed + 2) * LogDownloader.DAY_LOG_CATEGORIES.length, master.entriesRead);
+
+            downloader.startDayLogs();
+            download(downloader, master);
+            assertLogs("days elapsed " + daysElapsed, downloader.dayLogs(), updated);
+        }
+    }
+
+    @Test
+    public void dayLogUpdateOfAnotherControllerDownloadsTheWholeLog() throws Exception {
+        LogMaster other = new LogMaster(2);
+        other.newestDay = 1000;
+        LogDownloader downloader = new LogDownloader();
+        downloader.startDayLogs();
+        download(downloader, other);
+        float[][] cached = downloader.dayLogs().clone();
+
+        LogMaster master = new LogMaster(1);
+        master.newestDay = 1005;
+        downloader.startDayLogs(cached, 5);
+        download(downloader, master);
+        float[][] updated = downloader.dayLogs().clone();
+        assertEquals((5 + 2 + DAY_LOG_ENTRIES) * LogDownloader.DAY_LOG_CATEGORIES.length, master.entriesRead);
+
+        downloader.startDayLogs();
+        download(downloader, master);
+        assertLogs("another controller", downloader.dayLogs(), updated);
+    }
+
+    @Test
+    public void dayLogCacheTooOldForAnUpdateDownloadsTheWholeLog() throws Exception {
+        LogMaster master = new LogMaster(1);
+        master.newestDay = 1000;
+        LogDownloader downloader = new LogDownloader();
+        downloader.startDayLogs();
+        download(downloader, master);
+        float[][] cached = downloader.dayLogs().clone();
+
+        master.newestDay = 1099;
+        master.entriesRead = 0;
+        downloader.startDayLogs(cached, 99);
+        download(downloader, master);
+        assertEquals(DAY_LOG_ENTRIES * LogDownloader.DAY_LOG_CATEGORIES.length, master.entriesRead);
+        assertEquals(master.dayEntry(LogDownloader.DAY_LOG_CATEGORIES[0], 0), downloader.dayLogs()[0][0], 0);
+    }
+
+    @Test
+    public void dayLogUpdateCutOffByEOFKeepsNothing() throws Exception {
+        LogMaster master = new LogMaster(1);
+        master.newestDay = 1000;
+        LogDownloader downloader = new LogDownloader();
+        downloader.startDayLogs();
+        download(downloader, master);
+        float[][] cached = downloader.dayLogs().clone();
+
+        master.newestDay = 1050;
+        master.entriesRead = 0;
+        master.eofAfter = 60;
+        downloader.startDayLogs(cached, 50);
+        assertInterrupted(downloader, master);
+        for (float[] log : downloader.dayLogs()) {
+            assertNull(log);
+        }
+    }
+
+    @Test
+    public void minuteLogUpdateMatchesAWholeDownload() throws Exception {
+        LogMaster master = new LogMaster(1);
+        master.newestEntry = NEWEST_ENTRY;
+        LogDownloader downloader = new LogDownloader();
+        downloader.startMinuteLogs();
+        download(downloader, master);
+        Cache cache = new Cache(downloader);
+
+        for (int entries = 0; entries <= 700; entries++) {
+            master.newestEntry = NEWEST_ENTRY + entries;
+            master.categoryEntriesRead = 0;
+            downloader.startMinuteLogs(cache.logs, cache.timestamps, cache.newestTimestamp);
+            download(downloader, master);
+            Cache updated = new Cache(downloader);
+            assertEquals("entries " + entries, entries * LogDownloader.MINUTE_LOG_CATEGORIES.length, master.categoryEntriesRead);
+
+            downloader.startMinuteLogs();
+            download(downloader, master);
+            assertMinuteLogs("entries " + entries, new Cache(downloader), updated);
+        }
+    }
+
+    @Test
+    public void minuteLogUpdateRollsOverMidnight() throws Exception {
+        LogMaster master = new LogMaster(1);
+        master.newestEntry = NEWEST_ENTRY + 60; // 23:48
+        LogDownloader downloader = new LogDownloader();
+        downloader.startMinuteLogs();
+        download(downloader, master);
+        Cache cache = new Cache(downloader);
+        assertEquals(23, cache.newestTimestamp >> 6);
+
+        master.newestEntry = NEWEST_ENTRY + 80; // 00:24
+        master.categoryEntriesRead = 0;
+        downloader.startMinuteLogs(cache.logs, cache.timestamps, cache.newestTimestamp);
+        download(downloader, master);
+        Cache updated = new Cache(downloader);
+        assertEquals(0, updated.newestTimestamp >> 6);
+        assertEquals(20 * LogDownloader.MINUTE_LOG_CATEGORIES.length, master.categoryEntriesRead);
+
+        downloader.startMinuteLogs();
+        download(downloader, master);
+        assertMinuteLogs("midnight", new Cache(downloader), updated);
+    }
+
+    @Test
+    public void minuteLogUpdateWithoutTheCachedTimestampDownloadsTheWholeLog() throws Exception {
+        LogMaster master = new LogMaster(1);
+        master.newestEntry = NEWEST_ENTRY;
+        LogDownloader downloader = new LogDownloader();
+        downloader.startMinuteLogs();
+        download(downloader, master);
+        Cache cache = new Cache(downloader);
+
+        master.newestEntry = NEWEST_ENTRY + 10;
+        master.categoryEntriesRead = 0;
+        int missing = (cache.newestTimestamp & ~0x3f) | 0x3f; // minute 63 is never logged
+        downloader.startMinuteLogs(cache.logs, cache.timestamps, missing);
+        download(downloader, master);
+        Cache updated = new Cache(downloader);
+        assertEquals(updated.timestamps.length * LogDownloader.MINUTE_LOG_CATEGORIES.length, master.categoryEntriesRead);
+
+        downloader.startMinuteLogs();
+        download(downloader, master);
+        assertMinuteLogs("missing", new Cache(downloader), updated);
+    }
+
+    @Test
+    public void minuteLogUpdateWithAShortCategoryDownloadsTheWholeLog() throws Exception {
+        LogMaster master = new LogMaster(1);
+        master.newestEntry = NEWEST_ENTRY;
+        LogDownloader downloader = new LogDownloader();
+        downloader.startMinuteLogs();
+        download(downloader, master);
+        Cache cache = new Cache(downloader);
+
+        master.newestEntry = NEWEST_ENTRY + 10;
+        master.shortCategory = Constants.CLASSIC_ENERGY_HOURLY_CATEGORY;
+        master.shortEntries = 4;
+        downloader.startMinuteLogs(cache.logs, cache.timestamps, cache.newestTimestamp);
+        download(downloader, master);
+        Cache updated = new Cache(downloader);
+        float[] energy = updated.logs[4];
+        assertEquals(updated.timestamps.length, energy.length);
+        assertEquals(0, energy[4], 0);
+
+        downloader.startMinuteLogs();
+        download(downloader, master);
+        assertMinuteLogs("short category", new Cache(downloader), updated);
+    }
+
+    @Test
+    public void minuteLogUpdateCutOffByEOFKeepsNothing() throws Exception {
+        LogMaster master = new LogMaster(1);
+        master.newestEntry = NEWEST_ENTRY;
+        LogDownloader downloader = new LogDownloader();
+        downloader.startMinuteLogs();
+        download(downloader, master);
+        Cache cache = new Cache(downloader);
+
+        master.newestEntry = NEWEST_ENTRY + 300;
+        for (int eofAfter : new int[]{1000, 0}) { // while reading the categories, then the timestamps
+            master.entriesRead = 0;
+            master.categoryEntriesRead = 0;
+            master.eofAfter = eofAfter;
+            downloader.startMinuteLogs(cache.logs, cache.timestamps, cache.newestTimestamp);
+            assertInterrupted(downloader, master);
+            assertTrue("eof after " + eofAfter, eofAfter == 0 || master.categoryEntriesRead > 0);
+            for (float[] log : downloader.minuteLogs()) {
+                assertNull(log);
+            }
+            assertNull(downloader.minuteLogTimestamps());
+        }
+    }
+
+    static void download(LogDownloader downloader, ModbusTCPMaster master) throws ModbusException {
+        int steps = 0;
+        while (!downloader.step(master, 8)) {
+            assertTrue("download never ends", ++steps < 1000);
+        }
+    }
+
+    /**
+     * Downloads until the master reaches EOF, which has to end the update as a failure other than EOF.
+     */
+    static void assertInterrupted(LogDownloader downloader, ModbusTCPMaster master) {
+        try {
+            download(downloader, master);
+            fail("the update ended without its entries");
+        } catch (ModbusException expected) {
+            assertFalse(expected instanceof ModbusIOException && ((ModbusIOException) expected).isEOF());
+        }
+        assertEquals(0, downloader.downloading());
+    }
+
+    static void assertLogs(String message, float[][] expected, float[][] actual) {
+        assertEquals(message, expected.length, actual.length);
+        for (int c = 0; c < expected.length; c++) {
+            assertNotNull(message, actual[c]);
+            assertArrayEquals(message + ", category " + c, expected[c], actual[c], 0);
+        }
+    }
+
+    static void assertMinuteLogs(String message, Cache expected, Cache actual) {
+        assertLogs(message, expected.logs, actual.logs);
+        assertArrayEquals(message, expected.timestamps, actual.timestamps);
+        assertEquals(message, expected.newestTimestamp, actual.newestTimestamp);
+    }
+
+    /**
+     * The minute logs of a download, as the app caches them.
+     */
+    static class Cache {
+        final float[][] logs;
+        final short[] timestamps;
+        final int newestTimestamp;
+
+        Cache(LogDownloader downloader) {
+            logs = downloader.minuteLogs().clone();
+            timestamps = downloader.minuteLogTimestamps();
+            newestTimestamp = downloader.newestMinuteLogTimestamp();
+            assertNotNull(timestamps);
+        }
+    }
+
+    /**
+     * Serves the logs of a Classic that logged a day each day since day 0 and an entry every one or
+     * two minutes since entry 0: entry i of a category is the entry of newestDay - i, or newestEntry - i.
+     * No connection is made.
+     */
+    static class LogMaster extends ModbusTCPMaster {
+        private final int controller;
+        int newestDay;
+        int newestEntry;
+        int entriesRead;
+        int categoryEntriesRead; // minute log entries read, not counting the timestamps
+        int shortCategory = -1; // a minute log category that ends after shortEntries
+        int shortEntries;
+        int eofAfter = -1; // entries read before the connection ends, -1 for never
+
+        LogMaster(int controller) {
+            super(InetAddress.getLoopbackAddress(), 502);
+            this.controller = controller;
+        }
+
+        short dayEntry(int category, int index) {
+            int day = newestDay - index;
+            return (short) ((day * 31 + category * 7919 + controller * 104729) % 30000);
+        }
+
+        /**
+         * Minutes since midnight of day 0 at which an entry was logged, 22:00 for NEWEST_ENTRY.
+         */
+        static int minuteOf(int entry) {
+            return 600 + 2 * entry - entry / 5;
+        }
+
+        short minuteEntry(int category, int index) {
+            int entry = newestEntry - index;
+            if (category == Constants.CLASSIC_TIMESTAMP_HIGH_HOURLY_CATEGORY) {
+                int minute = minuteOf(entry) % 1440;
+                return (short) ((minute / 60) << 6 | minute % 60);
+            }
+            return (short) ((entry * 17 + category * 7919 + controller * 104729) % 30000);
+        }
+
+        @Override
+        public synchronized void readFileTransfer(int device, int[] categories, int[] starts, int[] counts, short[][] dst, int[] read) throws ModbusException {
+            if (eofAfter >= 0 && entriesRead >= eofAfter) {
+                throw new ModbusIOException("End of File", true);
+            }
+            for (int r = 0; r < categories.length; r++) {
+                boolean days = device == Constants.MODBUS_FILE_DAILIES_LOG;
+                int available = days ? newestDay + 1 : categories[r] == shortCategory ? shortEntries : newestEntry + 1;
+                read[r] = Math.max(0, Math.min(counts[r], available - starts[r]));
+                for (int i = 0; i < read[r]; i++) {
+                    dst[r][i] = days ? dayEntry(categories[r], starts[r] + i) : minuteEntry(categories[r], starts[r] + i);
+                }
+                entriesRead += read[r];
+                if (!days && categories[r] != Constants.CLASSIC_TIMESTAMP_HIGH_HOURLY_CATEGORY) {
+                    categoryEntriesRead += read[r];
+                }
+            }
+        }
+    }
+}
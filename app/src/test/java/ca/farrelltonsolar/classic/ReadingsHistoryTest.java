@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package ca.farrelltonsolar.classic;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReadingsHistoryTest {
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    private static final long T0 = 18000 * DAY;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsFlushedAndOpenBlocks() throws Exception {
+        ReadingsHistory history = new ReadingsHistory(folder.getRoot(), 28);
+        append(history, 0, 10);
+        history.flush();
+        append(history, 10, 5);
+        assertSamples(history, 0, 15);
+        assertSamples(new ReadingsHistory(folder.getRoot(), 28), 0, 10);
+    }
+
+    @Test
+    public void tornBlockIsCutOffBeforeTheNextOne() throws Exception {
+        ReadingsHistory history = new ReadingsHistory(folder.getRoot(), 28);
+        append(history, 0, 10);
+        history.flush();
+        long firstBlockEnd = segment(0).length();
+        append(history, 10, 10);
+        history.flush();
+        TestFixtures.truncate(segment(0), segment(0).length() - 5);
+
+        history = new ReadingsHistory(folder.getRoot(), 28);
+        assertSamples(history, 0, 10);
+        append(history, 20, 10);
+        history.flush();
+        HistoryCursor cursor = history.read(T0, T0 + DAY);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(cursor.next());
+            assertEquals(timestamp(i), cursor.timestamp());
+        }
+        for (int i = 20; i < 30; i++) {
+            assertTrue(cursor.next());
+            assertEquals(timestamp(i), cursor.timestamp());
+            assertEquals(i, cursor.getInt(RegisterName.ChargeState));
+        }
+        assertFalse(cursor.next());
+        assertTrue(segment(0).length() > firstBlockEnd);
+    }
+
+    @Test
+    public void corruptBlockEndsOnlyItsSegment() throws Exception {
+        ReadingsHistory history = new ReadingsHistory(folder.getRoot(), 28);
+        append(history, 0, 10);
+        history.flush();
+        append(history, 10, 10);
+        history.flush();
+        int secondDay = (int) (DAY / 1000);
+        append(history, secondDay, 3);
+        history.flush();
+        TestFixtures.corrupt(segment(0), -1, 0x10);
+
+        HistoryCursor cursor = new ReadingsHistory(folder.getRoot(), 28).read(T0, T0 + 2 * DAY);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(cursor.next());
+            assertEquals(timestamp(i), cursor.timestamp());
+        }
+        for (int i = 0; i < 3; i++) {
+            assertTrue(cursor.next());
+            assertEquals(timestamp(secondDay + i), cursor.timestamp());
+        }
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void blocksCloseWhenTheDayChanges() throws Exception {
+        ReadingsHistory history = new ReadingsHistory(folder.getRoot(), 28);
+        int lastOfDay = (int) (DAY / 1000) - 3;
+        append(history, lastOfDay, 6);
+        history.flush();
+        assertTrue(segment(0).exists());
+        assertTrue(segment(1).exists());
+        assertSamples(history, lastOfDay, 6);
+    }
+
+    @Test
+    public void expiredSegmentsAreDeleted() throws Exception {
+        ReadingsHistory history = new ReadingsHistory(folder.getRoot(), 2);
+        for (int day = 0; day < 4; day++) {
+            append(history, (int) (day * DAY / 1000), 1);
+            history.flush();
+        }
+        assertFalse(segment(0).exists());
+        assertFalse(segment(1).exists());
+        assertTrue(segment(2).exists());
+        assertTrue(segment(3).exists());
+    }
+
+    /**
+     * Appends count samples a second apart, the first at T0 plus first seconds, each holding its number.
+     */
+    private static void append(ReadingsHistory history, int first, int count) throws IOException {
+        for (int i = first; i < first + count; i++) {
+            history.append(new TestFixtures.Snapshot().putInt(RegisterName.ChargeState, i)
+                    .putFloat(RegisterName.BatVoltage, 24 + i / 100f).at(timestamp(i)));
+        }
+    }
+
+    private static void assertSamples(ReadingsHistory history, int first, int count) throws IOException {
+        HistoryCursor cursor = history.read(T0, Long.MAX_VALUE);
+        for (int i = first; i < first + count; i++) {
+            assertTrue(cursor.next());
+            assertEquals(timestamp(i), cursor.timestamp());
+            assertEquals(i, cursor.getInt(RegisterName.ChargeState));
+            assertEquals(24 + i / 100f, cursor.getFloat(RegisterName.BatVoltage), 0);
+        }
+        assertFalse(cursor.next());
+        cursor.close();
+    }
+
+    private static long timestamp(int second) {
+        return T0 + second * 1000L;
+    }
+
+    private File segment(int day) {
+        return new File(folder.getRoot(), (T0 / DAY + day) + ".hist");
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package ca.farrelltonsolar.classic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Fixtures shared by the unit tests: files damaged the way a crash or bad storage leaves them and snapshots built a reading at a time.
+ */
+final class TestFixtures {
+
+    private TestFixtures() {
+    }
+
+    /**
+     * Cuts the file to length bytes, as a crash part way through a write does.
+     */
+    static void truncate(File file, long length) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(length);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Flips the bits of mask in the byte at position, counted back from the end when negative.
+     */
+    static void corrupt(File file, long position, int mask) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            long at = position < 0 ? out.length() + position : position;
+            out.seek(at);
+            int value = out.read();
+            out.seek(at);
+            out.write(value ^ mask);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * The readings of a snapshot being built, at() makes a snapshot of them.
+     */
+    static final class Snapshot {
+        private final byte[] kinds = new byte[RegisterName.values().length];
+        private final float[] floats = new float[kinds.length];
+        private final int[] ints = new int[kinds.length];
+
+        Snapshot putFloat(RegisterName name, float value) {
+            kinds[name.ordinal()] = ReadingsSnapshot.FLOAT;
+            floats[name.ordinal()] = value;
+            return this;
+        }
+
+        Snapshot putInt(RegisterName name, int value) {
+            kinds[name.ordinal()] = ReadingsSnapshot.INT;
+            ints[name.ordinal()] = value;
+            return this;
+        }
+
+        Snapshot putBoolean(RegisterName name, boolean value) {
+            kinds[name.ordinal()] = ReadingsSnapshot.BOOLEAN;
+            ints[name.ordinal()] = value ? 1 : 0;
+            return this;
+        }
+
+        ReadingsSnapshot at(long timestamp) {
+            return new ReadingsSnapshot(timestamp, timestamp, kinds.clone(), floats.clone(), ints.clone());
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import ca.farrelltonsolar.classic.Constants;
+import ca.farrelltonsolar.classic.ControllerProbe;
+import ca.farrelltonsolar.classic.LogDownloader;
+import ca.farrelltonsolar.classic.ReadingsBuffer;
+import ca.farrelltonsolar.classic.RegisterPoller;
+import ca.farrelltonsolar.j2modlite.facade.ModbusTCPMaster;
+import ca.farrelltonsolar.j2modlite.io.ModbusMetrics;
+import ca.farrelltonsolar.j2modlite.util.LatencyHistogram;
+
+/**
+ * Polls one controller the way ModbusTask does, through the same probe, poller and log downloader:
+ * on connect the TriStar look up and the boiler plate reads, then every cycle the live registers and,
+ * while due, steps of the day then the minute log download for up to half the period. Cycles are paced
+ * every period ms, or back to back with one log step each for a period of 0. Cycle latencies and the
+ * bytes and memory they cost are only recorded while measuring.
+ */
+class ControllerDriver implements Runnable {
+
+    enum LogMode {NONE, ONCE, EVERY}
+
+    private static final int FAILED = 0;
+    private static final int POLLED = 1;
+    private static final int LOGGED = 2;
+
+    private final String host;
+    private final int port;
+    private final long period;
+    private final LogMode logMode;
+    private final LatencyHistogram cycles;
+    private final LatencyHistogram logCycles;
+    private final ModbusMetrics metrics = new ModbusMetrics();
+    private final ControllerProbe probe = new ControllerProbe();
+    private final RegisterPoller registerPoller = new RegisterPoller();
+    private final LogDownloader logDownloader = new LogDownloader();
+    private final ReadingsBuffer readings = new ReadingsBuffer();
+    private ModbusTCPMaster modbusMaster;
+    private boolean logsDue;
+    private volatile boolean measuring;
+    private volatile boolean stopped;
+    private long failures;
+    private long allocated;
+    private boolean allocationSupported = true;
+
+    ControllerDriver(String host, int port, long period, LogMode logMode, LatencyHistogram cycles, LatencyHistogram logCycles) {
+        this.host = host;
+        this.port = port;
+        this.period = period;
+        this.logMode = logMode;
+        this.cycles = cycles;
+        this.logCycles = logCycles;
+    }
+
+    void startMeasuring() {
+        metrics.reset();
+        measuring = true;
+    }
+
+    void stop() {
+        stopped = true;
+    }
+
+    ModbusMetrics metrics() {
+        return metrics;
+    }
+
+    long failures() {
+        return failures;
+    }
+
+    /**
+     * Bytes allocated by measured cycles, -1 if the JVM does not count allocations for this thread.
+     */
+    long allocated() {
+        return allocationSupported ? allocated : -1;
+    }
+
+    @Override
+    public void run() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long nextRun = now();
+        try {
+            while (!stopped && !Thread.currentThread().isInterrupted()) {
+                if (period > 0) {
+                    long wait = nextRun - now();
+                    if (wait > 0) {
+                        Thread.sleep(wait);
+                    }
+                    nextRun += period;
+                }
+                boolean measured = measuring;
+                long allocatedBefore = allocatedBytes(threads);
+                long start = System.nanoTime();
+                int result = cycle();
+                long micros = (System.nanoTime() - start) / 1000;
+                long allocatedAfter = allocatedBytes(threads);
+                if (result == FAILED) {
+                    failures++;
+                    Thread.sleep(Constants.MODBUS_RECONNECT_MIN_DELAY);
+                } else if (measured && !stopped) {
+                    (result == LOGGED ? logCycles : cycles).record(micros);
+                    if (allocatedBefore < 0 || allocatedAfter < 0) {
+                        allocationSupported = false;
+                    } else {
+                        allocated += allocatedAfter - allocatedBefore;
+                    }
+                }
+                if (period > 0) {
+                    // an overrun skips the missed slots instead of catching up
+                    long now = now();
+                    if (nextRun <= now) {
+                        nextRun += ((now - nextRun) / period + 1) * period;
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (modbusMaster != null) {
+                modbusMaster.disconnect();
+            }
+        }
+    }
+
+    /**
+     * One poll cycle, POLLED, LOGGED if it also advanced the log download, or FAILED.
+     */
+    private int cycle() {
+        try {
+            long deadline = now() + period / 2;
+            if (modbusMaster == null || !modbusMaster.isConnected()) {
+                connect();
+            }
+            registerPoller.poll(modbusMaster, readings, now());
+            readings.publish();
+            if (logDownloader.downloading() == 0) {
+                if (!logsDue) {
+                    return POLLED;
+                }
+                logDownloader.startDayLogs();
+            }
+            do {
+                int log = logDownloader.downloading();
+                if (logDownloader.step(modbusMaster, Constants.MODBUS_LOG_BLOCKS_PER_STEP)) {
+                    if (log == Constants.MODBUS_FILE_DAILIES_LOG) {
+                        logDownloader.startMinuteLogs();
+                    } else {
+                        logsDue = logMode == LogMode.EVERY;
+                        break;
+                    }
+                }
+            } while (now() < deadline);
+            return LOGGED;
+        } catch (Exception ex) {
+            if (modbusMaster != null) {
+                modbusMaster.disconnect();
+            }
+            return FAILED;
+        }
+    }
+
+    private void connect() throws Exception {
+        if (modbusMaster == null) {
+            modbusMaster = new ModbusTCPMaster(host, port);
+            modbusMaster.setConnectTimeout(Constants.MODBUS_CONNECT_TIMEOUT);
+            modbusMaster.setMetrics(metrics);
+        }
+        modbusMaster.connect();
+        if (!probe.lookForTriStar(modbusMaster)) {
+            boolean isClassic = probe.loadBoilerPlateInfo(modbusMaster);
+            registerPoller.setWhizbang(probe.hasWhizbang());
+            logsDue = isClassic && logMode != LogMode.NONE;
+        }
+        registerPoller.reset();
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long allocatedBytes(ThreadMXBean threads) {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Random;
+
+import ca.farrelltonsolar.j2modlite.msg.ReadFileTransferResponse;
+
+/**
+ * Response bodies as a Classic sends them, filled with fixed pseudo random values so every run decodes
+ * the same bytes.
+ */
+final class Frames {
+
+    private Frames() {
+    }
+
+    /**
+     * The data of a function 3 response, the byte count followed by count registers.
+     */
+    static byte[] registersPdu(int count) {
+        Random random = new Random(count);
+        byte[] pdu = new byte[1 + count * 2];
+        pdu[0] = (byte) (count * 2);
+        for (int i = 1; i < pdu.length; i++) {
+            pdu[i] = (byte) random.nextInt(256);
+        }
+        return pdu;
+    }
+
+    /**
+     * The data of a function 104 response carrying count entries of the power day log.
+     */
+    static byte[] logPdu(int count) {
+        Random random = new Random(count);
+        short[] entries = new short[count];
+        for (int i = 0; i < count; i++) {
+            entries[i] = (short) random.nextInt(0x10000);
+        }
+        ReadFileTransferResponse response = new ReadFileTransferResponse();
+        response.setEntries(5, 0, 0, entries, 0, count);
+        return response.getMessage();
+    }
+
+    /**
+     * A socket that is never connected, writes go nowhere and reads see the end of the stream, so the
+     * transport's framing can be measured without the network.
+     */
+    static Socket nullSocket() {
+        return new Socket() {
+            private final OutputStream out = new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            };
+
+            @Override
+            public OutputStream getOutputStream() {
+                return out;
+            }
+
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return new ByteArrayInputStream(new byte[0]);
+            }
+        };
+    }
+}
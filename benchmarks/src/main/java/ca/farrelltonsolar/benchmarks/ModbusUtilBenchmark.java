@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.farrelltonsolar.j2modlite.util.ModbusUtil;
+
+/**
+ * The register conversions of ModbusUtil, used for frame headers and multi register values, and the
+ * hex dump used when debugging.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ModbusUtilBenchmark {
+
+    private byte[] frame;
+    private int value;
+
+    @Setup
+    public void setup() {
+        frame = Frames.registersPdu(44);
+        value = 0x12345678;
+    }
+
+    @Benchmark
+    public short registerToShort() {
+        return ModbusUtil.registerToShort(frame, 1);
+    }
+
+    @Benchmark
+    public int registerToUnsignedShort() {
+        return ModbusUtil.registerToUnsignedShort(frame);
+    }
+
+    @Benchmark
+    public byte[] unsignedShortToRegister() {
+        return ModbusUtil.unsignedShortToRegister(value & 0xffff);
+    }
+
+    @Benchmark
+    public int registersToInt() {
+        return ModbusUtil.registersToInt(frame);
+    }
+
+    @Benchmark
+    public byte[] intToRegisters() {
+        return ModbusUtil.intToRegisters(value);
+    }
+
+    @Benchmark
+    public float registersToFloat() {
+        return ModbusUtil.registersToFloat(frame);
+    }
+
+    @Benchmark
+    public byte[] floatToRegisters() {
+        return ModbusUtil.floatToRegisters(value);
+    }
+
+    @Benchmark
+    public int makeWord() {
+        return ModbusUtil.makeWord(frame[1], frame[2]);
+    }
+
+    @Benchmark
+    public String toHex() {
+        return ModbusUtil.toHex(frame);
+    }
+}
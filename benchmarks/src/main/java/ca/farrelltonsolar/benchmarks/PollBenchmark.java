@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.farrelltonsolar.j2modlite.io.ModbusMetrics;
+import ca.farrelltonsolar.j2modlite.util.LatencyHistogram;
+
+/**
+ * End to end poll benchmark, drives N simulated Classics over loopback through the app's polling path
+ * and reports what it cost.
+ * <pre>
+ * pollbench [--controllers n] [--period ms] [--warmup s] [--duration s] [--logs none|once|every]
+ *           [--virtual] [--whizbang] [--latency ms] [--port first] [--host address]
+ *           [--label text] [--out file]
+ * </pre>
+ * The simulator is started in a JVM of its own on ports from --port (default 5020), unless --host
+ * names one that is already running. Each controller is polled every --period ms (default 1000),
+ * 0 polls back to back for throughput. With --logs once (the default) the logs are downloaded after
+ * each connection as the app does, in steps between the live polls, every starts over once they are in.
+ * Cycles that advanced a download are reported apart as log cycles.
+ * <p/>
+ * After the warm up the run is measured for --duration seconds and one JSON line is appended to
+ * --out (default standard output): polls per second, p50 and p99 cycle latency in ms, bytes per
+ * cycle, the peak thread count and the bytes allocated per cycle, with --label (e.g. the commit)
+ * to tell runs apart.
+ */
+public class PollBenchmark {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SIMULATOR = "ca.farrelltonsolar.simulator.Simulator";
+
+    private int controllers = 10;
+    private long period = 1000;
+    private int warmup = 5;
+    private int duration = 30;
+    private ControllerDriver.LogMode logMode = ControllerDriver.LogMode.ONCE;
+    private boolean virtual;
+    private boolean whizbang;
+    private int latency;
+    private int firstPort = 5020;
+    private String host;
+    private String label = "";
+    private String out = "-";
+
+    public static void main(String[] args) throws Exception {
+        PollBenchmark benchmark = new PollBenchmark();
+        try {
+            benchmark.configure(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println("usage: pollbench [--controllers n] [--period ms] [--warmup s] [--duration s] [--logs none|once|every]"
+                    + " [--virtual] [--whizbang] [--latency ms] [--port first] [--host address] [--label text] [--out file]");
+            System.exit(2);
+        }
+        benchmark.run();
+        System.exit(0);
+    }
+
+    void configure(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--controllers")) {
+                controllers = Integer.parseInt(value(args, ++i, arg));
+            } else if (arg.equals("--period")) {
+                period = Long.parseLong(value(args, ++i, arg));
+            } else if (arg.equals("--warmup")) {
+                warmup = Integer.parseInt(value(args, ++i, arg));
+            } else if (arg.equals("--duration")) {
+                duration = Integer.parseInt(value(args, ++i, arg));
+            } else if (arg.equals("--logs")) {
+                logMode = ControllerDriver.LogMode.valueOf(value(args, ++i, arg).toUpperCase(Locale.ROOT));
+            } else if (arg.equals("--virtual")) {
+                virtual = true;
+            } else if (arg.equals("--whizbang")) {
+                whizbang = true;
+            } else if (arg.equals("--latency")) {
+                latency = Integer.parseInt(value(args, ++i, arg));
+            } else if (arg.equals("--port")) {
+                firstPort = Integer.parseInt(value(args, ++i, arg));
+            } else if (arg.equals("--host")) {
+                host = value(args, ++i, arg);
+            } else if (arg.equals("--label")) {
+                label = value(args, ++i, arg);
+            } else if (arg.equals("--out")) {
+                out = value(args, ++i, arg);
+            } else {
+                throw new IllegalArgumentException("unknown option " + arg);
+            }
+        }
+        if (controllers <= 0 || period < 0 || warmup < 0 || duration <= 0) {
+            throw new IllegalArgumentException("--controllers and --duration must be positive, --period and --warmup not negative");
+        }
+        if (virtual) {
+            try {
+                Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            } catch (NoSuchMethodException ex) {
+                throw new IllegalArgumentException("--virtual needs Java 21 or later");
+            }
+        }
+    }
+
+    void run() throws Exception {
+        ExecutorService executor = newDriverExecutor();
+        Process simulator = null;
+        try {
+            if (host == null) {
+                simulator = startSimulator();
+            }
+            measure(executor);
+        } finally {
+            executor.shutdownNow();
+            if (simulator != null) {
+                simulator.destroy();
+            }
+        }
+    }
+
+    private void measure(ExecutorService executor) throws Exception {
+        String target = host == null ? "127.0.0.1" : host;
+        LatencyHistogram cycles = new LatencyHistogram();
+        LatencyHistogram logCycles = new LatencyHistogram();
+        List<ControllerDriver> drivers = new ArrayList<>();
+        for (int i = 0; i < controllers; i++) {
+            drivers.add(new ControllerDriver(target, firstPort + i, period, logMode, cycles, logCycles));
+        }
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        int baseThreads = threads.getThreadCount();
+        for (ControllerDriver driver : drivers) {
+            executor.execute(driver);
+        }
+        Thread.sleep(warmup * 1000L);
+
+        long gcCount = gcCount();
+        long gcTime = gcTime();
+        threads.resetPeakThreadCount();
+        for (ControllerDriver driver : drivers) {
+            driver.startMeasuring();
+        }
+        long start = System.nanoTime();
+        Thread.sleep(duration * 1000L);
+        for (ControllerDriver driver : drivers) {
+            driver.stop();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        int peakThreads = threads.getPeakThreadCount();
+        gcCount = gcCount() - gcCount;
+        gcTime = gcTime() - gcTime;
+        executor.shutdownNow();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+
+        report(drivers, cycles, logCycles, seconds, peakThreads - baseThreads, gcCount, gcTime);
+    }
+
+    private void report(List<ControllerDriver> drivers, LatencyHistogram cycles, LatencyHistogram logCycles, double seconds,
+                        int threadsUsed, long gcCount, long gcTime) throws IOException {
+        long bytesIn = 0;
+        long bytesOut = 0;
+        long transactions = 0;
+        long reconnects = 0;
+        long failures = 0;
+        long allocated = 0;
+        for (ControllerDriver driver : drivers) {
+            ModbusMetrics metrics = driver.metrics();
+            bytesIn += metrics.getBytesIn();
+            bytesOut += metrics.getBytesOut();
+            transactions += metrics.getTransactions();
+            reconnects += metrics.getReconnects();
+            failures += driver.failures();
+            allocated = allocated < 0 || driver.allocated() < 0 ? -1 : allocated + driver.allocated();
+        }
+        long count = cycles.getTotalCount() + logCycles.getTotalCount();
+        double perCycle = count == 0 ? 0 : 1.0 / count;
+        StringBuilder json = new StringBuilder();
+        json.append('{');
+        field(json, "label", quote(label));
+        field(json, "timestamp", Long.toString(System.currentTimeMillis()));
+        field(json, "java", quote(System.getProperty("java.version")));
+        field(json, "controllers", Integer.toString(controllers));
+        field(json, "periodMs", Long.toString(period));
+        field(json, "logs", quote(logMode.name().toLowerCase(Locale.ROOT)));
+        field(json, "threads", quote(virtual ? "virtual" : "platform"));
+        field(json, "seconds", format(seconds));
+        field(json, "cycles", Long.toString(count));
+        field(json, "pollsPerSecond", format(count / seconds));
+        field(json, "cycleP50Ms", millis(cycles.getValueAtPercentile(50)));
+        field(json, "cycleP99Ms", millis(cycles.getValueAtPercentile(99)));
+        field(json, "cycleMaxMs", millis(cycles.getMaxValue()));
+        field(json, "logCycles", Long.toString(logCycles.getTotalCount()));
+        field(json, "logCycleP50Ms", millis(logCycles.getValueAtPercentile(50)));
+        field(json, "logCycleP99Ms", millis(logCycles.getValueAtPercentile(99)));
+        field(json, "bytesInPerCycle", format(bytesIn * perCycle));
+        field(json, "bytesOutPerCycle", format(bytesOut * perCycle));
+        field(json, "transactions", Long.toString(transactions));
+        field(json, "failures", Long.toString(failures));
+        field(json, "reconnects", Long.toString(reconnects));
+        field(json, "threadsUsed", Integer.toString(threadsUsed));
+        field(json, "allocatedBytesPerCycle", allocated < 0 ? "null" : format(allocated * perCycle));
+        field(json, "allocationMBPerSecond", allocated < 0 ? "null" : format(allocated / seconds / (1024 * 1024)));
+        field(json, "gcCount", Long.toString(gcCount));
+        field(json, "gcTimeMs", Long.toString(gcTime));
+        json.setLength(json.length() - 1);
+        json.append("}\n");
+
+        Writer writer = out.equals("-") ? new OutputStreamWriter(System.out, UTF8) : new OutputStreamWriter(new FileOutputStream(new File(out), true), UTF8);
+        try {
+            writer.write(json.toString());
+        } finally {
+            if (out.equals("-")) {
+                writer.flush();
+            } else {
+                writer.close();
+            }
+        }
+    }
+
+    /**
+     * Starts the simulator with this JVM's class path and waits for it to listen.
+     */
+    private Process startSimulator() throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(SIMULATOR);
+        command.add("--classic");
+        command.add(Integer.toString(controllers));
+        command.add("--port");
+        command.add(Integer.toString(firstPort));
+        command.add("--seed");
+        command.add("1");
+        command.add("--latency");
+        command.add(Integer.toString(latency));
+        if (whizbang) {
+            command.add("--whizbang");
+        }
+        final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), UTF8));
+        String line;
+        String last = "";
+        while ((line = reader.readLine()) != null && !line.startsWith("faults ")) {
+            last = line; // device and port lines, or why it failed
+        }
+        if (line == null) {
+            throw new IOException(String.format("simulator failed to start, exit code %d: %s", waitFor(process), last));
+        }
+        Thread drain = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (reader.readLine() != null) {
+                        // keep the pipe from filling up
+                    }
+                } catch (IOException ex) {
+                    // simulator stopped
+                }
+            }
+        }, "SimulatorOutput");
+        drain.setDaemon(true);
+        drain.start();
+        return process;
+    }
+
+    private ExecutorService newDriverExecutor() {
+        if (virtual) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (Exception ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+        return Executors.newFixedThreadPool(controllers, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "ModbusPoll-" + count.incrementAndGet());
+            }
+        });
+    }
+
+    private static int waitFor(Process process) {
+        try {
+            return process.waitFor();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    private static void field(StringBuilder json, String name, String value) {
+        json.append('"').append(name).append("\":").append(value).append(',');
+    }
+
+    private static String millis(long micros) {
+        return format(micros / 1000.0);
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static String quote(String value) {
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+
+    private static String value(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException(option + " needs a value");
+        }
+        return args[index];
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.farrelltonsolar.j2modlite.ModbusIOException;
+import ca.farrelltonsolar.j2modlite.io.ModbusTCPTransport;
+import ca.farrelltonsolar.j2modlite.msg.ReadFileTransferRequest;
+import ca.farrelltonsolar.j2modlite.msg.ReadMultipleRegistersRequest;
+
+/**
+ * Encoding of the requests a poll cycle sends, the PDU alone and framed with the MBAP header by
+ * ModbusTCPTransport.writeMessage into a socket that discards it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class RequestEncodeBenchmark {
+
+    private final ReadFileTransferRequest logRequest = new ReadFileTransferRequest(5, 0, 32);
+    private final ReadMultipleRegistersRequest registerRequest = new ReadMultipleRegistersRequest(4100, 44);
+    private ModbusTCPTransport transport;
+
+    @Setup
+    public void setup() {
+        transport = new ModbusTCPTransport(Frames.nullSocket());
+        logRequest.setTransactionID(1);
+        registerRequest.setTransactionID(2);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        transport.close();
+    }
+
+    @Benchmark
+    public byte[] logRequestMessage() {
+        return logRequest.getMessage();
+    }
+
+    @Benchmark
+    public byte[] registerRequestMessage() {
+        return registerRequest.getMessage();
+    }
+
+    @Benchmark
+    public void writeLogRequest() throws ModbusIOException {
+        transport.writeMessage(logRequest);
+    }
+
+    @Benchmark
+    public void writeRegisterRequest() throws ModbusIOException {
+        transport.writeMessage(registerRequest);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.farrelltonsolar.j2modlite.Modbus;
+import ca.farrelltonsolar.j2modlite.io.BytesInputStream;
+import ca.farrelltonsolar.j2modlite.msg.ReadFileTransferResponse;
+import ca.farrelltonsolar.j2modlite.msg.ReadMultipleRegistersResponse;
+
+/**
+ * Decoding of the two responses a poll cycle is made of: a block of holding registers (function 3)
+ * and a block of log entries (function 104), each into new Register objects and straight into the
+ * caller's array.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ResponseDecodeBenchmark {
+
+    /**
+     * Registers per read, 44 is the live block at 4100, 125 the most one read may ask for.
+     */
+    @Param({"44", "125"})
+    public int registers;
+
+    private byte[] registerFrame;
+    private byte[] logFrame;
+    private final BytesInputStream input = new BytesInputStream(Modbus.MAX_MESSAGE_LENGTH);
+    private final ReadMultipleRegistersResponse registerResponse = new ReadMultipleRegistersResponse();
+    private final ReadMultipleRegistersResponse registerInto = new ReadMultipleRegistersResponse();
+    private final ReadFileTransferResponse logResponse = new ReadFileTransferResponse();
+    private final ReadFileTransferResponse logInto = new ReadFileTransferResponse();
+    private short[] registerValues;
+    private final short[] logValues = new short[Modbus.LOG_FILE_BLOCK_ENTRIES];
+
+    @Setup
+    public void setup() {
+        registerFrame = Frames.registersPdu(registers);
+        logFrame = Frames.logPdu(Modbus.LOG_FILE_BLOCK_ENTRIES);
+        registerValues = new short[registers];
+        registerInto.setDestination(registerValues, 0);
+        logInto.setDestination(logValues, 0, logValues.length);
+    }
+
+    @Benchmark
+    public ReadMultipleRegistersResponse readRegisters() throws IOException {
+        input.reset(registerFrame);
+        registerResponse.readData(input);
+        return registerResponse;
+    }
+
+    @Benchmark
+    public short[] readRegistersInto() throws IOException {
+        input.reset(registerFrame);
+        registerInto.readData(input);
+        return registerValues;
+    }
+
+    @Benchmark
+    public ReadFileTransferResponse readLogBlock() throws IOException {
+        input.reset(logFrame);
+        logResponse.readData(input);
+        return logResponse;
+    }
+
+    @Benchmark
+    public short[] readLogBlockInto() throws IOException {
+        input.reset(logFrame);
+        logInto.readData(input);
+        return logValues;
+    }
+}
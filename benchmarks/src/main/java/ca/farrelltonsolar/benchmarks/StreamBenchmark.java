@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.farrelltonsolar.j2modlite.Modbus;
+import ca.farrelltonsolar.j2modlite.io.BytesInputStream;
+import ca.farrelltonsolar.j2modlite.io.FastByteArrayInputStream;
+
+/**
+ * The byte streams frames are decoded from, reading a full size frame word by word through
+ * BytesInputStream's DataInput and in one bulk read from FastByteArrayInputStream.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class StreamBenchmark {
+
+    private byte[] frame;
+    private BytesInputStream bytesInput;
+    private FastByteArrayInputStream fastInput;
+    private final byte[] copy = new byte[Modbus.MAX_MESSAGE_LENGTH];
+
+    @Setup
+    public void setup() {
+        frame = Frames.registersPdu((Modbus.MAX_MESSAGE_LENGTH - 1) / 2);
+        bytesInput = new BytesInputStream(frame);
+        fastInput = new FastByteArrayInputStream(frame);
+    }
+
+    @Benchmark
+    public int readUnsignedShorts() throws IOException {
+        bytesInput.reset(frame);
+        int sum = bytesInput.readUnsignedByte();
+        int words = (frame.length - 1) / 2;
+        for (int i = 0; i < words; i++) {
+            sum += bytesInput.readUnsignedShort();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int readShorts() throws IOException {
+        bytesInput.reset(frame);
+        int sum = bytesInput.readUnsignedByte();
+        int words = (frame.length - 1) / 2;
+        for (int i = 0; i < words; i++) {
+            sum += bytesInput.readShort();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int readBytes() throws IOException {
+        fastInput.reset();
+        return fastInput.read(copy, 0, frame.length);
+    }
+
+    @Benchmark
+    public byte[] toByteArray() {
+        fastInput.reset();
+        return fastInput.toByteArray();
+    }
+}
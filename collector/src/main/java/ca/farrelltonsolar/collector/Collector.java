@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.collector;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.farrelltonsolar.j2modlite.Modbus;
+import ca.farrelltonsolar.j2modlite.util.ModbusLog;
+
+/**
+ * Headless collector, polls any number of Classic charge controllers from a plain JVM and writes their
+ * readings to CSV and/or JSON lines.
+ * <pre>
+ * collector [--period ms] [--csv file] [--json file] [--debug] host[:port] ...
+ * </pre>
+ * A file of "-" is standard output, with no sink given readings go to standard output as CSV.
+ * Runs until killed, the sinks are flushed and closed on shutdown.
+ */
+public class Collector {
+
+    private static final long DEFAULT_PERIOD = 1000;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final List<ControllerPoller> pollers = new ArrayList<>();
+    private final List<ReadingsSink> sinks = new ArrayList<>();
+    private ExecutorService executor;
+
+    public static void main(String[] args) throws Exception {
+        final Collector collector = new Collector();
+        try {
+            collector.configure(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println("usage: collector [--period ms] [--csv file] [--json file] [--debug] host[:port] ...");
+            System.exit(2);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                collector.stop();
+            }
+        }, "CollectorShutdown"));
+        collector.start();
+        collector.awaitTermination();
+    }
+
+    void configure(String[] args) throws IOException {
+        long period = DEFAULT_PERIOD;
+        List<String> controllers = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--period")) {
+                period = Long.parseLong(value(args, ++i, arg));
+                if (period <= 0) {
+                    throw new IllegalArgumentException("--period must be positive");
+                }
+            } else if (arg.equals("--csv")) {
+                String file = value(args, ++i, arg);
+                sinks.add(new CsvSink(open(file), isEmpty(file)));
+            } else if (arg.equals("--json")) {
+                sinks.add(new JsonLinesSink(open(value(args, ++i, arg))));
+            } else if (arg.equals("--debug")) {
+                ModbusLog.setDebug(true);
+            } else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("unknown option " + arg);
+            } else {
+                controllers.add(arg);
+            }
+        }
+        if (controllers.isEmpty()) {
+            throw new IllegalArgumentException("no controllers given");
+        }
+        if (sinks.isEmpty()) {
+            sinks.add(new CsvSink(open("-"), true));
+        }
+        for (String controller : controllers) {
+            int colon = controller.lastIndexOf(':');
+            String host = colon < 0 ? controller : controller.substring(0, colon);
+            int port = colon < 0 ? Modbus.DEFAULT_PORT : Integer.parseInt(controller.substring(colon + 1));
+            pollers.add(new ControllerPoller(host, port, period, sinks));
+        }
+    }
+
+    void start() {
+        executor = newPollExecutor(pollers.size());
+        for (ControllerPoller poller : pollers) {
+            executor.execute(poller);
+        }
+    }
+
+    void awaitTermination() throws InterruptedException {
+        while (!executor.awaitTermination(1, TimeUnit.HOURS)) {
+            // runs until stopped
+        }
+    }
+
+    void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(Modbus.DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (ControllerPoller poller : pollers) {
+            ModbusLog.d(getClass().getName(), String.format("Modbus metrics for %s: %s", poller.name(), poller.metrics()));
+        }
+        for (ReadingsSink sink : sinks) {
+            try {
+                sink.close();
+            } catch (IOException ex) {
+                ModbusLog.w(getClass().getName(), "Failed to close sink ex: " + ex);
+            }
+        }
+    }
+
+    /**
+     * A platform thread per controller. Not virtual threads: j2modlite blocks on the socket while
+     * holding monitors, which pins a virtual thread's carrier for a whole read or connect timeout.
+     */
+    static ExecutorService newPollExecutor(int controllers) {
+        return Executors.newFixedThreadPool(Math.max(1, controllers), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "ModbusPoll-" + count.incrementAndGet());
+            }
+        });
+    }
+
+    private static String value(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException(option + " needs a value");
+        }
+        return args[index];
+    }
+
+    private static boolean isEmpty(String file) {
+        return file.equals("-") || new File(file).length() == 0;
+    }
+
+    private static Writer open(String file) throws IOException {
+        if (file.equals("-")) {
+            return new BufferedWriter(new OutputStreamWriter(System.out, UTF8));
+        }
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), UTF8));
+    }
+}
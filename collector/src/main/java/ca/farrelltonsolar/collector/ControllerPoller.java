@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.collector;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import ca.farrelltonsolar.classic.Constants;
+import ca.farrelltonsolar.classic.ReadingsBuffer;
+import ca.farrelltonsolar.classic.ReadingsSnapshot;
+import ca.farrelltonsolar.classic.ReconnectBackoff;
+import ca.farrelltonsolar.classic.RegisterPoller;
+import ca.farrelltonsolar.j2modlite.facade.ModbusTCPMaster;
+import ca.farrelltonsolar.j2modlite.io.ModbusMetrics;
+import ca.farrelltonsolar.j2modlite.io.TimeoutEstimator;
+import ca.farrelltonsolar.j2modlite.util.ModbusLog;
+
+/**
+ * Polls one Classic every period ms until interrupted and hands each poll's readings to the sinks.
+ * The loop blocks on the controller, so every controller gets a thread of its own. A poll that overruns its slot skips the missed slots instead of catching
+ * up, and a controller that stops answering is retried with the same back off as the app uses.
+ */
+class ControllerPoller implements Runnable {
+
+    private static final Random random = new Random();
+
+    private final String host;
+    private final int port;
+    private final long period;
+    private final List<ReadingsSink> sinks;
+    private final String name;
+    private final RegisterPoller registerPoller = new RegisterPoller();
+    private final ReadingsBuffer readings = new ReadingsBuffer();
+    private final ModbusMetrics metrics = new ModbusMetrics();
+    private final TimeoutEstimator timeoutEstimator = new TimeoutEstimator();
+    private final ReconnectBackoff backoff = new ReconnectBackoff();
+    private ModbusTCPMaster modbusMaster;
+
+    ControllerPoller(String host, int port, long period, List<ReadingsSink> sinks) {
+        this.host = host;
+        this.port = port;
+        this.period = period;
+        this.sinks = sinks;
+        name = host + ":" + port;
+        timeoutEstimator.setMinTimeout(Constants.MODBUS_MIN_TIMEOUT);
+        timeoutEstimator.setMaxTimeout(Constants.MODBUS_MAX_TIMEOUT);
+    }
+
+    ModbusMetrics metrics() {
+        return metrics;
+    }
+
+    String name() {
+        return name;
+    }
+
+    @Override
+    public void run() {
+        long nextRun = now() + (long) (nextRandom() * period);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long wait = nextRun - now();
+                if (wait > 0) {
+                    Thread.sleep(wait);
+                }
+                long delay = poll() ? 0 : backoff.fail();
+                nextRun += Math.max(period, delay);
+                long now = now();
+                if (nextRun <= now) {
+                    nextRun += ((now - nextRun) / period + 1) * period;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            disconnect();
+        }
+    }
+
+    private boolean poll() {
+        try {
+            if (modbusMaster == null || !modbusMaster.isConnected()) {
+                connect();
+            }
+            registerPoller.poll(modbusMaster, readings, now());
+            ReadingsSnapshot snapshot = readings.publish();
+            backoff.reset();
+            for (ReadingsSink sink : sinks) {
+                try {
+                    sink.write(name, snapshot);
+                } catch (IOException ex) {
+                    ModbusLog.w(getClass().getName(), String.format("Failed to write readings of %s ex: %s", name, ex));
+                }
+            }
+            return true;
+        } catch (Exception ex) {
+            ModbusLog.w(getClass().getName(), String.format("Poll of %s failed ex: %s", name, ex));
+            disconnect();
+            return false;
+        }
+    }
+
+    private void connect() throws Exception {
+        if (modbusMaster == null) {
+            modbusMaster = new ModbusTCPMaster(host, port);
+            modbusMaster.setConnectTimeout(Constants.MODBUS_CONNECT_TIMEOUT);
+            modbusMaster.setMetrics(metrics);
+            modbusMaster.setTimeoutEstimator(timeoutEstimator);
+        }
+        modbusMaster.connect();
+        registerPoller.detectWhizbang(modbusMaster);
+        registerPoller.reset();
+        ModbusLog.d(getClass().getName(), String.format("Connected to %s, WhizBang Jr. %s", name, registerPoller.hasWhizbang() ? "found" : "not found"));
+    }
+
+    private void disconnect() {
+        if (modbusMaster != null) {
+            modbusMaster.disconnect();
+        }
+    }
+
+    private static double nextRandom() {
+        synchronized (random) {
+            return random.nextDouble();
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.collector;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import ca.farrelltonsolar.classic.ReadingsSnapshot;
+import ca.farrelltonsolar.classic.RegisterName;
+
+/**
+ * Writes one comma separated line per poll, a column for every RegisterName in declaration order.
+ * Readings the controller did not report are left empty.
+ */
+public class CsvSink implements ReadingsSink {
+
+    private final Writer out;
+    private final StringBuilder line = new StringBuilder(256);
+
+    /**
+     * @param header false when appending to a file that already starts with the header line.
+     */
+    public CsvSink(Writer out, boolean header) throws IOException {
+        this.out = out;
+        if (!header) {
+            return;
+        }
+        line.append("timestamp,controller");
+        for (RegisterName name : RegisterName.values()) {
+            line.append(',').append(name.name());
+        }
+        line.append('\n');
+        out.write(line.toString());
+        out.flush();
+    }
+
+    @Override
+    public synchronized void write(String controller, ReadingsSnapshot readings) throws IOException {
+        line.setLength(0);
+        line.append(readings.timestamp()).append(',').append(controller);
+        for (RegisterName name : RegisterName.values()) {
+            line.append(',');
+            switch (readings.kind(name)) {
+                case ReadingsSnapshot.FLOAT:
+                    line.append(readings.getFloat(name));
+                    break;
+                case ReadingsSnapshot.INT:
+                    line.append(readings.getInt(name));
+                    break;
+                case ReadingsSnapshot.BOOLEAN:
+                    line.append(readings.getBoolean(name) ? 1 : 0);
+                    break;
+            }
+        }
+        line.append('\n');
+        out.write(line.toString());
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.collector;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import ca.farrelltonsolar.classic.ReadingsSnapshot;
+import ca.farrelltonsolar.classic.RegisterName;
+
+/**
+ * Writes one JSON object per poll and line, with the readings keyed by RegisterName the way the app
+ * publishes them over MQTT, so the same consumers can read either.
+ */
+public class JsonLinesSink implements ReadingsSink {
+
+    private final Writer out;
+    private final StringBuilder line = new StringBuilder(512);
+
+    public JsonLinesSink(Writer out) {
+        this.out = out;
+    }
+
+    @Override
+    public synchronized void write(String controller, ReadingsSnapshot readings) throws IOException {
+        line.setLength(0);
+        line.append("{\"timestamp\":").append(readings.timestamp());
+        line.append(",\"controller\":\"");
+        escape(controller);
+        line.append("\",\"readings\":{");
+        boolean first = true;
+        for (RegisterName name : RegisterName.values()) {
+            byte kind = readings.kind(name);
+            if (kind == ReadingsSnapshot.ABSENT) {
+                continue;
+            }
+            if (!first) {
+                line.append(',');
+            }
+            first = false;
+            line.append('"').append(name.name()).append("\":");
+            switch (kind) {
+                case ReadingsSnapshot.FLOAT:
+                    float value = readings.getFloat(name);
+                    if (Float.isNaN(value) || Float.isInfinite(value)) {
+                        line.append("null");
+                    } else {
+                        line.append(value);
+                    }
+                    break;
+                case ReadingsSnapshot.INT:
+                    line.append(readings.getInt(name));
+                    break;
+                default:
+                    line.append(readings.getBoolean(name));
+                    break;
+            }
+        }
+        line.append("}}\n");
+        out.write(line.toString());
+        out.flush();
+    }
+
+    private void escape(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < 0x20) {
+                line.append(String.format("\\u%04x", (int) c));
+            } else {
+                line.append(c);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
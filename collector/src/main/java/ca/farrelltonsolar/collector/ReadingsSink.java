@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.collector;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import ca.farrelltonsolar.classic.ReadingsSnapshot;
+
+/**
+ * Where the collector writes the readings of every poll.
+ * All controllers share the sinks, so write is called from several poll threads at once.
+ */
+public interface ReadingsSink extends Closeable {
+
+    void write(String controller, ReadingsSnapshot readings) throws IOException;
+}
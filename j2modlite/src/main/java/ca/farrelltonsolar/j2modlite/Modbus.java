@@ -47,7 +47,7 @@ public class Modbus {
    * JVM flag for debug mode. Can be set passing the system property
    * ca.farrelltonsolar.j2mod.debug=false|true (-D flag to the jvm).
    */
-  public static boolean debug = true;
+  public static boolean debug = Boolean.getBoolean("ca.farrelltonsolar.j2mod.debug");
   
   /**
    * Defines the class 1 function code
@@ -319,6 +319,24 @@ public class Modbus {
    */
   public static final int DEFAULT_TIMEOUT = 3000;
 
+  /**
+   * Defines the shortest response timeout an adaptive
+   * connection uses in milliseconds (=<tt>200</tt>).
+   */
+  public static final int DEFAULT_MIN_TIMEOUT = 200;
+
+  /**
+   * Defines the longest response timeout an adaptive
+   * connection uses in milliseconds, retries included (=<tt>10000</tt>).
+   */
+  public static final int DEFAULT_MAX_TIMEOUT = 10000;
+
+  /**
+   * Defines the default timeout for establishing a TCP
+   * connection in milliseconds (=<tt>3000</tt>).
+   */
+  public static final int DEFAULT_CONNECT_TIMEOUT = 3000;
+
   /**
    * Defines the default reconnecting setting for
    * transactions (=<tt>false</tt>).
@@ -331,6 +349,18 @@ public class Modbus {
    */
   public static final int DEFAULT_RETRIES = 3;
 
+  /**
+   * Defines the default number of requests a pipelined
+   * transaction keeps in flight (=<tt>4</tt>).
+   */
+  public static final int DEFAULT_PIPELINE_DEPTH = 4;
+
+  /**
+   * Defines the number of log entries returned by one read
+   * log file request (=<tt>32</tt>, the 64 byte data length).
+   */
+  public static final int LOG_FILE_BLOCK_ENTRIES = 32;
+
   /**
    * Defines the default number of msec to delay before transmission
    * (=<tt>50</tt>).
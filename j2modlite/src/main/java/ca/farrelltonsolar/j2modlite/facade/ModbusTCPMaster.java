@@ -37,8 +37,15 @@ package ca.farrelltonsolar.j2modlite.facade;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 
+import ca.farrelltonsolar.j2modlite.Modbus;
 import ca.farrelltonsolar.j2modlite.ModbusException;
+import ca.farrelltonsolar.j2modlite.ModbusSlaveException;
+import ca.farrelltonsolar.j2modlite.io.FrameTracer;
+import ca.farrelltonsolar.j2modlite.io.ModbusFuture;
+import ca.farrelltonsolar.j2modlite.io.ModbusMetrics;
+import ca.farrelltonsolar.j2modlite.io.ModbusTCPPipelinedTransaction;
 import ca.farrelltonsolar.j2modlite.io.ModbusTCPTransaction;
+import ca.farrelltonsolar.j2modlite.io.TimeoutEstimator;
 import ca.farrelltonsolar.j2modlite.msg.ModbusResponse;
 import ca.farrelltonsolar.j2modlite.msg.ReadFileTransferRequest;
 import ca.farrelltonsolar.j2modlite.msg.ReadFileTransferResponse;
@@ -58,8 +65,17 @@ public class ModbusTCPMaster {
     private TCPMasterConnection m_Connection;
     private InetAddress m_SlaveAddress;
     private ModbusTCPTransaction m_Transaction;
+    private ModbusTCPPipelinedTransaction m_Pipeline;
+    private int m_PipelineDepth = Modbus.DEFAULT_PIPELINE_DEPTH;
     private ReadMultipleRegistersRequest m_ReadMultipleRegistersRequest;
+    private ReadMultipleRegistersResponse m_ReadIntoResponse;
+    private ReadMultipleRegistersRequest[] m_BatchRequests = new ReadMultipleRegistersRequest[0];
+    private ReadMultipleRegistersResponse[] m_BatchResponses = new ReadMultipleRegistersResponse[0];
+    private ModbusFuture[] m_BatchFutures = new ModbusFuture[0];
     private ReadFileTransferRequest m_FileTransferRequest;
+    private ReadFileTransferRequest[] m_FileRequests = new ReadFileTransferRequest[0];
+    private ReadFileTransferResponse[] m_FileResponses = new ReadFileTransferResponse[0];
+    private ModbusFuture[] m_FileFutures = new ModbusFuture[0];
     private boolean m_Reconnecting = false;
 
     /**
@@ -75,6 +91,7 @@ public class ModbusTCPMaster {
             m_Connection = new TCPMasterConnection(m_SlaveAddress);
             m_FileTransferRequest = new ReadFileTransferRequest();
             m_ReadMultipleRegistersRequest = new ReadMultipleRegistersRequest();
+            m_ReadIntoResponse = new ReadMultipleRegistersResponse();
 
         } catch (UnknownHostException e) {
             throw new RuntimeException(e.getMessage());
@@ -94,6 +111,90 @@ public class ModbusTCPMaster {
         m_Connection.setPort(port);
     }//constructor
 
+    /**
+     * Constructs a new master facade instance for communication
+     * with a given, already resolved, slave address.
+     *
+     * @param addr the address of the slave to communicate with.
+     * @param port the port the slave is listening to.
+     */
+    public ModbusTCPMaster(InetAddress addr, int port) {
+        m_SlaveAddress = addr;
+        m_Connection = new TCPMasterConnection(m_SlaveAddress);
+        m_Connection.setPort(port);
+        m_FileTransferRequest = new ReadFileTransferRequest();
+        m_ReadMultipleRegistersRequest = new ReadMultipleRegistersRequest();
+        m_ReadIntoResponse = new ReadMultipleRegistersResponse();
+    }//constructor
+
+    /**
+     * Returns the address of the slave this master talks to.
+     *
+     * @return the slave address.
+     */
+    public InetAddress getSlaveAddress() {
+        return m_SlaveAddress;
+    }//getSlaveAddress
+
+    /**
+     * Sets the maximum time {@link #connect()} waits for the slave to
+     * accept the connection.
+     *
+     * @param timeout the connect timeout in milliseconds.
+     */
+    public void setConnectTimeout(int timeout) {
+        m_Connection.setConnectTimeout(timeout);
+    }//setConnectTimeout
+
+    /**
+     * Returns the latency histograms and counters of the connection
+     * to the slave.
+     *
+     * @return the connection's metrics.
+     */
+    public ModbusMetrics getMetrics() {
+        return m_Connection.getMetrics();
+    }//getMetrics
+
+    /**
+     * Sets the metrics the connection records into, so that figures
+     * can be carried over from an earlier master for the same slave.
+     *
+     * @param metrics the metrics to record into.
+     */
+    public void setMetrics(ModbusMetrics metrics) {
+        m_Connection.setMetrics(metrics);
+    }//setMetrics
+
+    /**
+     * Returns the estimator response timeouts to the slave are derived from.
+     *
+     * @return the connection's timeout estimator, null if the timeout is fixed.
+     */
+    public TimeoutEstimator getTimeoutEstimator() {
+        return m_Connection.getTimeoutEstimator();
+    }//getTimeoutEstimator
+
+    /**
+     * Sets the estimator response timeouts are derived from, so that round
+     * trip times can be carried over from an earlier master for the same
+     * slave, or null to always use the fixed timeout.
+     *
+     * @param estimator the estimator to use.
+     */
+    public void setTimeoutEstimator(TimeoutEstimator estimator) {
+        m_Connection.setTimeoutEstimator(estimator);
+    }//setTimeoutEstimator
+
+    /**
+     * Sets the tracer raw frames to and from the slave are passed to.
+     *
+     * @param tracer the tracer, or null to turn tracing off.
+     */
+    public void setTracer(FrameTracer tracer) {
+        m_Connection.setTracer(tracer);
+    }//setTracer
+
     public boolean isConnected() {
         return m_Connection.isConnected();
     }
@@ -109,6 +210,8 @@ public class ModbusTCPMaster {
             m_Connection.connect();
             m_Transaction = new ModbusTCPTransaction(m_Connection);
             m_Transaction.setReconnecting(m_Reconnecting);
+            m_Pipeline = new ModbusTCPPipelinedTransaction(m_Connection);
+            m_Pipeline.setDepth(m_PipelineDepth);
         }
     }//connect
 
@@ -119,6 +222,7 @@ public class ModbusTCPMaster {
         if (m_Connection != null && m_Connection.isConnected()) {
             m_Connection.close();
             m_Transaction = null;
+            m_Pipeline = null;
         }
     }//disconnect
 
@@ -147,6 +251,19 @@ public class ModbusTCPMaster {
         return m_Reconnecting;
     }//isReconnecting
 
+    /**
+     * Sets the maximum number of requests kept in flight by the
+     * pipelined read methods.
+     *
+     * @param depth the pipeline depth, at least 1.
+     */
+    public void setPipelineDepth(int depth) {
+        m_PipelineDepth = depth;
+        if (m_Pipeline != null) {
+            m_Pipeline.setDepth(depth);
+        }
+    }//setPipelineDepth
+
     /**
      * Reads a given number of registers from the slave.
      * <p/>
@@ -172,6 +289,154 @@ public class ModbusTCPMaster {
         return null;
     }//readMultipleRegisters
 
+    /**
+     * Reads several blocks of registers from the slave in one pipelined
+     * exchange. All requests are sent back to back and the responses are
+     * matched by transaction identifier, so the whole batch costs about
+     * one round trip.
+     * <p/>
+     * An entry of the result is <tt>null</tt> if the slave answered that
+     * block with an exception, e.g. because the range does not exist on
+     * this model.
+     * <p/>
+     * This is a convenience wrapper: the requests are pooled, but every call
+     * creates the <tt>Register</tt> objects it returns. Code that polls
+     * should use {@link #readMultipleRegistersInto(int[], int[], short[][])}.
+     *
+     * @param refs   the offsets of the registers to start reading from.
+     * @param counts the number of registers to read at each offset.
+     * @return a <tt>Register[]</tt> for each requested block, in order.
+     * @throws ModbusException if an I/O or transaction error occurs.
+     */
+    public synchronized Register[][] readMultipleRegisters(int[] refs, int[] counts)
+            throws ModbusException {
+        if (refs.length != counts.length) {
+            throw new IllegalArgumentException("refs and counts differ in length");
+        }
+        submitBatch(refs, counts, null);
+        m_Pipeline.execute();
+        Register[][] result = new Register[refs.length][];
+        for (int i = 0; i < refs.length; i++) {
+            try {
+                result[i] = ((ReadMultipleRegistersResponse) m_BatchFutures[i].get()).getRegisters();
+            } catch (ModbusSlaveException ex) {
+                result[i] = null;
+            }
+        }
+        return result;
+    }//readMultipleRegisters
+
+    /**
+     * Reads a given number of registers from the slave straight into a
+     * caller-supplied array. No <tt>Register</tt> objects are created; the
+     * words are decoded from the receive buffer into <tt>dst</tt>.
+     *
+     * @param ref   the offset of the register to start reading from.
+     * @param count the number of registers to be read.
+     * @param dst   the array receiving the register words.
+     * @return the number of words the slave returned.
+     * @throws ModbusException if an I/O error, a slave exception or
+     *                         a transaction error occurs.
+     */
+    public synchronized int readMultipleRegistersInto(int ref, int count, short[] dst)
+            throws ModbusException {
+        return readMultipleRegistersInto(ref, count, dst, 0);
+    }//readMultipleRegistersInto
+
+    /**
+     * Reads a given number of registers from the slave straight into a
+     * caller-supplied array, starting at <tt>offset</tt>.
+     *
+     * @param ref    the offset of the register to start reading from.
+     * @param count  the number of registers to be read.
+     * @param dst    the array receiving the register words.
+     * @param offset the index in <tt>dst</tt> of the first word.
+     * @return the number of words the slave returned.
+     * @throws ModbusException if an I/O error, a slave exception or
+     *                         a transaction error occurs.
+     */
+    public synchronized int readMultipleRegistersInto(int ref, int count, short[] dst, int offset)
+            throws ModbusException {
+        m_ReadMultipleRegistersRequest.setReference(ref);
+        m_ReadMultipleRegistersRequest.setWordCount(count);
+        m_ReadIntoResponse.setDestination(dst, offset);
+        m_Transaction.setRequest(m_ReadMultipleRegistersRequest);
+        m_Transaction.setResponseTemplate(m_ReadIntoResponse);
+        try {
+            m_Transaction.execute();
+        } finally {
+            m_Transaction.setResponseTemplate(null);
+        }
+        if (m_Transaction.getResponse() != m_ReadIntoResponse) {
+            throw new ModbusException("Unexpected response to read multiple registers");
+        }
+        return m_ReadIntoResponse.getWordCount();
+    }//readMultipleRegistersInto
+
+    /**
+     * Reads several blocks of registers in one pipelined exchange, decoding
+     * each block straight into the matching array of <tt>dst</tt>.
+     * <p/>
+     * The result is a bit set: bit <tt>i</tt> is set when block <tt>i</tt>
+     * was read in full. A block the slave answered with an exception leaves
+     * its array untouched and its bit clear, as does a short answer, whose
+     * words are decoded but must not be used. At most 32 blocks may be read
+     * at once.
+     *
+     * @param refs   the offsets of the registers to start reading from.
+     * @param counts the number of registers to read at each offset.
+     * @param dst    the array receiving each block.
+     * @return the bit set of blocks that were read.
+     * @throws ModbusException if an I/O or transaction error occurs.
+     */
+    public synchronized int readMultipleRegistersInto(int[] refs, int[] counts, short[][] dst)
+            throws ModbusException {
+        if (refs.length != counts.length || refs.length != dst.length || refs.length > 32) {
+            throw new IllegalArgumentException("refs, counts and dst must have the same length, at most 32");
+        }
+        submitBatch(refs, counts, dst);
+        m_Pipeline.execute();
+        int read = 0;
+        for (int i = 0; i < refs.length; i++) {
+            try {
+                if (m_BatchFutures[i].get() == m_BatchResponses[i] && m_BatchResponses[i].getWordCount() == counts[i]) {
+                    read |= 1 << i;
+                }
+            } catch (ModbusSlaveException ex) {
+                // leave the block unread
+            }
+        }
+        return read;
+    }//readMultipleRegistersInto
+
+    /**
+     * Queues a read of each block on the pipeline with the pooled requests
+     * and responses, decoding into <tt>dst</tt> or into new registers when
+     * it is <tt>null</tt>.
+     */
+    private void submitBatch(int[] refs, int[] counts, short[][] dst) throws ModbusException {
+        if (m_Pipeline == null) {
+            throw new ModbusException("Not connected");
+        }
+        if (m_BatchRequests.length < refs.length) {
+            m_BatchRequests = new ReadMultipleRegistersRequest[refs.length];
+            m_BatchResponses = new ReadMultipleRegistersResponse[refs.length];
+            m_BatchFutures = new ModbusFuture[refs.length];
+            for (int i = 0; i < refs.length; i++) {
+                m_BatchRequests[i] = new ReadMultipleRegistersRequest();
+                m_BatchResponses[i] = new ReadMultipleRegistersResponse();
+                m_BatchFutures[i] = new ModbusFuture(m_BatchRequests[i], m_BatchResponses[i]);
+            }
+        }
+        for (int i = 0; i < refs.length; i++) {
+            m_BatchRequests[i].setReference(refs[i]);
+            m_BatchRequests[i].setWordCount(counts[i]);
+            m_BatchResponses[i].setDestination(dst != null ? dst[i] : null, 0);
+            m_BatchFutures[i].reset(m_BatchRequests[i], m_BatchResponses[i]);
+            m_Pipeline.submit(m_BatchFutures[i]);
+        }
+    }//submitBatch
+
     public synchronized ReadFileTransferResponse readFileTransfer(int day, int category, int device)
             throws ModbusException {
         m_FileTransferRequest.setCategory(category);
@@ -182,4 +447,90 @@ public class ModbusTCPMaster {
         return ((ReadFileTransferResponse) m_Transaction.getResponse());
     }
 
+    /**
+     * Reads several ranges of log entries in one pipelined exchange. Each
+     * range is split into blocks of {@link Modbus#LOG_FILE_BLOCK_ENTRIES}
+     * entries, all blocks are sent back to back and each is decoded straight
+     * into its place in <tt>dst</tt>, most recent entry first.
+     * <p/>
+     * <tt>read[i]</tt> receives the number of entries of range <tt>i</tt>
+     * read without a gap from its start; a block the slave answered with an
+     * exception, or with fewer entries, ends the range there. <tt>read</tt>
+     * is filled in before an I/O error is thrown, so the entries that did
+     * arrive can still be used.
+     *
+     * @param device     the log file to read.
+     * @param categories the category of each range.
+     * @param starts     the index of the first entry of each range.
+     * @param counts     the number of entries of each range.
+     * @param dst        the array receiving each range, at least <tt>counts[i]</tt> long.
+     * @param read       receives the number of entries read for each range.
+     * @throws ModbusException if an I/O or transaction error occurs.
+     */
+    public synchronized void readFileTransfer(int device, int[] categories, int[] starts, int[] counts, short[][] dst, int[] read)
+            throws ModbusException {
+        int ranges = categories.length;
+        if (starts.length != ranges || counts.length != ranges || dst.length != ranges || read.length != ranges) {
+            throw new IllegalArgumentException("categories, starts, counts, dst and read must have the same length");
+        }
+        if (m_Pipeline == null) {
+            throw new ModbusException("Not connected");
+        }
+        int blocks = 0;
+        for (int i = 0; i < ranges; i++) {
+            blocks += (counts[i] + Modbus.LOG_FILE_BLOCK_ENTRIES - 1) / Modbus.LOG_FILE_BLOCK_ENTRIES;
+        }
+        if (m_FileRequests.length < blocks) {
+            m_FileRequests = new ReadFileTransferRequest[blocks];
+            m_FileResponses = new ReadFileTransferResponse[blocks];
+            m_FileFutures = new ModbusFuture[blocks];
+            for (int b = 0; b < blocks; b++) {
+                m_FileRequests[b] = new ReadFileTransferRequest();
+                m_FileResponses[b] = new ReadFileTransferResponse();
+                m_FileFutures[b] = new ModbusFuture(m_FileRequests[b], m_FileResponses[b]);
+            }
+        }
+        int b = 0;
+        for (int i = 0; i < ranges; i++) {
+            for (int entry = 0; entry < counts[i]; entry += Modbus.LOG_FILE_BLOCK_ENTRIES) {
+                m_FileRequests[b].setDevice(device);
+                m_FileRequests[b].setCategory(categories[i]);
+                m_FileRequests[b].setDayIndex(starts[i] + entry);
+                m_FileResponses[b].setDestination(dst[i], entry, Math.min(Modbus.LOG_FILE_BLOCK_ENTRIES, counts[i] - entry));
+                m_FileFutures[b].reset(m_FileRequests[b], m_FileResponses[b]);
+                m_Pipeline.submit(m_FileFutures[b]);
+                b++;
+            }
+        }
+        m_Pipeline.execute();
+        ModbusException failure = null;
+        b = 0;
+        for (int i = 0; i < ranges; i++) {
+            read[i] = 0;
+            boolean contiguous = true;
+            for (int entry = 0; entry < counts[i]; entry += Modbus.LOG_FILE_BLOCK_ENTRIES, b++) {
+                try {
+                    boolean decoded = m_FileFutures[b].get() == m_FileResponses[b];
+                    if (contiguous && decoded) {
+                        int received = m_FileResponses[b].getWordCount();
+                        read[i] += Math.min(received, counts[i] - entry);
+                        contiguous = received >= Modbus.LOG_FILE_BLOCK_ENTRIES;
+                    } else {
+                        contiguous = false;
+                    }
+                } catch (ModbusSlaveException ex) {
+                    contiguous = false;
+                } catch (ModbusException ex) {
+                    contiguous = false;
+                    if (failure == null) {
+                        failure = ex;
+                    }
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }//readFileTransfer
+
 }//class ModbusTCPMaster
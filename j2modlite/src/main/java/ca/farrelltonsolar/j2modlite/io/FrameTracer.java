@@ -0,0 +1,26 @@
+package ca.farrelltonsolar.j2modlite.io;
+
+/**
+ * Receives every raw frame a transport sends or receives.
+ * <p>
+ * Transports hold a <tt>null</tt> tracer unless one is set, so tracing costs
+ * a single null check per frame when it is off. Implementations are called
+ * on the I/O path and must copy what they need without blocking; the frame
+ * buffer is reused as soon as the call returns.
+ */
+public interface FrameTracer {
+
+	/**
+	 * Called with a complete frame, header included.
+	 *
+	 * @param outbound
+	 *            true for frames written, false for frames read.
+	 * @param frame
+	 *            the buffer holding the frame.
+	 * @param offset
+	 *            the offset of the frame in <tt>frame</tt>.
+	 * @param length
+	 *            the length of the frame in bytes.
+	 */
+	public void trace(boolean outbound, byte[] frame, int offset, int length);
+}
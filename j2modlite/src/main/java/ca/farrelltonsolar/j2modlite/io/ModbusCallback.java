@@ -0,0 +1,35 @@
+package ca.farrelltonsolar.j2modlite.io;
+
+import ca.farrelltonsolar.j2modlite.ModbusException;
+import ca.farrelltonsolar.j2modlite.msg.ModbusRequest;
+import ca.farrelltonsolar.j2modlite.msg.ModbusResponse;
+
+/**
+ * Receives the outcome of a request sent through a non-blocking transport.
+ * <p>
+ * Callbacks run on the I/O thread that serves every connection, so they must
+ * return quickly and must not block.
+ */
+public interface ModbusCallback {
+
+	/**
+	 * Called when the response matching <tt>request</tt> has been decoded.
+	 *
+	 * @param request
+	 *            the request that was sent.
+	 * @param response
+	 *            the response carrying the same transaction identifier.
+	 */
+	public void onResponse(ModbusRequest request, ModbusResponse response);
+
+	/**
+	 * Called when the request timed out, the slave answered with an exception
+	 * or the connection was lost.
+	 *
+	 * @param request
+	 *            the request that was sent.
+	 * @param ex
+	 *            the reason the request failed.
+	 */
+	public void onFailure(ModbusRequest request, ModbusException ex);
+}
@@ -0,0 +1,180 @@
+package ca.farrelltonsolar.j2modlite.io;
+
+import ca.farrelltonsolar.j2modlite.ModbusException;
+import ca.farrelltonsolar.j2modlite.ModbusIOException;
+import ca.farrelltonsolar.j2modlite.msg.ModbusRequest;
+import ca.farrelltonsolar.j2modlite.msg.ModbusResponse;
+
+/**
+ * Holds the outcome of a single request that was sent as part of a
+ * pipelined exchange.
+ * <p>
+ * The future is completed once the response carrying the same transaction
+ * identifier as the request has been read, or failed if the exchange could
+ * not be completed.
+ */
+public class ModbusFuture {
+
+	private ModbusRequest m_Request;
+	private ModbusResponse m_Template;
+	private ModbusResponse m_Response;
+	private ModbusException m_Exception;
+	private boolean m_Done = false;
+	private long m_Sent;
+
+	/**
+	 * Constructs a new <tt>ModbusFuture</tt> for the given request.
+	 *
+	 * @param request
+	 *            the <tt>ModbusRequest</tt> this future is waiting on.
+	 */
+	public ModbusFuture(ModbusRequest request) {
+		this(request, null);
+	}
+
+	/**
+	 * Constructs a new <tt>ModbusFuture</tt> for the given request whose
+	 * response should be decoded into <tt>template</tt>.
+	 *
+	 * @param request
+	 *            the <tt>ModbusRequest</tt> this future is waiting on.
+	 * @param template
+	 *            the response instance to reuse, may be <tt>null</tt>.
+	 */
+	public ModbusFuture(ModbusRequest request, ModbusResponse template) {
+		m_Request = request;
+		m_Template = template;
+	}
+
+	/**
+	 * Makes this future wait on another request, so that a caller sending
+	 * the same batch over and over can keep its futures.
+	 *
+	 * @param request
+	 *            the <tt>ModbusRequest</tt> this future is waiting on.
+	 * @param template
+	 *            the response instance to reuse, may be <tt>null</tt>.
+	 */
+	public synchronized void reset(ModbusRequest request, ModbusResponse template) {
+		m_Request = request;
+		m_Template = template;
+		m_Response = null;
+		m_Exception = null;
+		m_Done = false;
+		m_Sent = 0;
+	}
+
+	/**
+	 * Returns the request this future was created for.
+	 *
+	 * @return the associated <tt>ModbusRequest</tt>.
+	 */
+	public ModbusRequest getRequest() {
+		return m_Request;
+	}
+
+	/**
+	 * Returns the response instance the reply should be decoded into.
+	 *
+	 * @return the template, or <tt>null</tt> if a new response is created.
+	 */
+	public ModbusResponse getResponseTemplate() {
+		return m_Template;
+	}
+
+	/**
+	 * Returns when the request was first written, as a
+	 * <tt>System.nanoTime()</tt> value.
+	 *
+	 * @return the send time, 0 if the request has not been sent.
+	 */
+	public long getSentTime() {
+		return m_Sent;
+	}
+
+	/**
+	 * Records when the request was first written.
+	 *
+	 * @param nanos
+	 *            the send time as a <tt>System.nanoTime()</tt> value.
+	 */
+	public void setSentTime(long nanos) {
+		m_Sent = nanos;
+	}
+
+	/**
+	 * Tests if a response or a failure has been recorded.
+	 *
+	 * @return true if done, false otherwise.
+	 */
+	public synchronized boolean isDone() {
+		return m_Done;
+	}
+
+	/**
+	 * Returns the response, waiting for it if necessary.
+	 *
+	 * @return the <tt>ModbusResponse</tt> matched to the request.
+	 * @throws ModbusException
+	 *             if the exchange failed, or the wait was interrupted.
+	 */
+	public synchronized ModbusResponse get() throws ModbusException {
+		return get(0);
+	}
+
+	/**
+	 * Returns the response, waiting at most <tt>timeout</tt> milliseconds for
+	 * it. A timeout of zero waits forever.
+	 *
+	 * @param timeout
+	 *            the maximum time to wait in milliseconds.
+	 * @return the <tt>ModbusResponse</tt> matched to the request.
+	 * @throws ModbusException
+	 *             if the exchange failed, timed out or was interrupted.
+	 */
+	public synchronized ModbusResponse get(long timeout) throws ModbusException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (!m_Done) {
+			long remaining = timeout == 0 ? 0 : deadline - System.currentTimeMillis();
+			if (timeout != 0 && remaining <= 0)
+				throw new ModbusIOException("Timeout waiting for response");
+			try {
+				wait(remaining);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new ModbusIOException("Interrupted waiting for response");
+			}
+		}
+		if (m_Exception != null)
+			throw m_Exception;
+		return m_Response;
+	}
+
+	/**
+	 * Records the response for this future and wakes up any waiters.
+	 *
+	 * @param response
+	 *            the matched <tt>ModbusResponse</tt>.
+	 */
+	public synchronized void complete(ModbusResponse response) {
+		if (m_Done)
+			return;
+		m_Response = response;
+		m_Done = true;
+		notifyAll();
+	}
+
+	/**
+	 * Records a failure for this future and wakes up any waiters.
+	 *
+	 * @param ex
+	 *            the reason the exchange failed.
+	 */
+	public synchronized void fail(ModbusException ex) {
+		if (m_Done)
+			return;
+		m_Exception = ex;
+		m_Done = true;
+		notifyAll();
+	}
+}
@@ -0,0 +1,153 @@
+package ca.farrelltonsolar.j2modlite.io;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import ca.farrelltonsolar.j2modlite.util.LatencyHistogram;
+
+/**
+ * Counters and latency histograms for one Modbus/TCP connection.
+ * <p>
+ * Transactions record how long each request took, per function code, along
+ * with retries and failures; the transport counts timeouts and the bytes it
+ * moves; the connection counts (re)connects. Every update is a lock free
+ * atomic operation, so the instance can be read from any thread while the
+ * connection is in use.
+ */
+public class ModbusMetrics {
+
+	private final AtomicReferenceArray<LatencyHistogram> m_Latency = new AtomicReferenceArray<>(256);
+	private final AtomicLong m_Transactions = new AtomicLong();
+	private final AtomicLong m_Failures = new AtomicLong();
+	private final AtomicLong m_Retries = new AtomicLong();
+	private final AtomicLong m_Timeouts = new AtomicLong();
+	private final AtomicLong m_Connects = new AtomicLong();
+	private final AtomicLong m_BytesIn = new AtomicLong();
+	private final AtomicLong m_BytesOut = new AtomicLong();
+
+	/**
+	 * Records a completed request.
+	 *
+	 * @param functionCode
+	 *            the function code of the request.
+	 * @param nanos
+	 *            the time from sending the request to decoding its response,
+	 *            retries included.
+	 */
+	public void recordLatency(int functionCode, long nanos) {
+		m_Transactions.incrementAndGet();
+		int index = functionCode & 0xff;
+		LatencyHistogram histogram = m_Latency.get(index);
+		if (histogram == null) {
+			m_Latency.compareAndSet(index, null, new LatencyHistogram());
+			histogram = m_Latency.get(index);
+		}
+		histogram.record(nanos / 1000);
+	}
+
+	public void recordFailure() {
+		m_Failures.incrementAndGet();
+	}
+
+	public void recordRetry() {
+		m_Retries.incrementAndGet();
+	}
+
+	public void recordTimeout() {
+		m_Timeouts.incrementAndGet();
+	}
+
+	public void recordConnect() {
+		m_Connects.incrementAndGet();
+	}
+
+	public void recordBytesIn(int count) {
+		m_BytesIn.addAndGet(count);
+	}
+
+	public void recordBytesOut(int count) {
+		m_BytesOut.addAndGet(count);
+	}
+
+	/**
+	 * Returns the latency histogram for a function code.
+	 *
+	 * @param functionCode
+	 *            the function code.
+	 * @return the histogram, or <tt>null</tt> if no request with that
+	 *         function code has completed.
+	 */
+	public LatencyHistogram getLatency(int functionCode) {
+		return m_Latency.get(functionCode & 0xff);
+	}
+
+	public long getTransactions() {
+		return m_Transactions.get();
+	}
+
+	public long getFailures() {
+		return m_Failures.get();
+	}
+
+	public long getRetries() {
+		return m_Retries.get();
+	}
+
+	public long getTimeouts() {
+		return m_Timeouts.get();
+	}
+
+	public long getConnects() {
+		return m_Connects.get();
+	}
+
+	/**
+	 * Returns the number of connections made after the first one.
+	 *
+	 * @return the reconnect count.
+	 */
+	public long getReconnects() {
+		return Math.max(0, m_Connects.get() - 1);
+	}
+
+	public long getBytesIn() {
+		return m_BytesIn.get();
+	}
+
+	public long getBytesOut() {
+		return m_BytesOut.get();
+	}
+
+	/**
+	 * Clears all counters and histograms.
+	 */
+	public void reset() {
+		for (int i = 0; i < m_Latency.length(); i++) {
+			m_Latency.set(i, null);
+		}
+		m_Transactions.set(0);
+		m_Failures.set(0);
+		m_Retries.set(0);
+		m_Timeouts.set(0);
+		m_Connects.set(0);
+		m_BytesIn.set(0);
+		m_BytesOut.set(0);
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("transactions=").append(getTransactions())
+				.append(" failures=").append(getFailures())
+				.append(" retries=").append(getRetries())
+				.append(" timeouts=").append(getTimeouts())
+				.append(" reconnects=").append(getReconnects())
+				.append(" in=").append(getBytesIn())
+				.append(" out=").append(getBytesOut());
+		for (int i = 0; i < m_Latency.length(); i++) {
+			LatencyHistogram histogram = m_Latency.get(i);
+			if (histogram != null)
+				sb.append("\nfc ").append(i).append(": ").append(histogram);
+		}
+		return sb.toString();
+	}
+}
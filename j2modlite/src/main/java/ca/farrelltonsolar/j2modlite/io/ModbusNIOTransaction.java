@@ -0,0 +1,81 @@
+package ca.farrelltonsolar.j2modlite.io;
+
+import ca.farrelltonsolar.j2modlite.Modbus;
+import ca.farrelltonsolar.j2modlite.ModbusException;
+import ca.farrelltonsolar.j2modlite.ModbusIOException;
+import ca.farrelltonsolar.j2modlite.msg.ModbusRequest;
+import ca.farrelltonsolar.j2modlite.msg.ModbusResponse;
+
+/**
+ * Blocking <tt>ModbusTransaction</tt> on top of a {@link ModbusNIOTransport}.
+ * <p>
+ * The calling thread waits on the request's <tt>ModbusFuture</tt> while the
+ * shared reactor thread does the actual I/O.
+ */
+public class ModbusNIOTransaction implements ModbusTransaction {
+
+	private final ModbusNIOTransport m_Transport;
+	private ModbusRequest m_Request;
+	private ModbusResponse m_Response;
+	private boolean m_ValidityCheck = Modbus.DEFAULT_VALIDITYCHECK;
+	private int m_Retries = Modbus.DEFAULT_RETRIES;
+
+	/**
+	 * Constructs a new <tt>ModbusNIOTransaction</tt> on the given transport.
+	 *
+	 * @param transport
+	 *            the <tt>ModbusNIOTransport</tt> to execute on.
+	 */
+	public ModbusNIOTransaction(ModbusNIOTransport transport) {
+		m_Transport = transport;
+	}
+
+	public void setRequest(ModbusRequest req) {
+		m_Request = req;
+	}
+
+	public ModbusRequest getRequest() {
+		return m_Request;
+	}
+
+	public ModbusResponse getResponse() {
+		return m_Response;
+	}
+
+	public int getTransactionID() {
+		return m_Request != null ? m_Request.getTransactionID() : Modbus.DEFAULT_TRANSACTION_ID;
+	}
+
+	public void setRetries(int retries) {
+		m_Retries = retries;
+	}
+
+	public int getRetries() {
+		return m_Retries;
+	}
+
+	public void setCheckingValidity(boolean b) {
+		m_ValidityCheck = b;
+	}
+
+	public boolean isCheckingValidity() {
+		return m_ValidityCheck;
+	}
+
+	public void execute() throws ModbusException {
+		if (m_Request == null)
+			throw new ModbusException("Invalid request or connection");
+
+		int retryCounter = 0;
+		int retryLimit = (m_Retries > 0 ? m_Retries : 1);
+		while (true) {
+			try {
+				m_Response = m_Transport.send(m_Request, null).get();
+				return;
+			} catch (ModbusIOException ex) {
+				if (++retryCounter >= retryLimit)
+					throw new ModbusIOException("Executing transaction failed (tried " + m_Retries + " times)", ex.isEOF());
+			}
+		}
+	}
+}
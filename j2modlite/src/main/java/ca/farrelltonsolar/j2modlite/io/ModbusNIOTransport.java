@@ -0,0 +1,469 @@
+package ca.farrelltonsolar.j2modlite.io;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import ca.farrelltonsolar.j2modlite.Modbus;
+import ca.farrelltonsolar.j2modlite.ModbusException;
+import ca.farrelltonsolar.j2modlite.ModbusIOException;
+import ca.farrelltonsolar.j2modlite.ModbusSlaveException;
+import ca.farrelltonsolar.j2modlite.msg.ExceptionResponse;
+import ca.farrelltonsolar.j2modlite.msg.ModbusMessage;
+import ca.farrelltonsolar.j2modlite.msg.ModbusRequest;
+import ca.farrelltonsolar.j2modlite.msg.ModbusResponse;
+import ca.farrelltonsolar.j2modlite.net.ModbusReactor;
+import ca.farrelltonsolar.j2modlite.util.ModbusLog;
+
+/**
+ * Non-blocking Modbus/TCP transport built on a <tt>SocketChannel</tt> that
+ * is served by a shared {@link ModbusReactor}.
+ * <p>
+ * Requests sent with {@link #send(ModbusRequest, ModbusCallback)} are given a
+ * transaction identifier, queued for the reactor thread and completed through
+ * their <tt>ModbusFuture</tt> and callback once the matching response frame
+ * has been decoded. The blocking <tt>ModbusTransport</tt> methods are also
+ * supported so the transport can be driven by a <tt>ModbusTransaction</tt>;
+ * only responses to messages written with <tt>writeMessage</tt> are handed to
+ * <tt>readResponse</tt>, and only until their timeout has passed.
+ */
+public class ModbusNIOTransport implements ModbusTransport {
+
+	/**
+	 * A request waiting for its response.
+	 */
+	private static class Pending {
+		final ModbusFuture future;
+		final ModbusCallback callback;
+		final long deadline;
+
+		Pending(ModbusFuture future, ModbusCallback callback, long deadline) {
+			this.future = future;
+			this.callback = callback;
+			this.deadline = deadline;
+		}
+	}
+
+	/**
+	 * A response to a message written with <tt>writeMessage</tt>, waiting to
+	 * be read until the message's deadline.
+	 */
+	private static class Unclaimed {
+		final ModbusResponse response;
+		final long deadline;
+
+		Unclaimed(ModbusResponse response, long deadline) {
+			this.response = response;
+			this.deadline = deadline;
+		}
+	}
+
+	private final ModbusReactor m_Reactor;
+	private final InetSocketAddress m_Address;
+	private SocketChannel m_Channel;
+	private SelectionKey m_Key;
+	private volatile boolean m_Closed = false;
+	private volatile FrameTracer m_Tracer = null;
+	private int m_Timeout = Modbus.DEFAULT_TIMEOUT;
+	private int m_TransactionID = Modbus.DEFAULT_TRANSACTION_ID;
+
+	private final Map<Integer, Pending> m_Pending = new HashMap<>();
+	private final ConcurrentLinkedQueue<ByteBuffer> m_Outbound = new ConcurrentLinkedQueue<>();
+	// deadlines of the messages written with writeMessage, by transaction identifier
+	private final Map<Integer, Long> m_Awaited = new HashMap<>();
+	private final LinkedBlockingQueue<Unclaimed> m_Unclaimed = new LinkedBlockingQueue<>(16);
+	private final ModbusTCPFrameDecoder m_Decoder = new ModbusTCPFrameDecoder();
+	private final BytesInputStream m_ByteIn = new BytesInputStream(Modbus.MAX_MESSAGE_LENGTH + 6);
+
+	private final Runnable m_Flush = new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+
+	/**
+	 * Constructs a new <tt>ModbusNIOTransport</tt>. Use
+	 * {@link ModbusReactor#open(java.net.InetAddress, int)} instead of calling
+	 * this directly.
+	 *
+	 * @param reactor
+	 *            the reactor that serves this connection.
+	 * @param address
+	 *            the slave address.
+	 */
+	public ModbusNIOTransport(ModbusReactor reactor, InetSocketAddress address) {
+		m_Reactor = reactor;
+		m_Address = address;
+	}
+
+	public InetSocketAddress getAddress() {
+		return m_Address;
+	}
+
+	public void setTimeout(int time) {
+		m_Timeout = time;
+	}
+
+	/**
+	 * Sets the <tt>FrameTracer</tt> every frame written or read is passed to.
+	 *
+	 * @param tracer
+	 *            the tracer, or <tt>null</tt> to turn tracing off.
+	 */
+	public void setTracer(FrameTracer tracer) {
+		m_Tracer = tracer;
+	}
+
+	public int getTimeout() {
+		return m_Timeout;
+	}
+
+	/**
+	 * Tests if the channel is currently connected.
+	 *
+	 * @return true if connected, false otherwise.
+	 */
+	public boolean isConnected() {
+		SocketChannel channel = m_Channel;
+		return channel != null && channel.isConnected();
+	}
+
+	/**
+	 * Starts connecting the channel on the reactor thread.
+	 */
+	public void connect() {
+		m_Closed = false;
+		m_Reactor.execute(m_Flush);
+	}
+
+	/**
+	 * Sends a request without blocking. The request is assigned the next
+	 * transaction identifier of this connection, so the same instance must
+	 * not be sent again until it has completed.
+	 *
+	 * @param request
+	 *            the <tt>ModbusRequest</tt> to send.
+	 * @param callback
+	 *            notified on the reactor thread when the request completes,
+	 *            may be <tt>null</tt>.
+	 * @return the <tt>ModbusFuture</tt> that will hold the response.
+	 */
+	public ModbusFuture send(ModbusRequest request, ModbusCallback callback) {
+		ModbusFuture future = new ModbusFuture(request);
+		if (m_Closed) {
+			ModbusIOException ex = new ModbusIOException("Transport closed");
+			future.fail(ex);
+			if (callback != null)
+				callback.onFailure(request, ex);
+			return future;
+		}
+		synchronized (m_Pending) {
+			int tid = nextTransactionID();
+			while (m_Pending.containsKey(tid) || m_Awaited.containsKey(tid))
+				tid = nextTransactionID();
+			request.setTransactionID(tid);
+			m_Pending.put(tid, new Pending(future, callback, System.currentTimeMillis() + m_Timeout));
+		}
+		m_Outbound.add(encode(request));
+		m_Reactor.execute(m_Flush);
+		return future;
+	}
+
+	/*** ModbusTransport *********************************/
+
+	public void close() throws IOException {
+		m_Closed = true;
+		m_Reactor.execute(new Runnable() {
+			public void run() {
+				closeChannel(new ModbusIOException("Connection closed", true));
+			}
+		});
+	}
+
+	public ModbusTransaction createTransaction() {
+		return new ModbusNIOTransaction(this);
+	}
+
+	/**
+	 * Queues a message with the transaction identifier it already carries.
+	 * The response is handed to {@link #readResponse()} if it arrives within
+	 * the timeout, a later one is dropped.
+	 */
+	public void writeMessage(ModbusMessage msg) throws ModbusIOException {
+		if (m_Closed)
+			throw new ModbusIOException("I/O exception - failed to write.");
+		synchronized (m_Pending) {
+			m_Awaited.put(msg.getTransactionID(), System.currentTimeMillis() + m_Timeout);
+		}
+		m_Outbound.add(encode(msg));
+		m_Reactor.execute(m_Flush);
+	}
+
+	public ModbusRequest readRequest() throws ModbusIOException {
+		throw new ModbusIOException("Reading requests is not supported by a master transport");
+	}
+
+	/**
+	 * Waits for the next response to a message written with
+	 * {@link #writeMessage(ModbusMessage)}, skipping any whose deadline has
+	 * passed while it was queued.
+	 */
+	public ModbusResponse readResponse() throws ModbusIOException {
+		return readResponse(null);
+	}
+
+	/**
+	 * Frames are decoded on the reactor thread before it is known who will
+	 * read them, so the factory is not consulted.
+	 */
+	public ModbusResponse readResponse(ModbusResponseFactory factory) throws ModbusIOException {
+		try {
+			long deadline = System.currentTimeMillis() + m_Timeout;
+			while (true) {
+				long wait = deadline - System.currentTimeMillis();
+				Unclaimed unclaimed = (wait > 0 ? m_Unclaimed.poll(wait, TimeUnit.MILLISECONDS) : m_Unclaimed.poll());
+				if (unclaimed == null)
+					throw new ModbusIOException("Timeout reading response");
+				if (unclaimed.deadline > System.currentTimeMillis())
+					return unclaimed.response;
+				if (Modbus.debug)
+					ModbusLog.w(getClass().getName(), "discarding stale response with transaction ID " + unclaimed.response.getTransactionID());
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new ModbusIOException("I/O exception - failed to read.");
+		}
+	}
+
+	/*** Reactor thread **********************************/
+
+	/**
+	 * Opens the channel if needed and writes as much of the outbound queue as
+	 * the socket accepts.
+	 */
+	void flush() {
+		if (m_Closed)
+			return;
+		try {
+			if (m_Channel == null) {
+				openChannel();
+			}
+			if (m_Channel.isConnectionPending()) {
+				return; // handleConnect will flush
+			}
+			handleWrite();
+		} catch (IOException ex) {
+			closeChannel(new ModbusIOException("I/O exception - failed to write."));
+		}
+	}
+
+	private void openChannel() throws IOException {
+		m_Channel = SocketChannel.open();
+		m_Channel.configureBlocking(false);
+		m_Channel.socket().setTcpNoDelay(true);
+		m_Channel.socket().setKeepAlive(true);
+		if (m_Channel.connect(m_Address)) {
+			m_Key = m_Reactor.register(m_Channel, SelectionKey.OP_READ, this);
+		} else {
+			m_Key = m_Reactor.register(m_Channel, SelectionKey.OP_CONNECT, this);
+		}
+		if (Modbus.debug)
+			ModbusLog.d(getClass().getName(), "connect() " + m_Address);
+	}
+
+	public void handleConnect() {
+		try {
+			m_Channel.finishConnect();
+			m_Key.interestOps(SelectionKey.OP_READ);
+			handleWrite();
+		} catch (IOException ex) {
+			closeChannel(new ModbusIOException("Connection failed."));
+		}
+	}
+
+	public void handleWrite() {
+		try {
+			ByteBuffer buffer;
+			while ((buffer = m_Outbound.peek()) != null) {
+				m_Channel.write(buffer);
+				if (buffer.hasRemaining()) {
+					m_Key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				m_Outbound.poll();
+			}
+			m_Key.interestOps(SelectionKey.OP_READ);
+		} catch (IOException ex) {
+			closeChannel(new ModbusIOException("I/O exception - failed to write."));
+		}
+	}
+
+	public void handleRead() {
+		try {
+			int n = m_Decoder.fill(m_Channel);
+			if (n == -1) {
+				closeChannel(new ModbusIOException("End of File", true));
+				return;
+			}
+			decodeFrames();
+		} catch (IOException ex) {
+			closeChannel(new ModbusIOException("I/O exception - failed to read."));
+		}
+	}
+
+	/**
+	 * Decodes every complete frame in the receive buffer, skipping bytes that
+	 * cannot start a valid MBAP header.
+	 */
+	private void decodeFrames() throws IOException {
+		while (m_Decoder.nextFrame(m_ByteIn)) {
+			FrameTracer tracer = m_Tracer;
+			if (tracer != null)
+				tracer.trace(false, m_ByteIn.getBuffer(), 0, m_ByteIn.count);
+			ModbusResponse response = ModbusResponse.createModbusResponse(m_ByteIn.getBuffer()[7] & 0xff);
+			response.readFrom(m_ByteIn);
+			dispatch(response);
+		}
+		int discarded = m_Decoder.takeDiscarded();
+		if (discarded > 0 && Modbus.debug)
+			ModbusLog.w(getClass().getName(), "skipped " + discarded + " bytes to resynchronize");
+	}
+
+	private void dispatch(ModbusResponse response) {
+		Pending pending;
+		Long awaited = null;
+		synchronized (m_Pending) {
+			pending = m_Pending.remove(response.getTransactionID());
+			if (pending == null)
+				awaited = m_Awaited.remove(response.getTransactionID());
+		}
+		if (pending == null) {
+			// a late answer to an expired request is never handed to a reader
+			if ((awaited == null || !m_Unclaimed.offer(new Unclaimed(response, awaited))) && Modbus.debug)
+				ModbusLog.w(getClass().getName(), "dropping response with unknown transaction ID " + response.getTransactionID());
+			return;
+		}
+		if (response instanceof ExceptionResponse) {
+			fail(pending, new ModbusSlaveException(((ExceptionResponse) response).getExceptionCode()));
+		} else {
+			pending.future.complete(response);
+			if (pending.callback != null)
+				pending.callback.onResponse(pending.future.getRequest(), response);
+		}
+	}
+
+	/**
+	 * Fails requests whose deadline has passed. The connection is kept open;
+	 * a late response is simply discarded, as are unread responses to written
+	 * messages that have gone stale.
+	 */
+	public void expire(long now) {
+		List<Pending> expired = null;
+		synchronized (m_Pending) {
+			Iterator<Long> awaited = m_Awaited.values().iterator();
+			while (awaited.hasNext()) {
+				if (awaited.next() <= now)
+					awaited.remove();
+			}
+			Iterator<Pending> it = m_Pending.values().iterator();
+			while (it.hasNext()) {
+				Pending pending = it.next();
+				if (pending.deadline <= now) {
+					if (expired == null)
+						expired = new ArrayList<>();
+					expired.add(pending);
+					it.remove();
+				}
+			}
+		}
+		Iterator<Unclaimed> unclaimed = m_Unclaimed.iterator();
+		while (unclaimed.hasNext()) {
+			if (unclaimed.next().deadline <= now)
+				unclaimed.remove();
+		}
+		if (expired != null) {
+			for (Pending pending : expired) {
+				fail(pending, new ModbusIOException("Timeout reading response"));
+			}
+		}
+	}
+
+	/**
+	 * Closes the channel and fails every outstanding request.
+	 *
+	 * @param ex
+	 *            the failure reported to outstanding requests.
+	 */
+	public void closeChannel(ModbusException ex) {
+		if (m_Key != null) {
+			m_Key.cancel();
+			m_Key = null;
+		}
+		if (m_Channel != null) {
+			try {
+				m_Channel.close();
+			} catch (IOException e) {
+				// Nothing left to do.
+			}
+			m_Channel = null;
+		}
+		m_Decoder.clear();
+		m_Outbound.clear();
+
+		List<Pending> failed;
+		synchronized (m_Pending) {
+			failed = new ArrayList<>(m_Pending.values());
+			m_Pending.clear();
+			m_Awaited.clear();
+		}
+		m_Unclaimed.clear();
+		for (Pending pending : failed) {
+			fail(pending, ex);
+		}
+	}
+
+	private static void fail(Pending pending, ModbusException ex) {
+		pending.future.fail(ex);
+		if (pending.callback != null)
+			pending.callback.onFailure(pending.future.getRequest(), ex);
+	}
+
+	/*** Helpers *****************************************/
+
+	private ByteBuffer encode(ModbusMessage msg) {
+		byte[] message = msg.getMessage();
+		int length = (message != null ? message.length : 0);
+		ByteBuffer buffer = ByteBuffer.allocate(length + 8);
+		buffer.putShort((short) msg.getTransactionID());
+		buffer.putShort((short) msg.getProtocolID());
+		buffer.putShort((short) (length + 2));
+		buffer.put((byte) msg.getUnitID());
+		buffer.put((byte) msg.getFunctionCode());
+		if (length > 0)
+			buffer.put(message);
+		buffer.flip();
+		FrameTracer tracer = m_Tracer;
+		if (tracer != null)
+			tracer.trace(true, buffer.array(), 0, buffer.limit());
+		return buffer;
+	}
+
+	private int nextTransactionID() {
+		if (m_TransactionID >= Modbus.MAX_TRANSACTION_ID) {
+			m_TransactionID = 1;
+		} else {
+			m_TransactionID++;
+		}
+		return m_TransactionID;
+	}
+}
@@ -0,0 +1,26 @@
+package ca.farrelltonsolar.j2modlite.io;
+
+import ca.farrelltonsolar.j2modlite.msg.ModbusResponse;
+
+/**
+ * Supplies the <tt>ModbusResponse</tt> instance a transport decodes an
+ * incoming frame into.
+ * <p>
+ * This lets callers hand in a response they already own, for example a
+ * <tt>ReadMultipleRegistersResponse</tt> bound to a caller-supplied array,
+ * instead of having the transport allocate a new one for every frame.
+ */
+public interface ModbusResponseFactory {
+
+	/**
+	 * Returns the response to decode a frame into.
+	 *
+	 * @param transactionID
+	 *            the transaction identifier from the frame header.
+	 * @param functionCode
+	 *            the function code of the frame.
+	 * @return a response instance, or <tt>null</tt> to let the transport
+	 *         create one with <tt>ModbusResponse.createModbusResponse</tt>.
+	 */
+	public ModbusResponse createResponse(int transactionID, int functionCode);
+}
@@ -0,0 +1,153 @@
+package ca.farrelltonsolar.j2modlite.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import ca.farrelltonsolar.j2modlite.Modbus;
+
+/**
+ * Reassembles Modbus/TCP frames from a byte stream.
+ * <p>
+ * Bytes are accumulated across reads until the 6 byte MBAP header and
+ * exactly the number of bytes it announces are present, so a frame split
+ * over several TCP segments is decoded as one. Every header is checked as
+ * soon as it is buffered: bytes that cannot start a valid one (protocol
+ * identifier other than 0, or a length outside 2..254, the unit identifier
+ * and the largest PDU) are skipped right away, one at a time, until the
+ * stream lines up again, without the connection having to be dropped.
+ * A header that passes but whose frame never completes is dropped by
+ * {@link #resync()}.
+ */
+public class ModbusTCPFrameDecoder {
+
+	private static final int HEADER_LENGTH = 6;
+	private static final int MAX_COUNT = 254;
+
+	private final byte[] m_Buffer = new byte[2 * (Modbus.MAX_MESSAGE_LENGTH + HEADER_LENGTH)];
+	private final ByteBuffer m_Window = ByteBuffer.wrap(m_Buffer);
+	private int m_Start = 0;
+	private int m_End = 0;
+	private int m_Discarded = 0;
+
+	/**
+	 * Reads whatever is available from <tt>in</tt>, blocking as the stream
+	 * does when nothing is.
+	 *
+	 * @param in
+	 *            the stream to read from.
+	 * @return the number of bytes read, or -1 at end of stream.
+	 * @throws IOException
+	 *             if the read fails or times out.
+	 */
+	public int fill(InputStream in) throws IOException {
+		compact();
+		int n = in.read(m_Buffer, m_End, m_Buffer.length - m_End);
+		if (n > 0)
+			m_End += n;
+		return n;
+	}
+
+	/**
+	 * Reads whatever is available from a (non-blocking) channel.
+	 *
+	 * @param channel
+	 *            the channel to read from.
+	 * @return the number of bytes read, or -1 at end of stream.
+	 * @throws IOException
+	 *             if the read fails.
+	 */
+	public int fill(ReadableByteChannel channel) throws IOException {
+		compact();
+		m_Window.limit(m_Buffer.length);
+		m_Window.position(m_End);
+		int n = channel.read(m_Window);
+		if (n > 0)
+			m_End += n;
+		return n;
+	}
+
+	/**
+	 * Copies the next complete frame, header included, into <tt>dst</tt> and
+	 * resets it to the frame length.
+	 *
+	 * @param dst
+	 *            the stream to hold the frame, at least
+	 *            <tt>MAX_MESSAGE_LENGTH + 6</tt> bytes long.
+	 * @return true if a frame was decoded, false if more bytes are needed.
+	 */
+	public boolean nextFrame(BytesInputStream dst) {
+		while (m_End - m_Start >= HEADER_LENGTH) {
+			int protocol = ((m_Buffer[m_Start + 2] & 0xff) << 8) | (m_Buffer[m_Start + 3] & 0xff);
+			int count = ((m_Buffer[m_Start + 4] & 0xff) << 8) | (m_Buffer[m_Start + 5] & 0xff);
+			if (protocol != Modbus.DEFAULT_PROTOCOL_ID || count < 2 || count > MAX_COUNT) {
+				m_Start++;
+				m_Discarded++;
+				continue;
+			}
+			int length = HEADER_LENGTH + count;
+			if (m_End - m_Start < length)
+				return false;
+
+			byte[] frame = dst.getBuffer();
+			System.arraycopy(m_Buffer, m_Start, frame, 0, length);
+			dst.reset(frame, length);
+			m_Start += length;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Gives up on the frame at the head of the buffer by dropping its header,
+	 * or the bytes there are when fewer, so that decoding restarts at the
+	 * next valid header after it. Used when the rest of a frame did not
+	 * arrive in time.
+	 */
+	public void resync() {
+		int dropped = Math.min(HEADER_LENGTH, m_End - m_Start);
+		m_Start += dropped;
+		m_Discarded += dropped;
+	}
+
+	/**
+	 * Returns the number of bytes buffered but not yet decoded.
+	 *
+	 * @return the number of pending bytes.
+	 */
+	public int available() {
+		return m_End - m_Start;
+	}
+
+	/**
+	 * Returns and clears the number of bytes skipped while resynchronizing.
+	 *
+	 * @return the number of discarded bytes since the last call.
+	 */
+	public int takeDiscarded() {
+		int discarded = m_Discarded;
+		m_Discarded = 0;
+		return discarded;
+	}
+
+	/**
+	 * Drops everything buffered, for use when the underlying connection is
+	 * replaced.
+	 */
+	public void clear() {
+		m_Start = 0;
+		m_End = 0;
+		m_Discarded = 0;
+	}
+
+	private void compact() {
+		if (m_Start == 0)
+			return;
+		int remaining = m_End - m_Start;
+		if (remaining > 0)
+			System.arraycopy(m_Buffer, m_Start, m_Buffer, 0, remaining);
+		m_Start = 0;
+		m_End = remaining;
+	}
+}
@@ -0,0 +1,290 @@
+package ca.farrelltonsolar.j2modlite.io;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ca.farrelltonsolar.j2modlite.Modbus;
+import ca.farrelltonsolar.j2modlite.ModbusException;
+import ca.farrelltonsolar.j2modlite.ModbusIOException;
+import ca.farrelltonsolar.j2modlite.ModbusSlaveException;
+import ca.farrelltonsolar.j2modlite.msg.ExceptionResponse;
+import ca.farrelltonsolar.j2modlite.msg.ModbusRequest;
+import ca.farrelltonsolar.j2modlite.msg.ModbusResponse;
+import ca.farrelltonsolar.j2modlite.net.TCPMasterConnection;
+import ca.farrelltonsolar.j2modlite.util.ModbusLog;
+
+/**
+ * Transaction that keeps several requests in flight on one Modbus/TCP
+ * connection.
+ * <p>
+ * Requests are queued with {@link #submit(ModbusRequest)} and sent back to
+ * back by {@link #execute()}, each with its own transaction identifier. Up to
+ * the pipeline depth are outstanding at any time; responses are matched to
+ * their <tt>ModbusFuture</tt> by transaction identifier, so a batch of reads
+ * costs roughly one round trip instead of one per request.
+ */
+public class ModbusTCPPipelinedTransaction {
+
+	private TCPMasterConnection m_Connection;
+	private ModbusTransport m_IO;
+	private List<ModbusFuture> m_Queue = new ArrayList<>();
+	private List<ModbusFuture> m_Pending = new ArrayList<>();
+	// requests written and not yet answered, matched by transaction identifier
+	private int[] m_InFlightIDs = new int[0];
+	private ModbusFuture[] m_InFlight = new ModbusFuture[0];
+	// set where the request went out with nothing ahead of it
+	private boolean[] m_InFlightAlone = new boolean[0];
+	private int m_InFlightCount;
+	private final ModbusResponseFactory m_ResponseFactory = new ModbusResponseFactory() {
+		public ModbusResponse createResponse(int transactionID, int functionCode) {
+			int slot = inFlightSlot(transactionID);
+			if (slot >= 0) {
+				ModbusResponse template = m_InFlight[slot].getResponseTemplate();
+				if (template != null && template.getFunctionCode() == functionCode)
+					return template;
+			}
+			return null;
+		}
+	};
+	private int m_Depth = Modbus.DEFAULT_PIPELINE_DEPTH;
+	private int m_Retries = Modbus.DEFAULT_RETRIES;
+
+	/**
+	 * Constructs a new <tt>ModbusTCPPipelinedTransaction</tt> instance with a
+	 * given <tt>TCPMasterConnection</tt> to be used for transactions.
+	 *
+	 * @param con
+	 *            a <tt>TCPMasterConnection</tt> instance.
+	 */
+	public ModbusTCPPipelinedTransaction(TCPMasterConnection con) {
+		m_Connection = con;
+		m_IO = con.getModbusTransport();
+	}
+
+	/**
+	 * Sets the maximum number of requests that may be outstanding at once.
+	 *
+	 * @param depth
+	 *            the pipeline depth, at least 1.
+	 */
+	public void setDepth(int depth) {
+		m_Depth = depth > 0 ? depth : 1;
+	}
+
+	public int getDepth() {
+		return m_Depth;
+	}
+
+	public int getRetries() {
+		return m_Retries;
+	}
+
+	public void setRetries(int num) {
+		m_Retries = num;
+	}
+
+	/**
+	 * Queues a request to be sent on the next call to {@link #execute()}. The
+	 * request instance must not be shared with another pending request since
+	 * its transaction identifier is assigned when it is sent.
+	 *
+	 * @param req
+	 *            the <tt>ModbusRequest</tt> to send.
+	 * @return the <tt>ModbusFuture</tt> that will hold the response.
+	 */
+	public synchronized ModbusFuture submit(ModbusRequest req) {
+		return submit(req, null);
+	}
+
+	/**
+	 * Queues a request whose response should be decoded into
+	 * <tt>template</tt> rather than a newly created response.
+	 *
+	 * @param req
+	 *            the <tt>ModbusRequest</tt> to send.
+	 * @param template
+	 *            the response instance to reuse, may be <tt>null</tt>.
+	 * @return the <tt>ModbusFuture</tt> that will hold the response.
+	 */
+	public synchronized ModbusFuture submit(ModbusRequest req, ModbusResponse template) {
+		return submit(new ModbusFuture(req, template));
+	}
+
+	/**
+	 * Queues a future prepared by the caller, e.g. one kept from an earlier
+	 * batch and {@link ModbusFuture#reset reset} to a request.
+	 *
+	 * @param future
+	 *            the <tt>ModbusFuture</tt> holding the request to send.
+	 * @return <tt>future</tt>.
+	 */
+	public synchronized ModbusFuture submit(ModbusFuture future) {
+		m_Queue.add(future);
+		return future;
+	}
+
+	/**
+	 * Sends every queued request and reads responses until each future has
+	 * been completed or failed. Requests left unanswered after an I/O error
+	 * are sent again, up to the retry count.
+	 *
+	 * @throws ModbusException
+	 *             if the connection could not be established. Failures of
+	 *             individual requests are reported through their futures.
+	 */
+	public synchronized void execute() throws ModbusException {
+		if (m_Queue.isEmpty())
+			return;
+
+		// the queue becomes the pending list, neither is copied
+		List<ModbusFuture> pending = m_Queue;
+		m_Queue = m_Pending;
+		m_Queue.clear();
+		m_Pending = pending;
+
+		if (!m_Connection.isConnected()) {
+			try {
+				m_Connection.connect();
+				m_IO = m_Connection.getModbusTransport();
+			} catch (Exception ex) {
+				ModbusIOException failure = new ModbusIOException("Connection failed.");
+				failAll(pending, failure);
+				throw failure;
+			}
+		}
+
+		int retryCounter = 0;
+		int retryLimit = (m_Retries > 0 ? m_Retries : 1);
+		while (true) {
+			try {
+				synchronized (m_IO) {
+					m_Connection.setReadTimeout(timeoutFor(pending, retryCounter));
+					exchange(pending, retryCounter == 0);
+				}
+				return;
+			} catch (ModbusIOException ex) {
+				if (Modbus.debug)
+					ModbusLog.d(getClass().getName(), "pipelined exchange failed: " + ex.getMessage());
+
+				for (int i = pending.size() - 1; i >= 0; i--) {
+					if (pending.get(i).isDone())
+						pending.remove(i);
+				}
+
+				if (ex.isEOF())
+					m_Connection.close();
+				if (++retryCounter >= retryLimit) {
+					failAll(pending, new ModbusIOException(
+							"Executing transaction failed (tried " + m_Retries + " times)", ex.isEOF()));
+					return;
+				}
+				m_Connection.getMetrics().recordRetry();
+				if (!m_Connection.isConnected()) {
+					try {
+						m_Connection.connect();
+						m_IO = m_Connection.getModbusTransport();
+					} catch (Exception e) {
+						failAll(pending, new ModbusIOException("Connection lost."));
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the longest timeout any of the pending requests needs on this
+	 * attempt, responses to all of them are read with the same socket.
+	 */
+	private int timeoutFor(List<ModbusFuture> pending, int attempt) {
+		int timeout = 0;
+		int lastFunctionCode = -1;
+		for (int i = 0; i < pending.size(); i++) {
+			int functionCode = pending.get(i).getRequest().getFunctionCode();
+			if (functionCode != lastFunctionCode) {
+				timeout = Math.max(timeout, m_Connection.getTimeout(functionCode, attempt));
+				lastFunctionCode = functionCode;
+			}
+		}
+		return timeout;
+	}
+
+	/**
+	 * Keeps the pipeline full and matches responses until all futures in
+	 * <tt>pending</tt> are done. The caller must hold the transport lock.
+	 * Round trip times are fed to the timeout estimate when <tt>sample</tt>
+	 * is set, i.e. on the first attempt, but only those of requests sent into
+	 * an empty pipeline; the others include the wait behind earlier responses,
+	 * which only the latency metrics count.
+	 */
+	private void exchange(List<ModbusFuture> pending, boolean sample) throws ModbusIOException {
+		if (m_InFlight.length < m_Depth) {
+			m_InFlightIDs = new int[m_Depth];
+			m_InFlight = new ModbusFuture[m_Depth];
+			m_InFlightAlone = new boolean[m_Depth];
+		}
+		m_InFlightCount = 0; // answers to an earlier attempt are strays now
+		ModbusMetrics metrics = m_Connection.getMetrics();
+		TimeoutEstimator estimator = sample ? m_Connection.getTimeoutEstimator() : null;
+		int next = 0;
+		int strays = 0;
+
+		while (next < pending.size() || m_InFlightCount > 0) {
+			while (next < pending.size() && m_InFlightCount < m_Depth) {
+				ModbusFuture future = pending.get(next++);
+				ModbusRequest request = future.getRequest();
+				int tid = m_Connection.nextTransactionID();
+				request.setTransactionID(tid);
+				if (future.getSentTime() == 0)
+					future.setSentTime(System.nanoTime());
+				m_IO.writeMessage(request);
+				m_InFlightIDs[m_InFlightCount] = tid;
+				m_InFlightAlone[m_InFlightCount] = m_InFlightCount == 0;
+				m_InFlight[m_InFlightCount++] = future;
+			}
+
+			ModbusResponse response = m_IO.readResponse(m_ResponseFactory);
+			int slot = inFlightSlot(response.getTransactionID());
+			if (slot < 0) {
+				// a late answer to a request from an earlier attempt
+				if (Modbus.debug)
+					ModbusLog.w(getClass().getName(), "discarding response with unknown transaction ID " + response.getTransactionID());
+				if (++strays > m_Depth * 2)
+					throw new ModbusIOException("Too many unmatched responses");
+				continue;
+			}
+			ModbusFuture future = m_InFlight[slot];
+			boolean alone = m_InFlightAlone[slot];
+			m_InFlightCount--;
+			m_InFlightIDs[slot] = m_InFlightIDs[m_InFlightCount];
+			m_InFlightAlone[slot] = m_InFlightAlone[m_InFlightCount];
+			m_InFlight[slot] = m_InFlight[m_InFlightCount];
+			m_InFlight[m_InFlightCount] = null;
+			long elapsed = System.nanoTime() - future.getSentTime();
+			metrics.recordLatency(future.getRequest().getFunctionCode(), elapsed);
+			if (estimator != null && alone)
+				estimator.sample(future.getRequest().getFunctionCode(), elapsed);
+			if (response instanceof ExceptionResponse) {
+				future.fail(new ModbusSlaveException(((ExceptionResponse) response).getExceptionCode()));
+			} else {
+				future.complete(response);
+			}
+		}
+	}
+
+	private int inFlightSlot(int transactionID) {
+		for (int i = 0; i < m_InFlightCount; i++) {
+			if (m_InFlightIDs[i] == transactionID)
+				return i;
+		}
+		return -1;
+	}
+
+	private void failAll(List<ModbusFuture> futures, ModbusException ex) {
+		ModbusMetrics metrics = m_Connection.getMetrics();
+		for (ModbusFuture future : futures) {
+			metrics.recordFailure();
+			future.fail(ex);
+		}
+	}
+}
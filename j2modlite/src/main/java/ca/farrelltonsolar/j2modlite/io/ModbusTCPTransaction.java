@@ -33,8 +33,6 @@
  ***/
 package ca.farrelltonsolar.j2modlite.io;
 
-import android.util.Log;
-
 import ca.farrelltonsolar.j2modlite.Modbus;
 import ca.farrelltonsolar.j2modlite.ModbusException;
 import ca.farrelltonsolar.j2modlite.ModbusIOException;
@@ -43,6 +41,7 @@ import ca.farrelltonsolar.j2modlite.msg.ExceptionResponse;
 import ca.farrelltonsolar.j2modlite.msg.ModbusRequest;
 import ca.farrelltonsolar.j2modlite.msg.ModbusResponse;
 import ca.farrelltonsolar.j2modlite.net.TCPMasterConnection;
+import ca.farrelltonsolar.j2modlite.util.ModbusLog;
 
 /**
  * Class implementing the <tt>ModbusTransaction</tt> interface.
@@ -55,17 +54,24 @@ import ca.farrelltonsolar.j2modlite.net.TCPMasterConnection;
  */
 public class ModbusTCPTransaction implements ModbusTransaction {
 
-	// class attributes
-	private static int c_TransactionID = Modbus.DEFAULT_TRANSACTION_ID;
-
 	// instance attributes and associations
 	private TCPMasterConnection m_Connection;
 	private ModbusTransport m_IO;
 	private ModbusRequest m_Request;
 	private ModbusResponse m_Response;
+	private ModbusResponse m_ResponseTemplate;
 	private boolean m_ValidityCheck = Modbus.DEFAULT_VALIDITYCHECK;
 	private boolean m_Reconnecting = Modbus.DEFAULT_RECONNECTING;
 	private int m_Retries = Modbus.DEFAULT_RETRIES;
+	private final ModbusResponseFactory m_ResponseFactory = new ModbusResponseFactory() {
+		public ModbusResponse createResponse(int transactionID, int functionCode) {
+			if (m_ResponseTemplate != null
+					&& m_ResponseTemplate.getFunctionCode() == functionCode
+					&& (m_Request.getTransactionID() == 0 || m_Request.getTransactionID() == transactionID))
+				return m_ResponseTemplate;
+			return null;
+		}
+	};
 
 	/**
 	 * Constructs a new <tt>ModbusTCPTransaction</tt> instance.
@@ -127,17 +133,25 @@ public class ModbusTCPTransaction implements ModbusTransaction {
 	}
 
 	/**
-	 * getTransactionID -- get the next transaction ID to use.
+	 * Sets a response instance that the reply to the next request should be
+	 * decoded into, instead of a newly created one. The template is only used
+	 * when its function code matches the reply.
+	 * <p>
 	 * 
-	 * Note that this method is not synchronized. Callers should synchronize
-	 * on this class instance if multiple threads can create requests at the
-	 * same time.
+	 * @param template
+	 *            the response to reuse, or <tt>null</tt> to create one per
+	 *            execution.
 	 */
-	public int getTransactionID() {
-		if (c_TransactionID == 0 && isCheckingValidity())
-			c_TransactionID++;
+	public void setResponseTemplate(ModbusResponse template) {
+		m_ResponseTemplate = template;
+	}
 
-		return c_TransactionID;
+	/**
+	 * getTransactionID -- get the transaction ID of the request, assigned
+	 * from the connection's sequence when the transaction is executed.
+	 */
+	public int getTransactionID() {
+		return m_Request != null ? m_Request.getTransactionID() : Modbus.DEFAULT_TRANSACTION_ID;
 	}
 
 	public void setCheckingValidity(boolean b) {
@@ -200,24 +214,34 @@ public class ModbusTCPTransaction implements ModbusTransaction {
 		 * Try sending the message up to m_Retries time. Note that the message
 		 * is read immediately after being written, with no flushing of buffers.
 		 */
+		/*
+		 * Number the request from the connection's sequence, which pipelined
+		 * transactions on the same socket share.
+		 */
+		if (isCheckingValidity())
+			m_Request.setTransactionID(m_Connection.nextTransactionID());
+
 		int retryCounter = 0;
 		int retryLimit = (m_Retries > 0 ? m_Retries:1);
+		ModbusMetrics metrics = m_Connection.getMetrics();
+		long start = System.nanoTime();
 		
 		while (retryCounter < retryLimit) {
 			try {
 				synchronized (m_IO) {
 					if (Modbus.debug)
-                        Log.d(getClass().getName(), "request transaction ID = " + m_Request.getTransactionID());
+                        ModbusLog.d(getClass().getName(), "request transaction ID = " + m_Request.getTransactionID());
 					
+					m_Connection.setReadTimeout(m_Connection.getTimeout(m_Request.getFunctionCode(), retryCounter));
 					m_IO.writeMessage(m_Request);
 					m_Response = null;
 					do {
-						m_Response = m_IO.readResponse();
+						m_Response = m_IO.readResponse(m_ResponseFactory);
 						if (Modbus.debug) {
-                            Log.d(getClass().getName(), "response transaction ID = " + m_Response.getTransactionID());
+                            ModbusLog.d(getClass().getName(), "response transaction ID = " + m_Response.getTransactionID());
 						
 							if (m_Response.getTransactionID() != m_Request.getTransactionID()) {
-                                Log.w(getClass().getName(), "expected " + m_Request.getTransactionID() +
+                                ModbusLog.w(getClass().getName(), "expected " + m_Request.getTransactionID() +
 										", got " + m_Response.getTransactionID());
 							}
 						}
@@ -229,6 +253,7 @@ public class ModbusTCPTransaction implements ModbusTransaction {
 							&& ++retryCounter < retryLimit);
 
 					if (retryCounter >= retryLimit) {
+						metrics.recordFailure();
 						throw new ModbusIOException(
 								"Executing transaction failed (tried "
 										+ m_Retries + " times)");
@@ -241,6 +266,12 @@ public class ModbusTCPTransaction implements ModbusTransaction {
 					break;
 				}
 			} catch (ModbusIOException ex) {
+				/*
+				 * A reset or closed connection still looks open from this
+				 * end (half-open), so close it and let the retry reconnect.
+				 */
+				if (ex.isEOF())
+					m_Connection.close();
 				if (! m_Connection.isConnected()) {
 					try {
 						m_Connection.connect();
@@ -248,20 +279,36 @@ public class ModbusTCPTransaction implements ModbusTransaction {
 						/*
 						 * Nope, fail this transaction.
 						 */
+						metrics.recordFailure();
 						throw new ModbusIOException("Connection lost.");
 					}
 				}
 				if (retryCounter >= retryLimit) {
+					metrics.recordFailure();
 					throw new ModbusIOException(
 							"Executing transaction failed (tried " + m_Retries
 									+ " times)");
 				} else {
 					retryCounter++;
+					metrics.recordRetry();
 					continue;
 				}
 			}
 		}
 
+		/*
+		 * Time from the first write to the matching response, retries
+		 * included, which is what the caller waited. Only a first attempt
+		 * is a clean round trip sample for the timeout estimate.
+		 */
+		if (m_Response != null) {
+			long elapsed = System.nanoTime() - start;
+			metrics.recordLatency(m_Request.getFunctionCode(), elapsed);
+			TimeoutEstimator estimator = m_Connection.getTimeoutEstimator();
+			if (estimator != null && retryCounter == 0)
+				estimator.sample(m_Request.getFunctionCode(), elapsed);
+		}
+
 		/*
 		 * The slave may have returned an exception -- check for that.
 		 */
@@ -280,8 +327,6 @@ public class ModbusTCPTransaction implements ModbusTransaction {
 		 */
 		if (isCheckingValidity() && m_Request != null && m_Response != null)
 			checkValidity();
-
-		incrementTransactionID();
 	}
 
 	/**
@@ -298,23 +343,4 @@ public class ModbusTCPTransaction implements ModbusTransaction {
 		if (m_Request.getTransactionID() != m_Response.getTransactionID())
 			throw new ModbusException("Transaction ID mismatch");
 	}
-
-	/**
-	 * incrementTransactionID -- Increment the transaction ID for the next
-	 * transaction. Note that the caller must get the new transaction ID with
-	 * getTransactionID(). This is only done validity checking is enabled so
-	 * that dumb slaves don't cause problems. The original request will have its
-	 * transaction ID incremented as well so that sending the same transaction
-	 * again won't cause problems.
-	 */
-	private void incrementTransactionID() {
-		if (isCheckingValidity()) {
-			if (c_TransactionID == Modbus.MAX_TRANSACTION_ID) {
-				c_TransactionID = 1;
-			} else {
-				c_TransactionID++;
-			}
-		}
-		m_Request.setTransactionID(getTransactionID());
-	}
 }
@@ -33,8 +33,6 @@
  ***/
 package ca.farrelltonsolar.j2modlite.io;
 
-import android.util.Log;
-
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
@@ -51,6 +49,7 @@ import ca.farrelltonsolar.j2modlite.msg.ModbusMessage;
 import ca.farrelltonsolar.j2modlite.msg.ModbusRequest;
 import ca.farrelltonsolar.j2modlite.msg.ModbusResponse;
 import ca.farrelltonsolar.j2modlite.net.TCPMasterConnection;
+import ca.farrelltonsolar.j2modlite.util.ModbusLog;
 import ca.farrelltonsolar.j2modlite.util.ModbusUtil;
 
 /**
@@ -73,6 +72,9 @@ public class ModbusTCPTransport implements ca.farrelltonsolar.j2modlite.io.Modbu
 	private Socket m_Socket = null;
 	private	TCPMasterConnection m_Master = null;
 	private boolean headless = false; // Some TCP implementations are.
+	private final ModbusTCPFrameDecoder m_Decoder = new ModbusTCPFrameDecoder();
+	private ModbusMetrics m_Metrics = null;
+	private FrameTracer m_Tracer = null;
 
 	/**
 	 * Sets the <tt>Socket</tt> used for message transport and prepares the
@@ -94,6 +96,27 @@ public class ModbusTCPTransport implements ca.farrelltonsolar.j2modlite.io.Modbu
 		prepareStreams(socket);
 	}// setSocket
 
+	/**
+	 * Sets the <tt>ModbusMetrics</tt> that byte counts and read timeouts are
+	 * recorded into.
+	 * 
+	 * @param metrics
+	 *            the metrics to record into, may be <tt>null</tt>.
+	 */
+	public void setMetrics(ModbusMetrics metrics) {
+		m_Metrics = metrics;
+	}
+
+	/**
+	 * Sets the <tt>FrameTracer</tt> every frame written or read is passed to.
+	 * 
+	 * @param tracer
+	 *            the tracer, or <tt>null</tt> to turn tracing off.
+	 */
+	public void setTracer(FrameTracer tracer) {
+		m_Tracer = tracer;
+	}
+
 	public void setHeadless() {
 		headless = true;
 	}
@@ -143,11 +166,12 @@ public class ModbusTCPTransport implements ca.farrelltonsolar.j2modlite.io.Modbu
 			if (message != null && message.length > 0)
 				m_ByteOut.write(message);
 
-			m_Output.write(m_ByteOut.toByteArray());
+			m_Output.write(m_ByteOut.getBuffer(), 0, m_ByteOut.size());
 			m_Output.flush();
-			if (Modbus.debug)
-                Log.d(getClass().getName(), "Sent: "
-						+ ModbusUtil.toHex(m_ByteOut.toByteArray()));
+			if (m_Metrics != null)
+				m_Metrics.recordBytesOut(m_ByteOut.size());
+			if (m_Tracer != null)
+				m_Tracer.trace(true, m_ByteOut.getBuffer(), 0, m_ByteOut.size());
 			// write more sophisticated exception handling
 		} catch (SocketException ex) {
 			if (m_Master != null && !m_Master.isConnected()) {
@@ -158,7 +182,7 @@ public class ModbusTCPTransport implements ca.farrelltonsolar.j2modlite.io.Modbu
 				}
 			}
 			ex.printStackTrace();
-			throw new ModbusIOException("I/O exception - failed to write.");
+			throw new ModbusIOException("I/O exception - failed to write.", true);
 		} catch (Exception ex) {
 			throw new ModbusIOException("I/O exception - failed to write.");
 		}
@@ -178,26 +202,14 @@ public class ModbusTCPTransport implements ca.farrelltonsolar.j2modlite.io.Modbu
 			m_ByteIn.reset();
 
 			synchronized (m_ByteIn) {
-				byte[] buffer = m_ByteIn.getBuffer();
-
 				if (!headless) {
-					if (m_Input.read(buffer, 0, 6) == -1)
-						throw new EOFException(
-								"Premature end of stream (Header truncated).");
+					readFrame();
+					byte[] buffer = m_ByteIn.getBuffer();
 
 					int transaction = ModbusUtil.registerToShort(buffer, 0);
 					int protocol = ModbusUtil.registerToShort(buffer, 2);
 					int count = ModbusUtil.registerToShort(buffer, 4);
 
-					if (m_Input.read(buffer, 6, count) == -1)
-						throw new ModbusIOException(
-								"Premature end of stream (Message truncated).");
-
-					if (Modbus.debug)
-                        Log.d(getClass().getName(), "Read: "
-								+ ModbusUtil.toHex(buffer, 0, count + 6));
-					
-					m_ByteIn.reset(buffer, (6 + count));
 					m_ByteIn.skip(6);
 
 					int unit = m_ByteIn.readByte();
@@ -233,7 +245,7 @@ public class ModbusTCPTransport implements ca.farrelltonsolar.j2modlite.io.Modbu
 					 */
 					m_Input.readShort();
 					if (Modbus.debug)
-                        Log.d(getClass().getName(), "Read: "	+ req.getHexMessage());
+                        ModbusLog.d(getClass().getName(), "Read: "	+ req.getHexMessage());
 				}
 			}
 			return req;
@@ -249,52 +261,33 @@ public class ModbusTCPTransport implements ca.farrelltonsolar.j2modlite.io.Modbu
 	}
 
 	public ModbusResponse readResponse() throws ModbusIOException {
+		return readResponse(null);
+	}
+
+	public ModbusResponse readResponse(ModbusResponseFactory factory) throws ModbusIOException {
 
 		try {
 
 			ModbusResponse response = null;
 
 			synchronized (m_ByteIn) {
-				// use same buffer
-				byte[] buffer = m_ByteIn.getBuffer();
-				if (Modbus.debug)
-                    Log.d(getClass().getName(), "Read: " +
-							ModbusUtil.toHex(buffer, 0, m_ByteIn.count));
-				
 				if (!headless) {
 					/*
-					 * All Modbus TCP transactions start with 6 bytes. Get them.
-					 */
-					if (m_Input.read(buffer, 0, 6) == -1)
-						throw new ModbusIOException(
-								"Premature end of stream (Header truncated).");
-
-					/*
-					 * The transaction ID is the first word (offset 0) in the
-					 * data that was just read. It will be echoed back to the
-					 * requester.
-					 * 
-					 * The protocol ID is the second word (offset 2) in the
-					 * data. It should always be 0, but I don't check.
-					 * 
-					 * The length of the payload is the third word (offset 4) in
-					 * the data that was just read. That's what I need in order
-					 * to read the rest of the response.
+					 * All Modbus TCP transactions start with a 6 byte header
+					 * holding the transaction ID, the protocol ID (always 0)
+					 * and the length of the rest of the frame. readFrame()
+					 * collects exactly that many bytes, however they are
+					 * split up on the wire.
 					 */
+					readFrame();
+					byte[] buffer = m_ByteIn.getBuffer();
 					int transaction = ModbusUtil.registerToShort(buffer, 0);
 					int protocol = ModbusUtil.registerToShort(buffer, 2);
-					int count = ModbusUtil.registerToShort(buffer, 4);
-
-					if (m_Input.read(buffer, 6, count) == -1)
-						throw new ModbusIOException(
-								"Premature end of stream (Message truncated).");
-
-					m_ByteIn.reset(buffer, (6 + count));
 
 					m_ByteIn.reset();
 					m_ByteIn.skip(7);
 					int function = m_ByteIn.readUnsignedByte();
-					response = ModbusResponse.createModbusResponse(function);
+					response = createResponse(factory, transaction, function);
 
 					/*
 					 * Rewind the input buffer, then read the data into the
@@ -313,7 +306,7 @@ public class ModbusTCPTransport implements ca.farrelltonsolar.j2modlite.io.Modbu
 					int unit = m_Input.readByte();
 					int function = m_Input.readByte();
 
-					response = ModbusResponse.createModbusResponse(function);
+					response = createResponse(factory, Modbus.DEFAULT_TRANSACTION_ID, function);
 					response.setUnitID(unit);
 					response.setHeadless();
 					response.readData(m_Input);
@@ -326,13 +319,66 @@ public class ModbusTCPTransport implements ca.farrelltonsolar.j2modlite.io.Modbu
 				}
 			}
 			return response;
+		} catch (EOFException eoex) {
+			throw new ModbusIOException("End of File", true);
 		} catch (SocketTimeoutException ex) {
 			throw new ModbusIOException("Timeout reading response");
+		} catch (SocketException sockex) {
+			throw new ModbusIOException("Socket Exception", true);
 		} catch (Exception ex) {
 			throw new ModbusIOException("I/O exception - failed to read.");
 		}
 	}
 
+	/**
+	 * Reads the next complete Modbus/TCP frame into <tt>m_ByteIn</tt>.
+	 * <p>
+	 * Bytes that were read but not consumed, such as the start of a frame
+	 * whose remainder is still in flight, are kept for the next call. Bytes
+	 * that cannot start a frame are skipped as soon as they arrive. If the
+	 * socket times out while part of a frame is buffered, that frame is
+	 * assumed lost and the decoder resynchronizes past its header rather
+	 * than waiting on it forever.
+	 *
+	 * @throws IOException
+	 *             on end of stream, timeout or socket error.
+	 */
+	private void readFrame() throws IOException {
+		try {
+			while (!m_Decoder.nextFrame(m_ByteIn)) {
+				int n = m_Decoder.fill(m_Input);
+				if (n == -1)
+					throw new EOFException("Premature end of stream.");
+				if (m_Metrics != null)
+					m_Metrics.recordBytesIn(n);
+			}
+			if (m_Tracer != null)
+				m_Tracer.trace(false, m_ByteIn.getBuffer(), 0, m_ByteIn.count);
+		} catch (SocketTimeoutException ex) {
+			if (m_Metrics != null)
+				m_Metrics.recordTimeout();
+			m_Decoder.resync();
+			throw ex;
+		} finally {
+			int discarded = m_Decoder.takeDiscarded();
+			if (discarded > 0 && Modbus.debug)
+				ModbusLog.w(getClass().getName(), "skipped " + discarded + " bytes to resynchronize");
+		}
+	}
+
+	/**
+	 * Returns the response instance to decode a frame into, preferring the
+	 * one offered by <tt>factory</tt>.
+	 */
+	private static ModbusResponse createResponse(ModbusResponseFactory factory, int transaction, int function) {
+		ModbusResponse response = null;
+		if (factory != null)
+			response = factory.createResponse(transaction, function);
+		if (response == null)
+			response = ModbusResponse.createModbusResponse(function);
+		return response;
+	}
+
 	/**
 	 * Prepares the input and output streams of this <tt>ModbusTCPTransport</tt>
 	 * instance based on the given socket.
@@ -368,6 +414,7 @@ public class ModbusTCPTransport implements ca.farrelltonsolar.j2modlite.io.Modbu
 		 * Modbus/TCP adds a header which must be accounted for.
 		 */
 		m_ByteIn = new BytesInputStream(Modbus.MAX_MESSAGE_LENGTH+6);
+		m_Decoder.clear();
 
 		m_ByteOut = new BytesOutputStream(Modbus.MAX_MESSAGE_LENGTH+6);
 	}
@@ -386,7 +433,7 @@ public class ModbusTCPTransport implements ca.farrelltonsolar.j2modlite.io.Modbu
 			socket.setSoTimeout(m_Timeout);
 		} catch (IOException ex) {
 			if (Modbus.debug)
-                Log.w(getClass().getName(), "ModbusTCPTransport::Socket invalid.");
+                ModbusLog.w(getClass().getName(), "ModbusTCPTransport::Socket invalid.");
 
 			throw new IllegalStateException("Socket invalid.");
 		}
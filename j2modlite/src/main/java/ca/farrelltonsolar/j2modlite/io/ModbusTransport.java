@@ -99,4 +99,18 @@ public interface ModbusTransport {
    */
   public ModbusResponse readResponse() throws ModbusIOException;
 
+  /**
+   * Reads a <tt>ModbusResponse</tt> from the
+   * input stream of this <tt>ModbusTransport<tt>,
+   * decoding it into the instance supplied by
+   * <tt>factory</tt> when it provides one.
+   * <p>
+   * @param factory supplies the response instance, may be <tt>null</tt>.
+   * @return res the <tt>ModbusResponse</tt> read from the underlying stream.
+   * @throws ModbusIOException data cannot be
+   *         read properly from the raw input stream of
+   *         this <tt>ModbusTransport</tt>.
+   */
+  public ModbusResponse readResponse(ModbusResponseFactory factory) throws ModbusIOException;
+
 }//class ModbusTransport
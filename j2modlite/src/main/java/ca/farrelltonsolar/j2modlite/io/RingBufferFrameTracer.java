@@ -0,0 +1,99 @@
+package ca.farrelltonsolar.j2modlite.io;
+
+import ca.farrelltonsolar.j2modlite.Modbus;
+import ca.farrelltonsolar.j2modlite.util.ModbusUtil;
+
+/**
+ * <tt>FrameTracer</tt> that keeps the most recent frames of a connection in a
+ * fixed-size ring buffer.
+ * <p>
+ * All storage is allocated up front; tracing a frame is a timestamp and an
+ * array copy, and nothing is formatted until {@link #dump()} is called.
+ * Frames longer than a Modbus/TCP frame are truncated.
+ */
+public class RingBufferFrameTracer implements FrameTracer {
+
+	/**
+	 * Default number of frames kept (=<tt>64</tt>).
+	 */
+	public static final int DEFAULT_CAPACITY = 64;
+
+	private static final int SLOT_SIZE = Modbus.MAX_MESSAGE_LENGTH + 6;
+
+	private final byte[] m_Data;
+	private final long[] m_Time;
+	private final int[] m_Length;
+	private final boolean[] m_Outbound;
+	private int m_Next = 0;
+	private long m_Count = 0;
+
+	public RingBufferFrameTracer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructs a tracer keeping the last <tt>capacity</tt> frames.
+	 *
+	 * @param capacity
+	 *            the number of frames kept, at least 1.
+	 */
+	public RingBufferFrameTracer(int capacity) {
+		if (capacity < 1)
+			capacity = 1;
+		m_Data = new byte[capacity * SLOT_SIZE];
+		m_Time = new long[capacity];
+		m_Length = new int[capacity];
+		m_Outbound = new boolean[capacity];
+	}
+
+	public synchronized void trace(boolean outbound, byte[] frame, int offset, int length) {
+		int slot = m_Next;
+		int stored = Math.min(length, SLOT_SIZE);
+		System.arraycopy(frame, offset, m_Data, slot * SLOT_SIZE, stored);
+		m_Time[slot] = System.currentTimeMillis();
+		m_Length[slot] = length;
+		m_Outbound[slot] = outbound;
+		m_Next = (slot + 1) % m_Time.length;
+		m_Count++;
+	}
+
+	/**
+	 * Returns the total number of frames traced, including those that have
+	 * since been overwritten.
+	 *
+	 * @return the frame count.
+	 */
+	public synchronized long getCount() {
+		return m_Count;
+	}
+
+	/**
+	 * Discards all traced frames.
+	 */
+	public synchronized void clear() {
+		m_Next = 0;
+		m_Count = 0;
+	}
+
+	/**
+	 * Formats the frames currently held, oldest first, one per line as
+	 * <tt>time direction length hex</tt>.
+	 *
+	 * @return the formatted trace.
+	 */
+	public synchronized String dump() {
+		int capacity = m_Time.length;
+		int held = (int) Math.min(m_Count, capacity);
+		int first = (m_Next - held + capacity) % capacity;
+		StringBuilder sb = new StringBuilder(held * 64);
+		for (int i = 0; i < held; i++) {
+			int slot = (first + i) % capacity;
+			sb.append(m_Time[slot])
+					.append(m_Outbound[slot] ? " > " : " < ")
+					.append(m_Length[slot]).append(' ')
+					.append(ModbusUtil.toHex(m_Data, slot * SLOT_SIZE, Math.min(m_Length[slot], SLOT_SIZE)))
+					.append('\n');
+		}
+		return sb.toString();
+	}
+}
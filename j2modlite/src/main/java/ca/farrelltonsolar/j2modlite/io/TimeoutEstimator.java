@@ -0,0 +1,120 @@
+package ca.farrelltonsolar.j2modlite.io;
+
+import ca.farrelltonsolar.j2modlite.Modbus;
+
+/**
+ * Derives response timeouts from the round trip times a connection has
+ * actually seen, the way TCP computes its retransmission timeout.
+ * <p>
+ * A smoothed round trip time and its mean deviation are kept per function
+ * code, since a slave may answer a register read far quicker than a log file
+ * read. The timeout is the smoothed time plus four deviations, clamped to the
+ * minimum and maximum, and doubled for every retry of the same request. Until
+ * a function code has been sampled the connection's configured timeout is
+ * used unchanged.
+ * <p>
+ * Only requests answered on their first attempt are sampled, a response to a
+ * retried request can not be matched to the attempt it answers.
+ */
+public class TimeoutEstimator {
+
+	private final int[] m_Smoothed = new int[256]; // microseconds, 0 until sampled
+	private final int[] m_Deviation = new int[256];
+	private int m_MinTimeout = Modbus.DEFAULT_MIN_TIMEOUT;
+	private int m_MaxTimeout = Modbus.DEFAULT_MAX_TIMEOUT;
+
+	/**
+	 * Records the round trip time of a request answered on its first attempt.
+	 *
+	 * @param functionCode
+	 *            the function code of the request.
+	 * @param nanos
+	 *            the time from writing the request to reading its response.
+	 */
+	public synchronized void sample(int functionCode, long nanos) {
+		int index = functionCode & 0xff;
+		int rtt = (int) Math.max(1, Math.min(nanos / 1000, Integer.MAX_VALUE / 8));
+		if (m_Smoothed[index] == 0) {
+			m_Smoothed[index] = rtt;
+			m_Deviation[index] = rtt / 2;
+		} else {
+			int error = rtt - m_Smoothed[index];
+			m_Smoothed[index] += error / 8;
+			if (m_Smoothed[index] < 1)
+				m_Smoothed[index] = 1;
+			m_Deviation[index] += (Math.abs(error) - m_Deviation[index]) / 4;
+		}
+	}
+
+	/**
+	 * Returns the timeout to wait for the response to an attempt.
+	 *
+	 * @param functionCode
+	 *            the function code of the request.
+	 * @param attempt
+	 *            0 for the first attempt, 1 for the first retry and so on.
+	 * @param fallback
+	 *            the timeout in milliseconds to use until the function code
+	 *            has been sampled.
+	 * @return the timeout in milliseconds.
+	 */
+	public synchronized int getTimeout(int functionCode, int attempt, int fallback) {
+		int index = functionCode & 0xff;
+		if (m_Smoothed[index] == 0)
+			return fallback;
+		long timeout = (m_Smoothed[index] + 4L * m_Deviation[index] + 999) / 1000;
+		timeout = Math.max(m_MinTimeout, Math.min(m_MaxTimeout, timeout));
+		timeout <<= Math.min(attempt, 16);
+		return (int) Math.min(m_MaxTimeout, timeout);
+	}
+
+	/**
+	 * Returns the smoothed round trip time of a function code.
+	 *
+	 * @param functionCode
+	 *            the function code.
+	 * @return the smoothed round trip time in microseconds, 0 if not sampled.
+	 */
+	public synchronized int getSmoothedRTT(int functionCode) {
+		return m_Smoothed[functionCode & 0xff];
+	}
+
+	public int getMinTimeout() {
+		return m_MinTimeout;
+	}
+
+	/**
+	 * Sets the shortest timeout ever returned, which keeps a burst of very
+	 * quick answers from making the next slightly slower one time out.
+	 *
+	 * @param timeout
+	 *            the minimum timeout in milliseconds.
+	 */
+	public void setMinTimeout(int timeout) {
+		m_MinTimeout = timeout;
+	}
+
+	public int getMaxTimeout() {
+		return m_MaxTimeout;
+	}
+
+	/**
+	 * Sets the longest timeout ever returned, retries included.
+	 *
+	 * @param timeout
+	 *            the maximum timeout in milliseconds.
+	 */
+	public void setMaxTimeout(int timeout) {
+		m_MaxTimeout = timeout;
+	}
+
+	/**
+	 * Forgets all samples, e.g. after the slave moved to another network.
+	 */
+	public synchronized void reset() {
+		for (int i = 0; i < m_Smoothed.length; i++) {
+			m_Smoothed[i] = 0;
+			m_Deviation[i] = 0;
+		}
+	}
+}
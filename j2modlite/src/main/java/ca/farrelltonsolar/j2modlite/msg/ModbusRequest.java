@@ -178,6 +178,9 @@ public abstract class ModbusRequest extends ModbusMessageImpl {
 		case Modbus.READ_MEI:
 			request = new ReadMEIRequest();
 			break;
+		case Modbus.READ_LOG_FILE:
+			request = new ReadFileTransferRequest();
+			break;
 		default:
 			request = new IllegalFunctionRequest(functionCode);
 			break;
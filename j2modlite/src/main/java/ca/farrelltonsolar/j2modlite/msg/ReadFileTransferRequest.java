@@ -26,6 +26,17 @@ public class ReadFileTransferRequest extends ModbusRequest {
         setDataLength(10);
     }
 
+    /**
+     * Constructs a new <tt>ReadFileTransferRequest</tt> for the block of
+     * a log starting at entry <tt>day</tt>.
+     */
+    public ReadFileTransferRequest(int device, int category, int day) {
+        this();
+        m_Device = device;
+        m_Category = category;
+        m_Day = day;
+    }
+
 
     public ModbusResponse getResponse() {
         ReadFileTransferResponse response = null;
@@ -59,6 +70,18 @@ public class ReadFileTransferRequest extends ModbusRequest {
         m_Device = val;
     }
 
+    public int getDayIndex() {
+        return m_Day;
+    }
+
+    public int getCategory() {
+        return m_Category;
+    }
+
+    public int getDevice() {
+        return m_Device;
+    }
+
     /**
      * Returns the number of words to be read with this
      * <tt>ReadMultipleRegistersRequest</tt>.
@@ -75,8 +98,12 @@ public class ReadFileTransferRequest extends ModbusRequest {
     }
 
     public void readData(DataInput din) throws IOException {
-//            m_Reference = din.readUnsignedShort();
-//            m_WordCount = din.readUnsignedShort();
+        m_Device = din.readUnsignedByte();
+        din.readUnsignedByte(); // data_len
+        din.skipBytes(2); // reserved
+        long address = din.readInt() & 0xffffffffL;
+        m_Day = (int) (address & 0x03FF);
+        m_Category = (int) ((address >> 10) & 0x003F);
     }
 
     public byte[] getMessage() {
@@ -20,6 +20,10 @@ public class ReadFileTransferResponse extends ModbusResponse {
 
     private int m_ByteCount;
     private Register[] m_Registers;
+    private short[] m_Destination;
+    private int m_Offset;
+    private int m_Limit;
+    private short[] m_Entries;
 
     /**
      * Constructs a new <tt>ReadMultipleRegistersResponse</tt> instance.
@@ -96,10 +100,52 @@ public class ReadFileTransferResponse extends ModbusResponse {
         m_Registers = registers;
     }
 
-    public void writeData(DataOutput dout) throws IOException {
-       // dout.writeByte(m_ByteCount);
+    /**
+     * Decodes the entries of following reads straight into <tt>dst</tt>
+     * instead of creating <tt>Register</tt> objects.
+     * <p/>
+     * The Classic sends a block oldest entry first with each word in little
+     * endian order; the entries are stored most recent first, byte swapped,
+     * from <tt>dst[offset]</tt>. Entries past <tt>limit</tt> are dropped.
+     *
+     * @param dst    the array receiving the entries, null to create registers again.
+     * @param offset the index in <tt>dst</tt> of the most recent entry.
+     * @param limit  the maximum number of entries stored.
+     */
+    public void setDestination(short[] dst, int offset, int limit) {
+        m_Destination = dst;
+        m_Offset = offset;
+        m_Limit = limit;
+    }
 
+    /**
+     * Sets the block of a log this response sends, for a slave answering a
+     * <tt>ReadFileTransferRequest</tt>.
+     * <p/>
+     * Entries are taken most recent first from <tt>log[offset]</tt>, the
+     * order <tt>setDestination</tt> stores them in, and are sent the way the
+     * Classic sends them.
+     *
+     * @param device   the log file, echoed from the request.
+     * @param category the category, echoed from the request.
+     * @param day      the index of the most recent entry of the block.
+     * @param log      the entries of the log, most recent first.
+     * @param offset   the index in <tt>log</tt> of the most recent entry sent.
+     * @param count    the number of entries sent.
+     */
+    public void setEntries(int device, int category, int day, short[] log, int offset, int count) {
+        m_Device = device;
+        m_Category = category;
+        m_DayIndex = day;
+        m_Entries = new short[count];
+        System.arraycopy(log, offset, m_Entries, 0, count);
+        m_Registers = null;
+        m_ByteCount = count * 2;
+        setDataLength(m_ByteCount + 8);
+    }
 
+    public void writeData(DataOutput dout) throws IOException {
+        dout.write(getMessage());
     }
 
     public void readData(DataInput din) throws IOException {
@@ -110,6 +156,18 @@ public class ReadFileTransferResponse extends ModbusResponse {
         m_DayIndex = (int)(address & 0x03FF);
         m_Category = (int)((address >> 10) & 0x003F);
         int count = getWordCount();
+        if (m_Destination != null) {
+            for (int k = 0; k < count; k++) {
+                int lo = din.readUnsignedByte();
+                int hi = din.readByte();
+                int i = count - 1 - k;
+                if (i < m_Limit && m_Offset + i < m_Destination.length)
+                    m_Destination[m_Offset + i] = (short) ((hi << 8) | lo);
+            }
+            m_Registers = null;
+            setDataLength(m_ByteCount + 8);
+            return;
+        }
         m_Registers = new Register[count];
         for (int k = 0; k < count; k++)
             m_Registers[k] = new SimpleRegister(din.readByte(), din.readByte());
@@ -117,8 +175,26 @@ public class ReadFileTransferResponse extends ModbusResponse {
     }
 
     public byte[] getMessage() {
-        byte[] result = new byte[1];
-
+        if (m_Entries == null) {
+            return new byte[1];
+        }
+        int count = m_Entries.length;
+        long address = ((m_Category & 0x003F) << 10) + (m_DayIndex & 0x03FF);
+        byte[] result = new byte[8 + count * 2];
+        result[0] = (byte) (m_Device & 0xff);
+        result[1] = (byte) m_ByteCount;
+        result[2] = (byte) 0xFF; // reserved
+        result[3] = (byte) 0xFF; // reserved
+        result[4] = (byte) ((address >> 24) & 0xff);
+        result[5] = (byte) ((address >> 16) & 0xff);
+        result[6] = (byte) ((address >> 8) & 0xff);
+        result[7] = (byte) (address & 0xff);
+        // oldest entry first, low byte first
+        for (int k = 0; k < count; k++) {
+            short entry = m_Entries[count - 1 - k];
+            result[8 + k * 2] = (byte) (entry & 0xff);
+            result[9 + k * 2] = (byte) ((entry >> 8) & 0xff);
+        }
         return result;
     }
 
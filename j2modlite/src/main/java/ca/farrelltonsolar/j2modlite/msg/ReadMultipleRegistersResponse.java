@@ -57,6 +57,8 @@ public final class ReadMultipleRegistersResponse extends ModbusResponse {
 	// instance attributes
 	private int m_ByteCount;
 	private Register[] m_Registers;
+	private short[] m_Destination;
+	private int m_Offset;
 
 	/**
 	 * Constructs a new <tt>ReadMultipleRegistersResponse</tt> instance.
@@ -141,9 +143,31 @@ public final class ReadMultipleRegistersResponse extends ModbusResponse {
 	 *             if the index is out of bounds.
 	 */
 	public int getRegisterValue(int index) throws IndexOutOfBoundsException {
+		if (m_Registers == null && m_Destination != null) {
+			if (index < 0 || index >= getWordCount())
+				throw new IndexOutOfBoundsException(index + " > " + getWordCount());
+			return m_Destination[m_Offset + index] & 0xffff;
+		}
 		return getRegister(index).toUnsignedShort();
 	}
 
+	/**
+	 * Binds this response to a caller-supplied array. While bound,
+	 * <tt>readData</tt> decodes the register words straight into
+	 * <tt>dst</tt> starting at <tt>offset</tt> and no <tt>Register</tt>
+	 * objects are created, so <tt>getRegisters()</tt> returns <tt>null</tt>.
+	 * 
+	 * @param dst
+	 *            the array receiving the register words, or <tt>null</tt> to
+	 *            unbind.
+	 * @param offset
+	 *            the index of the first word in <tt>dst</tt>.
+	 */
+	public void setDestination(short[] dst, int offset) {
+		m_Destination = dst;
+		m_Offset = offset;
+	}
+
 	/**
 	 * Returns the reference to the array of registers read.
 	 * 
@@ -173,6 +197,17 @@ public final class ReadMultipleRegistersResponse extends ModbusResponse {
 	public void readData(DataInput din) throws IOException {
 		m_ByteCount = din.readUnsignedByte();
 
+		if (m_Destination != null) {
+			int count = getWordCount();
+			if (m_Offset + count > m_Destination.length)
+				throw new IOException("Response of " + count + " words does not fit destination");
+			for (int k = 0; k < count; k++)
+				m_Destination[m_Offset + k] = din.readShort();
+			m_Registers = null;
+			setDataLength(m_ByteCount + 1);
+			return;
+		}
+
 		m_Registers = new Register[getWordCount()];
 
 		for (int k = 0; k < getWordCount(); k++)
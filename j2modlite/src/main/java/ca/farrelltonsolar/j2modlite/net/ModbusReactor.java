@@ -0,0 +1,163 @@
+package ca.farrelltonsolar.j2modlite.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import ca.farrelltonsolar.j2modlite.Modbus;
+import ca.farrelltonsolar.j2modlite.ModbusIOException;
+import ca.farrelltonsolar.j2modlite.io.ModbusNIOTransport;
+import ca.farrelltonsolar.j2modlite.util.ModbusLog;
+
+/**
+ * Single I/O thread that multiplexes any number of Modbus/TCP connections
+ * over one <tt>Selector</tt>.
+ * <p>
+ * Connections are opened with {@link #open(InetAddress, int)}; all socket
+ * reads, writes, frame decoding and response timeouts for them are handled
+ * on the reactor thread, so the number of threads no longer grows with the
+ * number of controllers being polled.
+ */
+public class ModbusReactor implements Runnable {
+
+	/**
+	 * How often, in milliseconds, outstanding requests are checked for
+	 * timeouts when the selector is otherwise idle.
+	 */
+	private static final int SWEEP_INTERVAL = 100;
+
+	private Selector m_Selector;
+	private Thread m_Thread;
+	private volatile boolean m_Running = false;
+	private final ConcurrentLinkedQueue<Runnable> m_Tasks = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Opens the selector and starts the I/O thread.
+	 *
+	 * @throws IOException
+	 *             if the selector cannot be opened.
+	 */
+	public synchronized void start() throws IOException {
+		if (m_Running)
+			return;
+		m_Selector = Selector.open();
+		m_Running = true;
+		m_Thread = new Thread(this, "ModbusReactor");
+		m_Thread.setDaemon(true);
+		m_Thread.start();
+	}
+
+	/**
+	 * Stops the I/O thread. Every open connection is closed and its
+	 * outstanding requests are failed.
+	 */
+	public synchronized void stop() {
+		if (!m_Running)
+			return;
+		m_Running = false;
+		m_Selector.wakeup();
+		m_Thread = null;
+	}
+
+	public boolean isRunning() {
+		return m_Running;
+	}
+
+	/**
+	 * Creates a non-blocking transport to the given slave and starts
+	 * connecting it. Requests may be sent immediately; they are written once
+	 * the connection completes.
+	 *
+	 * @param addr
+	 *            the slave address.
+	 * @param port
+	 *            the slave port.
+	 * @return the new <tt>ModbusNIOTransport</tt>.
+	 */
+	public ModbusNIOTransport open(InetAddress addr, int port) {
+		ModbusNIOTransport transport = new ModbusNIOTransport(this, new InetSocketAddress(addr, port));
+		transport.connect();
+		return transport;
+	}
+
+	/**
+	 * Runs a task on the reactor thread.
+	 *
+	 * @param task
+	 *            the task to run.
+	 */
+	public void execute(Runnable task) {
+		m_Tasks.add(task);
+		Selector selector = m_Selector;
+		if (selector != null)
+			selector.wakeup();
+	}
+
+	/**
+	 * Registers a channel with the selector. Must be called on the reactor
+	 * thread.
+	 */
+	public SelectionKey register(SocketChannel channel, int ops, ModbusNIOTransport transport)
+			throws ClosedChannelException {
+		return channel.register(m_Selector, ops, transport);
+	}
+
+	public void run() {
+		while (m_Running) {
+			try {
+				m_Selector.select(SWEEP_INTERVAL);
+
+				Runnable task;
+				while ((task = m_Tasks.poll()) != null) {
+					task.run();
+				}
+
+				Iterator<SelectionKey> keys = m_Selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					ModbusNIOTransport transport = (ModbusNIOTransport) key.attachment();
+					if (key.isValid() && key.isConnectable())
+						transport.handleConnect();
+					if (key.isValid() && key.isReadable())
+						transport.handleRead();
+					if (key.isValid() && key.isWritable())
+						transport.handleWrite();
+				}
+
+				long now = System.currentTimeMillis();
+				for (ModbusNIOTransport transport : transports()) {
+					transport.expire(now);
+				}
+			} catch (Exception ex) {
+				if (Modbus.debug)
+					ModbusLog.w(getClass().getName(), "reactor loop failed: " + ex);
+			}
+		}
+
+		for (ModbusNIOTransport transport : transports()) {
+			transport.closeChannel(new ModbusIOException("Reactor stopped"));
+		}
+		try {
+			m_Selector.close();
+		} catch (IOException ex) {
+			// Nothing left to do.
+		}
+	}
+
+	private List<ModbusNIOTransport> transports() {
+		List<ModbusNIOTransport> result = new ArrayList<>();
+		for (SelectionKey key : m_Selector.keys()) {
+			result.add((ModbusNIOTransport) key.attachment());
+		}
+		return result;
+	}
+}
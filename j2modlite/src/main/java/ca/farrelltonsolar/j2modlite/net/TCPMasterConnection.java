@@ -33,15 +33,19 @@
  ***/
 package ca.farrelltonsolar.j2modlite.net;
 
-import android.util.Log;
-
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ca.farrelltonsolar.j2modlite.Modbus;
+import ca.farrelltonsolar.j2modlite.io.FrameTracer;
+import ca.farrelltonsolar.j2modlite.io.ModbusMetrics;
 import ca.farrelltonsolar.j2modlite.io.ModbusTCPTransport;
 import ca.farrelltonsolar.j2modlite.io.ModbusTransport;
+import ca.farrelltonsolar.j2modlite.io.TimeoutEstimator;
+import ca.farrelltonsolar.j2modlite.util.ModbusLog;
 
 /**
  * Class that implements a TCPMasterConnection.
@@ -54,6 +58,8 @@ public class TCPMasterConnection {
 	// instance attributes
 	private Socket m_Socket;
 	private int m_Timeout = Modbus.DEFAULT_TIMEOUT;
+	private int m_ReadTimeout = Modbus.DEFAULT_TIMEOUT;
+	private int m_ConnectTimeout = Modbus.DEFAULT_CONNECT_TIMEOUT;
 	private boolean m_Connected;
 
 	private InetAddress m_Address;
@@ -68,6 +74,11 @@ public class TCPMasterConnection {
 	 */
 	private boolean m_useUrgentData = false;
 
+	private ModbusMetrics m_Metrics = new ModbusMetrics();
+	private FrameTracer m_Tracer = null;
+	private TimeoutEstimator m_TimeoutEstimator = new TimeoutEstimator();
+	private final AtomicInteger m_TransactionID = new AtomicInteger(Modbus.DEFAULT_TRANSACTION_ID);
+
 	/**
 	 * Prepares the associated <tt>ModbusTransport</tt> of this
 	 * <tt>TCPMasterConnection</tt> for use.
@@ -81,6 +92,8 @@ public class TCPMasterConnection {
 		} else {
 			m_ModbusTransport.setSocket(m_Socket);
 		}
+		m_ModbusTransport.setMetrics(m_Metrics);
+		m_ModbusTransport.setTracer(m_Tracer);
 	}// prepareIO
 
 	/**
@@ -92,17 +105,34 @@ public class TCPMasterConnection {
 	public synchronized void connect() throws Exception {
 		if (! isConnected()) {
 			if (Modbus.debug)
-                Log.d(getClass().getName(), "connect()");
+                ModbusLog.d(getClass().getName(), "connect()");
 			
-			m_Socket = new Socket(m_Address, m_Port);
-			m_Socket.setReuseAddress(true);
-			m_Socket.setSoLinger(true, 1);
-			m_Socket.setKeepAlive(true);
+			/*
+			 * Connect with a bounded timeout, an unreachable slave would
+			 * otherwise block the caller for the OS default (minutes).
+			 */
+			Socket socket = new Socket();
+			try {
+				socket.setReuseAddress(true);
+				socket.setSoLinger(true, 1);
+				socket.setKeepAlive(true);
+				socket.setTcpNoDelay(true);
+				socket.connect(new InetSocketAddress(m_Address, m_Port), m_ConnectTimeout);
+			} catch (IOException ex) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// Nothing left to do.
+				}
+				throw ex;
+			}
+			m_Socket = socket;
 			
-			setTimeout(m_Timeout);
 			prepareTransport();
+			setTimeout(m_Timeout);
 			
 			m_Connected = true;
+			m_Metrics.recordConnect();
 		}
 	}// connect
 
@@ -136,7 +166,7 @@ public class TCPMasterConnection {
 				m_ModbusTransport.close();
 			} catch (IOException ex) {
 				if (Modbus.debug)
-                    Log.d(getClass().getName(), "close()");
+                    ModbusLog.d(getClass().getName(), "close()");
 			}
 			m_Connected = false;
 		}
@@ -160,6 +190,51 @@ public class TCPMasterConnection {
 		m_ModbusTransport = trans;
 	}
 
+	/**
+	 * Returns the counters and latency histograms of this
+	 * <tt>TCPMasterConnection</tt>.
+	 * 
+	 * @return the connection's <tt>ModbusMetrics</tt>.
+	 */
+	public ModbusMetrics getMetrics() {
+		return m_Metrics;
+	}// getMetrics
+
+	/**
+	 * Sets the <tt>ModbusMetrics</tt> this connection records into, so that
+	 * figures can be kept across connection instances.
+	 * 
+	 * @param metrics
+	 *            the metrics to record into.
+	 */
+	public void setMetrics(ModbusMetrics metrics) {
+		m_Metrics = metrics;
+		if (m_ModbusTransport != null)
+			m_ModbusTransport.setMetrics(metrics);
+	}// setMetrics
+
+	/**
+	 * Returns the <tt>FrameTracer</tt> of this <tt>TCPMasterConnection</tt>.
+	 * 
+	 * @return the tracer, <tt>null</tt> if tracing is off.
+	 */
+	public FrameTracer getTracer() {
+		return m_Tracer;
+	}// getTracer
+
+	/**
+	 * Sets the <tt>FrameTracer</tt> raw frames are passed to, or
+	 * <tt>null</tt> (the default) to turn tracing off.
+	 * 
+	 * @param tracer
+	 *            the tracer to use.
+	 */
+	public void setTracer(FrameTracer tracer) {
+		m_Tracer = tracer;
+		if (m_ModbusTransport != null)
+			m_ModbusTransport.setTracer(tracer);
+	}// setTracer
+
 	/**
 	 * Returns the timeout for this <tt>TCPMasterConnection</tt>.
 	 * 
@@ -177,12 +252,102 @@ public class TCPMasterConnection {
 	 */
 	public void setTimeout(int timeout) {
 		m_Timeout = timeout;
+		setReadTimeout(timeout);
+	}// setTimeout
+
+	/**
+	 * Sets the read timeout of the open socket for the next exchange, leaving
+	 * the configured timeout a new connection starts with unchanged. The
+	 * socket option is only touched when the value changes.
+	 * 
+	 * @param timeout
+	 *            the read timeout in milliseconds.
+	 */
+	public void setReadTimeout(int timeout) {
+		if (m_Socket == null || (timeout == m_ReadTimeout && m_Connected))
+			return;
 		try {
-			m_Socket.setSoTimeout(m_Timeout);
+			m_Socket.setSoTimeout(timeout);
+			m_ReadTimeout = timeout;
 		} catch (IOException ex) {
 			// handle?
 		}
-	}// setTimeout
+	}// setReadTimeout
+
+	/**
+	 * Returns the next transaction identifier for a request on this
+	 * connection, skipping zero which slaves use to mean "not checked".
+	 * Single and pipelined transactions share the sequence, so a late
+	 * response to one can never carry the identifier of another.
+	 * 
+	 * @return the transaction identifier.
+	 */
+	public int nextTransactionID() {
+		while (true) {
+			int current = m_TransactionID.get();
+			int next = current >= Modbus.MAX_TRANSACTION_ID ? 1 : current + 1;
+			if (m_TransactionID.compareAndSet(current, next))
+				return next;
+		}
+	}// nextTransactionID
+
+	/**
+	 * Returns the estimator response timeouts are derived from.
+	 * 
+	 * @return the estimator, <tt>null</tt> if the configured timeout is
+	 *         always used.
+	 */
+	public TimeoutEstimator getTimeoutEstimator() {
+		return m_TimeoutEstimator;
+	}// getTimeoutEstimator
+
+	/**
+	 * Sets the estimator response timeouts are derived from, so that round
+	 * trip times can be kept across connection instances, or <tt>null</tt>
+	 * to always use the configured timeout.
+	 * 
+	 * @param estimator
+	 *            the estimator to use.
+	 */
+	public void setTimeoutEstimator(TimeoutEstimator estimator) {
+		m_TimeoutEstimator = estimator;
+	}// setTimeoutEstimator
+
+	/**
+	 * Returns the read timeout for an attempt of a request, adapted to the
+	 * round trip times seen so far if an estimator is set.
+	 * 
+	 * @param functionCode
+	 *            the function code of the request.
+	 * @param attempt
+	 *            0 for the first attempt, 1 for the first retry and so on.
+	 * @return the timeout in milliseconds.
+	 */
+	public int getTimeout(int functionCode, int attempt) {
+		TimeoutEstimator estimator = m_TimeoutEstimator;
+		return estimator != null ? estimator.getTimeout(functionCode, attempt, m_Timeout) : m_Timeout;
+	}// getTimeout
+
+	/**
+	 * Returns the connect timeout for this <tt>TCPMasterConnection</tt>.
+	 * 
+	 * @return the connect timeout in milliseconds.
+	 */
+	public int getConnectTimeout() {
+		return m_ConnectTimeout;
+	}// getConnectTimeout
+
+	/**
+	 * Sets the maximum time {@link #connect()} waits for the slave to accept
+	 * the connection. The default is
+	 * <tt>Modbus.DEFAULT_CONNECT_TIMEOUT</tt>.
+	 * 
+	 * @param timeout
+	 *            the connect timeout in milliseconds.
+	 */
+	public void setConnectTimeout(int timeout) {
+		m_ConnectTimeout = timeout;
+	}// setConnectTimeout
 
 	/**
 	 * Returns the destination port of this <tt>TCPMasterConnection</tt>.
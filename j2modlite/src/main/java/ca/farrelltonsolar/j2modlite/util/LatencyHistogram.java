@@ -0,0 +1,123 @@
+package ca.farrelltonsolar.j2modlite.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size, lock free histogram of latencies in microseconds.
+ * <p>
+ * Values are counted in log-linear buckets in the manner of an HDR
+ * histogram: every power of two range is split into 16 equal sub-buckets,
+ * so any recorded value is reported back within about 6% of its true value
+ * while the whole range up to several hours fits in 512 counters.
+ * Recording is a couple of atomic increments and never allocates.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = 512;
+	private static final long MAX_TRACKABLE = upperBound(BUCKETS - 1);
+
+	private final AtomicLongArray m_Counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong m_Total = new AtomicLong();
+	private final AtomicLong m_Sum = new AtomicLong();
+	private final AtomicLong m_Max = new AtomicLong();
+
+	/**
+	 * Records one latency.
+	 *
+	 * @param micros
+	 *            the latency in microseconds, values out of range are clamped.
+	 */
+	public void record(long micros) {
+		if (micros < 0)
+			micros = 0;
+		else if (micros > MAX_TRACKABLE)
+			micros = MAX_TRACKABLE;
+		m_Counts.incrementAndGet(indexOf(micros));
+		m_Total.incrementAndGet();
+		m_Sum.addAndGet(micros);
+		long max;
+		while (micros > (max = m_Max.get())) {
+			if (m_Max.compareAndSet(max, micros))
+				break;
+		}
+	}
+
+	public long getTotalCount() {
+		return m_Total.get();
+	}
+
+	public long getMaxValue() {
+		return m_Max.get();
+	}
+
+	/**
+	 * Returns the mean of the recorded values.
+	 *
+	 * @return the mean in microseconds, 0 if nothing was recorded.
+	 */
+	public double getMean() {
+		long total = m_Total.get();
+		return total == 0 ? 0 : (double) m_Sum.get() / total;
+	}
+
+	/**
+	 * Returns the value below which the given percentage of recorded values
+	 * fall, rounded up to the top of its bucket.
+	 *
+	 * @param percentile
+	 *            the percentile, 0 to 100.
+	 * @return the value in microseconds, 0 if nothing was recorded.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = m_Total.get();
+		if (total == 0)
+			return 0;
+		long target = (long) Math.ceil(Math.min(100.0, Math.max(0.0, percentile)) / 100.0 * total);
+		if (target < 1)
+			target = 1;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += m_Counts.get(i);
+			if (seen >= target)
+				return Math.min(upperBound(i), m_Max.get());
+		}
+		return m_Max.get();
+	}
+
+	/**
+	 * Clears all recorded values.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			m_Counts.set(i, 0);
+		}
+		m_Total.set(0);
+		m_Sum.set(0);
+		m_Max.set(0);
+	}
+
+	public String toString() {
+		return "n=" + getTotalCount() + " mean=" + Math.round(getMean()) + "us p50="
+				+ getValueAtPercentile(50) + "us p90=" + getValueAtPercentile(90) + "us p99="
+				+ getValueAtPercentile(99) + "us max=" + getMaxValue() + "us";
+	}
+
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		int top = (int) (value >>> shift);
+		return (shift + 1) * SUB_BUCKETS + (top - SUB_BUCKETS);
+	}
+
+	private static long upperBound(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int shift = index / SUB_BUCKETS - 1;
+		long top = SUB_BUCKETS + index % SUB_BUCKETS;
+		return ((top + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,99 @@
+package ca.farrelltonsolar.j2modlite.util;
+
+import java.lang.reflect.Method;
+
+/**
+ * Logging used by the library, so it runs on a plain JVM as well as on
+ * Android.
+ * <p>
+ * Messages go to <tt>android.util.Log</tt> when that class is present, to
+ * standard error otherwise, where debug messages are only printed after
+ * {@link #setDebug(boolean)}. An application that logs somewhere else
+ * installs its own {@link Sink}.
+ */
+public final class ModbusLog {
+
+	/**
+	 * Receives the library's log messages.
+	 */
+	public interface Sink {
+		void debug(String tag, String message);
+
+		void warn(String tag, String message);
+	}
+
+	private static volatile Sink m_Sink = defaultSink();
+	private static volatile boolean m_Debug = false;
+
+	private ModbusLog() {
+	}
+
+	public static void d(String tag, String message) {
+		m_Sink.debug(tag, message);
+	}
+
+	public static void w(String tag, String message) {
+		m_Sink.warn(tag, message);
+	}
+
+	/**
+	 * Replaces where log messages go.
+	 *
+	 * @param sink
+	 *            the new sink, <tt>null</tt> for the default.
+	 */
+	public static void setSink(Sink sink) {
+		m_Sink = sink == null ? defaultSink() : sink;
+	}
+
+	/**
+	 * Turns debug messages on or off for the standard error sink, Android
+	 * filters them by log level itself.
+	 *
+	 * @param debug
+	 *            true to print debug messages.
+	 */
+	public static void setDebug(boolean debug) {
+		m_Debug = debug;
+	}
+
+	private static Sink defaultSink() {
+		try {
+			Class<?> log = Class.forName("android.util.Log");
+			final Method debug = log.getMethod("d", String.class, String.class);
+			final Method warn = log.getMethod("w", String.class, String.class);
+			return new Sink() {
+				@Override
+				public void debug(String tag, String message) {
+					invoke(debug, tag, message);
+				}
+
+				@Override
+				public void warn(String tag, String message) {
+					invoke(warn, tag, message);
+				}
+			};
+		} catch (Exception ex) {
+			return new Sink() {
+				@Override
+				public void debug(String tag, String message) {
+					if (m_Debug)
+						System.err.println("D/" + tag + ": " + message);
+				}
+
+				@Override
+				public void warn(String tag, String message) {
+					System.err.println("W/" + tag + ": " + message);
+				}
+			};
+		}
+	}
+
+	private static void invoke(Method method, String tag, String message) {
+		try {
+			method.invoke(null, tag, message);
+		} catch (Exception ex) {
+			System.err.println(tag + ": " + message);
+		}
+	}
+}
@@ -98,15 +98,16 @@ public final class ModbusUtil {
    * @return	the generated hexadecimal representation as <code>String</code>.
    */
   public static final String toHex(byte[] data, int off, int length) {
-    //double size, two bytes (hex range) for one byte
-    StringBuffer buf = new StringBuffer(data.length * 2);
-    for (int i = off; i < length; i++) {
+    //two hex digits and a separator for one byte
+    StringBuffer buf = new StringBuffer(length * 3);
+    int end = off + length;
+    for (int i = off; i < end; i++) {
       //don't forget the second hex digit
       if (((int) data[i] & 0xff) < 0x10) {
         buf.append("0");
       }
       buf.append(Long.toString((int) data[i] & 0xff, 16));
-      if (i < data.length - 1) {
+      if (i < end - 1) {
         buf.append(" ");
       }
     }
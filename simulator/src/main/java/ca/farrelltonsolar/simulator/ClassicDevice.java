@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.simulator;
+
+import java.util.Calendar;
+
+import ca.farrelltonsolar.j2modlite.Modbus;
+import ca.farrelltonsolar.j2modlite.msg.ModbusResponse;
+import ca.farrelltonsolar.j2modlite.msg.ReadFileTransferRequest;
+import ca.farrelltonsolar.j2modlite.msg.ReadFileTransferResponse;
+
+/**
+ * A Midnite Classic (or a Kid) on a 48 V battery bank, optionally with a WhizBang Jr.
+ * Output follows the sun by the local time of day. The identity registers at 4100, the live registers,
+ * the WhizBang Jr. registers at 4360 and the version registers at 16386 are served as the app reads
+ * them, and a Classic also serves its day and minute logs through READ_LOG_FILE (function 104).
+ */
+class ClassicDevice extends SimulatedDevice {
+
+    static final int DAY_LOG = 5;
+    static final int MINUTE_LOG = 6;
+    // the block address has 10 bits for the entry index
+    static final int LOG_ENTRIES = 1024;
+    static final int MINUTE_LOG_SPACING = 2; // minutes between minute log entries
+
+    private static final int REGISTER_COUNT = 16390;
+    private static final float RATED_POWER = 3000.0f;
+    private static final float LOAD_CURRENT = 5.0f;
+    private static final float CAPACITY = 400.0f; // amp hours
+
+    private final boolean kid;
+    private final boolean whizbang;
+    private final short[][] dayLog = new short[64][];
+    private final short[][] minuteLog = new short[64][];
+    private long lastUpdate;
+    private int today = -1;
+    private float soc = 70.0f;
+    private double energyToday; // Wh
+    private double totalEnergy; // Wh
+    private double positiveAmpHours;
+    private double negativeAmpHours;
+    private int floatSeconds;
+    private int absorbSeconds;
+
+    ClassicDevice(String name, boolean kid, boolean whizbang, long seed) {
+        super(name, REGISTER_COUNT, seed);
+        this.kid = kid;
+        this.whizbang = whizbang;
+        totalEnergy = 1000000.0 + random.nextInt(5000000);
+        loadIdentity();
+        if (!kid) {
+            loadLogs(System.currentTimeMillis());
+        }
+        update(System.currentTimeMillis());
+    }
+
+    private void loadIdentity() {
+        set(4100, kid ? 0 : (2 << 8) | 150); // Classic 150 rev 2
+        set(4101, 2014);
+        set(4102, (2 << 8) | 15);
+        set(4105, random.nextInt(0x10000));
+        set(4106, random.nextInt(0x10000));
+        set(4107, 0x0060);
+        set32(4110, 1000 + random.nextInt(100000));
+        set(4121, 1400 + random.nextInt(200));
+        set(4163, 1); // mppt mode
+        set(4164, whizbang ? 18 << 8 : 0);
+        byte[] deviceName = String.format("SIM%05d", random.nextInt(100000)).getBytes();
+        for (int i = 0; i < 4; i++) {
+            set(4209 + i, ((deviceName[i * 2 + 1] & 0xff) << 8) | (deviceName[i * 2] & 0xff));
+        }
+        set(4245, 40); // ending amps 4.0
+        set32(16386, 1849);
+        set32(16388, 2079);
+    }
+
+    /**
+     * Day logs one entry a day and minute logs one entry every MINUTE_LOG_SPACING minutes, most recent first.
+     */
+    private void loadLogs(long now) {
+        for (int category : new int[]{0, 2, 4, 5, 7, 8}) {
+            dayLog[category] = new short[LOG_ENTRIES];
+        }
+        for (int i = 0; i < LOG_ENTRIES; i++) {
+            float sunny = 0.3f + 0.7f * random.nextFloat();
+            dayLog[0][i] = (short) round(RATED_POWER * 5.0f * sunny / 100.0f); // kWh * 10
+            dayLog[2][i] = (short) round(3600 * sunny);                        // float time seconds
+            dayLog[4][i] = (short) round(RATED_POWER * sunny);                 // high power
+            dayLog[5][i] = (short) round(25 + 20 * sunny);                     // high temperature
+            dayLog[7][i] = (short) round(1300 + 300 * sunny);                  // high PV volts * 10
+            dayLog[8][i] = (short) round(560 + 30 * sunny);                    // high battery volts * 10
+        }
+        for (int category = 0; category < 8; category++) {
+            minuteLog[category] = new short[LOG_ENTRIES];
+        }
+        Calendar time = Calendar.getInstance();
+        time.setTimeInMillis(now);
+        for (int i = 0; i < LOG_ENTRIES; i++) {
+            float sun = sun(time);
+            float power = RATED_POWER * sun;
+            float batVoltage = 52.0f + 4.0f * sun;
+            minuteLog[0][i] = (short) round(power);
+            minuteLog[1][i] = (short) round((sun > 0 ? 120 + 20 * sun : 20) * 10);
+            minuteLog[2][i] = (short) round(batVoltage * 10);
+            minuteLog[3][i] = (short) time.get(Calendar.SECOND);
+            minuteLog[4][i] = (short) ((time.get(Calendar.HOUR_OF_DAY) << 6) | time.get(Calendar.MINUTE));
+            minuteLog[5][i] = (short) ((sun > 0 ? 4 : 0) << 8);
+            minuteLog[6][i] = (short) round(power / batVoltage * 10);
+            minuteLog[7][i] = (short) round(power / 100);
+            time.add(Calendar.MINUTE, -MINUTE_LOG_SPACING);
+        }
+    }
+
+    @Override
+    synchronized void update(long now) {
+        Calendar time = Calendar.getInstance();
+        time.setTimeInMillis(now);
+        double hours = lastUpdate == 0 ? 0 : (now - lastUpdate) / 3600000.0;
+        lastUpdate = now;
+        int day = time.get(Calendar.DAY_OF_YEAR);
+        if (day != today) {
+            today = day;
+            energyToday = 0;
+            floatSeconds = 0;
+            absorbSeconds = 0;
+        }
+        float sun = sun(time);
+        float power = sun > 0 ? RATED_POWER * sun * (0.9f + 0.1f * random.nextFloat()) : 0;
+        int chargeState;
+        if (sun == 0) {
+            chargeState = 0; // resting
+        } else if (soc < 90) {
+            chargeState = 4; // bulk MPPT
+        } else if (soc < 98) {
+            chargeState = 3; // absorb
+            absorbSeconds += round(hours * 3600);
+        } else {
+            chargeState = 5; // float
+            floatSeconds += round(hours * 3600);
+            power = Math.min(power, LOAD_CURRENT * 54.0f);
+        }
+        float batVoltage = 48.0f + 4.0f * soc / 100.0f + (power > 0 ? 2.0f : 0);
+        float pvVoltage = sun > 0 ? 120.0f + 20.0f * sun : 20.0f;
+        float batCurrent = power / batVoltage;
+        float pvCurrent = power / pvVoltage;
+        float shuntCurrent = batCurrent - LOAD_CURRENT;
+        soc = Math.max(0, Math.min(100, soc + (float) (shuntCurrent * hours / CAPACITY * 100)));
+        energyToday += power * hours;
+        totalEnergy += power * hours;
+        if (shuntCurrent > 0) {
+            positiveAmpHours += shuntCurrent * hours;
+        } else {
+            negativeAmpHours -= shuntCurrent * hours;
+        }
+        float temperature = 25.0f + 15.0f * sun;
+
+        set(4114, round(batVoltage * 10));
+        set(4115, round(pvVoltage * 10));
+        set(4116, round(batCurrent * 10));
+        set(4117, round(energyToday / 100));
+        set(4118, round(power));
+        set(4119, chargeState << 8);
+        set(4120, round(pvCurrent * 10));
+        set32(4125, (int) (totalEnergy / 100));
+        set32(4129, 0);
+        set(4131, round(temperature * 10));
+        set(4132, round((temperature + 5) * 10));
+        set(4133, round((temperature + 3) * 10));
+        set(4137, floatSeconds);
+        set(4138, absorbSeconds);
+        set(4142, 0);
+        set(4243, 564);
+        set(4274, chargeState == 0 ? 4 : 0);
+        if (whizbang) {
+            set32(4364, (int) positiveAmpHours);
+            set32(4366, -(int) negativeAmpHours);
+            set32(4368, (int) (positiveAmpHours - negativeAmpHours));
+            set(4370, round(shuntCurrent * 10));
+            set(4371, round(temperature + 50) & 0xff);
+            set(4372, round(soc));
+            set(4376, round(CAPACITY * soc / 100));
+            set(4380, round(CAPACITY));
+        }
+    }
+
+    @Override
+    protected ModbusResponse readLog(ReadFileTransferRequest request) {
+        if (kid) {
+            return super.readLog(request);
+        }
+        short[][] logs = request.getDevice() == DAY_LOG ? dayLog : request.getDevice() == MINUTE_LOG ? minuteLog : null;
+        short[] log = logs == null ? null : logs[request.getCategory()];
+        int day = request.getDayIndex();
+        if (log == null || day >= log.length) {
+            return request.createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+        }
+        ReadFileTransferResponse response = (ReadFileTransferResponse) request.getResponse();
+        response.setEntries(request.getDevice(), request.getCategory(), day, log, day,
+                Math.min(Modbus.LOG_FILE_BLOCK_ENTRIES, log.length - day));
+        return response;
+    }
+
+    /**
+     * 0 at night, rising to 1 at noon.
+     */
+    private static float sun(Calendar time) {
+        float hour = time.get(Calendar.HOUR_OF_DAY) + time.get(Calendar.MINUTE) / 60.0f;
+        return hour <= 6 || hour >= 18 ? 0 : (float) Math.sin(Math.PI * (hour - 6) / 12);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.simulator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+import ca.farrelltonsolar.j2modlite.ModbusIOException;
+import ca.farrelltonsolar.j2modlite.io.ModbusTCPTransport;
+import ca.farrelltonsolar.j2modlite.msg.ModbusRequest;
+import ca.farrelltonsolar.j2modlite.msg.ModbusResponse;
+import ca.farrelltonsolar.j2modlite.util.ModbusLog;
+
+/**
+ * Serves one simulated device on its own port, like a controller on the LAN.
+ * Each connection reads requests with j2modlite's slave side ModbusTCPTransport and answers them one
+ * at a time, with the faults of the shared FaultProfile applied.
+ */
+class DeviceServer implements Runnable {
+
+    private final SimulatedDevice device;
+    private final ServerSocket serverSocket;
+    private final FaultProfile faults;
+    private final ExecutorService executor;
+    private final Set<Socket> connections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private final Random seeds = new Random();
+
+    DeviceServer(SimulatedDevice device, InetAddress bind, int port, FaultProfile faults, ExecutorService executor) throws IOException {
+        this.device = device;
+        this.faults = faults;
+        this.executor = executor;
+        serverSocket = new ServerSocket(port, 50, bind);
+    }
+
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    SimulatedDevice device() {
+        return device;
+    }
+
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                connections.add(socket);
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException ex) {
+                if (!serverSocket.isClosed()) {
+                    ModbusLog.w(getClass().getName(), String.format("%s accept failed ex: %s", device.name(), ex));
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        int requests = 0;
+        Random random;
+        synchronized (seeds) {
+            random = new Random(seeds.nextLong());
+        }
+        try {
+            ModbusTCPTransport transport = new ModbusTCPTransport(socket);
+            transport.setTimeout(0); // a poller may stay quiet for minutes
+            while (!socket.isClosed()) {
+                ModbusRequest request = transport.readRequest();
+                requests++;
+                if (faults.drop(random)) {
+                    continue;
+                }
+                ModbusResponse response = device.handle(request);
+                int delay = faults.delay(random);
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+                transport.writeMessage(response);
+                if (faults.disconnect(requests)) {
+                    break;
+                }
+            }
+        } catch (ModbusIOException ex) {
+            // connection closed by the poller
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            ModbusLog.w(getClass().getName(), String.format("%s connection failed ex: %s", device.name(), ex));
+        } finally {
+            connections.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Drops every open connection, as a controller that rebooted or an access point that lost its clients.
+     */
+    void disconnectAll() {
+        for (Socket socket : connections) {
+            closeQuietly(socket);
+        }
+    }
+
+    void close() {
+        closeQuietly(serverSocket);
+        disconnectAll();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ex) {
+            // already closed
+        }
+    }
+}
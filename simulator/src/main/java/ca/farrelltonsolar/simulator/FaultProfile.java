@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.simulator;
+
+import java.util.Random;
+
+/**
+ * How badly the simulated network behaves, changed at run time by the fault script.
+ * latency and jitter delay every response (jitter is uniform on top of latency), loss drops
+ * that fraction of requests without an answer, and disconnectEvery closes a connection after
+ * that many requests (0 never).
+ */
+class FaultProfile {
+
+    private volatile int latency;
+    private volatile int jitter;
+    private volatile double loss;
+    private volatile int disconnectEvery;
+
+    /**
+     * Applies one setting, e.g. "latency=200" from the command line or the fault script.
+     */
+    void set(String key, String value) {
+        if (key.equals("latency")) {
+            latency = Integer.parseInt(value);
+        } else if (key.equals("jitter")) {
+            jitter = Integer.parseInt(value);
+        } else if (key.equals("loss")) {
+            loss = Double.parseDouble(value);
+        } else if (key.equals("disconnect-every")) {
+            disconnectEvery = Integer.parseInt(value);
+        } else {
+            throw new IllegalArgumentException("unknown fault setting " + key);
+        }
+    }
+
+    /**
+     * Milliseconds to hold back the next response.
+     */
+    int delay(Random random) {
+        int spread = jitter;
+        return latency + (spread > 0 ? random.nextInt(spread + 1) : 0);
+    }
+
+    boolean drop(Random random) {
+        double p = loss;
+        return p > 0 && random.nextDouble() < p;
+    }
+
+    /**
+     * True when a connection should be closed after answering its requests'th request.
+     */
+    boolean disconnect(int requests) {
+        int every = disconnectEvery;
+        return every > 0 && requests % every == 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("latency=%d jitter=%d loss=%.3f disconnect-every=%d", latency, jitter, loss, disconnectEvery);
+    }
+}
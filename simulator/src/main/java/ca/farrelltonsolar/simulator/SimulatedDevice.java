@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.simulator;
+
+import java.util.Random;
+
+import ca.farrelltonsolar.j2modlite.Modbus;
+import ca.farrelltonsolar.j2modlite.msg.ModbusRequest;
+import ca.farrelltonsolar.j2modlite.msg.ModbusResponse;
+import ca.farrelltonsolar.j2modlite.msg.ReadFileTransferRequest;
+import ca.farrelltonsolar.j2modlite.msg.ReadMultipleRegistersRequest;
+import ca.farrelltonsolar.j2modlite.msg.ReadMultipleRegistersResponse;
+import ca.farrelltonsolar.j2modlite.procimg.IllegalAddressException;
+import ca.farrelltonsolar.j2modlite.procimg.Register;
+import ca.farrelltonsolar.j2modlite.procimg.SimpleProcessImage;
+import ca.farrelltonsolar.j2modlite.procimg.SimpleRegister;
+
+/**
+ * A charge controller served by the simulator, its holding registers kept in a j2modlite process image.
+ * Every address up to the highest one used exists, addresses the device does not use all share one
+ * register that reads 0, so hundreds of devices fit in one JVM. Values are updated once a second by
+ * update() and read under the device's lock, so a response never mixes two updates.
+ */
+abstract class SimulatedDevice {
+
+    private static final Register UNUSED = new SimpleRegister(0);
+
+    private final String name;
+    private final SimpleProcessImage image = new SimpleProcessImage();
+    protected final Random random;
+
+    SimulatedDevice(String name, int registerCount, long seed) {
+        this.name = name;
+        random = new Random(seed);
+        for (int i = 0; i < registerCount; i++) {
+            image.addRegister(UNUSED);
+        }
+    }
+
+    String name() {
+        return name;
+    }
+
+    /**
+     * Moves the simulated values on to wall clock time now (ms).
+     */
+    abstract void update(long now);
+
+    /**
+     * Answers a request the way the real device would.
+     */
+    synchronized ModbusResponse handle(ModbusRequest request) {
+        if (request instanceof ReadMultipleRegistersRequest) {
+            ReadMultipleRegistersRequest read = (ReadMultipleRegistersRequest) request;
+            Register[] registers;
+            try {
+                registers = image.getRegisterRange(read.getReference(), read.getWordCount());
+            } catch (IllegalAddressException ex) {
+                return request.createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+            }
+            Register[] copy = new Register[registers.length];
+            for (int i = 0; i < registers.length; i++) {
+                copy[i] = new SimpleRegister(registers[i].getValue());
+            }
+            ReadMultipleRegistersResponse response = (ReadMultipleRegistersResponse) read.getResponse();
+            response.setRegisters(copy);
+            return response;
+        }
+        if (request instanceof ReadFileTransferRequest) {
+            return readLog((ReadFileTransferRequest) request);
+        }
+        return request.createExceptionResponse(Modbus.ILLEGAL_FUNCTION_EXCEPTION);
+    }
+
+    /**
+     * Answers a READ_LOG_FILE request, devices without logs refuse the function.
+     */
+    protected ModbusResponse readLog(ReadFileTransferRequest request) {
+        return request.createExceptionResponse(Modbus.ILLEGAL_FUNCTION_EXCEPTION);
+    }
+
+    protected void set(int address, int value) {
+        Register register = image.getRegister(address);
+        if (register == UNUSED) {
+            image.setRegister(address, new SimpleRegister(value & 0xffff));
+        } else {
+            register.setValue(value & 0xffff);
+        }
+    }
+
+    /**
+     * Stores a 32 bit value low word first, as the Classic does.
+     */
+    protected void set32(int address, int value) {
+        set(address, value);
+        set(address + 1, value >>> 16);
+    }
+
+    protected static int round(double value) {
+        return (int) Math.round(value);
+    }
+}
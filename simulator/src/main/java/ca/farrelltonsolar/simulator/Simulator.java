@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.simulator;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.farrelltonsolar.j2modlite.util.ModbusLog;
+
+/**
+ * Modbus TCP simulator, serves any number of virtual Classic, Kid and TriStar controllers, each on its
+ * own port, to develop and load test the pollers without the hardware.
+ * <pre>
+ * simulator [--classic n] [--kid n] [--tristar n] [--whizbang] [--port first] [--bind address]
+ *           [--latency ms] [--jitter ms] [--loss fraction] [--disconnect-every n]
+ *           [--script file] [--seed n] [--debug]
+ * </pre>
+ * Devices get consecutive ports from --port (default 5020), Classics first. The fault script has one
+ * step per line, "seconds setting=value ..." or "seconds disconnect", timed from start up, e.g.
+ * <pre>
+ * 30 latency=800 jitter=400
+ * 60 loss=0.2
+ * 90 disconnect
+ * 120 latency=0 jitter=0 loss=0
+ * </pre>
+ */
+public class Simulator {
+
+    private static final int DEFAULT_PORT = 5020;
+    private static final long UPDATE_PERIOD = 1000;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final FaultProfile faults = new FaultProfile();
+    private final List<SimulatedDevice> devices = new ArrayList<>();
+    private final List<DeviceServer> servers = new ArrayList<>();
+    private final List<String> script = new ArrayList<>();
+    private InetAddress bind;
+    private int firstPort = DEFAULT_PORT;
+    private ExecutorService executor;
+    private ScheduledExecutorService scheduler;
+
+    public static void main(String[] args) throws Exception {
+        final Simulator simulator = new Simulator();
+        try {
+            simulator.configure(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println("usage: simulator [--classic n] [--kid n] [--tristar n] [--whizbang] [--port first] [--bind address]"
+                    + " [--latency ms] [--jitter ms] [--loss fraction] [--disconnect-every n] [--script file] [--seed n] [--debug]");
+            System.exit(2);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                simulator.stop();
+            }
+        }, "SimulatorShutdown"));
+        simulator.start();
+    }
+
+    void configure(String[] args) throws IOException {
+        int classics = 1;
+        int kids = 0;
+        int tristars = 0;
+        boolean whizbang = false;
+        long seed = System.nanoTime();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--classic")) {
+                classics = count(value(args, ++i, arg), arg);
+            } else if (arg.equals("--kid")) {
+                kids = count(value(args, ++i, arg), arg);
+            } else if (arg.equals("--tristar")) {
+                tristars = count(value(args, ++i, arg), arg);
+            } else if (arg.equals("--whizbang")) {
+                whizbang = true;
+            } else if (arg.equals("--port")) {
+                firstPort = Integer.parseInt(value(args, ++i, arg));
+            } else if (arg.equals("--bind")) {
+                bind = InetAddress.getByName(value(args, ++i, arg));
+            } else if (arg.equals("--latency") || arg.equals("--jitter") || arg.equals("--loss") || arg.equals("--disconnect-every")) {
+                faults.set(arg.substring(2), value(args, ++i, arg));
+            } else if (arg.equals("--script")) {
+                readScript(value(args, ++i, arg));
+            } else if (arg.equals("--seed")) {
+                seed = Long.parseLong(value(args, ++i, arg));
+            } else if (arg.equals("--debug")) {
+                ModbusLog.setDebug(true);
+            } else {
+                throw new IllegalArgumentException("unknown option " + arg);
+            }
+        }
+        if (classics + kids + tristars == 0) {
+            throw new IllegalArgumentException("no devices to simulate");
+        }
+        Random seeds = new Random(seed);
+        for (int i = 0; i < classics; i++) {
+            devices.add(new ClassicDevice("Classic" + (i + 1), false, whizbang, seeds.nextLong()));
+        }
+        for (int i = 0; i < kids; i++) {
+            devices.add(new ClassicDevice("Kid" + (i + 1), true, whizbang, seeds.nextLong()));
+        }
+        for (int i = 0; i < tristars; i++) {
+            devices.add(new TriStarDevice("TriStar" + (i + 1), seeds.nextLong()));
+        }
+    }
+
+    void start() throws IOException {
+        executor = newConnectionExecutor();
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SimulatorUpdate");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        int port = firstPort;
+        for (SimulatedDevice device : devices) {
+            DeviceServer server = new DeviceServer(device, bind, port == 0 ? 0 : port++, faults, executor);
+            servers.add(server);
+            Thread accept = new Thread(server, "Accept-" + device.name());
+            accept.start();
+            System.out.println(String.format("%s on port %d", device.name(), server.port()));
+        }
+        System.out.println("faults " + faults);
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.currentTimeMillis();
+                for (SimulatedDevice device : devices) {
+                    device.update(now);
+                }
+            }
+        }, UPDATE_PERIOD, UPDATE_PERIOD, TimeUnit.MILLISECONDS);
+        for (final String step : script) {
+            String[] words = step.split("\\s+");
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    runStep(step);
+                }
+            }, (long) (Double.parseDouble(words[0]) * 1000), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void stop() {
+        for (DeviceServer server : servers) {
+            server.close();
+        }
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void runStep(String step) {
+        String[] words = step.split("\\s+");
+        for (int i = 1; i < words.length; i++) {
+            if (words[i].equals("disconnect")) {
+                for (DeviceServer server : servers) {
+                    server.disconnectAll();
+                }
+            } else {
+                String[] setting = words[i].split("=", 2);
+                faults.set(setting[0], setting[1]);
+            }
+        }
+        System.out.println(String.format("step %s, faults %s", step, faults));
+    }
+
+    /**
+     * Reads and checks the fault script so a typo fails at start up rather than half way through a run.
+     */
+    private void readScript(String file) throws IOException {
+        FaultProfile check = new FaultProfile();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comment = line.indexOf('#');
+                String step = (comment < 0 ? line : line.substring(0, comment)).trim();
+                if (step.isEmpty()) {
+                    continue;
+                }
+                String[] words = step.split("\\s+");
+                try {
+                    Double.parseDouble(words[0]);
+                    for (int i = 1; i < words.length; i++) {
+                        if (!words[i].equals("disconnect")) {
+                            String[] setting = words[i].split("=", 2);
+                            if (setting.length != 2) {
+                                throw new IllegalArgumentException(words[i]);
+                            }
+                            check.set(setting[0], setting[1]);
+                        }
+                    }
+                } catch (IllegalArgumentException ex) {
+                    throw new IllegalArgumentException(String.format("bad script step '%s' in %s", step, file));
+                }
+                script.add(step);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * A virtual thread per connection where the JVM supports them (Java 21 and later), so hundreds of
+     * pollers cost next to nothing, otherwise a platform thread per connection.
+     */
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception ex) {
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "Connection-" + count.incrementAndGet());
+                }
+            });
+        }
+    }
+
+    private static int count(String value, String option) {
+        int count = Integer.parseInt(value);
+        if (count < 0) {
+            throw new IllegalArgumentException(option + " must not be negative");
+        }
+        return count;
+    }
+
+    private static String value(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException(option + " needs a value");
+        }
+        return args[index];
+    }
+}
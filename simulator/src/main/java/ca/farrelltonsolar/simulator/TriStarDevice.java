@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2014. FarrelltonSolar
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package ca.farrelltonsolar.simulator;
+
+import java.util.Calendar;
+
+/**
+ * A Morningstar TriStar MPPT, registers from address 0 scaled by the voltage and current
+ * scaling registers 0 to 3, the way the app reads them.
+ */
+class TriStarDevice extends SimulatedDevice {
+
+    private static final int REGISTER_COUNT = 80;
+    private static final float V_PU = 180.0f;
+    private static final float I_PU = 80.0f;
+    private static final float RATED_POWER = 3000.0f;
+
+    private double energyToday; // Wh
+    private double totalEnergy; // kWh
+    private long lastUpdate;
+    private int today = -1;
+
+    TriStarDevice(String name, long seed) {
+        super(name, REGISTER_COUNT, seed);
+        set(0, (int) V_PU);
+        set(1, 0);
+        set(2, (int) I_PU);
+        set(3, 0);
+        totalEnergy = 1000 + random.nextInt(5000);
+        update(System.currentTimeMillis());
+    }
+
+    @Override
+    synchronized void update(long now) {
+        Calendar time = Calendar.getInstance();
+        time.setTimeInMillis(now);
+        double hours = lastUpdate == 0 ? 0 : (now - lastUpdate) / 3600000.0;
+        lastUpdate = now;
+        int day = time.get(Calendar.DAY_OF_YEAR);
+        if (day != today) {
+            today = day;
+            energyToday = 0;
+        }
+        float hour = time.get(Calendar.HOUR_OF_DAY) + time.get(Calendar.MINUTE) / 60.0f;
+        float sun = hour <= 6 || hour >= 18 ? 0 : (float) Math.sin(Math.PI * (hour - 6) / 12);
+        float power = RATED_POWER * sun * (0.9f + 0.1f * random.nextFloat());
+        float batVoltage = 52.0f + 3.0f * sun;
+        float pvVoltage = sun > 0 ? 120.0f + 20.0f * sun : 20.0f;
+        energyToday += power * hours;
+        totalEnergy += power * hours / 1000;
+        set(24, round(batVoltage * 32768 / V_PU));
+        set(27, round(pvVoltage * 32768 / V_PU));
+        set(28, round(power / batVoltage * 32768 / I_PU));
+        set(29, round(power / pvVoltage * 32768 / I_PU));
+        set(35, round(25 + 15 * sun)); // heat sink
+        set(37, round(20 + 5 * sun));  // battery
+        set(50, sun > 0 ? 5 : 3);      // MPPT or night
+        set(57, (int) totalEnergy);
+        set(58, round(power * 131072 / (V_PU * I_PU)));
+        set(68, (int) energyToday);
+    }
+}